@@ -0,0 +1,50 @@
+package com.vaadin.benchmarks;
+
+import com.mongodb.util.JSON;
+import com.vaadin.model.ColumnarEncoder;
+import com.vaadin.model.Downsampler;
+import com.vaadin.model.Fixtures;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the conversion of the queried documents to the payload of the charts (without the database): the row
+ * format of DbConnector.extractData, the column format of ColumnarEncoder and the downsampling of the line chart.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChartPayloadBenchmark {
+
+    /* number of days; 31 is the monthly view, 365 the yearly view and 1825 a custom range of five years */
+    @Param({"31", "365", "1825"})
+    private int days;
+
+    private List<Document> documents;
+
+    @Setup(Level.Trial)
+    public void createDocuments() {
+        documents = Fixtures.dailyDocuments(Fixtures.END_OF_SEEDED_DATA - days * Fixtures.DAY_IN_MILLIS, days, 42);
+    }
+
+    @Benchmark
+    public String serializeRows() {
+        return JSON.serialize(documents);
+    }
+
+    @Benchmark
+    public String encodeColumns() {
+        return ColumnarEncoder.toColumnarJson(documents);
+    }
+
+    @Benchmark
+    public List<Document> downsample() {
+        return Downsampler.largestTriangleThreeBuckets(documents, 150);
+    }
+}
@@ -0,0 +1,139 @@
+package com.vaadin.benchmarks;
+
+import com.vaadin.model.ColumnarEncoder;
+import com.vaadin.model.Fixtures;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Times the drawing of the calendar chart of five years in a headless browser, i.e. the work of the browser which the
+ * JMH benchmarks do not see: the first draw, switching the range to four years and back, selecting an activity in the
+ * legend and drawing the same data again (see chart-render-harness.js). For every step it reports the median and the
+ * maximum in milliseconds (until the layout is done) and the number of nodes added to and removed from the document,
+ * which stays small since the charts update their elements with D3 data joins instead of drawing them anew.
+ *
+ * The chart scripts of the application and the payloads (see ColumnarEncoder) are written into a temporary directory
+ * and loaded by Chrome with --headless --dump-dom. The browser is set with trackfit.harness.chrome (default:
+ * google-chrome) and the repetitions of each step with trackfit.harness.repetitions (default: 20), e.g.
+ *      java -cp target/benchmarks.jar -Dtrackfit.harness.chrome=chromium com.vaadin.benchmarks.ChartRenderHarness
+ * Running it on two commits shows the difference of a change to the charts.
+ */
+public final class ChartRenderHarness {
+
+    private static final String CHROME = System.getProperty("trackfit.harness.chrome", "google-chrome");
+    private static final int REPETITIONS = Integer.getInteger("trackfit.harness.repetitions", 20);
+    private static final long TIMEOUT_MINUTES = 10;
+
+    /* the scripts loaded by ChartComponent, in the same order */
+    private static final String[] CHART_SCRIPTS = {"d3.v4.min.js", "GraphSelector.js", "HelperFunctions.js",
+            "StackedBarChart.js", "LineChart.js", "CalendarChart.js"};
+
+    private static final String HARNESS_SCRIPT = "chart-render-harness.js";
+
+    private ChartRenderHarness() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path directory = Files.createTempDirectory("chart-render-harness");
+        try {
+            writePage(directory);
+            String dom = runChrome(directory.resolve("index.html"));
+
+            int start = dom.indexOf("<pre id=\"results\">");
+            int end = dom.indexOf("</pre>", start);
+            if (start < 0 || end < 0 || end == start + "<pre id=\"results\">".length()) {
+                throw new IllegalStateException("The harness did not finish in the browser; see the output of "
+                        + CHROME + " above");
+            }
+
+            System.out.println("Calendar chart, " + REPETITIONS
+                    + " repetitions (milliseconds until the layout is done)");
+            System.out.println(String.format("%-30s %10s %10s %12s %12s", "step", "median", "max", "added nodes",
+                    "removed nodes"));
+            for (String line : dom.substring(start + "<pre id=\"results\">".length(), end).split("\n")) {
+                String[] columns = line.split("\t");
+                System.out.println(String.format("%-30s %10s %10s %12s %12s", (Object[]) columns));
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    /**
+     * writes the scripts, the payloads and the page loading them into the directory
+     * @param directory: the directory of the page
+     */
+    private static void writePage(Path directory) throws IOException {
+        StringBuilder page = new StringBuilder("<!DOCTYPE html>\n<html>\n<body>\n<div id=\"charts\"></div>\n")
+                .append("<pre id=\"results\"></pre>\n");
+        for (String script : CHART_SCRIPTS) {
+            copyResource("/com/vaadin/ui/" + script, directory.resolve(script));
+            page.append("<script src=\"").append(script).append("\"></script>\n");
+        }
+
+        // the payloads of five years and of the four latest years, as sent by ChartComponent.setData
+        long fiveYearsAgo = Fixtures.END_OF_SEEDED_DATA - 1826 * Fixtures.DAY_IN_MILLIS;
+        long fourYearsAgo = Fixtures.END_OF_SEEDED_DATA - 1461 * Fixtures.DAY_IN_MILLIS;
+        String payloads = "var FIVE_YEARS = "
+                + ColumnarEncoder.toColumnarJson(Fixtures.dailyDocuments(fiveYearsAgo, 1826, 42)) + ";\n"
+                + "var FOUR_YEARS = "
+                + ColumnarEncoder.toColumnarJson(Fixtures.dailyDocuments(fourYearsAgo, 1461, 42)) + ";\n";
+        Files.write(directory.resolve("payloads.js"), payloads.getBytes(StandardCharsets.UTF_8));
+        page.append("<script src=\"payloads.js\"></script>\n");
+
+        copyResource("/com/vaadin/benchmarks/" + HARNESS_SCRIPT, directory.resolve(HARNESS_SCRIPT));
+        page.append("<script src=\"").append(HARNESS_SCRIPT).append("\"></script>\n</body>\n</html>\n");
+        Files.write(directory.resolve("index.html"), page.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param resource: path of the resource on the class path
+     * @param target: the file to write
+     */
+    private static void copyResource(String resource, Path target) throws IOException {
+        try (InputStream in = ChartRenderHarness.class.getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IOException("Missing resource " + resource + " on the class path");
+            }
+            Files.copy(in, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * loads the page in the headless browser; the scripts run while the page is loaded, so the dumped document holds
+     * the results
+     * @param page: the html file
+     * @return the document after loading the page
+     */
+    private static String runChrome(Path page) throws IOException, InterruptedException {
+        Process chrome = new ProcessBuilder(CHROME, "--headless", "--disable-gpu", "--no-sandbox",
+                "--window-size=1400,900", "--dump-dom", page.toUri() + "?repetitions=" + REPETITIONS)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+
+        ByteArrayOutputStream dom = new ByteArrayOutputStream();
+        try (InputStream in = chrome.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                dom.write(buffer, 0, read);
+            }
+        }
+        if (!chrome.waitFor(TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+            chrome.destroyForcibly();
+            throw new IllegalStateException(CHROME + " did not exit within " + TIMEOUT_MINUTES + " minutes");
+        }
+        return new String(dom.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,88 @@
+package com.vaadin.benchmarks;
+
+import com.vaadin.model.BenchmarkDatabase;
+import com.vaadin.model.DbConnector;
+import com.vaadin.model.Fixtures;
+import com.vaadin.model.Resolution;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the queries for the charts: DbConnector.extractData day by day and in the resolution selected for the range
+ * (weekly rollups for a year), and DbConnector.extractChartData when its result is cached already.
+ *
+ * Needs a running MongoDB (see trackfit.mongo.uri in DbConnectionPool) with the database trackFitBenchmark restored
+ * from database/trackFit (see README.md); the benchmark only reads from it. With storage=sqlite the queries run
+ * against an embedded SQLite database in a temporary file instead (see SqliteFitDataStore), which is filled with
+ * generated days of the same length as the dump and needs no MongoDB. With storage=mongo-buckets the dump is copied
+ * into the month buckets of BucketedMongoFitDataStore first (see BucketMigration).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dtrackfit.mongo.database=trackFitBenchmark")
+@State(Scope.Benchmark)
+public class ExtractDataBenchmark {
+
+    /* days stored for each user of the SQLite database; the dump of database/trackFit holds about a year */
+    private static final int SEEDED_DAYS = 366;
+
+    /* users stored besides the seeded user in the SQLite database, like in the dump */
+    private static final int OTHER_USERS = 1;
+
+    /* length of the range in days; 31 is the monthly view, 365 the yearly view */
+    @Param({"31", "365"})
+    private int days;
+
+    /* the store the data is read from (see FitDataStores) */
+    @Param({"mongo", "mongo-buckets", "sqlite"})
+    private String storage;
+
+    private DbConnector dbConnector;
+    private long startTime;
+    private long endTime;
+    private Resolution resolution;
+
+    @Setup(Level.Trial)
+    public void connect() throws IOException {
+        BenchmarkDatabase.useStorage(storage);
+        dbConnector = new DbConnector(Fixtures.SEEDED_USER);
+
+        if (storage.equals("mongo-buckets")) {
+            BenchmarkDatabase.migrateToBuckets();
+        } else if (storage.equals("sqlite")) {
+            // the dump is a MongoDB dump, so the days of the SQLite database are generated
+            long seedStart = Fixtures.END_OF_SEEDED_DATA - SEEDED_DAYS * Fixtures.DAY_IN_MILLIS;
+            dbConnector.storeData(Fixtures.fitAggregateResponse(seedStart, SEEDED_DAYS, 42));
+            for (int user = 0; user < OTHER_USERS; user++) {
+                new DbConnector("benchmark-extract-" + user)
+                        .storeData(Fixtures.fitAggregateResponse(seedStart, SEEDED_DAYS, user));
+            }
+        }
+
+        // the dump holds no rollups yet
+        dbConnector.ensureRollups();
+
+        endTime = Fixtures.END_OF_SEEDED_DATA;
+        startTime = endTime - days * Fixtures.DAY_IN_MILLIS;
+        resolution = Resolution.forRange(startTime, endTime);
+    }
+
+    @Benchmark
+    public String extractDataDaily() {
+        return dbConnector.extractData(startTime, endTime, Resolution.DAY);
+    }
+
+    @Benchmark
+    public String extractDataInSelectedResolution() {
+        return dbConnector.extractData(startTime, endTime, resolution);
+    }
+
+    @Benchmark
+    public String extractChartDataCached() {
+        return dbConnector.extractChartData(startTime, endTime, resolution, 0);
+    }
+}
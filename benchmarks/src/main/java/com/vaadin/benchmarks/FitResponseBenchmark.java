@@ -0,0 +1,53 @@
+package com.vaadin.benchmarks;
+
+import com.vaadin.model.FitDay;
+import com.vaadin.model.FitResponseParser;
+import com.vaadin.model.Fixtures;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading an aggregate response of google fit (without the database): the streaming FitResponseParser used
+ * by the ingestion against parsing the whole response into a Document, as done before. The GC profiler (added by
+ * BenchmarkMain) allows to compare the allocation per day (gc.alloc.rate.norm divided by the days).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FitResponseBenchmark {
+
+    /* number of days in the response; 31 is a monthly request, 365 a single request for a whole year */
+    @Param({"31", "365"})
+    private int days;
+
+    private String fitAggregateResponse;
+    private byte[] fitAggregateResponseBytes;
+
+    @Setup(Level.Trial)
+    public void createResponse() {
+        long startTime = Fixtures.END_OF_SEEDED_DATA - days * Fixtures.DAY_IN_MILLIS;
+        fitAggregateResponse = Fixtures.fitAggregateResponse(startTime, days, 42);
+        fitAggregateResponseBytes = fitAggregateResponse.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public List<FitDay> parseStreaming() throws IOException {
+        // the response arrives as bytes from the connection
+        return FitResponseParser.parse(new ByteArrayInputStream(fitAggregateResponseBytes));
+    }
+
+    @Benchmark
+    public Document parseDocument() {
+        // the response was converted to a String before it was parsed
+        return Document.parse(new String(fitAggregateResponseBytes, StandardCharsets.UTF_8));
+    }
+}
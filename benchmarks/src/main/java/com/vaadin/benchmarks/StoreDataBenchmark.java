@@ -0,0 +1,60 @@
+package com.vaadin.benchmarks;
+
+import com.vaadin.model.BenchmarkDatabase;
+import com.vaadin.model.DbConnector;
+import com.vaadin.model.Fixtures;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures DbConnector.storeData, i.e. parsing an aggregate response of google fit (see FitResponseParser) and
+ * writing its days to the database. Every invocation stores the response for a new user, so that all days are new
+ * to the database (the same work as on the first login of a user).
+ *
+ * Needs a running MongoDB (see trackfit.mongo.uri in DbConnectionPool); the benchmark writes to a throwaway database,
+ * which is dropped afterwards (see BenchmarkDatabase.useThrowawayStorage). With storage=sqlite the days are written
+ * to an embedded SQLite database in a temporary file instead (see SqliteFitDataStore), which needs no MongoDB.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StoreDataBenchmark {
+
+    /* prefix of the users created by the benchmark */
+    private static final String USER_PREFIX = "benchmark-store-";
+
+    /* number of days in the response; 31 is a monthly request, 365 a single request for a whole year */
+    @Param({"31", "365"})
+    private int days;
+
+    /* the store the days are written to (see FitDataStores) */
+    @Param({"mongo", "mongo-buckets", "sqlite"})
+    private String storage;
+
+    private String fitAggregateResponse;
+    private final AtomicLong userCounter = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void createResponse() throws IOException {
+        BenchmarkDatabase.useThrowawayStorage(storage);
+
+        long startTime = Fixtures.END_OF_SEEDED_DATA - days * Fixtures.DAY_IN_MILLIS;
+        fitAggregateResponse = Fixtures.fitAggregateResponse(startTime, days, 42);
+    }
+
+    @Benchmark
+    public void storeData() {
+        new DbConnector(USER_PREFIX + userCounter.incrementAndGet()).storeData(fitAggregateResponse);
+    }
+
+    @TearDown(Level.Trial)
+    public void dropDatabase() {
+        BenchmarkDatabase.dropThrowawayStorage();
+    }
+}
@@ -0,0 +1,105 @@
+package com.vaadin.model;
+
+import com.mongodb.client.model.Sorts;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.mongodb.client.model.Aggregates.*;
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.*;
+
+/**
+ * Compares the latency of three ways of reading the days of the charts with their activities:
+ *      - mergedFromRangeQuery: the daily pipeline and a single range query of the activities on their (user,
+ *        dateInUTC) index, merged while reading (see MongoFitDataStore.iterateDays); uses indexes on every version
+ *      - joinedWithExpr: the activities joined within the pipeline by a let/pipeline $lookup with $expr matches, which
+ *        only use the (dateInUTC, user) index of activities from MongoDB 5.0 on
+ *      - queriedPerDay: one query of the activities for every day, like the original version
+ * The benchmark should be run against the servers to compare, e.g. 4.4 and 5.0.
+ *
+ * Needs a running MongoDB (see trackfit.mongo.uri in DbConnectionPool) with the database trackFitBenchmark restored
+ * from database/trackFit (see README.md); the benchmark only reads from it. Lives in the package of the model to reach
+ * the pipeline of MongoFitDataStore.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dtrackfit.mongo.database=trackFitBenchmark")
+@State(Scope.Benchmark)
+public class ActivitiesLookupBenchmark {
+
+    /* length of the range in days; 31 is the monthly view, 365 the yearly view */
+    @Param({"31", "365"})
+    private int days;
+
+    private MongoFitDataStore store;
+    private long startTime;
+    private long endTime;
+
+    @Setup(Level.Trial)
+    public void connect() {
+        store = new MongoFitDataStore();
+        endTime = Fixtures.END_OF_SEEDED_DATA;
+        startTime = endTime - days * Fixtures.DAY_IN_MILLIS;
+    }
+
+    @Benchmark
+    public List<Document> mergedFromRangeQuery() {
+        List<Document> docList = new ArrayList<>();
+        try (CloseableIterator<Document> iterator = store.iterateDays(Fixtures.SEEDED_USER, startTime, endTime)) {
+            iterator.forEachRemaining(docList::add);
+        }
+        return docList;
+    }
+
+    @Benchmark
+    public List<Document> joinedWithExpr() {
+        List<Bson> pipeline = new ArrayList<>(store.dailyPipeline(Fixtures.SEEDED_USER, startTime, endTime, false));
+        // the former join of the activities of the user for each day
+        pipeline.add(new Document("$lookup", new Document("from", "activities")
+                .append("let", new Document("user", Fixtures.SEEDED_USER).append("date", "$startDateInUTC"))
+                .append("pipeline", Arrays.asList(
+                        new Document("$match", new Document("$expr", new Document("$and", Arrays.asList(
+                                new Document("$eq", Arrays.asList("$dateInUTC", "$$date")),
+                                new Document("$eq", Arrays.asList("$user", "$$user"))
+                        )))),
+                        new Document("$limit", 1),
+                        new Document("$project", new Document("_id", 0).append("activities", 1))
+                ))
+                .append("as", "activityDocs")));
+        pipeline.add(new Document("$addFields", new Document("activities",
+                MongoFitDataStore.firstElementOf("$activityDocs.activities"))));
+        pipeline.add(new Document("$project", new Document("activityDocs", 0)));
+        return BenchmarkDatabase.getDatabase().getCollection("steps").aggregate(pipeline).into(new ArrayList<>());
+    }
+    @Benchmark
+    public List<Document> queriedPerDay() {
+        List<Document> docList = new ArrayList<>();
+        for (Document document : BenchmarkDatabase.getDatabase().getCollection("steps").aggregate(Arrays.asList(
+                match(and(eq("user", Fixtures.SEEDED_USER), gte("startDateInUTC", startTime),
+                        lte("endDateInUTC", endTime))),
+                sort(Sorts.ascending("startDateInUTC")),
+                lookup("days", "startDateInUTC", "dateInUTC", "means"),
+                project(fields(excludeId(), include("startDateInUTC"), include("steps"),
+                        computed("sums", MongoFitDataStore.firstElementOf("$means.sumsForMeanAndSEM"))))))) {
+
+            // one query for the activities of every day, like before the join
+            Document activities = BenchmarkDatabase.getDatabase().getCollection("activities")
+                    .find(and(eq("user", Fixtures.SEEDED_USER), eq("dateInUTC", document.get("startDateInUTC"))))
+                    .projection(fields(excludeId(), include("activities")))
+                    .first();
+            if (activities != null) {
+                document.put("activities", activities.get("activities"));
+            }
+            docList.add(document);
+        }
+        return docList;
+    }
+}
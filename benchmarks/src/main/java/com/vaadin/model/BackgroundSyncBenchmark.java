@@ -0,0 +1,106 @@
+package com.vaadin.model;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures a tick of the background sync (see BackgroundSync.runDueSyncs) in which all USERS active users are due and
+ * up to date, so each of them only requests the recent days again (see FitDataFetcher.REFRESH_DAYS) from a local
+ * stand-in of google fit, i.e. the work of the server for each interval of the sync, which grows with the active users.
+ * The schedule itself (spreading, gaps, quota, concurrency) is checked with a fake clock by BackgroundSyncTest.
+ *
+ * With storage=mongo it needs a running MongoDB (see trackfit.mongo.uri in DbConnectionPool) and writes to a throwaway
+ * database, which is dropped afterwards (see BenchmarkDatabase.useThrowawayStorage); with storage=sqlite the data is
+ * kept in a temporary SQLite file. Lives in the package of the model to reach its package private classes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BackgroundSyncBenchmark {
+
+    /* prefix of the ids of the users and number of active users */
+    private static final String USER_PREFIX = "background-sync-user-";
+    private static final int USERS = 100;
+
+    /* the users are synced if they logged in within two weeks */
+    private static final long ACTIVE_MILLIS = 14 * DataRequest.DAY_IN_MILLIS;
+
+    /* the store the data is kept in (see FitDataStores) */
+    @Param({"mongo", "sqlite"})
+    private String storage;
+
+    private GoogleStandIn google;
+    private final AtomicLong clock = new AtomicLong(1514764800000L);    // the fake clock, starting on 2018-01-01
+    private BackgroundSync backgroundSync;
+
+    @Setup(Level.Trial)
+    public void storeUsers() throws IOException {
+        google = new GoogleStandIn();
+        // the requests read the urls of google when ApiRequest is loaded
+        System.setProperty("trackfit.fit.rootUrl", google.getFitRootUrl());
+        System.setProperty("trackfit.oauth.tokenUrl", google.getTokenServerUrl());
+        BenchmarkDatabase.useThrowawayStorage(storage);
+
+        AuthRequest authRequest = new AuthRequest(google.getClientSecrets(), FitDataStores.get(),
+                google.getTokenServerUrl());
+        long yesterday = DataRequest.getStartOfToday().getTimeInMillis() - DataRequest.DAY_IN_MILLIS;
+        for (int user = 0; user < USERS; user++) {
+            storeUser(authRequest, USER_PREFIX + user, yesterday);
+        }
+
+        // with an interval of a millisecond every user is due on each tick of the benchmark
+        backgroundSync = new BackgroundSync(authRequest, clock::get, 1, ACTIVE_MILLIS, 2, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public int tickWithUpToDateUsers() throws InterruptedException, ExecutionException {
+        clock.incrementAndGet();
+        return tick(backgroundSync);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopStandIn() {
+        backgroundSync.close();
+        google.close();
+        BenchmarkDatabase.dropThrowawayStorage();
+    }
+
+    /**
+     * runs a tick of the sync and waits for the queued syncs
+     * @param sync: the background sync
+     * @return the number of queued syncs
+     */
+    private static int tick(BackgroundSync sync) throws InterruptedException, ExecutionException {
+        List<Future<?>> syncs = sync.runDueSyncs();
+        for (Future<?> userSync : syncs) {
+            userSync.get();
+        }
+        return syncs.size();
+    }
+
+    /**
+     * stores a user with a credential, a login and the days of the year up to yesterday, i.e. nothing is missing
+     * @param authRequest: stores the credential of the user
+     * @param user: the google account id of the user
+     * @param yesterday: the start of yesterday in UTC
+     */
+    private void storeUser(AuthRequest authRequest, String user, long yesterday) throws IOException {
+        authRequest.authorize(GoogleStandIn.codeOf(user, true));
+        FitDataStores.get().storeLogin(user, clock.get());
+        List<FitDay> days = new ArrayList<>();
+        for (int day = 366; day >= 0; day--) {
+            long date = yesterday - day * DataRequest.DAY_IN_MILLIS;
+            days.add(new FitDay(date, date + DataRequest.DAY_IN_MILLIS, 5000 + day, Collections.emptyMap()));
+        }
+        new DbConnector(user).storeDays(days);
+    }
+}
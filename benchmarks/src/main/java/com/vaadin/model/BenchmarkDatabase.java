@@ -0,0 +1,106 @@
+package com.vaadin.model;
+
+import com.mongodb.client.MongoDatabase;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Gives the benchmarks access to the database of the application (see DbConnectionPool) and selects the store
+ * measured by the benchmarks (see FitDataStores). The benchmarks only write to MongoDB databases whose name starts
+ * with trackFitBenchmark: the restored dump (see useStorage) or a throwaway database of their own, which is dropped
+ * afterwards (see useThrowawayStorage), so no other database keeps the days of their users in its sums, rollups,
+ * buckets or cohorts.
+ */
+public final class BenchmarkDatabase {
+
+    /* the prefix of the databases the benchmarks may write to */
+    private static final String DATABASE_PREFIX = "trackFitBenchmark";
+
+    private BenchmarkDatabase() {
+    }
+
+    /**
+     * @return the database configured by the system properties of DbConnectionPool
+     * @throws IllegalStateException: if it is not a database of the benchmarks
+     */
+    public static MongoDatabase getDatabase() {
+        checkDatabaseName();
+        return DbConnectionPool.getDatabase();
+    }
+
+    /**
+     * selects the store used by DbConnector, reading the restored dump trackFitBenchmark in case of MongoDB; has to be
+     * called before the first DbConnector is created. The SQLite database is created in a new temporary file, which
+     * is deleted when the benchmark (i.e. the fork) ends; so is the key of the credentials (see TokenCipher), unless
+     * trackfit.credentials.keyFile is set.
+     * @param storage: mongo or sqlite (see FitDataStores)
+     * @throws IOException: if the temporary file cannot be created
+     * @throws IllegalStateException: if the MongoDB database is not a database of the benchmarks
+     */
+    public static void useStorage(String storage) throws IOException {
+        System.setProperty("trackfit.storage", storage);
+        if (System.getProperty("trackfit.credentials.keyFile") == null) {
+            File keyFile = new File(System.getProperty("java.io.tmpdir"), "trackFitBenchmark" + System.nanoTime()
+                    + ".key");
+            keyFile.deleteOnExit();
+            System.setProperty("trackfit.credentials.keyFile", keyFile.getPath());
+        }
+        if (storage.equals("sqlite")) {
+            File file = File.createTempFile("trackFitBenchmark", ".db");
+            file.deleteOnExit();
+            new File(file.getPath() + "-wal").deleteOnExit();
+            new File(file.getPath() + "-shm").deleteOnExit();
+            System.setProperty("trackfit.sqlite.path", file.getPath());
+        } else {
+            checkDatabaseName();
+        }
+    }
+
+    /**
+     * selects the store like useStorage, but a new, empty MongoDB database instead of the restored dump, for
+     * benchmarks creating users of their own; it has to be dropped with dropThrowawayStorage
+     * @param storage: mongo or sqlite (see FitDataStores)
+     * @throws IOException: if the temporary file cannot be created
+     */
+    public static void useThrowawayStorage(String storage) throws IOException {
+        if (!storage.equals("sqlite")) {
+            // DbConnectionPool reads the name once, i.e. the benchmarks of a fork share the database
+            System.setProperty("trackfit.mongo.database", DATABASE_PREFIX + "Throwaway" + System.nanoTime());
+        }
+        useStorage(storage);
+    }
+
+    /**
+     * drops the database selected by useThrowawayStorage and closes the store; the SQLite file is deleted when the
+     * fork ends
+     */
+    public static void dropThrowawayStorage() {
+        if (!System.getProperty("trackfit.storage", "mongo").equals("sqlite")) {
+            if (!DbConnectionPool.DATABASE_NAME.startsWith(DATABASE_PREFIX + "Throwaway")) {
+                throw new IllegalStateException("Not dropping " + DbConnectionPool.DATABASE_NAME
+                        + ", which is not a throwaway database of the benchmarks");
+            }
+            DbConnectionPool.getDatabase().drop();
+        }
+        FitDataStores.close();
+    }
+
+    /**
+     * copies the restored dump into the month buckets of BucketedMongoFitDataStore (see BucketMigration)
+     */
+    public static void migrateToBuckets() {
+        BucketMigration.migrate(getDatabase());
+    }
+
+    /**
+     * @throws IllegalStateException: if the MongoDB database is not a database of the benchmarks, e.g. the database of
+     * the application
+     */
+    private static void checkDatabaseName() {
+        if (!DbConnectionPool.DATABASE_NAME.startsWith(DATABASE_PREFIX)) {
+            throw new IllegalStateException("The benchmarks only use databases starting with " + DATABASE_PREFIX
+                    + ", not " + DbConnectionPool.DATABASE_NAME + " (see trackfit.mongo.database)");
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.vaadin.model;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading the days of a user together with the statistics of the cohort of the user (see CohortStats) while
+ * the number of stored users grows: as the days of a cohort are kept incrementally when days are stored, the
+ * throughput should stay the same for a thousand and for hundreds of thousands of users.
+ *
+ * The setup stores the generated users (country, gender and birthday as provided from google) and their days through
+ * the ingestion path of SqliteFitDataStore into a temporary file, so it needs no MongoDB; with 300000 users the setup
+ * takes a few minutes. Afterwards it checks the cohort statistics of the measured user against the exact values from
+ * the generated steps of all users of the cohort: the averages have to match and the medians have to be within 1/64
+ * of the exact median; otherwise the benchmark fails. Lives in the package of the model to reach its package private
+ * classes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CohortStatsBenchmark {
+
+    /* the days stored for every user, starting on Monday, 2018-01-01 */
+    private static final int DAYS = 28;
+    private static final long START_TIME = 1514764800000L;
+
+    /* the locales, genders and birthdays the users are generated from */
+    private static final String[] LOCALES = {"en-US", "en-GB", "de-DE", "fr-FR", "pt-BR"};
+    private static final String[] GENDERS = {"male", "female"};
+    private static final int FIRST_YEAR_OF_BIRTH = 1940;
+    private static final int YEARS_OF_BIRTH = 65;
+
+    /* number of users stored */
+    @Param({"1000", "300000"})
+    private int users;
+
+    private SqliteFitDataStore store;
+    private String measuredUser;
+
+    @Setup(Level.Trial)
+    public void storeUsers() throws IOException {
+        File file = File.createTempFile("trackFitCohortBenchmark", ".db");
+        file.deleteOnExit();
+        new File(file.getPath() + "-wal").deleteOnExit();
+        new File(file.getPath() + "-shm").deleteOnExit();
+        store = new SqliteFitDataStore(file.getPath());
+
+        // the steps of all users of the cohort of the measured user (the first one) by day
+        Random random = new Random(42);
+        measuredUser = "cohort-user-0";
+        String measuredCohort = null;
+        List<List<Integer>> cohortStepsByDay = new ArrayList<>();
+        for (int day = 0; day < DAYS; day++) {
+            cohortStepsByDay.add(new ArrayList<>());
+        }
+
+        long start = System.currentTimeMillis();
+        for (int user = 0; user < users; user++) {
+            Document userDoc = new Document("id", "cohort-user-" + user)
+                    .append("name", "Cohort User " + user)
+                    .append("locale", LOCALES[random.nextInt(LOCALES.length)])
+                    .append("gender", GENDERS[random.nextInt(GENDERS.length)]);
+            // google provides no birthday for some of the users
+            int yearOfBirth = FIRST_YEAR_OF_BIRTH + random.nextInt(YEARS_OF_BIRTH);
+            if (random.nextInt(10) > 0) {
+                userDoc.append("birthday", String.format("%d-%02d-%02d", yearOfBirth, 1 + random.nextInt(12),
+                        1 + random.nextInt(28)));
+            }
+            store.storeUser(userDoc.toJson());
+
+            String cohort = Cohort.of(userDoc);
+            if (user == 0) {
+                measuredCohort = cohort;
+            }
+
+            // roughly log-normal steps; the older the user, the fewer steps
+            double medianSteps = 9000 - (yearOfBirth < 1970 ? 3000 : 0);
+            List<FitDay> days = new ArrayList<>(DAYS);
+            for (int day = 0; day < DAYS; day++) {
+                long date = START_TIME + day * DataRequest.DAY_IN_MILLIS;
+                int steps = (int) Math.exp(Math.log(medianSteps) + random.nextGaussian() * 0.5);
+                days.add(new FitDay(date, date + DataRequest.DAY_IN_MILLIS, steps, Collections.emptyMap()));
+                if (cohort.equals(measuredCohort)) {
+                    cohortStepsByDay.get(day).add(steps);
+                }
+            }
+            store.storeDays("cohort-user-" + user, days);
+        }
+        System.out.println("Stored " + users + " users in " + (System.currentTimeMillis() - start) + " ms; "
+                + cohortStepsByDay.get(0).size() + " of them in the cohort " + measuredCohort);
+
+        checkCohortStats(cohortStepsByDay);
+    }
+
+    @Benchmark
+    public List<Document> extractDaysWithCohort() {
+        return store.extractDays(measuredUser, START_TIME, START_TIME + DAYS * DataRequest.DAY_IN_MILLIS,
+                Resolution.DAY);
+    }
+
+    @Benchmark
+    public List<Document> extractWeeksWithCohort() {
+        return store.extractDays(measuredUser, START_TIME, START_TIME + DAYS * DataRequest.DAY_IN_MILLIS,
+                Resolution.WEEK);
+    }
+
+    @TearDown(Level.Trial)
+    public void closeStore() {
+        store.close();
+    }
+
+    /**
+     * compares the cohort statistics of the days of the measured user with the exact values
+     * @param cohortStepsByDay: the steps of all users of the cohort of the measured user by day
+     */
+    private void checkCohortStats(List<List<Integer>> cohortStepsByDay) {
+        List<Document> days = extractDaysWithCohort();
+        if (days.size() != DAYS) {
+            throw new IllegalStateException(days.size() + " days extracted instead of " + DAYS);
+        }
+        for (int day = 0; day < DAYS; day++) {
+            List<Integer> steps = cohortStepsByDay.get(day);
+            Collections.sort(steps);
+            double exactAverage = steps.stream().mapToLong(Integer::longValue).sum() / (double) steps.size();
+            double exactMedian = steps.get((int) Math.ceil(0.5 * steps.size()) - 1);
+
+            double average = ((Number) days.get(day).get("cohortAverageSteps")).doubleValue();
+            double median = ((Number) days.get(day).get("cohortMedianSteps")).doubleValue();
+            if (Math.abs(average - exactAverage) > exactAverage * 1e-9
+                    || Math.abs(median - exactMedian) > exactMedian / 64) {
+                throw new IllegalStateException("Cohort of day " + day + ": average " + average + " and median "
+                        + median + " instead of " + exactAverage + " and " + exactMedian);
+            }
+        }
+    }
+}
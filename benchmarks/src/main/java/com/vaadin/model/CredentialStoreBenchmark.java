@@ -0,0 +1,63 @@
+package com.vaadin.model;
+
+import com.google.api.client.auth.oauth2.Credential;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures logging in a user with a return code (exchanging the code at the token endpoint and storing the credential,
+ * see AuthRequest.authorize) against loading the stored credential of a returning user (see DbCredentialStore).
+ *
+ * The token endpoint is a local stand-in of google's endpoint (see GoogleStandIn), which answers the authorization
+ * code and refresh token grants; the flow itself is checked against it by DbCredentialStoreTest.
+ *
+ * With storage=mongo it needs a running MongoDB (see trackfit.mongo.uri in DbConnectionPool) and writes to a throwaway
+ * database, which is dropped afterwards (see BenchmarkDatabase.useThrowawayStorage); with storage=sqlite the
+ * credentials are kept in a temporary SQLite file. Lives in the package of the model to reach its package private
+ * classes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CredentialStoreBenchmark {
+
+    /* the google account id of the user logging in */
+    private static final String USER = "benchmark-credential-user";
+
+    /* the store the credentials are kept in (see FitDataStores) */
+    @Param({"mongo", "sqlite"})
+    private String storage;
+
+    private GoogleStandIn google;
+    private AuthRequest authRequest;
+
+    @Setup(Level.Trial)
+    public void startTokenEndpoint() throws IOException {
+        BenchmarkDatabase.useThrowawayStorage(storage);
+
+        google = new GoogleStandIn();
+        authRequest = new AuthRequest(google.getClientSecrets(), FitDataStores.get(), google.getTokenServerUrl());
+        authRequest.authorize(GoogleStandIn.codeOf(USER, true));
+    }
+
+    @Benchmark
+    public String loginWithCode() throws IOException {
+        return authRequest.authorize(GoogleStandIn.codeOf(USER, false));
+    }
+
+    @Benchmark
+    public Credential loadStoredCredential() throws IOException {
+        return authRequest.loadCredential(USER);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopTokenEndpoint() {
+        google.close();
+        BenchmarkDatabase.dropThrowawayStorage();
+    }
+}
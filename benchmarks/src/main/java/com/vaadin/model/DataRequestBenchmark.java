@@ -0,0 +1,75 @@
+package com.vaadin.model;
+
+import com.google.api.client.auth.oauth2.Credential;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a request of a month of data for a returning user (a new DataRequest, like every login), for users with and
+ * without the merged activity segments. The data sources of the user are remembered (see DataSources), so a user
+ * without the activities needs a single request instead of a failed one and its repetition.
+ *
+ * The requests go to a local stand-in of google fit (see GoogleStandIn); the discovery of the data sources and the
+ * retries are checked against it by DataRequestTest.
+ *
+ * With storage=mongo it needs a running MongoDB (see trackfit.mongo.uri in DbConnectionPool) and writes to a throwaway
+ * database, which is dropped afterwards (see BenchmarkDatabase.useThrowawayStorage); with storage=sqlite the data
+ * sources are kept in a temporary SQLite file. Lives in the package of the model to reach its package private classes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DataRequestBenchmark {
+
+    /* prefix of the ids of the users; the stand-in has no activities for ids containing "without-activities" */
+    private static final String USER_PREFIX = "data-request-user-";
+
+    /* the data sources of the user requesting the month */
+    @Param({"with-activities", "without-activities"})
+    private String activities;
+
+    /* the store the data sources are kept in (see FitDataStores) */
+    @Param({"mongo", "sqlite"})
+    private String storage;
+
+    private GoogleStandIn google;
+    private String user;
+    private Credential credential;
+    private long endTime;
+
+    @Setup(Level.Trial)
+    public void startStandIn() throws IOException {
+        google = new GoogleStandIn();
+        // the requests read the urls of google when ApiRequest is loaded
+        System.setProperty("trackfit.fit.rootUrl", google.getFitRootUrl());
+        System.setProperty("trackfit.oauth.tokenUrl", google.getTokenServerUrl());
+        BenchmarkDatabase.useThrowawayStorage(storage);
+
+        user = USER_PREFIX + activities;
+        AuthRequest authRequest = new AuthRequest(google.getClientSecrets(), FitDataStores.get(),
+                google.getTokenServerUrl());
+        authRequest.authorize(GoogleStandIn.codeOf(user, true));
+        credential = authRequest.loadCredential(user);
+        endTime = DataRequest.getStartOfToday().getTimeInMillis();
+
+        // discovers the data sources of the user, like the first login
+        requestMonth();
+    }
+
+    @Benchmark
+    public List<FitDay> requestMonth() throws IOException {
+        return new DataRequest(credential, user).getFitDays(endTime - 31 * DataRequest.DAY_IN_MILLIS, endTime);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopStandIn() {
+        google.close();
+        BenchmarkDatabase.dropThrowawayStorage();
+    }
+}
@@ -0,0 +1,83 @@
+package com.vaadin.model;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures planning the sync of a returning user (see FitDataFetcher.planSync), i.e. reading the stored days of the
+ * last year and planning the requests for the missing ones (see FitRequestPlanner). The plans themselves are checked
+ * by FitRequestPlannerTest, the requests sent for them by FitDataFetcherTest.
+ *
+ * With storage=mongo it needs a running MongoDB (see trackfit.mongo.uri in DbConnectionPool) and writes to a throwaway
+ * database, which is dropped afterwards (see BenchmarkDatabase.useThrowawayStorage); with storage=sqlite the data is
+ * kept in a temporary SQLite file. Lives in the package of the model to reach its package private classes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FitRequestPlannerBenchmark {
+
+    /* the id of the returning user */
+    private static final String USER = "request-planner-user-returning";
+
+    /* the missing days of the returning user (days ago): two gaps close to today, which are joined, and two gaps
+     * further apart than a request may span */
+    private static final int[][] GAPS = {{1, 5}, {20, 22}, {200, 209}, {300, 300}};
+
+    /* the store the data is kept in (see FitDataStores) */
+    @Param({"mongo", "sqlite"})
+    private String storage;
+
+    private GoogleStandIn google;
+    private FitDataFetcher returningUser;
+
+    @Setup(Level.Trial)
+    public void storeReturningUser() throws IOException {
+        google = new GoogleStandIn();
+        // the requests read the urls of google when ApiRequest is loaded
+        System.setProperty("trackfit.fit.rootUrl", google.getFitRootUrl());
+        System.setProperty("trackfit.oauth.tokenUrl", google.getTokenServerUrl());
+        BenchmarkDatabase.useThrowawayStorage(storage);
+
+        AuthRequest authRequest = new AuthRequest(google.getClientSecrets(), FitDataStores.get(),
+                google.getTokenServerUrl());
+        authRequest.authorize(GoogleStandIn.codeOf(USER, true));
+        returningUser = new FitDataFetcher(new DataRequest(authRequest.loadCredential(USER), USER),
+                new DbConnector(USER));
+
+        // the whole year except for the GAPS
+        long startOfToday = DataRequest.getStartOfToday().getTimeInMillis();
+        Calendar cal = DataRequest.getStartOfToday();
+        cal.add(Calendar.YEAR, -1);
+        Set<Long> missingDays = new HashSet<>();
+        for (int[] gap : GAPS) {
+            for (int daysAgo = gap[0]; daysAgo <= gap[1]; daysAgo++) {
+                missingDays.add(startOfToday - daysAgo * DataRequest.DAY_IN_MILLIS);
+            }
+        }
+        List<FitDay> days = new ArrayList<>();
+        for (long date = cal.getTimeInMillis(); date < startOfToday; date += DataRequest.DAY_IN_MILLIS) {
+            if (!missingDays.contains(date)) {
+                days.add(new FitDay(date, date + DataRequest.DAY_IN_MILLIS, 5000, Collections.emptyMap()));
+            }
+        }
+        new DbConnector(USER).storeDays(days);
+    }
+
+    @Benchmark
+    public List<FitRequestPlanner.DayRange> planSyncOfReturningUser() {
+        return returningUser.planSync();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopStandIn() {
+        google.close();
+        BenchmarkDatabase.dropThrowawayStorage();
+    }
+}
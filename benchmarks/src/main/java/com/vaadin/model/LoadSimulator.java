@@ -0,0 +1,228 @@
+package com.vaadin.model;
+
+import org.bson.Document;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Simulates concurrent users of a single node end to end, so we know how many sessions it can handle. Every simulated
+ * user runs its sessions one after the other, like MainView and ReturnCodeHandler:
+ *      - log in with a return code (see AuthRequest.authorize) and store the profile of a new user
+ *      - download the data from google fit (see FitDataFetcher.sync): the whole year on the first login, the days
+ *        since the last login afterwards
+ *      - switch between the weekly, monthly and yearly range of the line and the calendar chart (see
+ *        DbConnector.extractChartData)
+ * Google is replaced by a local stand-in (see GoogleStandIn), so only the application and the database are measured.
+ * At the end it reports the throughput, the percentiles of the steps of the sessions and of the application (see
+ * Metrics) and the number of commands sent to MongoDB by collection.
+ *
+ * The store is selected like in the application (trackfit.storage, see FitDataStores); the users are kept in a
+ * throwaway MongoDB database, which is dropped at the end (see BenchmarkDatabase.useThrowawayStorage), or in a
+ * temporary SQLite file. The load is set with the system properties
+ * trackfit.load.users (concurrent users), trackfit.load.sessionsPerUser, trackfit.load.rangeSwitches (per session)
+ * and trackfit.load.thinkTimeMillis (pause before each switch), e.g.
+ *      java -cp target/benchmarks.jar -Dtrackfit.load.users=200 -Dtrackfit.storage=mongo-buckets
+ *          com.vaadin.model.LoadSimulator
+ * Lives in the package of the model to reach its package private classes.
+ */
+public final class LoadSimulator {
+
+    /* the load: number of concurrent users, sessions of each user, range switches of each session and the pause of
+     * the user before each switch */
+    private static final int USERS = Integer.getInteger("trackfit.load.users", 50);
+    private static final int SESSIONS_PER_USER = Integer.getInteger("trackfit.load.sessionsPerUser", 3);
+    private static final int RANGE_SWITCHES = Integer.getInteger("trackfit.load.rangeSwitches", 20);
+    private static final long THINK_TIME_MILLIS = Long.getLong("trackfit.load.thinkTimeMillis", 0L);
+
+    /* prefix of the ids of the simulated users */
+    private static final String USER_PREFIX = "load-user-";
+
+    /* the ranges offered by MainView (weekly, monthly, yearly) in days */
+    private static final int[] RANGES_IN_DAYS = {8, 31, 366};
+
+    /* number of points of the line chart (see ChartComponent.getTargetPointCount) */
+    private static final int TARGET_POINT_COUNT = 500;
+
+    /* the locales and genders of the simulated users */
+    private static final String[] LOCALES = {"en-US", "en-GB", "de-DE", "fr-FR", "pt-BR"};
+    private static final String[] GENDERS = {"male", "female"};
+
+    /* durations of the whole session and of its steps */
+    private static final Timer SESSION_TIMER = Metrics.timer("load.session");
+    private static final Timer LOGIN_TIMER = Metrics.timer("load.login");
+    private static final Timer SYNC_TIMER = Metrics.timer("load.sync");
+    private static final Timer SWITCH_RANGE_TIMER = Metrics.timer("load.switchRange");
+
+    /* number of sessions failed with an exception */
+    private static final Counter FAILED_SESSIONS = Metrics.counter("load.failedSessions");
+
+    private LoadSimulator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        try (GoogleStandIn google = new GoogleStandIn()) {
+            // the requests read the urls of google when ApiRequest is loaded, i.e. the stand-in has to be known before
+            System.setProperty("trackfit.fit.rootUrl", google.getFitRootUrl());
+            System.setProperty("trackfit.oauth.tokenUrl", google.getTokenServerUrl());
+            BenchmarkDatabase.useThrowawayStorage(System.getProperty("trackfit.storage", "mongo"));
+            try {
+                simulate(google);
+            } finally {
+                BenchmarkDatabase.dropThrowawayStorage();
+                DbConnectionPool.close();
+            }
+        }
+    }
+
+    /**
+     * runs the sessions of all users concurrently and prints the report
+     * @param google: the stand-in of google
+     */
+    private static void simulate(GoogleStandIn google) throws InterruptedException {
+        System.out.println("Simulating " + USERS + " users with " + SESSIONS_PER_USER + " sessions of "
+                + RANGE_SWITCHES + " range switches each (storage " + System.getProperty("trackfit.storage") + ")");
+
+        ExecutorService executor = Executors.newFixedThreadPool(USERS, runnable -> {
+            Thread thread = new Thread(runnable, "load-user");
+            thread.setDaemon(true);
+            return thread;
+        });
+        CountDownLatch startSignal = new CountDownLatch(1);
+        List<Future<?>> users = new ArrayList<>(USERS);
+        for (int user = 0; user < USERS; user++) {
+            final int userNumber = user;
+            users.add(executor.submit(() -> {
+                startSignal.await();
+                simulateUser(google, USER_PREFIX + userNumber, new Random(userNumber));
+                return null;
+            }));
+        }
+
+        long start = System.nanoTime();
+        startSignal.countDown();
+        for (Future<?> user : users) {
+            try {
+                user.get();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        executor.shutdownNow();
+
+        printReport(google, seconds);
+    }
+
+    /**
+     * runs the sessions of a user one after the other; a failed session does not stop the following ones
+     * @param google: the stand-in of google
+     * @param user: the google account id of the user
+     * @param random: the random numbers of the user
+     */
+    private static void simulateUser(GoogleStandIn google, String user, Random random) throws InterruptedException {
+        for (int session = 0; session < SESSIONS_PER_USER; session++) {
+            try {
+                simulateSession(google, user, session == 0, random);
+            } catch (IOException | RuntimeException e) {
+                FAILED_SESSIONS.increment();
+                System.out.println("Session " + session + " of " + user + " failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * logs the user in, downloads the data and switches between the ranges of the charts
+     * @param google: the stand-in of google
+     * @param user: the google account id of the user
+     * @param firstLogin: whether the user logs in for the first time, i.e. gives the consent and has no data yet
+     * @param random: the random numbers of the user
+     */
+    private static void simulateSession(GoogleStandIn google, String user, boolean firstLogin, Random random)
+            throws IOException, InterruptedException {
+        long sessionStart = System.nanoTime();
+
+        // log in like ReturnCodeHandler; the profile is generated instead of requested from google
+        long start = System.nanoTime();
+        AuthRequest authRequest = new AuthRequest(google.getClientSecrets(), FitDataStores.get(),
+                google.getTokenServerUrl());
+        authRequest.authorize(GoogleStandIn.codeOf(user, firstLogin));
+        DbConnector dbConnector = new DbConnector(user);
+        if (!dbConnector.isUserStored()) {
+            dbConnector.storeUser(new Document("id", user)
+                    .append("name", "Load User " + user.substring(USER_PREFIX.length()))
+                    .append("locale", LOCALES[random.nextInt(LOCALES.length)])
+                    .append("gender", GENDERS[random.nextInt(GENDERS.length)])
+                    .append("birthday", String.format("%d-%02d-%02d", 1950 + random.nextInt(50),
+                            1 + random.nextInt(12), 1 + random.nextInt(28)))
+                    .toJson());
+        }
+        dbConnector.storeLogin();
+        LOGIN_TIMER.recordSince(start);
+
+        // download the data like MainView, but wait for it
+        start = System.nanoTime();
+        new FitDataFetcher(new DataRequest(authRequest.myCredential, user), dbConnector)
+                .sync((startTime, endTime, requestsStored, requestsTotal) -> { });
+        SYNC_TIMER.recordSince(start);
+
+        // the ranges end now, which stays the same for the whole session (like in MainView)
+        long now = System.currentTimeMillis();
+        for (int rangeSwitch = 0; rangeSwitch < RANGE_SWITCHES; rangeSwitch++) {
+            if (THINK_TIME_MILLIS > 0) {
+                Thread.sleep(THINK_TIME_MILLIS);
+            }
+            long startTime = now - RANGES_IN_DAYS[random.nextInt(RANGES_IN_DAYS.length)] * Fixtures.DAY_IN_MILLIS;
+            boolean lineChart = random.nextBoolean();
+
+            start = System.nanoTime();
+            dbConnector.extractChartData(startTime, now,
+                    lineChart ? Resolution.forRange(startTime, now) : Resolution.DAY,
+                    lineChart ? TARGET_POINT_COUNT : 0);
+            SWITCH_RANGE_TIMER.recordSince(start);
+        }
+        SESSION_TIMER.recordSince(sessionStart);
+    }
+
+    /**
+     * prints the throughput, the timers and counters of the run and the commands sent to MongoDB
+     * @param google: the stand-in of google
+     * @param seconds: the duration of the run
+     */
+    private static void printReport(GoogleStandIn google, double seconds) {
+        long sessions = SESSION_TIMER.getCount();
+        System.out.println();
+        System.out.println(String.format("%d sessions (%d failed) in %.1f s: %.2f sessions/s, %.1f range switches/s",
+                sessions, FAILED_SESSIONS.getCount(), seconds, sessions / seconds,
+                SWITCH_RANGE_TIMER.getCount() / seconds));
+        System.out.println("Requests to google: " + google.getTokenRequests() + " token, "
+                + google.getAggregateRequests() + " aggregate");
+
+        // the steps of the sessions and the operations of the application (requests, storing and extracting)
+        System.out.println();
+        System.out.println(String.format("%-40s %10s %10s %10s %10s", "timer", "count", "p50 ms", "p99 ms", "max ms"));
+        long mongoCommands = 0;
+        for (Map.Entry<String, Timer> timer : Metrics.getTimers().entrySet()) {
+            long count = timer.getValue().getCount();
+            if (count == 0) {
+                continue;
+            }
+            if (timer.getKey().startsWith("mongo.")) {
+                mongoCommands += count;
+            }
+            System.out.println(String.format("%-40s %10d %10.2f %10.2f %10.2f", timer.getKey(), count,
+                    timer.getValue().getPercentile50Millis(), timer.getValue().getPercentile99Millis(),
+                    timer.getValue().getMaxMillis()));
+        }
+
+        System.out.println();
+        for (Map.Entry<String, Counter> counter : Metrics.getCounters().entrySet()) {
+            System.out.println(String.format("%-40s %10d", counter.getKey(), counter.getValue().getCount()));
+        }
+        if (mongoCommands > 0) {
+            System.out.println(String.format("%-40s %10d (%.1f per session)", "mongo commands", mongoCommands,
+                    mongoCommands / (double) Math.max(sessions, 1)));
+        }
+    }
+}
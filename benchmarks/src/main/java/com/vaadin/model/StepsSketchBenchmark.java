@@ -0,0 +1,104 @@
+package com.vaadin.model;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the sketches of the steps of all users (StepsSketch, without the database): adding the steps of all users
+ * of a day, and the quartiles of a year from the merged sketches of its days against the exact quartiles from the
+ * steps of every user and day. The accuracy of the sketches is checked by StepsSketchTest. Lives in the package of the
+ * model to reach its package private classes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StepsSketchBenchmark {
+
+    /* the days of the year */
+    private static final int DAYS = 365;
+
+    /* number of users stored for every day */
+    @Param({"100", "10000"})
+    private int users;
+
+    private int[][] stepsByDay;
+    private List<StepsSketch> sketchesByDay;
+
+    @Setup(Level.Trial)
+    public void createSteps() {
+        // roughly log-normal steps around 6000 a day, with some days without any steps
+        Random random = new Random(42);
+        stepsByDay = new int[DAYS][users];
+        sketchesByDay = new ArrayList<>(DAYS);
+        for (int[] steps : stepsByDay) {
+            StepsSketch sketch = new StepsSketch();
+            for (int user = 0; user < users; user++) {
+                boolean isWithoutSteps = random.nextInt(20) == 0;
+                steps[user] = isWithoutSteps ? 0 : (int) Math.exp(Math.log(6000) + random.nextGaussian() * 0.6);
+                sketch.add(steps[user]);
+            }
+            sketchesByDay.add(sketch);
+        }
+    }
+
+    @Benchmark
+    public StepsSketch addDay() {
+        StepsSketch sketch = new StepsSketch();
+        for (int steps : stepsByDay[0]) {
+            sketch.add(steps);
+        }
+        return sketch;
+    }
+
+    @Benchmark
+    public double quartilesOfYearFromSketches() {
+        StepsSketch year = mergeYear();
+        return year.getQuantile(0.25) + year.getQuantile(0.5) + year.getQuantile(0.75);
+    }
+
+    @Benchmark
+    public double quartilesOfYearExact() {
+        int[] steps = allSteps();
+        Arrays.sort(steps);
+        return exactQuantile(steps, 0.25) + exactQuantile(steps, 0.5) + exactQuantile(steps, 0.75);
+    }
+
+    /**
+     * @return the sketch of the year merged from the sketches of its days
+     */
+    private StepsSketch mergeYear() {
+        StepsSketch year = new StepsSketch();
+        for (StepsSketch sketch : sketchesByDay) {
+            year.merge(sketch);
+        }
+        return year;
+    }
+
+    /**
+     * @return the steps of all users and days
+     */
+    private int[] allSteps() {
+        int[] steps = new int[DAYS * users];
+        for (int day = 0; day < DAYS; day++) {
+            System.arraycopy(stepsByDay[day], 0, steps, day * users, users);
+        }
+        return steps;
+    }
+
+    /**
+     * @param sorted: the sorted steps
+     * @param quantile: the quantile, e.g. 0.5 for the median
+     * @return the steps with the rank ceil(quantile * count) (nearest rank, like StepsSketch.getQuantile)
+     */
+    private static double exactQuantile(int[] sorted, double quantile) {
+        return sorted[(int) Math.max(0, Math.ceil(quantile * sorted.length) - 1)];
+    }
+}
@@ -0,0 +1,104 @@
+package com.vaadin.model;
+
+import com.google.api.client.auth.oauth2.Credential;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the time from the first login of a user until the first chart can be drawn (the data of the latest month,
+ * see MainView.startBackgroundSync) and until the whole year is stored. The year is requested with several concurrent
+ * requests and every response is stored as soon as it arrives (see FitDataFetcher), so the first chart only waits for
+ * the response of the most recent days instead of the whole download.
+ *
+ * The requests go to a local stand-in of google fit (see GoogleStandIn) answering every aggregate request after the
+ * latency of the parameter latencyMillis. Every invocation logs in a new user without stored data. With storage=mongo
+ * it needs a running MongoDB (see trackfit.mongo.uri in DbConnectionPool) and writes to a throwaway database, which is
+ * dropped afterwards (see BenchmarkDatabase.useThrowawayStorage); with storage=sqlite the data is kept in a temporary
+ * SQLite file. Lives in the package of the model to reach its package private classes.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TimeToFirstChartBenchmark {
+
+    /* prefix of the ids of the users */
+    private static final String USER_PREFIX = "first-chart-user-";
+
+    /* the latency of google fit for an aggregate request */
+    @Param({"200", "1000"})
+    private long latencyMillis;
+
+    /* the store the data is kept in (see FitDataStores) */
+    @Param({"mongo", "sqlite"})
+    private String storage;
+
+    /* number of users logged in so far; every invocation needs a user without stored data */
+    private static final AtomicInteger USERS = new AtomicInteger();
+
+    private GoogleStandIn google;
+    private AuthRequest authRequest;
+    private String user;
+    private Credential credential;
+    private Future<?> sync;
+
+    @Setup(Level.Trial)
+    public void startStandIn() throws IOException {
+        google = new GoogleStandIn();
+        google.setAggregateLatencyMillis(latencyMillis);
+        // the requests read the urls of google when ApiRequest is loaded
+        System.setProperty("trackfit.fit.rootUrl", google.getFitRootUrl());
+        System.setProperty("trackfit.oauth.tokenUrl", google.getTokenServerUrl());
+        BenchmarkDatabase.useThrowawayStorage(storage);
+        authRequest = new AuthRequest(google.getClientSecrets(), FitDataStores.get(), google.getTokenServerUrl());
+    }
+
+    @Setup(Level.Invocation)
+    public void login() throws IOException {
+        user = USER_PREFIX + USERS.incrementAndGet();
+        authRequest.authorize(GoogleStandIn.codeOf(user, true));
+        credential = authRequest.loadCredential(user);
+    }
+
+    @Benchmark
+    public String firstChart() throws Exception {
+        DbConnector dbConnector = new DbConnector(user);
+        CompletableFuture<Void> firstRangeStored = new CompletableFuture<>();
+        sync = new FitDataFetcher(new DataRequest(credential, user), dbConnector)
+                .syncInBackground((startTime, endTime, requestsStored, requestsTotal) ->
+                        firstRangeStored.complete(null));
+        // fails instead of waiting forever if no request succeeds
+        firstRangeStored.get(1, TimeUnit.MINUTES);
+
+        // the chart of the latest month, like the view draws it after the first stored response
+        long endTime = DataRequest.getStartOfToday().getTimeInMillis();
+        long startTime = endTime - 31 * DataRequest.DAY_IN_MILLIS;
+        return dbConnector.extractChartData(startTime, endTime, Resolution.forRange(startTime, endTime), 0);
+    }
+
+    @Benchmark
+    public void allRequestsStored() throws Exception {
+        sync = new FitDataFetcher(new DataRequest(credential, user), new DbConnector(user))
+                .syncInBackground((startTime, endTime, requestsStored, requestsTotal) -> { });
+        sync.get();
+    }
+
+    @TearDown(Level.Invocation)
+    public void awaitSync() throws Exception {
+        // the remaining requests of firstChart must not overlap with the next invocation
+        sync.get();
+    }
+
+    @TearDown(Level.Trial)
+    public void stopStandIn() {
+        google.close();
+        BenchmarkDatabase.dropThrowawayStorage();
+    }
+}
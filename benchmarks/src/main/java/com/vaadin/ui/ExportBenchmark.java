@@ -0,0 +1,67 @@
+package com.vaadin.ui;
+
+import com.vaadin.model.Fixtures;
+import com.vaadin.model.CloseableIterator;
+import com.vaadin.model.CsvExportStream;
+import com.vaadin.shared.ui.colorpicker.Color;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the CSV export of the download buttons (CsvExportStream, without the database) and the serialization of
+ * the selected options sent with every redraw (SelectedOptions.getJSONRepresentation). Lives in the package of the
+ * view to reach its package private classes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExportBenchmark {
+
+    /* the activities exported by DbConnector.exportCsv */
+    private static final List<String> ACTIVITY_NAMES = Arrays.asList("in_vehicle", "on_bicycle", "on_foot",
+            "running", "sleeping", "still", "walking");
+
+    /* number of days; 31 is the monthly view, 365 the yearly view and 1825 the history of five years */
+    @Param({"31", "365", "1825"})
+    private int days;
+
+    private List<Document> userData;
+    private final byte[] readBuffer = new byte[8192];
+    private SelectedOptions selectedOptions;
+
+    @Setup(Level.Trial)
+    public void createData() {
+        userData = Fixtures.dailyDocuments(Fixtures.END_OF_SEEDED_DATA - days * Fixtures.DAY_IN_MILLIS, days, 42);
+        selectedOptions = new SelectedOptions(Color.RED, new Color(70, 130, 180),
+                Fixtures.END_OF_SEEDED_DATA - days * Fixtures.DAY_IN_MILLIS, Fixtures.END_OF_SEEDED_DATA,
+                "Circles", "Monthly", "LineChart", "Date", "%d-%m-%Y");
+    }
+
+    @Benchmark
+    public long exportCsv() throws IOException {
+        // read the stream like the response of the download button does
+        long bytes = 0;
+        try (InputStream csv = new CsvExportStream(CloseableIterator.of(userData.iterator(), () -> { }),
+                ACTIVITY_NAMES)) {
+            int count;
+            while ((count = csv.read(readBuffer)) >= 0) {
+                bytes += count;
+            }
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public String selectedOptionsAsJson() {
+        return selectedOptions.getJSONRepresentation();
+    }
+}
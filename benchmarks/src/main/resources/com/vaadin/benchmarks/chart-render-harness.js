@@ -0,0 +1,106 @@
+/**
+ * Times the drawing of the calendar chart in the browser (see ChartRenderHarness.java): the chart is drawn like by
+ * GraphConnector.js, with the payloads FIVE_YEARS and FOUR_YEARS of the server (see ColumnarEncoder). Every step is
+ * timed until the layout is done and counts the nodes added to and removed from the document; the results are written
+ * to the element "results", one line per step: name, median and maximum in milliseconds, added and removed nodes of
+ * the last repetition.
+ */
+
+var REPETITIONS = parseInt(new URLSearchParams(window.location.search).get("repetitions") || "20", 10);
+
+var CALENDAR_OPTIONS = JSON.stringify({"colorForAvgSteps": "rgb(255,0,0)", "colorForUserSteps": "rgb(0,0,255)",
+    "plotSelected": "CalendarChart", "timeFormat": "%d-%m-%Y"});
+
+// counts the nodes added to and removed from the charts
+var mutations = {added: 0, removed: 0};
+var observer = new MutationObserver(countMutations);
+
+/**
+ * @param records: the mutation records
+ */
+function countMutations(records) {
+    for (var i = 0; i < records.length; i++) {
+        mutations.added += records[i].addedNodes.length;
+        mutations.removed += records[i].removedNodes.length;
+    }
+}
+
+/**
+ * runs the step and waits for the layout, like the browser does before the chart is painted
+ * @param step: function changing the chart
+ * @return object holding the milliseconds and the added and removed nodes
+ */
+function timeStep(step) {
+    observer.takeRecords();
+    mutations = {added: 0, removed: 0};
+
+    var start = performance.now();
+    step();
+    document.body.getBoundingClientRect();
+    var millis = performance.now() - start;
+
+    countMutations(observer.takeRecords());
+    return {millis: millis, added: mutations.added, removed: mutations.removed};
+}
+
+/**
+ * @return a new chart drawing into a new element
+ */
+function createChart() {
+    var element = document.createElement("div");
+    document.getElementById("charts").appendChild(element);
+    return new GraphSelector.ChartComponent(element, function() {}, null);
+}
+
+/**
+ * @return the rectangle selecting the first activity in the legend of the calendar chart
+ */
+function firstActivity() {
+    return document.querySelector("#charts g.activity-selection rect");
+}
+
+// the steps: each one gets a new chart on every repetition and is timed after the setup of the repetition
+var steps = [
+    {name: "initial draw (5 years)", run: function(chart) {
+        return timeStep(function() { chart.setData(FIVE_YEARS_JSON, CALENDAR_OPTIONS); });
+    }},
+    {name: "switch range (5 -> 4 years)", run: function(chart) {
+        chart.setData(FIVE_YEARS_JSON, CALENDAR_OPTIONS);
+        return timeStep(function() { chart.setData(FOUR_YEARS_JSON, CALENDAR_OPTIONS); });
+    }},
+    {name: "switch range (4 -> 5 years)", run: function(chart) {
+        chart.setData(FOUR_YEARS_JSON, CALENDAR_OPTIONS);
+        return timeStep(function() { chart.setData(FIVE_YEARS_JSON, CALENDAR_OPTIONS); });
+    }},
+    {name: "toggle activity", run: function(chart) {
+        chart.setData(FIVE_YEARS_JSON, CALENDAR_OPTIONS);
+        return timeStep(function() {
+            firstActivity().dispatchEvent(new MouseEvent("click", {bubbles: true}));
+        });
+    }},
+    {name: "redraw same data", run: function(chart) {
+        chart.setData(FIVE_YEARS_JSON, CALENDAR_OPTIONS);
+        return timeStep(function() { chart.setData(FIVE_YEARS_JSON, CALENDAR_OPTIONS); });
+    }}
+];
+
+var FIVE_YEARS_JSON = JSON.stringify(FIVE_YEARS);
+var FOUR_YEARS_JSON = JSON.stringify(FOUR_YEARS);
+observer.observe(document.getElementById("charts"), {childList: true, subtree: true});
+
+var lines = [];
+for (var s = 0; s < steps.length; s++) {
+    var results = [];
+    for (var r = 0; r < REPETITIONS; r++) {
+        // every repetition starts with an empty document, so the steps do not depend on each other
+        document.getElementById("charts").innerHTML = "";
+        results.push(steps[s].run(createChart()));
+    }
+
+    var millis = results.map(function(result) { return result.millis; }).sort(function(a, b) { return a - b; });
+    var last = results[results.length - 1];
+    lines.push([steps[s].name, millis[Math.floor(millis.length / 2)].toFixed(2), millis[millis.length - 1].toFixed(2),
+        last.added, last.removed].join("\t"));
+}
+document.getElementById("charts").innerHTML = "";
+document.getElementById("results").textContent = lines.join("\n");
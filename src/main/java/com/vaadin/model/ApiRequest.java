@@ -6,6 +6,7 @@ import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.fitness.Fitness;
 
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -32,6 +33,10 @@ class ApiRequest {
     /* Create instance of the HTTP transport. */
     static final HttpTransport HTTP_TRANSPORT = new NetHttpTransport();
 
+    /* Root URL of the Google Fit api; can be overridden by the system property trackfit.fit.rootUrl, e.g. to send the
+     * requests to a local stub of the api */
+    static final String FIT_ROOT_URL = System.getProperty("trackfit.fit.rootUrl", Fitness.DEFAULT_ROOT_URL);
+
     /* Create instance of the JSON factory. */
     static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
 
@@ -1,8 +1,13 @@
 package com.vaadin.model;
 
+import com.google.api.client.auth.oauth2.BearerToken;
 import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.auth.oauth2.StoredCredential;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
+import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+import com.google.api.client.googleapis.auth.oauth2.GoogleOAuthConstants;
 import com.google.api.client.googleapis.auth.oauth2.GoogleTokenResponse;
+import com.google.api.client.http.GenericUrl;
 import com.google.api.services.oauth2.Oauth2;
 import com.google.api.services.oauth2.model.Userinfoplus;
 import com.vaadin.server.VaadinSession;
@@ -11,12 +16,17 @@ import java.io.IOException;
 
 /**
  * inits the GoogleAuthorizationCodeFlow, creates the credentials, handles the return codes for the VaadinRequests
- * and stores the current user in the database
+ * and stores the current user and the credential (see DbCredentialStore) in the database
  *
  * Requested Scope: https://www.googleapis.com/auth/fitness.activity.read
  */
 public class AuthRequest extends ApiRequest{
 
+    /* Token endpoint of google; can be overridden by the system property trackfit.oauth.tokenUrl, e.g. to exchange the
+     * codes with a local stand-in of the endpoint */
+    static final String TOKEN_SERVER_URL = System.getProperty("trackfit.oauth.tokenUrl",
+            GoogleOAuthConstants.TOKEN_SERVER_URL);
+
     /* Authorization Flow */
     private GoogleAuthorizationCodeFlow flow;
 
@@ -25,6 +35,26 @@ public class AuthRequest extends ApiRequest{
         this.flow = initFlow();
     }
 
+    /**
+     * creates the authentication flow for the given client and token endpoint, e.g. for a local stand-in of google
+     * @param clientSecrets: the client id and secret of the application
+     * @param store: the store keeping the credentials (see DbCredentialStore)
+     * @param tokenServerUrl: the url of the token endpoint
+     * @throws IOException: if the credential store cannot be created
+     */
+    AuthRequest(GoogleClientSecrets clientSecrets, FitDataStore store, String tokenServerUrl) throws IOException {
+        this.flow = buildFlow(clientSecrets, store, tokenServerUrl);
+    }
+
+    /**
+     * uses the credential of a user who has been authorized already, e.g. for requesting the data of the user without
+     * a vaadin session; there is no authentication flow, so the request cannot authorize other users
+     * @param credential: the credential of the user
+     */
+    AuthRequest(Credential credential) {
+        this.myCredential = credential;
+    }
+
     /**
      * init the google authorization code flow
      * @return GoogleAuthorizationCodeFlow
@@ -33,12 +63,7 @@ public class AuthRequest extends ApiRequest{
         // set up authorization code flow
         GoogleAuthorizationCodeFlow flow = null;
         try {
-            flow = new GoogleAuthorizationCodeFlow.Builder(
-                    HTTP_TRANSPORT,
-                    JSON_FACTORY,
-                    loadClientSecrets(JSON_FACTORY),
-                    SCOPES
-            ).setAccessType("offline").setApprovalPrompt("force").build();
+            flow = buildFlow(loadClientSecrets(JSON_FACTORY), FitDataStores.get(), TOKEN_SERVER_URL);
         } catch (IOException e) {
             System.out.println("Cannot read JSON with Client Secrets");
             e.printStackTrace();
@@ -47,6 +72,28 @@ public class AuthRequest extends ApiRequest{
         return flow;
     }
 
+    /**
+     * builds the google authorization code flow keeping the credentials of the users in the database; the offline
+     * access gives us a refresh token on the first consent of a user, so returning users are not asked again
+     * @param clientSecrets: the client id and secret of the application
+     * @param store: the store keeping the credentials (see DbCredentialStore)
+     * @param tokenServerUrl: the url of the token endpoint
+     * @return GoogleAuthorizationCodeFlow
+     * @throws IOException: if the credential store cannot be created
+     */
+    private static GoogleAuthorizationCodeFlow buildFlow(GoogleClientSecrets clientSecrets, FitDataStore store,
+                                                         String tokenServerUrl) throws IOException {
+        return new GoogleAuthorizationCodeFlow.Builder(
+                HTTP_TRANSPORT,
+                JSON_FACTORY,
+                clientSecrets,
+                SCOPES
+        ).setAccessType("offline")
+                .setTokenServerUrl(new GenericUrl(tokenServerUrl))
+                .setDataStoreFactory(new DbCredentialStore.Factory(store))
+                .build();
+    }
+
     /**
      * @return REDIRECT_URI for the newAuthorizationUrl
      */
@@ -55,16 +102,50 @@ public class AuthRequest extends ApiRequest{
     }
 
     /**
-     * creates the credential token
+     * @return the authorization url asking the user for the consent again; google sends a refresh token only then
+     */
+    String getConsentURI() {
+        return flow.newAuthorizationUrl().setRedirectUri(REDIRECT_URI).setApprovalPrompt("force").build();
+    }
+
+    /**
+     * exchanges the return code for the tokens and stores the credential of the user in the database (see
+     * DbCredentialStore); the credential is kept in myCredential
      * @param code: the return code obtained from the VaadinRequest
-     * @return the GoogleAuthorizationCodeFlow holding the credential
-     * @throws IOException:
+     * @return the google account id of the user
+     * @throws IOException: if the token endpoint rejects the code
      */
-    private Credential createCredential(String code) throws IOException {
+    String authorize(String code) throws IOException {
         GoogleTokenResponse tokenResponse = flow.newTokenRequest(code).setRedirectUri(REDIRECT_URI).execute();
-        System.out.println("Token Response");
-        System.out.println(tokenResponse.getIdToken());
-        return flow.createAndStoreCredential(tokenResponse, "id1");
+        String user = userIdOf(tokenResponse);
+
+        // google sends the refresh token on the first consent of the user only, later logins keep the stored one
+        if (tokenResponse.getRefreshToken() == null) {
+            StoredCredential storedCredential = flow.getCredentialDataStore().get(user);
+            if (storedCredential != null) {
+                tokenResponse.setRefreshToken(storedCredential.getRefreshToken());
+            }
+        }
+        myCredential = flow.createAndStoreCredential(tokenResponse, user);
+        return user;
+    }
+
+    /**
+     * @param user: the google account id of the user
+     * @return the stored credential of the user, refreshing its access token with the refresh token when needed; null
+     * if there is none
+     * @throws IOException: if the credential cannot be read
+     */
+    Credential loadCredential(String user) throws IOException {
+        return flow.loadCredential(user);
+    }
+
+    /**
+     * @return whether the user has been authorized without getting a refresh token, i.e. the credential cannot be used
+     * after its access token has expired
+     */
+    boolean needsConsent() {
+        return myCredential != null && myCredential.getRefreshToken() == null;
     }
 
     /**
@@ -73,34 +154,59 @@ public class AuthRequest extends ApiRequest{
      * @param code: the return code obtained from the VaadinRequest
      */
     void handleReturnCode(String code){
-        System.out.println("Code obtained: ");
-        System.out.println(code);
         try {
-            VaadinSession.getCurrent().setAttribute("sessionCredential", createCredential(code));
-            myCredential = (Credential)VaadinSession.getCurrent().getAttribute("sessionCredential");
+            String user = authorize(code);
+            VaadinSession.getCurrent().setAttribute("sessionCredential", myCredential);
 
-            // STORE CREDENTIAL IN MONGODB
-            updateUserData();
+            // the profile of a returning user is in the database already, which saves the request to google
+            DbConnector dbConnect = new DbConnector(user);
+            if (!dbConnect.isUserStored()) {
+                updateUserData(dbConnect);
+            }
+
+            // the data of the users logged in recently is kept up to date in the background (see BackgroundSync)
+            dbConnect.storeLogin();
+
+            // Set Vaadin Session attribute to current user
+            VaadinSession.getCurrent().setAttribute("userID", user);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * stores the user data in the database and updates the userID for the vaadin session
-     * @throws IOException:
+     * @param tokenResponse: the response of the token endpoint
+     * @return the google account id of the user; read from the id token sent with the tokens for the userinfo scopes,
+     * which comes directly from google and therefore needs no verification of its signature
+     * @throws IOException: if the id token is malformed or the userinfo cannot be requested
      */
-    private void updateUserData() throws IOException {
-        Oauth2 oauth2 = new Oauth2.Builder(HTTP_TRANSPORT, JSON_FACTORY, myCredential)
-                .setApplicationName("TrackFit").build();
-        Userinfoplus userInfo = oauth2.userinfo().get().execute();
-        System.out.println("User: ");
-        System.out.println(userInfo.toPrettyString());
-
-        DbConnector dbConnect = new DbConnector(userInfo.getId());
+    private String userIdOf(GoogleTokenResponse tokenResponse) throws IOException {
+        if (tokenResponse.getIdToken() != null) {
+            return tokenResponse.parseIdToken().getPayload().getSubject();
+        }
+        Credential credential = new Credential(BearerToken.authorizationHeaderAccessMethod())
+                .setFromTokenResponse(tokenResponse);
+        return requestUserInfo(credential).getId();
+    }
 
+    /**
+     * stores the user data in the database
+     * @param dbConnect: the connector of the user
+     * @throws IOException:
+     */
+    private void updateUserData(DbConnector dbConnect) throws IOException {
+        Userinfoplus userInfo = requestUserInfo(myCredential);
         dbConnect.storeUser(userInfo.toString());
-        // Set Vaadin Session attribute to current user
-        VaadinSession.getCurrent().setAttribute("userID", userInfo.getId());
     }
-}
\ No newline at end of file
+
+    /**
+     * @param credential: the credential of the user
+     * @return the user data provided from google
+     * @throws IOException:
+     */
+    private static Userinfoplus requestUserInfo(Credential credential) throws IOException {
+        Oauth2 oauth2 = new Oauth2.Builder(HTTP_TRANSPORT, JSON_FACTORY, credential)
+                .setApplicationName("TrackFit").build();
+        return oauth2.userinfo().get().execute();
+    }
+}
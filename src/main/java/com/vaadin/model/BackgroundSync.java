@@ -0,0 +1,403 @@
+package com.vaadin.model;
+
+import com.google.api.client.auth.oauth2.Credential;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps the data of the recently active users up to date in the background, so that the views only read it from the
+ * database instead of waiting for google fit (see MainView). Every user who logged in within the last
+ * trackfit.sync.activeDays days (default: 14, see FitDataStore.storeLogin) is synced once every
+ * trackfit.sync.intervalMinutes minutes (default: 60): the first request of the plan of the user (see
+ * FitDataFetcher.planSync), i.e. the most recent missing days together with the days requested again (see
+ * FitDataFetcher.REFRESH_DAYS), is sent on each sync; the rest of the plan is requested one request at a time on the
+ * following ticks, without requesting the recent days again. Users without any data are left to their first login,
+ * which requests the whole year.
+ *
+ * The views sync their user through the background sync as well (see syncFirst): the sync of a view is queued ahead of
+ * the due users and sends as many requests of the plan at once as the quota of the current minute allows; the rest of
+ * the plan follows on the next ticks.
+ *
+ * The work is spread over time and limited, so that it exceeds the quota of the project at google neither with the
+ * background syncs nor with the syncs of the views:
+ *      - the first sync of every user is placed at a fixed offset within the interval (derived from the user id), so
+ *        the users are not all synced at once, e.g. after a restart
+ *      - at most trackfit.sync.maxConcurrentSyncs (default: 2) users are synced at the same time; the others wait
+ *        in a queue
+ *      - at most trackfit.sync.maxRequestsPerMinute (default: 60) requests are sent within a minute of the clock,
+ *        including the requests of the views. Due users are tried again on the next tick.
+ * The due users are started every trackfit.sync.tickSeconds seconds (default: 30); setting trackfit.sync.background to
+ * false disables the background sync. The clock is given to the constructor, so the schedule can be run with a fake
+ * clock (see runDueSyncs).
+ */
+public final class BackgroundSync {
+
+    /* the settings of the background sync of the application (see start) */
+    private static final boolean ENABLED = Boolean.parseBoolean(
+            System.getProperty("trackfit.sync.background", "true"));
+    private static final long INTERVAL_MILLIS = Long.getLong("trackfit.sync.intervalMinutes", 60L) * 60000;
+    private static final long ACTIVE_MILLIS = Long.getLong("trackfit.sync.activeDays", 14L)
+            * DataRequest.DAY_IN_MILLIS;
+    private static final int MAX_CONCURRENT_SYNCS = Integer.getInteger("trackfit.sync.maxConcurrentSyncs", 2);
+    private static final int MAX_REQUESTS_PER_MINUTE = Integer.getInteger("trackfit.sync.maxRequestsPerMinute", 60);
+    private static final long TICK_MILLIS = Long.getLong("trackfit.sync.tickSeconds", 30L) * 1000;
+
+    /* duration of the syncs of single users, number of requests sent, syncs postponed because of the quota and failed
+     * syncs (see Metrics) */
+    private static final Timer SYNC_TIMER = Metrics.timer("fit.backgroundSync");
+    private static final Counter SYNC_REQUESTS = Metrics.counter("fit.backgroundSyncRequests");
+    private static final Counter THROTTLED_SYNCS = Metrics.counter("fit.backgroundSyncsThrottled");
+    private static final Counter FAILED_SYNCS = Metrics.counter("fit.backgroundSyncsFailed");
+
+    /* the background sync of the application and the thread starting the due syncs; null if not running */
+    private static volatile BackgroundSync applicationSync;
+    private static ScheduledExecutorService ticker;
+
+    private final AuthRequest authRequest;          // loads the stored credentials of the users
+    private final LongSupplier clock;               // the current time in milliseconds
+    private final long intervalMillis;              // the time between two syncs of a user
+    private final long activeMillis;                // the time since the latest login of the users to sync
+    private final int maxRequestsPerMinute;         // the maximum number of requests within a minute of the clock
+    private final ThreadPoolExecutor syncExecutor;  // runs the syncs of the users
+    private final BlockingDeque<Runnable> syncQueue;    // the syncs waiting for a thread of the executor
+
+    private final Map<String, Long> nextSyncByUser = new ConcurrentHashMap<>();  // the next sync of the active users
+    private final Set<String> queuedSyncs = ConcurrentHashMap.newKeySet();       // the users queued or being synced
+    private final Set<String> catchingUp = ConcurrentHashMap.newKeySet();        // the users with the rest of a plan
+
+    private long quotaMinute = -1;          // the minute of the clock the requests are counted for
+    private int requestsInQuotaMinute;      // the requests sent within that minute
+
+    /**
+     * @param authRequest: loads the stored credentials of the users (see AuthRequest.loadCredential)
+     * @param clock: returns the current time in milliseconds, e.g. System::currentTimeMillis
+     * @param intervalMillis: the time between two syncs of a user
+     * @param activeMillis: the users logged in within this time are synced
+     * @param maxConcurrentSyncs: the maximum number of users synced at the same time
+     * @param maxRequestsPerMinute: the maximum number of requests within a minute of the clock
+     */
+    BackgroundSync(AuthRequest authRequest, LongSupplier clock, long intervalMillis, long activeMillis,
+                   int maxConcurrentSyncs, int maxRequestsPerMinute) {
+        this.authRequest = authRequest;
+        this.clock = clock;
+        this.intervalMillis = intervalMillis;
+        this.activeMillis = activeMillis;
+        this.maxRequestsPerMinute = maxRequestsPerMinute;
+        this.syncQueue = new LinkedBlockingDeque<>();
+        this.syncExecutor = new ThreadPoolExecutor(maxConcurrentSyncs, maxConcurrentSyncs, 0, TimeUnit.MILLISECONDS,
+                syncQueue, runnable -> {
+            Thread thread = new Thread(runnable, "fit-background-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // the syncs of the views are put into the queue directly (see syncNow), which needs the threads taking them
+        syncExecutor.prestartAllCoreThreads();
+    }
+
+    /**
+     * starts the background sync of the application with the settings of the system properties, e.g. when the
+     * application starts
+     */
+    static synchronized void start() {
+        if (!ENABLED || applicationSync != null) {
+            return;
+        }
+        BackgroundSync backgroundSync = new BackgroundSync(new AuthRequest(), System::currentTimeMillis,
+                INTERVAL_MILLIS, ACTIVE_MILLIS, MAX_CONCURRENT_SYNCS, MAX_REQUESTS_PER_MINUTE);
+        ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fit-background-sync-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleWithFixedDelay(() -> {
+            try {
+                backgroundSync.runDueSyncs();
+            } catch (RuntimeException e) {
+                // an exception would cancel all following ticks
+                e.printStackTrace();
+            }
+        }, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        applicationSync = backgroundSync;
+    }
+
+    /**
+     * stops the background sync of the application and cancels the running syncs, e.g. when the application stops
+     */
+    static synchronized void stop() {
+        if (applicationSync != null) {
+            ticker.shutdownNow();
+            applicationSync.close();
+            ticker = null;
+            applicationSync = null;
+        }
+    }
+
+    /**
+     * @param user: the google account id of the user
+     * @return whether the data of the user is kept up to date by the background sync of the application, i.e. the
+     * views do not need to request it; never for users without any data, who need the whole year (see syncFirst)
+     */
+    public static boolean keepsUpToDate(String user) {
+        BackgroundSync backgroundSync = applicationSync;
+        return backgroundSync != null && backgroundSync.isScheduled(user)
+                && FitDataStores.get().extractLatestStoredDay(user) != null;
+    }
+
+    /**
+     * syncs the user of a view ahead of the users due in the background sync of the application, within its quota (see
+     * syncNow); if the background sync is disabled, the view syncs the whole plan on its own (see
+     * FitDataFetcher.syncInBackground)
+     * @param user: the google account id of the user
+     * @param fitDataFetcher: downloads and stores the data of the user with the credential of the view
+     * @param progressListener: gets notified after each stored or failed request and when the sync has ended (on the
+     * thread of the sync)
+     * @return the queued sync; cancelling it interrupts the download and cancels the remaining requests
+     */
+    public static Future<?> syncFirst(String user, FitDataFetcher fitDataFetcher,
+                                      FitDataFetcher.ProgressListener progressListener) {
+        BackgroundSync backgroundSync = applicationSync;
+        if (backgroundSync == null) {
+            return fitDataFetcher.syncInBackground(progressListener);
+        }
+        return backgroundSync.syncNow(user, fitDataFetcher, progressListener);
+    }
+
+    /**
+     * queues the sync of the user at the head of the queue, so it starts as soon as a thread of the sync is free. The
+     * sync sends as many requests of the plan of the user at once as are left of the quota of the current minute,
+     * the most recent ones first (e.g. all of them on the first login); the rest of the plan follows on the next ticks.
+     * From then on the user is synced with the other active users, so the views of the user only read the database
+     * (see keepsUpToDate).
+     * @param user: the google account id of the user
+     * @param fitDataFetcher: downloads and stores the data of the user
+     * @param progressListener: gets notified after each stored or failed request and when the sync has ended
+     * @return the queued sync
+     */
+    Future<?> syncNow(String user, FitDataFetcher fitDataFetcher, FitDataFetcher.ProgressListener progressListener) {
+        if (syncExecutor.isShutdown()) {
+            throw new RejectedExecutionException("The background sync has been closed");
+        }
+        nextSyncByUser.put(user, clock.getAsLong() + intervalMillis);
+
+        FutureTask<Void> sync = new FutureTask<>(() -> {
+            // the ticks leave the user alone while the view syncs it
+            boolean queued = queuedSyncs.add(user);
+            try {
+                syncInteractively(user, fitDataFetcher, progressListener);
+            } finally {
+                if (queued) {
+                    queuedSyncs.remove(user);
+                }
+            }
+        }, null);
+        syncQueue.addFirst(sync);
+        return sync;
+    }
+
+    /**
+     * @param user: the google account id of the user
+     * @return whether the user is active and therefore synced
+     */
+    boolean isScheduled(String user) {
+        return nextSyncByUser.containsKey(user);
+    }
+
+    /**
+     * updates the active users and queues the syncs of the due users (those waiting the longest first); the queue is
+     * worked off by maxConcurrentSyncs threads. No more users are queued once the requests of the current minute are
+     * used up.
+     * @return the queued syncs, e.g. to wait for them
+     */
+    List<Future<?>> runDueSyncs() {
+        long now = clock.getAsLong();
+        updateActiveUsers(now);
+
+        List<Map.Entry<String, Long>> dueUsers = new ArrayList<>();
+        for (Map.Entry<String, Long> nextSync : nextSyncByUser.entrySet()) {
+            if (nextSync.getValue() <= now && !queuedSyncs.contains(nextSync.getKey())) {
+                dueUsers.add(nextSync);
+            }
+        }
+        dueUsers.sort(Map.Entry.comparingByValue());
+
+        List<Future<?>> syncs = new ArrayList<>();
+        for (Map.Entry<String, Long> dueUser : dueUsers) {
+            if (!hasRequestsLeft(now)) {
+                break;
+            }
+            String user = dueUser.getKey();
+            queuedSyncs.add(user);
+            syncs.add(syncExecutor.submit(() -> {
+                try {
+                    syncUser(user);
+                } finally {
+                    queuedSyncs.remove(user);
+                }
+            }));
+        }
+        return syncs;
+    }
+
+    /**
+     * cancels the running syncs; no more syncs can be started afterwards
+     */
+    void close() {
+        syncExecutor.shutdownNow();
+    }
+
+    /**
+     * schedules the users who logged in recently and forgets about the others
+     * @param now: the current time in milliseconds
+     */
+    private void updateActiveUsers(long now) {
+        Set<String> activeUsers = new HashSet<>(FitDataStores.get().extractUsersLoggedInSince(now - activeMillis));
+        nextSyncByUser.keySet().retainAll(activeUsers);
+        catchingUp.retainAll(activeUsers);
+        for (String user : activeUsers) {
+            // the hash is scrambled first, as the hashes of similar ids (e.g. differing in the last digit) are close
+            nextSyncByUser.putIfAbsent(user, now + Math.floorMod(user.hashCode() * 0x9E3779B97F4A7C15L,
+                    intervalMillis));
+        }
+    }
+
+    /**
+     * requests the most recent days missing in the database for the user (and the days requested again, see
+     * FitDataFetcher.REFRESH_DAYS) with a single request, if the quota allows
+     * @param user: the google account id of the user
+     */
+    private void syncUser(String user) {
+        // the requests of the minute have been used up while the user was queued; the user stays due
+        if (!hasRequestsLeft(clock.getAsLong())) {
+            THROTTLED_SYNCS.increment();
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            // e.g. the user revoked the access
+            Credential credential = authRequest.loadCredential(user);
+            if (credential == null) {
+                reschedule(user, intervalMillis);
+                return;
+            }
+
+            // the first login requests the whole year with concurrent requests (see syncFirst); only the rest of its
+            // plan is left to the ticks
+            DbConnector dbConnector = new DbConnector(user);
+            if (dbConnector.extractLatestStoredDay() == null && !catchingUp.contains(user)) {
+                reschedule(user, intervalMillis);
+                return;
+            }
+            // the recent days have been requested again by the first request of the plan already
+            FitDataFetcher fitDataFetcher = new FitDataFetcher(new DataRequest(credential, user), dbConnector);
+            List<FitRequestPlanner.DayRange> plan = fitDataFetcher.planSync(
+                    catchingUp.contains(user) ? 0 : FitDataFetcher.REFRESH_DAYS);
+            if (plan.isEmpty()) {
+                reschedule(user, intervalMillis);
+                return;
+            }
+
+            // the user stays due and is tried again on the next tick
+            if (!tryAcquireRequest()) {
+                THROTTLED_SYNCS.increment();
+                return;
+            }
+            SYNC_REQUESTS.increment();
+            fitDataFetcher.fetchRange(plan.get(0));
+
+            // the rest of the plan is requested on the next tick
+            reschedule(user, plan.size() > 1 ? 0 : intervalMillis);
+        } catch (IOException | RuntimeException e) {
+            FAILED_SYNCS.increment();
+            System.out.println("Background sync of user " + user + " failed: " + e);
+            reschedule(user, intervalMillis);
+        } finally {
+            SYNC_TIMER.recordSince(start);
+        }
+    }
+
+    /**
+     * requests the days of the plan of the user that the quota of the current minute allows at once and leaves the rest
+     * of the plan to the next ticks
+     * @param user: the google account id of the user
+     * @param fitDataFetcher: downloads and stores the data of the user
+     * @param progressListener: gets notified after each stored or failed request and when the sync has ended
+     */
+    private void syncInteractively(String user, FitDataFetcher fitDataFetcher,
+                                   FitDataFetcher.ProgressListener progressListener) {
+        long start = System.nanoTime();
+        try {
+            List<FitRequestPlanner.DayRange> plan = fitDataFetcher.planSync(
+                    catchingUp.contains(user) ? 0 : FitDataFetcher.REFRESH_DAYS);
+            int requests = tryAcquireRequests(plan.size());
+            SYNC_REQUESTS.add(requests);
+            fitDataFetcher.fetchPlan(plan.subList(0, requests), progressListener);
+
+            // the rest of the plan is requested on the next ticks
+            if (requests < plan.size()) {
+                THROTTLED_SYNCS.increment();
+                reschedule(user, 0);
+            } else {
+                reschedule(user, intervalMillis);
+            }
+        } catch (RuntimeException e) {
+            FAILED_SYNCS.increment();
+            System.out.println("Sync of user " + user + " failed: " + e);
+            reschedule(user, intervalMillis);
+        } finally {
+            progressListener.syncFinished();
+            SYNC_TIMER.recordSince(start);
+        }
+    }
+
+    /**
+     * @param user: the google account id of the user
+     * @param delayMillis: the time until the next sync of the user
+     */
+    private void reschedule(String user, long delayMillis) {
+        // a user due at once requests the rest of the plan
+        if (delayMillis == 0) {
+            catchingUp.add(user);
+        } else {
+            catchingUp.remove(user);
+        }
+
+        // the user might not be active anymore
+        nextSyncByUser.computeIfPresent(user, (key, nextSync) -> clock.getAsLong() + delayMillis);
+    }
+
+    /**
+     * @param now: the current time in milliseconds
+     * @return whether requests are left within the current minute of the clock
+     */
+    private synchronized boolean hasRequestsLeft(long now) {
+        return now / 60000 != quotaMinute || requestsInQuotaMinute < maxRequestsPerMinute;
+    }
+
+    /**
+     * counts a request for the current minute of the clock
+     * @return whether the request may be sent, i.e. the quota of the minute is not used up yet
+     */
+    private boolean tryAcquireRequest() {
+        return tryAcquireRequests(1) == 1;
+    }
+
+    /**
+     * counts as many of the requests for the current minute of the clock as the quota of the minute allows
+     * @param requests: the number of requests to send
+     * @return the number of requests that may be sent
+     */
+    private synchronized int tryAcquireRequests(int requests) {
+        long minute = clock.getAsLong() / 60000;
+        if (minute != quotaMinute) {
+            quotaMinute = minute;
+            requestsInQuotaMinute = 0;
+        }
+        int acquired = Math.min(requests, maxRequestsPerMinute - requestsInQuotaMinute);
+        requestsInQuotaMinute += acquired;
+        return acquired;
+    }
+}
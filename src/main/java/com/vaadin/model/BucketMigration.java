@@ -0,0 +1,223 @@
+package com.vaadin.model;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.*;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.*;
+
+import static com.mongodb.client.model.Aggregates.*;
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Updates.*;
+
+/**
+ * Copies the data stored in the collections steps, activities and days (see MongoFitDataStore) into the month buckets
+ * of BucketedMongoFitDataStore (collections user_months and days_months). The buckets are written as a whole, so the
+ * migration can simply be run again, e.g. if the application kept storing days in the old collections in the meantime.
+ * The old collections are not modified and can be dropped once trackfit.storage is set to mongo-buckets.
+ *
+ * The database is configured with the same system properties as the application (see DbConnectionPool), e.g.
+ *      java -cp "target/classes:target/vaadin-archetype-application-1.0-SNAPSHOT/WEB-INF/lib/*"
+ *          -Dtrackfit.mongo.database=trackFit com.vaadin.model.BucketMigration
+ */
+public final class BucketMigration {
+
+    /* number of buckets sent to the database at once */
+    private static final int WRITE_BATCH_SIZE = 500;
+
+    private BucketMigration() {
+    }
+
+    public static void main(String[] args) {
+        try {
+            migrate(DbConnectionPool.getDatabase());
+        } finally {
+            DbConnectionPool.close();
+        }
+    }
+
+    /**
+     * copies the steps, the activities and the days into the month buckets
+     * @param db: the Mongo database
+     */
+    static void migrate(MongoDatabase db) {
+        long startTime = System.currentTimeMillis();
+        System.out.println("Migrated the steps into " + migrateSteps(db) + " buckets of the users");
+        System.out.println("Migrated the activities of " + migrateActivities(db) + " days");
+        System.out.println("Migrated the days into " + migrateDays(db) + " buckets of all users");
+        System.out.println("Migration finished after " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * replaces the buckets of the users by the steps of the steps collection; the activities of the buckets are
+     * emptied and filled again by migrateActivities
+     * @param db: the Mongo database
+     * @return the number of buckets written
+     */
+    private static int migrateSteps(MongoDatabase db) {
+        MongoCollection<Document> userMonthsColl = db.getCollection("user_months");
+        List<WriteModel<Document>> writes = new ArrayList<>();
+        int bucketCount = 0;
+
+        // the steps are read user by user and month by month, so only a single bucket is held in memory
+        Document userMonth = null;
+        for (Document stepsDoc : sortedByUserAndDate(db.getCollection("steps"), "startDateInUTC")) {
+            String user = stepsDoc.getString("user");
+            long date = ((Number) stepsDoc.get("startDateInUTC")).longValue();
+            long monthStart = Resolution.MONTH.periodStart(date);
+            String id = BucketedMongoFitDataStore.userMonthId(user, monthStart);
+
+            if (userMonth == null || !userMonth.get("_id").equals(id)) {
+                if (userMonth != null) {
+                    addReplacement(writes, userMonth);
+                    bucketCount++;
+                }
+                int dayCount = BucketedMongoFitDataStore.daysInMonth(monthStart);
+                userMonth = new Document("_id", id)
+                        .append("user", user)
+                        .append("monthStart", monthStart)
+                        .append("steps", new ArrayList<>(Collections.nCopies(dayCount, null)))
+                        .append("activities", new ArrayList<>(Collections.nCopies(dayCount, null)));
+            }
+            @SuppressWarnings("unchecked")
+            List<Object> steps = (List<Object>) userMonth.get("steps");
+            steps.set(BucketedMongoFitDataStore.dayIndex(monthStart, date), stepsDoc.get("steps"));
+
+            writes = flushIfFull(userMonthsColl, writes);
+        }
+        if (userMonth != null) {
+            addReplacement(writes, userMonth);
+            bucketCount++;
+        }
+        flush(userMonthsColl, writes);
+        return bucketCount;
+    }
+
+    /**
+     * sets the activities of the days of the activities collection in the buckets of the users; days without steps
+     * are skipped, as they are not returned for the charts either
+     * @param db: the Mongo database
+     * @return the number of days written
+     */
+    private static int migrateActivities(MongoDatabase db) {
+        MongoCollection<Document> userMonthsColl = db.getCollection("user_months");
+        List<WriteModel<Document>> writes = new ArrayList<>();
+        int dayCount = 0;
+
+        // all days of a bucket are set with a single update
+        String id = null;
+        List<Bson> updates = new ArrayList<>();
+        for (Document activityDoc : sortedByUserAndDate(db.getCollection("activities"), "dateInUTC")) {
+            long date = ((Number) activityDoc.get("dateInUTC")).longValue();
+            long monthStart = Resolution.MONTH.periodStart(date);
+            String activityId = BucketedMongoFitDataStore.userMonthId(activityDoc.getString("user"), monthStart);
+
+            if (!activityId.equals(id)) {
+                if (id != null) {
+                    writes.add(new UpdateOneModel<>(eq("_id", id), combine(updates)));
+                }
+                id = activityId;
+                updates = new ArrayList<>();
+            }
+            updates.add(set("activities." + BucketedMongoFitDataStore.dayIndex(monthStart, date),
+                    activityDoc.get("activities")));
+            dayCount++;
+
+            writes = flushIfFull(userMonthsColl, writes);
+        }
+        if (id != null) {
+            writes.add(new UpdateOneModel<>(eq("_id", id), combine(updates)));
+        }
+        flush(userMonthsColl, writes);
+        return dayCount;
+    }
+
+    /**
+     * replaces the buckets of all users by the sums of the days collection
+     * @param db: the Mongo database
+     * @return the number of buckets written
+     */
+    private static int migrateDays(MongoDatabase db) {
+
+        // there are only a few thousand days, so all buckets are built in memory
+        Map<Long, Document> daysMonths = new TreeMap<>();
+        for (Document dayDoc : db.getCollection("days").find()) {
+            long date = ((Number) dayDoc.get("dateInUTC")).longValue();
+            long monthStart = Resolution.MONTH.periodStart(date);
+            Document daysMonth = daysMonths.computeIfAbsent(monthStart, key -> {
+                int dayCount = BucketedMongoFitDataStore.daysInMonth(key);
+                return new Document("_id", key)
+                        .append("sum0", new ArrayList<>(Collections.nCopies(dayCount, 0.0)))
+                        .append("sum1", new ArrayList<>(Collections.nCopies(dayCount, 0.0)))
+                        .append("sum2", new ArrayList<>(Collections.nCopies(dayCount, 0.0)))
+                        .append("stepsSketch", new ArrayList<>(Collections.nCopies(dayCount, new Document())));
+            });
+
+            Document sums = (Document) dayDoc.get("sumsForMeanAndSEM");
+            int index = BucketedMongoFitDataStore.dayIndex(monthStart, date);
+            for (String sum : Arrays.asList("sum0", "sum1", "sum2")) {
+                @SuppressWarnings("unchecked")
+                List<Double> sumsOfMonth = (List<Double>) daysMonth.get(sum);
+                sumsOfMonth.set(index, sumsOfMonth.get(index) + ((Number) sums.get(sum)).doubleValue());
+            }
+            @SuppressWarnings("unchecked")
+            List<Document> sketches = (List<Document>) daysMonth.get("stepsSketch");
+            Document sketch = (Document) dayDoc.get("stepsSketch");
+            sketches.set(index, sketch == null ? new Document() : sketch);
+        }
+
+        List<WriteModel<Document>> writes = new ArrayList<>();
+        for (Document daysMonth : daysMonths.values()) {
+            addReplacement(writes, daysMonth);
+        }
+        flush(db.getCollection("days_months"), writes);
+        return daysMonths.size();
+    }
+
+    /**
+     * @param collection: the steps or the activities collection
+     * @param dateField: the name of the field holding the date
+     * @return the documents of the collection sorted by user and date; the collections are indexed by date first, so
+     * the documents are sorted by the database (on disk, if needed)
+     */
+    private static Iterable<Document> sortedByUserAndDate(MongoCollection<Document> collection, String dateField) {
+        return collection.aggregate(Collections.singletonList(sort(Sorts.ascending("user", dateField))))
+                .allowDiskUse(true);
+    }
+
+    /**
+     * @param writes: the writes to add the replacement to
+     * @param bucket: the bucket replacing (or inserting) the bucket with the same _id
+     */
+    private static void addReplacement(List<WriteModel<Document>> writes, Document bucket) {
+        writes.add(new ReplaceOneModel<>(eq("_id", bucket.get("_id")), bucket, new UpdateOptions().upsert(true)));
+    }
+
+    /**
+     * sends the writes to the database once there are WRITE_BATCH_SIZE of them
+     * @param collection: the collection to write to
+     * @param writes: the writes collected so far
+     * @return the list to collect the next writes in
+     */
+    private static List<WriteModel<Document>> flushIfFull(MongoCollection<Document> collection,
+                                                          List<WriteModel<Document>> writes) {
+        if (writes.size() < WRITE_BATCH_SIZE) {
+            return writes;
+        }
+        flush(collection, writes);
+        return new ArrayList<>();
+    }
+
+    /**
+     * sends the writes to the database
+     * @param collection: the collection to write to
+     * @param writes: the writes; the buckets are independent of each other, so they are not applied in order
+     */
+    private static void flush(MongoCollection<Document> collection, List<WriteModel<Document>> writes) {
+        if (!writes.isEmpty()) {
+            collection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+        }
+    }
+}
@@ -0,0 +1,476 @@
+package com.vaadin.model;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.*;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.*;
+
+import static com.mongodb.client.model.Aggregates.*;
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.*;
+import static com.mongodb.client.model.Updates.*;
+
+/**
+ * Stores the days in MongoDB in buckets of a month (see DbConnectionPool for the connection), so that a year is read
+ * from 12 documents instead of one steps and one activities document per day. The collections are:
+ *      - user_months: one document per user and month, e.g.
+ *          {_id: "<user>:1509494400000", user: "<user>", monthStart: 1509494400000,
+ *           steps: [489, 5321, null, ...], activities: [{still: 23249677, walking: 2153308}, {...}, null, ...]}
+ *        holding an entry for every day of the month; days which are not stored yet are null
+ *      - days_months: one document per month holding the sums for the mean and the std error of mean of the steps of
+ *        all users and the sketches of their steps (see StepsSketch) by day, e.g.
+ *          {_id: 1509494400000, sum0: [47.0, ...], sum1: [...], sum2: [...], stepsSketch: [{"412": 3, ...}, ...]}
+ * The users, their credentials, the menu items and the days of the cohorts (see DbCohorts) are kept in the
+ * collections of MongoFitDataStore. Weeks and months are summed up from the buckets when they are extracted, so there
+ * are no rollups to maintain. Data stored with the collections of MongoFitDataStore is copied into the buckets by
+ * BucketMigration.
+ */
+final class BucketedMongoFitDataStore implements FitDataStore {
+
+    private final MongoDatabase db;                             // the Mongo database
+    private final MongoFitDataStore mongoStore;                 // the store holding the users and the menu items
+    private final MongoCollection<Document> userMonthsColl;     // collection storing the months of the users
+    private final MongoCollection<Document> daysMonthsColl;     // collection storing the sums of all users by month
+
+    /**
+     * Accesses the DB through the connection pool shared by all sessions (see DbConnectionPool).
+     */
+    BucketedMongoFitDataStore() {
+        db = DbConnectionPool.getDatabase();
+        mongoStore = new MongoFitDataStore();
+        userMonthsColl = db.getCollection("user_months");
+        daysMonthsColl = db.getCollection("days_months");
+    }
+
+    @Override
+    public void storeUser(String googleUserData) {
+        mongoStore.storeUser(googleUserData);
+    }
+
+    @Override
+    public boolean hasUser(String user) {
+        return mongoStore.hasUser(user);
+    }
+
+    @Override
+    public String extractUserPicture(String user) {
+        return mongoStore.extractUserPicture(user);
+    }
+
+    @Override
+    public String extractUserName(String user) {
+        return mongoStore.extractUserName(user);
+    }
+
+    @Override
+    public void storeCredential(String user, Document credential) {
+        mongoStore.storeCredential(user, credential);
+    }
+
+    @Override
+    public Document extractCredential(String user) {
+        return mongoStore.extractCredential(user);
+    }
+
+    @Override
+    public List<String> extractCredentialUsers() {
+        return mongoStore.extractCredentialUsers();
+    }
+
+    @Override
+    public void deleteCredential(String user) {
+        mongoStore.deleteCredential(user);
+    }
+
+    @Override
+    public void storeLogin(String user, long loginTime) {
+        mongoStore.storeLogin(user, loginTime);
+    }
+
+    @Override
+    public List<String> extractUsersLoggedInSince(long time) {
+        return mongoStore.extractUsersLoggedInSince(time);
+    }
+
+    @Override
+    public void storeDataSources(String user, Document dataSources) {
+        mongoStore.storeDataSources(user, dataSources);
+    }
+
+    @Override
+    public Document extractDataSources(String user) {
+        return mongoStore.extractDataSources(user);
+    }
+
+    @Override
+    public void storeDays(String user, List<FitDay> days) {
+
+        Map<Long, List<FitDay>> daysByMonth = new TreeMap<>();
+        for (FitDay day : days) {
+            daysByMonth.computeIfAbsent(Resolution.MONTH.periodStart(day.getStartDateInUTC()), key -> new ArrayList<>())
+                    .add(day);
+        }
+        if (daysByMonth.isEmpty()) {
+            return;
+        }
+
+        // create the buckets of the months which don't exist yet; the days are set afterwards, since $setOnInsert and
+        // $set must not modify the same fields within one update
+        List<WriteModel<Document>> userMonthWrites = new ArrayList<>();
+        List<WriteModel<Document>> daysMonthWrites = new ArrayList<>();
+        for (long monthStart : daysByMonth.keySet()) {
+            int dayCount = daysInMonth(monthStart);
+            userMonthWrites.add(new UpdateOneModel<>(eq("_id", userMonthId(user, monthStart)), combine(
+                    setOnInsert("user", user),
+                    setOnInsert("monthStart", monthStart),
+                    setOnInsert("steps", Collections.nCopies(dayCount, null)),
+                    setOnInsert("activities", Collections.nCopies(dayCount, null))
+            ), new UpdateOptions().upsert(true)));
+            daysMonthWrites.add(new UpdateOneModel<>(eq("_id", monthStart), combine(
+                    setOnInsert("sum0", Collections.nCopies(dayCount, 0.0)),
+                    setOnInsert("sum1", Collections.nCopies(dayCount, 0.0)),
+                    setOnInsert("sum2", Collections.nCopies(dayCount, 0.0)),
+                    setOnInsert("stepsSketch", Collections.nCopies(dayCount, new Document()))
+            ), new UpdateOptions().upsert(true)));
+        }
+        MongoFitDataStore.upsertRetryingDuplicateKeys(userMonthsColl, userMonthWrites);
+        MongoFitDataStore.upsertRetryingDuplicateKeys(daysMonthsColl, daysMonthWrites);
+
+        // store the days month by month and add the steps of the new days to the sums of all users; the changed days
+        // replace their old steps
+        List<WriteModel<Document>> sumWrites = new ArrayList<>();
+        Map<Long, Integer> stepsByDate = new LinkedHashMap<>();
+        Map<Long, Integer> replacedStepsByDate = new HashMap<>();
+        daysByMonth.forEach((monthStart, daysOfMonth) -> {
+            List<Bson> increments = new ArrayList<>();
+            for (FitDay storedDay : storeMonth(user, monthStart, daysOfMonth, replacedStepsByDate)) {
+                int steps = storedDay.getSteps();
+                Integer replacedSteps = replacedStepsByDate.get(storedDay.getStartDateInUTC());
+                int oldSteps = replacedSteps == null ? 0 : replacedSteps;
+                stepsByDate.put(storedDay.getStartDateInUTC(), steps);
+                int index = dayIndex(monthStart, storedDay.getStartDateInUTC());
+                increments.add(inc("sum0." + index, replacedSteps == null ? 1.0 : 0.0));
+                increments.add(inc("sum1." + index, (double) steps - oldSteps));
+                increments.add(inc("sum2." + index, (double) steps * steps - (double) oldSteps * oldSteps));
+                String bucket = StepsSketch.fieldOf(steps);
+                if (replacedSteps == null) {
+                    increments.add(inc("stepsSketch." + index + "." + bucket, 1));
+                } else if (!bucket.equals(StepsSketch.fieldOf(replacedSteps))) {
+                    increments.add(inc("stepsSketch." + index + "." + bucket, 1));
+                    increments.add(inc("stepsSketch." + index + "." + StepsSketch.fieldOf(replacedSteps), -1));
+                }
+            }
+            if (!increments.isEmpty()) {
+                sumWrites.add(new UpdateOneModel<>(eq("_id", monthStart), combine(increments)));
+            }
+        });
+        if (!sumWrites.isEmpty()) {
+            daysMonthsColl.bulkWrite(sumWrites, new BulkWriteOptions().ordered(false));
+        }
+
+        // the cohorts are kept by day in the collection of MongoFitDataStore
+        new DbCohorts(db, user).addDays(stepsByDate, replacedStepsByDate);
+    }
+
+    /**
+     * stores the days of a single month in the bucket of the user. The steps of a new day are set, a stored day gets
+     * the new steps only if they have changed (e.g. one of the days requested again, see
+     * FitDataFetcher.REFRESH_DAYS); the activities of a day are replaced.
+     * @param user: the id of the user
+     * @param monthStart: the start of the month (date in UTC); the bucket of the month has to exist
+     * @param days: the days of the month
+     * @param replacedStepsByDate: gets the steps the changed days were stored with before by their date in UTC
+     * @return the days which were not stored yet and the days whose steps have changed
+     */
+    private List<FitDay> storeMonth(String user, long monthStart, List<FitDay> days,
+                                    Map<Long, Integer> replacedStepsByDate) {
+        String id = userMonthId(user, monthStart);
+        while (true) {
+            List<?> storedSteps = (List<?>) userMonthsColl.find(eq("_id", id)).projection(include("steps")).first()
+                    .get("steps");
+
+            Map<Integer, FitDay> storedDays = new TreeMap<>();
+            Map<Long, Integer> replacedSteps = new HashMap<>();
+            List<Bson> filters = new ArrayList<>();
+            List<Bson> updates = new ArrayList<>();
+            filters.add(eq("_id", id));
+            for (FitDay day : days) {
+                int index = dayIndex(monthStart, day.getStartDateInUTC());
+                Object stored = storedSteps.get(index);
+                if (!storedDays.containsKey(index)
+                        && (stored == null || ((Number) stored).intValue() != day.getSteps())) {
+                    storedDays.put(index, day);
+                    filters.add(eq("steps." + index, stored));
+                    updates.add(set("steps." + index, day.getSteps()));
+                    if (stored != null) {
+                        replacedSteps.put(day.getStartDateInUTC(), ((Number) stored).intValue());
+                    }
+                }
+                updates.add(set("activities." + index, day.getActivities()));
+            }
+
+            // the update only matches if no other session of the user has stored one of these days in the meantime;
+            // otherwise we look again which days are new or changed, so that every day is added to the sums exactly
+            // once
+            if (userMonthsColl.updateOne(and(filters), combine(updates)).getMatchedCount() > 0) {
+                replacedStepsByDate.putAll(replacedSteps);
+                return new ArrayList<>(storedDays.values());
+            }
+        }
+    }
+
+    @Override
+    public boolean ensureRollups(String user) {
+        // the weeks and months are summed up when they are extracted
+        return false;
+    }
+
+    @Override
+    public Long extractLatestStoredDay(String user) {
+        try (MongoCursor<Document> userMonths = userMonthsColl.find(eq("user", user))
+                .sort(Sorts.descending("monthStart"))
+                .projection(include("monthStart", "steps"))
+                .iterator()) {
+            while (userMonths.hasNext()) {
+                Document userMonth = userMonths.next();
+                List<?> steps = (List<?>) userMonth.get("steps");
+                for (int index = steps.size() - 1; index >= 0; index--) {
+                    if (steps.get(index) != null) {
+                        return dateOf(userMonth, index);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<Long> extractStoredDays(String user, long startTime, long endTime) {
+        List<Long> storedDays = new ArrayList<>();
+        for (Document userMonth : userMonthsColl.find(and(eq("user", user),
+                gte("monthStart", Resolution.MONTH.periodStart(startTime)), lt("monthStart", endTime)))
+                .sort(Sorts.ascending("monthStart"))
+                .projection(include("monthStart", "steps"))) {
+            List<?> steps = (List<?>) userMonth.get("steps");
+            for (int index = 0; index < steps.size(); index++) {
+                long date = dateOf(userMonth, index);
+                if (steps.get(index) != null && date >= startTime && date < endTime) {
+                    storedDays.add(date);
+                }
+            }
+        }
+        return storedDays;
+    }
+
+    @Override
+    public List<Document> extractMenuItems() {
+        return mongoStore.extractMenuItems();
+    }
+
+    @Override
+    public List<Document> extractDays(String user, long startTime, long endTime, Resolution resolution) {
+        List<Document> docList;
+        if (resolution != Resolution.DAY) {
+            docList = extractPeriods(user, startTime, endTime, resolution);
+        } else {
+            docList = new ArrayList<>();
+            try (DayIterator days = new DayIterator(user, startTime, endTime)) {
+                days.forEachRemaining(docList::add);
+            }
+        }
+        new DbCohorts(db, user).appendTo(docList, resolution);
+        return docList;
+    }
+
+    @Override
+    public CloseableIterator<Document> iterateDays(String user, long startTime, long endTime) {
+        return new DayIterator(user, startTime, endTime);
+    }
+
+    /**
+     * sums up the days of the user and the sums of all users by period; like the rollups of MongoFitDataStore, the
+     * periods overlapping the range of startTime and endTime are returned as a whole
+     * @param user: the id of the user
+     * @param startTime: the start of the interval (date in UTC)
+     * @param endTime: the end of the interval (date in UTC)
+     * @param resolution: the resolution of the periods; either WEEK or MONTH
+     * @return list of documents (one for each period) holding the daily averages within the period
+     */
+    private List<Document> extractPeriods(String user, long startTime, long endTime, Resolution resolution) {
+        long firstPeriodStart = resolution.periodStart(startTime);
+        long lastPeriodEnd = resolution.periodEnd(endTime - 1);
+
+        // weeks might start in the month before the range
+        long firstMonthStart = Resolution.MONTH.periodStart(firstPeriodStart);
+
+        PeriodSums periodSums = new PeriodSums(resolution);
+        for (Document userMonth : userMonthsColl.find(and(eq("user", user), gte("monthStart", firstMonthStart),
+                lt("monthStart", lastPeriodEnd)))) {
+            List<?> steps = (List<?>) userMonth.get("steps");
+            List<?> activities = (List<?>) userMonth.get("activities");
+            for (int index = 0; index < steps.size(); index++) {
+                long date = dateOf(userMonth, index);
+                if (steps.get(index) != null && date >= firstPeriodStart && date < lastPeriodEnd) {
+                    periodSums.addDayOfUser(date, ((Number) steps.get(index)).intValue(),
+                            (Document) activities.get(index));
+                }
+            }
+        }
+
+        for (Document daysMonth : daysMonthsColl.find(and(gte("_id", firstMonthStart), lt("_id", lastPeriodEnd)))) {
+            long monthStart = ((Number) daysMonth.get("_id")).longValue();
+            List<?> sum0 = (List<?>) daysMonth.get("sum0");
+            List<?> sum1 = (List<?>) daysMonth.get("sum1");
+            List<?> sum2 = (List<?>) daysMonth.get("sum2");
+            List<?> sketches = (List<?>) daysMonth.get("stepsSketch");
+            for (int index = 0; index < sum0.size(); index++) {
+                long date = monthStart + index * DataRequest.DAY_IN_MILLIS;
+                if (date >= firstPeriodStart && date < lastPeriodEnd) {
+                    periodSums.addDayOfAllUsers(date, ((Number) sum0.get(index)).doubleValue(),
+                            ((Number) sum1.get(index)).doubleValue(), ((Number) sum2.get(index)).doubleValue());
+                    if (sketches != null) {
+                        periodSums.sketchOf(date).merge((Document) sketches.get(index));
+                    }
+                }
+            }
+        }
+
+        return periodSums.toDocuments();
+    }
+
+    @Override
+    public void close() {
+        DbConnectionPool.close();
+    }
+
+    /**
+     * @param user: the id of the user
+     * @param monthStart: the start of the month (date in UTC)
+     * @return the _id of the bucket of the user for the month
+     */
+    static String userMonthId(String user, long monthStart) {
+        return user + ":" + monthStart;
+    }
+
+    /**
+     * @param monthStart: the start of the month (date in UTC)
+     * @return the number of days of the month, i.e. the length of the arrays of its buckets
+     */
+    static int daysInMonth(long monthStart) {
+        return (int) ((Resolution.MONTH.periodEnd(monthStart) - monthStart) / DataRequest.DAY_IN_MILLIS);
+    }
+
+    /**
+     * @param monthStart: the start of the month (date in UTC)
+     * @param dateInUTC: a day within the month
+     * @return the index of the day within the arrays of the buckets of the month
+     */
+    static int dayIndex(long monthStart, long dateInUTC) {
+        return (int) ((dateInUTC - monthStart) / DataRequest.DAY_IN_MILLIS);
+    }
+
+    /**
+     * @param userMonth: the bucket of a user
+     * @param index: the index of a day within the bucket
+     * @return the date of the day in UTC
+     */
+    private static long dateOf(Document userMonth, int index) {
+        return ((Number) userMonth.get("monthStart")).longValue() + index * DataRequest.DAY_IN_MILLIS;
+    }
+
+    /**
+     * reads the buckets of a user (together with the sums of all users of the same month) while iterating and
+     * converts their days to the documents of extractDays; only a single month is held in memory
+     */
+    private final class DayIterator implements CloseableIterator<Document> {
+
+        private final MongoCursor<Document> userMonths;     // the buckets of the user sorted by date
+        private final long startTime;
+        private final long endTime;
+        private Iterator<Document> daysOfMonth = Collections.emptyIterator();
+
+        /**
+         * @param user: the id of the user
+         * @param startTime: the start of the interval (date in UTC)
+         * @param endTime: the end of the interval (date in UTC)
+         */
+        DayIterator(String user, long startTime, long endTime) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.userMonths = userMonthsColl.aggregate(Arrays.asList(
+                    match(
+                            and(
+                                    eq("user", user),
+                                    gte("monthStart", Resolution.MONTH.periodStart(startTime)),
+                                    lt("monthStart", endTime)
+                            )
+                    ),
+                    sort(Sorts.ascending("monthStart")),
+
+                    // we want the sums of all users for the same month
+                    lookup(
+                            "days_months", "monthStart", "_id", "sums"
+                    )
+            )).iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!daysOfMonth.hasNext() && userMonths.hasNext()) {
+                daysOfMonth = toDays(userMonths.next()).iterator();
+            }
+            return daysOfMonth.hasNext();
+        }
+
+        @Override
+        public Document next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return daysOfMonth.next();
+        }
+
+        /**
+         * @param userMonth: the bucket of the user joined with the bucket of all users (field sums)
+         * @return the documents of the stored days of the month within the range of startTime and endTime
+         */
+        private List<Document> toDays(Document userMonth) {
+            List<?> steps = (List<?>) userMonth.get("steps");
+            List<?> activities = (List<?>) userMonth.get("activities");
+            List<?> sums = (List<?>) userMonth.get("sums");
+            Document daysMonth = sums.isEmpty() ? null : (Document) sums.get(0);
+
+            List<Document> days = new ArrayList<>();
+            for (int index = 0; index < steps.size(); index++) {
+                long date = dateOf(userMonth, index);
+                if (steps.get(index) == null || date < startTime || date + DataRequest.DAY_IN_MILLIS > endTime) {
+                    continue;
+                }
+
+                Document day = new Document("startDateInUTC", date).append("steps", steps.get(index));
+                if (activities.get(index) != null) {
+                    day.append("activities", activities.get(index));
+                }
+                double[] sumsOfDay = daysMonth == null ? null : new double[]{
+                        ((Number) ((List<?>) daysMonth.get("sum0")).get(index)).doubleValue(),
+                        ((Number) ((List<?>) daysMonth.get("sum1")).get(index)).doubleValue(),
+                        ((Number) ((List<?>) daysMonth.get("sum2")).get(index)).doubleValue()};
+                PeriodSums.appendMeanAndStdErrorOfMean(day, sumsOfDay);
+                List<?> sketches = daysMonth == null ? null : (List<?>) daysMonth.get("stepsSketch");
+                StepsSketch.appendQuartiles(day,
+                        sketches == null ? null : StepsSketch.of((Document) sketches.get(index)));
+                days.add(day);
+            }
+            return days;
+        }
+
+        @Override
+        public void close() {
+            userMonths.close();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.vaadin.model;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * An iterator holding resources of the database (e.g. a cursor or a connection) while iterating, see
+ * FitDataStore.iterateDays; it has to be closed, e.g. by a try-with-resources statement
+ * @param <T>: the type of the elements
+ */
+public interface CloseableIterator<T> extends Iterator<T>, Closeable {
+
+    /**
+     * releases the resources; might be called more than once
+     */
+    @Override
+    void close();
+
+    /**
+     * @param iterator: the iterator, e.g. a MongoCursor
+     * @param onClose: releases the resources of the iterator, e.g. MongoCursor.close
+     * @param <T>: the type of the elements
+     * @return the iterator, closed by onClose
+     */
+    static <T> CloseableIterator<T> of(Iterator<T> iterator, Runnable onClose) {
+        return new CloseableIterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public T next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+                onClose.run();
+            }
+        };
+    }
+}
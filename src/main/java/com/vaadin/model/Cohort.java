@@ -0,0 +1,91 @@
+package com.vaadin.model;
+
+import org.bson.Document;
+
+import java.time.LocalDate;
+import java.time.Period;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * The cohort of a user by country, gender and age band, e.g. "GB:female:30-49", derived from the user data provided
+ * from google (see FitDataStore.storeUser): the country is the region of the locale (e.g. en-GB), the gender is
+ * male or female and the age bands are the ones of data_generation/data (0-29, 30-49 and 50+). Missing values are
+ * "unknown", e.g. for a locale without region ("de") or without the birthday of the user; the cohort of a user without
+ * any of them is "unknown:unknown:unknown".
+ */
+final class Cohort {
+
+    private static final String UNKNOWN = "unknown";
+
+    private Cohort() {
+    }
+
+    /**
+     * @param userDoc: the user data provided from google; null if the user is not stored
+     * @return the key of the cohort of the user
+     */
+    static String of(Document userDoc) {
+        if (userDoc == null) {
+            return keyOf(UNKNOWN, UNKNOWN, UNKNOWN);
+        }
+        return keyOf(countryOf(userDoc.getString("locale")), genderOf(userDoc.getString("gender")),
+                ageBandOf(userDoc.getString("birthday"), LocalDate.now(ZoneOffset.UTC)));
+    }
+
+    /**
+     * @param country: the country code
+     * @param gender: the gender
+     * @param ageBand: the age band
+     * @return the key of the cohort, e.g. "GB:female:30-49"
+     */
+    static String keyOf(String country, String gender, String ageBand) {
+        return country + ":" + gender + ":" + ageBand;
+    }
+
+    /**
+     * @param locale: the locale of the user, e.g. "en-GB"; might be null
+     * @return the upper case country code of the locale, e.g. "GB"
+     */
+    static String countryOf(String locale) {
+        if (locale == null) {
+            return UNKNOWN;
+        }
+        String country = Locale.forLanguageTag(locale.replace('_', '-')).getCountry();
+        return country.isEmpty() ? UNKNOWN : country;
+    }
+
+    /**
+     * @param gender: the gender of the user; might be null
+     * @return male or female
+     */
+    static String genderOf(String gender) {
+        return "male".equals(gender) || "female".equals(gender) ? gender : UNKNOWN;
+    }
+
+    /**
+     * @param birthday: the birthday of the user (yyyy-MM-dd); google sends the year 0000 if it is hidden
+     * @param today: the current date
+     * @return 0-29, 30-49 or 50+
+     */
+    static String ageBandOf(String birthday, LocalDate today) {
+        if (birthday == null || birthday.startsWith("0000")) {
+            return UNKNOWN;
+        }
+        int age;
+        try {
+            age = Period.between(LocalDate.parse(birthday), today).getYears();
+        } catch (DateTimeParseException e) {
+            return UNKNOWN;
+        }
+        if (age < 0) {
+            return UNKNOWN;
+        } else if (age < 30) {
+            return "0-29";
+        } else if (age < 50) {
+            return "30-49";
+        }
+        return "50+";
+    }
+}
@@ -0,0 +1,96 @@
+package com.vaadin.model;
+
+import org.bson.Document;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sums up the days of a cohort (see Cohort) by day, week or month and adds the statistics of the cohort to the
+ * documents of the user returned by FitDataStore.extractDays: the mean (cohortAverageSteps), the std error of mean
+ * (cohortStdErrorOfMean) and the median (cohortMedianSteps) of the steps of the users of the cohort. The days of a
+ * cohort hold the same sums and sketch as the days of all users (see PeriodSums), so a period is summed up from one
+ * entry per day no matter how many users the cohort has.
+ *
+ * The statistics of a cohort with fewer users than trackfit.cohort.minUsers (default: 10) are left out, as they would
+ * reveal the steps of the few other users of a small cohort (e.g. the only other woman of 50+ in a country). For weeks
+ * and months the number of users is the largest number of users on a single day of the period, since sum0 of a period
+ * counts a user once per day.
+ */
+final class CohortStats {
+
+    /* the smallest number of users whose statistics are shown */
+    private static final int MIN_USERS = Integer.getInteger("trackfit.cohort.minUsers", 10);
+
+    private final Resolution resolution;                                      // the resolution of the periods
+    private final Map<Long, double[]> sumsByPeriod = new HashMap<>();         // sum0, sum1 and sum2 of the cohort
+    private final Map<Long, Double> usersByPeriod = new HashMap<>();          // the most users on a day of the period
+    private final Map<Long, StepsSketch> sketchesByPeriod = new HashMap<>();  // the merged sketches of the cohort
+
+    /**
+     * @param resolution: the resolution of the periods
+     */
+    CohortStats(Resolution resolution) {
+        this.resolution = resolution;
+    }
+
+    /**
+     * adds the sums of the cohort of a day to its period
+     * @param date: the date of the day in UTC
+     * @param sum0: the number of users of the cohort
+     * @param sum1: the sum of the steps
+     * @param sum2: the sum of the squared steps
+     */
+    void addDay(long date, double sum0, double sum1, double sum2) {
+        long periodStart = resolution.periodStart(date);
+        double[] sums = sumsByPeriod.computeIfAbsent(periodStart, key -> new double[3]);
+        sums[0] += sum0;
+        sums[1] += sum1;
+        sums[2] += sum2;
+        usersByPeriod.merge(periodStart, sum0, Math::max);
+    }
+
+    /**
+     * @param date: the date of a day in UTC
+     * @return the sketch of the period of the day; the sketch of the cohort of the day has to be merged into it
+     */
+    StepsSketch sketchOf(long date) {
+        return sketchesByPeriod.computeIfAbsent(resolution.periodStart(date), key -> new StepsSketch());
+    }
+
+    /**
+     * adds the statistics of the cohort to the documents; periods without any day of the cohort or with fewer than
+     * MIN_USERS users of the cohort get no average and no median
+     * @param documents: the documents of the days or periods of the user (field startDateInUTC)
+     */
+    void appendTo(List<Document> documents) {
+        for (Document document : documents) {
+            long periodStart = resolution.periodStart(((Number) document.get("startDateInUTC")).longValue());
+            boolean isLargeEnough = usersByPeriod.getOrDefault(periodStart, 0.0) >= MIN_USERS;
+            double[] sums = isLargeEnough ? sumsByPeriod.get(periodStart) : null;
+            StepsSketch sketch = isLargeEnough ? sketchesByPeriod.get(periodStart) : null;
+            document.append("cohortAverageSteps", PeriodSums.meanOf(sums))
+                    .append("cohortStdErrorOfMean", PeriodSums.stdErrorOfMeanOf(sums))
+                    .append("cohortMedianSteps", sketch == null ? null : sketch.getQuantile(0.5));
+        }
+    }
+
+    /**
+     * @param documents: the documents of the days or periods of the user sorted by date
+     * @return the start of the first day or period (date in UTC); null if there are no documents
+     */
+    static Long firstDateOf(List<Document> documents) {
+        return documents.isEmpty() ? null : ((Number) documents.get(0).get("startDateInUTC")).longValue();
+    }
+
+    /**
+     * @param documents: the documents of the days or periods of the user sorted by date
+     * @param resolution: the resolution of the documents
+     * @return the end of the last day or period (date in UTC, exclusive); null if there are no documents
+     */
+    static Long endDateOf(List<Document> documents, Resolution resolution) {
+        return documents.isEmpty() ? null : resolution.periodEnd(
+                ((Number) documents.get(documents.size() - 1).get("startDateInUTC")).longValue());
+    }
+}
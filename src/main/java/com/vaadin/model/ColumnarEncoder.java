@@ -0,0 +1,115 @@
+package com.vaadin.model;
+
+import com.mongodb.util.JSON;
+import org.bson.Document;
+
+import java.util.*;
+
+/**
+ * Converts the documents returned by the queries of DbConnector to the compact, column oriented json format sent to
+ * the charts (see GraphSelector.js), e.g.
+ *      {"startDateInUTC": 1510185600000, "dateDeltas": [86400000, 86400000], "steps": [489, 6023, 7311],
+ *       "averageSteps": [2597.7, 3120.4, 4002.1], "stdErrorOfMean": [1008.1, 880.3, 912.0],
+ *       "lowerQuartileSteps": [1210.0, 1530.0, 2106.0], "medianSteps": [2410.0, 2890.0, 3650.0],
+ *       "upperQuartileSteps": [3814.0, 4450.0, 5310.0], "cohortAverageSteps": [3120.5, 3377.2, 4810.0],
+ *       "activities": {"walking": [2153308, null, 1803311], "still": [23249677, 20133420, 19102337]}}
+ * The documents are sorted by date; the first date is sent as is, the following ones as the difference to the
+ * previous date. Missing activities are sent as null. The key names are sent only once instead of once per day, and
+ * the averages are rounded to one decimal.
+ */
+public final class ColumnarEncoder {
+
+    private ColumnarEncoder() {
+    }
+
+    /**
+     * @param documents: the documents holding the date, the steps, the average steps, the std error of mean, the
+     *                 quartiles of the steps of all users, the average steps of the cohort of the user and the
+     *                 activities of a day (or of a week or month), in any order
+     * @return the json formatted string holding the columns
+     */
+    public static String toColumnarJson(List<Document> documents) {
+
+        List<Document> sorted = new ArrayList<>(documents);
+        sorted.sort(Comparator.comparingLong(document -> getLong(document, "startDateInUTC")));
+
+        List<Long> dateDeltas = new ArrayList<>(sorted.size());
+        List<Number> steps = new ArrayList<>(sorted.size());
+        List<Number> averageSteps = new ArrayList<>(sorted.size());
+        List<Number> stdErrorOfMean = new ArrayList<>(sorted.size());
+        List<Number> lowerQuartileSteps = new ArrayList<>(sorted.size());
+        List<Number> medianSteps = new ArrayList<>(sorted.size());
+        List<Number> upperQuartileSteps = new ArrayList<>(sorted.size());
+        List<Number> cohortAverageSteps = new ArrayList<>(sorted.size());
+
+        // the activities appearing on any of the days
+        Set<String> activityNames = new TreeSet<>();
+        for (Document document : sorted) {
+            Document activities = (Document) document.get("activities");
+            if (activities != null) {
+                activityNames.addAll(activities.keySet());
+            }
+        }
+        Map<String, List<Number>> activityColumns = new LinkedHashMap<>();
+        for (String activityName : activityNames) {
+            activityColumns.put(activityName, new ArrayList<>(sorted.size()));
+        }
+
+        long previousDate = sorted.isEmpty() ? 0 : getLong(sorted.get(0), "startDateInUTC");
+        for (int i = 0; i < sorted.size(); i++) {
+            Document document = sorted.get(i);
+
+            long date = getLong(document, "startDateInUTC");
+            if (i > 0) {
+                dateDeltas.add(date - previousDate);
+            }
+            previousDate = date;
+
+            steps.add(round((Number) document.get("steps")));
+            averageSteps.add(round((Number) document.get("averageSteps")));
+            stdErrorOfMean.add(round((Number) document.get("stdErrorOfMean")));
+            lowerQuartileSteps.add(round((Number) document.get("lowerQuartileSteps")));
+            medianSteps.add(round((Number) document.get("medianSteps")));
+            upperQuartileSteps.add(round((Number) document.get("upperQuartileSteps")));
+            cohortAverageSteps.add(round((Number) document.get("cohortAverageSteps")));
+
+            Document activities = (Document) document.get("activities");
+            activityColumns.forEach((activityName, column) ->
+                    column.add(activities == null ? null : (Number) activities.get(activityName)));
+        }
+
+        Document columns = new Document("startDateInUTC", sorted.isEmpty() ? null :
+                getLong(sorted.get(0), "startDateInUTC"))
+                .append("dateDeltas", dateDeltas)
+                .append("steps", steps)
+                .append("averageSteps", averageSteps)
+                .append("stdErrorOfMean", stdErrorOfMean)
+                .append("lowerQuartileSteps", lowerQuartileSteps)
+                .append("medianSteps", medianSteps)
+                .append("upperQuartileSteps", upperQuartileSteps)
+                .append("cohortAverageSteps", cohortAverageSteps)
+                .append("activities", new Document(new LinkedHashMap<>(activityColumns)));
+        return JSON.serialize(columns);
+    }
+
+    /**
+     * @param document: the document holding the field
+     * @param field: name of the (numeric) field
+     * @return the value of the field as long
+     */
+    private static long getLong(Document document, String field) {
+        return ((Number) document.get(field)).longValue();
+    }
+
+    /**
+     * rounds doubles to one decimal; integers are returned as they are
+     * @param value: the value to round (may be null)
+     * @return the rounded value
+     */
+    private static Number round(Number value) {
+        if (value instanceof Double || value instanceof Float) {
+            return Math.round(value.doubleValue() * 10) / 10.0;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,30 @@
+package com.vaadin.model;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts events, e.g. the stored days; see Metrics
+ */
+public final class Counter implements CounterMXBean {
+
+    private final LongAdder count = new LongAdder();
+
+    Counter() {
+    }
+
+    public void increment() {
+        count.increment();
+    }
+
+    /**
+     * @param amount: the number of events
+     */
+    public void add(long amount) {
+        count.add(amount);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+}
@@ -0,0 +1,9 @@
+package com.vaadin.model;
+
+/**
+ * The value of a Counter as shown by JMX (e.g. in jconsole)
+ */
+public interface CounterMXBean {
+
+    long getCount();
+}
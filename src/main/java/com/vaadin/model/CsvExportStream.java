@@ -0,0 +1,144 @@
+package com.vaadin.model;
+
+import org.bson.Document;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Streams the documents of FitDataStore.iterateDays as csv: a row is only converted when the reader (e.g. the
+ * response of the download) asks for more bytes, so the memory needed does not depend on the number of rows. The
+ * columns are: date (dd-MM-yyyy in UTC), steps, averageSteps, stdErrorOfMean and the duration of each activity in
+ * milliseconds, e.g.
+ *      date,steps,averageSteps,stdErrorOfMean,in_vehicle[ms],sleeping[ms],still[ms],walking[ms]
+ *      09-11-2017,489,2597.659574468085,1008.1493738529028,1745901,23000271,23249677,2153308
+ */
+public class CsvExportStream extends InputStream {
+
+    /* the format of the dates */
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd-MM-yyyy")
+            .withZone(ZoneOffset.UTC);
+
+    /* duration of the exports (from opening to closing the stream) and number of exported rows (see Metrics) */
+    private static final Timer EXPORT_TIMER = Metrics.timer("export.csv");
+    private static final Counter EXPORTED_ROWS = Metrics.counter("export.csvRows");
+
+    private final CloseableIterator<Document> rows; // the documents to export, sorted by date
+    private final List<String> activityNames;       // the activities to export, one column each
+
+    private byte[] buffer;      // the current row (or the header) as bytes
+    private int position;       // position of the next byte to read within buffer
+
+    private final long startNanos = System.nanoTime();     // when the export started
+    private boolean closed = false;
+
+    /**
+     * @param rows: the documents to export, sorted by date; closed together with the stream
+     * @param activityNames: the activities to export, one column each
+     */
+    public CsvExportStream(CloseableIterator<Document> rows, Collection<String> activityNames) {
+        this.rows = rows;
+        this.activityNames = new ArrayList<>(activityNames);
+        this.buffer = toBytes(header());
+        this.position = 0;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fillBuffer()) {
+            return -1;
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!fillBuffer()) {
+            return -1;
+        }
+        int count = Math.min(length, buffer.length - position);
+        System.arraycopy(buffer, position, bytes, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            EXPORT_TIMER.recordSince(startNanos);
+        }
+        rows.close();
+    }
+
+    /**
+     * converts the next row if the current one has been read completely
+     * @return false if all rows have been read
+     */
+    private boolean fillBuffer() {
+        while (position >= buffer.length) {
+            if (!rows.hasNext()) {
+                return false;
+            }
+            buffer = toBytes(row(rows.next()));
+            position = 0;
+            EXPORTED_ROWS.increment();
+        }
+        return true;
+    }
+
+    /**
+     * @return the header of the csv
+     */
+    private String header() {
+        StringBuilder header = new StringBuilder("date,steps,averageSteps,stdErrorOfMean");
+        for (String activityName : activityNames) {
+            header.append(',').append(activityName).append("[ms]");
+        }
+        return header.append('\n').toString();
+    }
+
+    /**
+     * @param document: the document of a single day
+     * @return the row of the csv for the day
+     */
+    private String row(Document document) {
+        StringBuilder row = new StringBuilder(128);
+        row.append(DATE_FORMAT.format(Instant.ofEpochMilli(((Number) document.get("startDateInUTC")).longValue())));
+        appendValue(row, document.get("steps"));
+        appendValue(row, document.get("averageSteps"));
+        appendValue(row, document.get("stdErrorOfMean"));
+
+        Document activities = (Document) document.get("activities");
+        for (String activityName : activityNames) {
+            appendValue(row, activities == null ? null : activities.get(activityName));
+        }
+        return row.append('\n').toString();
+    }
+
+    /**
+     * appends a column to the row; missing values are left empty
+     * @param row: the row so far
+     * @param value: the value of the column
+     */
+    private static void appendValue(StringBuilder row, Object value) {
+        row.append(',');
+        if (value != null) {
+            row.append(value);
+        }
+    }
+
+    private static byte[] toBytes(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -1,42 +1,122 @@
 package com.vaadin.model;
 
 import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.services.fitness.Fitness;
 import com.google.api.services.fitness.model.*;
 import com.vaadin.server.VaadinSession;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Requests the data from Google Fit
+ * Requests the data from Google Fit. The activities are only requested if the user has the data source of the merged
+ * activity segments (see DataSources); otherwise google fit answers with an error naming the data source, and the
+ * request is repeated without the activities. Requests answered with 429 (too many requests), 403 with the reason
+ * rateLimitExceeded or userRateLimitExceeded, or 5xx are repeated up to trackfit.fit.maxAttempts times (default: 4)
+ * with an exponential backoff starting at trackfit.fit.initialBackoffMillis (default: 1000), or after the time given by
+ * google (Retry-After). After a rate limit error, no session sends a request until that time has passed.
  */
 public class DataRequest extends AuthRequest{
 
+    /* one day in milliseconds; the google fit data is aggregated by days */
+    public static final long DAY_IN_MILLIS = 86400000L;
+
+    /* duration of the requests for the days missing in the database (see Metrics) */
+    private static final Timer DAYS_REQUEST_TIMER = Metrics.timer("fit.requestDays");
+
+    /* number of requests repeated without the activities, discoveries of the data sources of a user, requests
+     * repeated after rate limit errors or 5xx and requests answered with rate limit errors */
+    private static final Counter REQUESTS_WITHOUT_ACTIVITY = Metrics.counter("fit.requestsWithoutActivity");
+    private static final Counter DATA_SOURCE_DISCOVERIES = Metrics.counter("fit.dataSourceDiscoveries");
+    private static final Counter RETRIED_REQUESTS = Metrics.counter("fit.retriedRequests");
+    private static final Counter THROTTLED_REQUESTS = Metrics.counter("fit.throttledRequests");
+
+    /* the data source of the merged activity segments, which not every user has */
+    static final String ACTIVITY_SEGMENT_SOURCE =
+            "derived:com.google.activity.segment:com.google.android.gms:merge_activity_segments";
+
+    /* the attempts of a request answered with a rate limit error or 5xx and the backoff between them, doubled for
+     * every attempt */
+    private static final int MAX_ATTEMPTS = Integer.getInteger("trackfit.fit.maxAttempts", 4);
+    private static final long INITIAL_BACKOFF_MILLIS = Long.getLong("trackfit.fit.initialBackoffMillis", 1000L);
+    private static final long MAX_BACKOFF_MILLIS = 32000;
+
+    /* no request is sent before this time (System.currentTimeMillis) after google answered with a rate limit error;
+     * shared by all sessions, as the quota belongs to the project */
+    private static final AtomicLong THROTTLED_UNTIL = new AtomicLong();
+
+    /* Google Fit client for the current user; shared by all requests of this session */
+    private final Fitness fit;
+
+    private final String user;                  // the google account id of the user
+    private Boolean hasActivitySegments;        // whether the user has the activity segments; null until known
+
     /* Google User ID for the current user*/
     public DataRequest() {
-        myCredential = (Credential) VaadinSession.getCurrent().getAttribute("sessionCredential");
+        this((Credential) VaadinSession.getCurrent().getAttribute("sessionCredential"),
+                (String) VaadinSession.getCurrent().getAttribute("userID"));
     }
 
     /**
-     * returns the google fit data of the last year aggregated by each day
-     * @param monthsAgo: integer noting from which month within a year we want to have the data; e.g. 3 if we want to
-     *                 receive the data for one month 3 months ago
-     * @return string with the google fit data from the month, which is monthsAgo months ago :)
+     * requests the data with the credential of the user instead of the one of the vaadin session, e.g. when there is
+     * no session
+     * @param credential: the credential of the user (see AuthRequest.loadCredential)
+     * @param user: the google account id of the user, whose data sources are remembered (see DataSources)
      */
-    public String getFitData(int monthsAgo) throws IOException {
-
-        Fitness fit = new Fitness.Builder(HTTP_TRANSPORT, JSON_FACTORY, myCredential)
+    DataRequest(Credential credential, String user) {
+        super(credential);
+        this.user = user;
+        fit = new Fitness.Builder(HTTP_TRANSPORT, JSON_FACTORY, myCredential)
+                .setRootUrl(FIT_ROOT_URL)
                 .setApplicationName("TrackFit").build();
+    }
 
-        // create the aggregate request object with the start and end date set
-        AggregateRequest aggRequest = setupTimeForAggregateRequest(monthsAgo);
+    /**
+     * returns the google fit data between startTime and endTime aggregated by each day; the number of buckets (days)
+     * of the response depends on the length of the time interval, which google fit limits (see FitRequestPlanner)
+     * @param startTime: the start of the interval (date in UTC)
+     * @param endTime: the end of the interval (date in UTC)
+     * @return the days of the google fit data from the time interval
+     */
+    public List<FitDay> getFitDays(long startTime, long endTime) throws IOException {
+
+        // create the request
+        AggregateRequest aggRequest = new AggregateRequest();
+
+        // set start- and end time for the request
+        aggRequest.setStartTimeMillis(startTime);
+        aggRequest.setEndTimeMillis(endTime);
+
+        long start = System.nanoTime();
+        try {
+            return getFitDays(aggRequest);
+        } finally {
+            DAYS_REQUEST_TIMER.recordSince(start);
+        }
+    }
+
+    /**
+     * requests the steps and, if the user has them, the activity data for the time interval of the aggregate request.
+     * The response is parsed while it is read from the connection (see FitResponseParser), so it is never held in
+     * memory as a whole.
+     * @param aggRequest: AggregateRequest with StartTimeMillis and EndTimeMillis set
+     * @return the days of the google fit data
+     */
+    private List<FitDay> getFitDays(AggregateRequest aggRequest) throws IOException {
 
         // we want data to be aggregated by each day
         BucketByTime bucketByTime = new BucketByTime();
-        bucketByTime.setDurationMillis(86400000L); // 24h
+        bucketByTime.setDurationMillis(DAY_IN_MILLIS); // 24h
         aggRequest.setBucketByTime(bucketByTime);
 
         // specify the data type we want to request (see https://developers.google.com/fit/rest/v1/data-types)
@@ -45,48 +125,204 @@ public class DataRequest extends AuthRequest{
 
         // Continuous time interval of a single activity.
         AggregateBy aggregateByActivityData = new AggregateBy();
-        aggregateByActivityData.setDataSourceId("derived:com.google.activity.segment:com.google.android.gms:" +
-                "merge_activity_segments");
+        aggregateByActivityData.setDataSourceId(ACTIVITY_SEGMENT_SOURCE);
         aggregateByActivityData.setDataTypeName("com.google.activity.segment");
 
-        // add the aggregateBy to the list
-        ArrayList<AggregateBy> listOfAggregatesWithActivity = new ArrayList<>();
-        listOfAggregatesWithActivity.add(aggregateByStepsCount);
-        listOfAggregatesWithActivity.add(aggregateByActivityData);
+        // create the list of aggregate bys without the activity aggregateBy
+        ArrayList<AggregateBy> listOfAggregatesWithoutActivity = new ArrayList<>();
+        listOfAggregatesWithoutActivity.add(aggregateByStepsCount);
 
-        // set the list of aggregateBys for the request
-        aggRequest.setAggregateBy(listOfAggregatesWithActivity);
+        // only ask for the activities if the user has them
+        boolean withActivity = hasActivitySegments();
+        if (withActivity) {
+            ArrayList<AggregateBy> listOfAggregatesWithActivity = new ArrayList<>(listOfAggregatesWithoutActivity);
+            listOfAggregatesWithActivity.add(aggregateByActivityData);
+            aggRequest.setAggregateBy(listOfAggregatesWithActivity);
+        } else {
+            aggRequest.setAggregateBy(listOfAggregatesWithoutActivity);
+        }
 
-        AggregateResponse aggResponse;
+        HttpResponse aggResponse;
 
         try {
             // get the response for the request
-            aggResponse = fit.users().dataset()
-                    .aggregate("me", aggRequest).execute();
+            aggResponse = executeWithRetries(() -> fit.users().dataset()
+                    .aggregate("me", aggRequest).executeUnparsed());
 
-        // there is no activity data
-        } catch (com.google.api.client.googleapis.json.GoogleJsonResponseException e) {
+        // the activity data source has been removed since it was discovered
+        } catch (GoogleJsonResponseException e) {
+            if (!withActivity || !isMissingActivitySegments(e)) {
+                throw e;
+            }
 
-            // create a new list of aggregate bys without the activity aggregateBy
-            ArrayList<AggregateBy> listOfAggregatesWithoutActivity = new ArrayList<>();
-            listOfAggregatesWithoutActivity.add(aggregateByStepsCount);
-            aggRequest.setAggregateBy(listOfAggregatesWithoutActivity);
+            REQUESTS_WITHOUT_ACTIVITY.increment();
+            rememberActivitySegments(false);
 
             // get the response for the new request
-            aggResponse = fit.users().dataset()
-                    .aggregate("me", aggRequest).execute();
+            aggRequest.setAggregateBy(listOfAggregatesWithoutActivity);
+            aggResponse = executeWithRetries(() -> fit.users().dataset()
+                    .aggregate("me", aggRequest).executeUnparsed());
+        }
+
+        try {
+            return FitResponseParser.parse(aggResponse.getContent());
+        } finally {
+            aggResponse.disconnect();
+        }
+    }
+
+    /**
+     * returns whether the user has the merged activity segments; they are discovered once with a request for the data
+     * source, if they are not known yet (see DataSources). Synchronized, so the concurrent monthly requests of the
+     * first login wait for a single discovery.
+     * @return whether the activities can be requested
+     */
+    private synchronized boolean hasActivitySegments() throws IOException {
+        if (hasActivitySegments == null) {
+            hasActivitySegments = user == null ? null : DataSources.hasActivitySegments(user);
+        }
+        if (hasActivitySegments == null) {
+            DATA_SOURCE_DISCOVERIES.increment();
+            boolean found;
+            try {
+                executeWithRetries(() -> fit.users().dataSources().get("me", ACTIVITY_SEGMENT_SOURCE).execute());
+                found = true;
+            } catch (GoogleJsonResponseException e) {
+                // google fit answers with 404 (not found) or 403 (no access) for data sources of other devices; a 403
+                // of the rate limit says nothing about the data source
+                if (e.getStatusCode() != 404 && (e.getStatusCode() != 403 || isThrottled(e))) {
+                    throw e;
+                }
+                found = false;
+            }
+            rememberActivitySegments(found);
         }
+        return hasActivitySegments;
+    }
 
-        return aggResponse.toString();
+    /**
+     * @param found: whether the user has the merged activity segments
+     */
+    private synchronized void rememberActivitySegments(boolean found) {
+        hasActivitySegments = found;
+        if (user != null) {
+            DataSources.storeActivitySegments(user, found);
+        }
     }
 
     /**
-     * sets the start time millis and the end time millis for the aggregate request according to monthsAgo
-     * @param monthsAgo: integer noting from which month within a year we want to have the data; e.g. 3 if we want to
-     *                 receive the data for one month 3 months ago
-     * @return AggregateRequest with StartTimeMillis and EndTimeMillis set
+     * @param e: the error response of an aggregate request asking for the activities
+     * @return whether google fit does not know the data source of the activity segments (400 or 404 naming it), i.e.
+     * the request succeeds without the activities; not for other errors, e.g. an expired credential
      */
-    private AggregateRequest setupTimeForAggregateRequest(int monthsAgo) {
+    private static boolean isMissingActivitySegments(GoogleJsonResponseException e) {
+        return (e.getStatusCode() == 400 || e.getStatusCode() == 404) && e.getDetails() != null
+                && e.getDetails().getMessage() != null
+                && e.getDetails().getMessage().contains(ACTIVITY_SEGMENT_SOURCE);
+    }
+
+    /**
+     * sends the request and repeats it if google answers with a rate limit error or 5xx, waiting the time given by
+     * google or an exponential backoff with jitter
+     * @param request: sends the request
+     * @return the response of the request
+     * @throws HttpResponseException: the last error response, if all attempts failed or the error is not temporary
+     */
+    private static <T> T executeWithRetries(FitCall<T> request) throws IOException {
+        long backoffMillis = INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            sleep(THROTTLED_UNTIL.get() - System.currentTimeMillis());
+            try {
+                return request.execute();
+            } catch (HttpResponseException e) {
+                boolean throttled = isThrottled(e);
+                if (!(throttled || e.getStatusCode() >= 500) || attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+
+                // the full backoff at most, but at least half of it, so the repeated requests do not meet again
+                long delayMillis = backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+                Long retryAfterMillis = getRetryAfterMillis(e);
+                if (retryAfterMillis != null) {
+                    delayMillis = retryAfterMillis;
+                }
+                if (throttled) {
+                    THROTTLED_REQUESTS.increment();
+                    THROTTLED_UNTIL.accumulateAndGet(System.currentTimeMillis() + delayMillis, Math::max);
+                }
+                RETRIED_REQUESTS.increment();
+                sleep(delayMillis);
+                backoffMillis = Math.min(2 * backoffMillis, MAX_BACKOFF_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * @param e: the error response
+     * @return whether the quota of the project or of the user is used up for the moment, i.e. 429 (too many requests)
+     * or 403 with the reason rateLimitExceeded or userRateLimitExceeded; not for other 403, e.g. a missing permission
+     */
+    private static boolean isThrottled(HttpResponseException e) {
+        if (e.getStatusCode() == 429) {
+            return true;
+        }
+        if (e.getStatusCode() != 403 || !(e instanceof GoogleJsonResponseException)
+                || ((GoogleJsonResponseException) e).getDetails() == null
+                || ((GoogleJsonResponseException) e).getDetails().getErrors() == null) {
+            return false;
+        }
+        for (GoogleJsonError.ErrorInfo error : ((GoogleJsonResponseException) e).getDetails().getErrors()) {
+            if ("rateLimitExceeded".equals(error.getReason()) || "userRateLimitExceeded".equals(error.getReason())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param e: the error response
+     * @return the time to wait as given by the Retry-After header in seconds; null if there is none or it is a date
+     */
+    private static Long getRetryAfterMillis(HttpResponseException e) {
+        String retryAfter = e.getHeaders() == null ? null : e.getHeaders().getRetryAfter();
+        if (retryAfter == null) {
+            return null;
+        }
+        try {
+            return Math.min(Long.parseLong(retryAfter.trim()) * 1000, MAX_BACKOFF_MILLIS);
+        } catch (NumberFormatException notSeconds) {
+            return null;
+        }
+    }
+
+    /**
+     * @param millis: the time to wait; nothing to do if not positive
+     */
+    private static void sleep(long millis) throws InterruptedIOException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to repeat the request to google fit");
+        }
+    }
+
+    /**
+     * a request to google fit, which may be repeated
+     * @param <T>: the type of the response
+     */
+    private interface FitCall<T> {
+        T execute() throws IOException;
+    }
+
+    /**
+     * returns a calendar instance with Coordinated Universal Time set to the start of the current day
+     * @return Calendar set to today, 00:00:00.000 UTC
+     */
+    static Calendar getStartOfToday() {
 
         // get a calendar instance with Coordinated Universal Time
         Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
@@ -96,25 +332,6 @@ public class DataRequest extends AuthRequest{
         cal.set(Calendar.MINUTE, 0);
         cal.set(Calendar.SECOND, 0);
         cal.set(Calendar.MILLISECOND, 0);
-
-        // go monthsAgo back
-        cal.add(Calendar.MONTH, -monthsAgo);
-
-        // get the end time of the time interval
-        long endTime = cal.getTimeInMillis();
-
-        // get the month before the end date
-        cal.add(Calendar.MONTH, -1);
-
-        // get the start time of the time interval
-        long startTime = cal.getTimeInMillis();
-
-        // create the request
-        AggregateRequest aggRequest = new AggregateRequest();
-
-        // set start- and end time for the request
-        aggRequest.setStartTimeMillis(startTime);
-        aggRequest.setEndTimeMillis(endTime);
-        return aggRequest;
+        return cal;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,72 @@
+package com.vaadin.model;
+
+import org.bson.Document;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which data sources the users have at google fit, so that the aggregate requests only ask for data the user
+ * has (see DataRequest). Users without the merged activity segments (e.g. without an android phone) get an error for
+ * every request asking for them. The data sources of a user are discovered once and stored (see
+ * FitDataStore.storeDataSources), so they survive a restart and are shared by all nodes; the latest
+ * trackfit.fit.dataSourcesCacheSize users (default: 10000) are held in memory as well. Since a user can add a device
+ * later, the data sources expire after trackfit.fit.dataSourcesTtlHours hours (default: 168) and are discovered again.
+ */
+final class DataSources {
+
+    private static final int MAXIMUM_SIZE = Integer.getInteger("trackfit.fit.dataSourcesCacheSize", 10000);
+    private static final long TIME_TO_LIVE_MILLIS = Long.getLong("trackfit.fit.dataSourcesTtlHours", 168L) * 3600000;
+
+    /* the data sources of the users as stored, in access order */
+    private static final Map<String, Document> CACHE = new LinkedHashMap<String, Document>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Document> eldest) {
+            return size() > MAXIMUM_SIZE;
+        }
+    };
+
+    private DataSources() {
+    }
+
+    /**
+     * @param user: the google account id of the user
+     * @return whether the user has the merged activity segments; null if unknown or expired, i.e. the data sources of
+     * the user need to be discovered
+     */
+    static Boolean hasActivitySegments(String user) {
+        Document dataSources;
+        synchronized (CACHE) {
+            dataSources = CACHE.get(user);
+        }
+        if (dataSources == null) {
+            dataSources = FitDataStores.get().extractDataSources(user);
+            if (dataSources == null) {
+                return null;
+            }
+            synchronized (CACHE) {
+                CACHE.put(user, dataSources);
+            }
+        }
+
+        long checkedAt = ((Number) dataSources.get("checkedAtMillis")).longValue();
+        if (System.currentTimeMillis() - checkedAt > TIME_TO_LIVE_MILLIS) {
+            return null;
+        }
+        return dataSources.getBoolean("hasActivitySegments");
+    }
+
+    /**
+     * stores the discovered data sources of the user
+     * @param user: the google account id of the user
+     * @param hasActivitySegments: whether the user has the merged activity segments
+     */
+    static void storeActivitySegments(String user, boolean hasActivitySegments) {
+        Document dataSources = new Document("hasActivitySegments", hasActivitySegments)
+                .append("checkedAtMillis", System.currentTimeMillis());
+        FitDataStores.get().storeDataSources(user, dataSources);
+        synchronized (CACHE) {
+            CACHE.put(user, dataSources);
+        }
+    }
+}
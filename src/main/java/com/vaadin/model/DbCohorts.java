@@ -0,0 +1,154 @@
+package com.vaadin.model;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.*;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.*;
+
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.*;
+import static com.mongodb.client.model.Updates.*;
+
+/**
+ * Maintains and queries the days of the cohorts (see Cohort) for both MongoDB stores, so that a user can be compared
+ * with the users of the same country, gender and age band without reading their data. The collection cohort_days
+ * holds one document per cohort and day, e.g.
+ *      {_id: "GB:female:30-49:1509494400000", cohort: "GB:female:30-49", dateInUTC: 1509494400000,
+ *       sumsForMeanAndSEM: {sum0: 12.0, sum1: ..., sum2: ...}, stepsSketch: {"412": 3, ...}}
+ * It is updated with atomic increments whenever a new day of a user is stored or the steps of a stored day change;
+ * the day is counted for the cohort the user belongs to at that time. Reading a cohort takes one document per day, no
+ * matter how many users it has.
+ */
+final class DbCohorts {
+
+    private final MongoCollection<Document> cohortDaysColl;    // collection storing the days of the cohorts
+    private final String cohort;                               // the cohort of the user
+
+    /**
+     * @param db: the Mongo database
+     * @param user: the id of the user; the cohort is derived from the stored user data (see storeUser)
+     */
+    DbCohorts(MongoDatabase db, String user) {
+        this.cohortDaysColl = db.getCollection("cohort_days");
+        this.cohort = Cohort.of(db.getCollection("users").find(eq("_id", user)).first());
+    }
+
+    /**
+     * adds newly stored days of the user to the days of the cohort; days stored before with other steps replace their
+     * old steps (in the cohort the user belongs to now)
+     * @param stepsByDate: the steps of the new and the changed days by their date in UTC
+     * @param replacedStepsByDate: the steps the changed days were stored with before by their date in UTC
+     */
+    void addDays(Map<Long, Integer> stepsByDate, Map<Long, Integer> replacedStepsByDate) {
+        List<WriteModel<Document>> writes = new ArrayList<>();
+        stepsByDate.forEach((date, steps) -> {
+            List<Bson> updates = new ArrayList<>(Arrays.asList(setOnInsert("cohort", cohort),
+                    setOnInsert("dateInUTC", date)));
+            updates.addAll(MongoFitDataStore.stepsIncrements(steps, replacedStepsByDate.get(date)));
+            writes.add(new UpdateOneModel<>(eq("_id", cohortDayId(cohort, date)), combine(updates),
+                    new UpdateOptions().upsert(true)));
+        });
+        MongoFitDataStore.upsertRetryingDuplicateKeys(cohortDaysColl, writes);
+    }
+
+    /**
+     * adds the statistics of the cohort (see CohortStats) to the days or periods of the user
+     * @param documents: the documents of the user returned by extractDays, sorted by date
+     * @param resolution: the resolution of the documents
+     */
+    void appendTo(List<Document> documents, Resolution resolution) {
+        CohortStats cohortStats = new CohortStats(resolution);
+        if (!documents.isEmpty()) {
+            for (Document cohortDay : cohortDaysColl.find(and(eq("cohort", cohort),
+                    gte("dateInUTC", CohortStats.firstDateOf(documents)),
+                    lt("dateInUTC", CohortStats.endDateOf(documents, resolution))))
+                    .projection(fields(excludeId(), include("dateInUTC", "sumsForMeanAndSEM", "stepsSketch")))) {
+                long date = ((Number) cohortDay.get("dateInUTC")).longValue();
+                Document sums = (Document) cohortDay.get("sumsForMeanAndSEM");
+                cohortStats.addDay(date, ((Number) sums.get("sum0")).doubleValue(),
+                        ((Number) sums.get("sum1")).doubleValue(), ((Number) sums.get("sum2")).doubleValue());
+                cohortStats.sketchOf(date).merge((Document) cohortDay.get("stepsSketch"));
+            }
+        }
+        cohortStats.appendTo(documents);
+    }
+
+    /**
+     * recalculates the days of all cohorts from the users and steps collections; databases set up by an older version
+     * have no cohort days yet. The users are assigned to the cohort they belong to now.
+     * @param db: the Mongo database
+     */
+    static void rebuildCohortDays(MongoDatabase db) {
+        Map<String, String> cohortsByUser = new HashMap<>();
+        for (Document userDoc : db.getCollection("users").find()) {
+            cohortsByUser.put(String.valueOf(userDoc.get("_id")), Cohort.of(userDoc));
+        }
+        String unknownCohort = Cohort.of(null);
+
+        // the steps of all users are read sorted by date, so only the cohorts of a single day are held in memory; the
+        // server walks the whole (startDateInUTC, user) index for the sort instead of sorting the collection in memory
+        MongoCollection<Document> cohortDaysColl = db.getCollection("cohort_days");
+        Long date = null;
+        Map<String, double[]> sumsByCohort = new HashMap<>();
+        Map<String, StepsSketch> sketchesByCohort = new HashMap<>();
+        for (Document stepsDoc : db.getCollection("steps").find()
+                .sort(Sorts.ascending("startDateInUTC"))
+                .projection(fields(excludeId(), include("startDateInUTC", "user", "steps")))) {
+            long stepsDate = ((Number) stepsDoc.get("startDateInUTC")).longValue();
+            if (date != null && date != stepsDate) {
+                replaceCohortDays(cohortDaysColl, date, sumsByCohort, sketchesByCohort);
+                sumsByCohort.clear();
+                sketchesByCohort.clear();
+            }
+            date = stepsDate;
+
+            String cohort = cohortsByUser.getOrDefault(stepsDoc.getString("user"), unknownCohort);
+            int steps = ((Number) stepsDoc.get("steps")).intValue();
+            double[] sums = sumsByCohort.computeIfAbsent(cohort, key -> new double[3]);
+            sums[0] += 1;
+            sums[1] += steps;
+            sums[2] += (double) steps * steps;
+            sketchesByCohort.computeIfAbsent(cohort, key -> new StepsSketch()).add(steps);
+        }
+        if (date != null) {
+            replaceCohortDays(cohortDaysColl, date, sumsByCohort, sketchesByCohort);
+        }
+    }
+
+    /**
+     * replaces the documents of the cohorts for a single day
+     * @param cohortDaysColl: the collection storing the days of the cohorts
+     * @param date: the date of the day in UTC
+     * @param sumsByCohort: the sums (sum0, sum1, sum2) of the day by cohort
+     * @param sketchesByCohort: the sketches of the day by cohort
+     */
+    private static void replaceCohortDays(MongoCollection<Document> cohortDaysColl, long date,
+                                          Map<String, double[]> sumsByCohort,
+                                          Map<String, StepsSketch> sketchesByCohort) {
+        List<WriteModel<Document>> writes = new ArrayList<>();
+        sumsByCohort.forEach((cohort, sums) -> {
+            String id = cohortDayId(cohort, date);
+            Document cohortDay = new Document("_id", id)
+                    .append("cohort", cohort)
+                    .append("dateInUTC", date)
+                    .append("sumsForMeanAndSEM", new Document("sum0", sums[0])
+                            .append("sum1", sums[1])
+                            .append("sum2", sums[2]))
+                    .append("stepsSketch", sketchesByCohort.get(cohort).toDocument());
+            writes.add(new ReplaceOneModel<>(eq("_id", id), cohortDay, new UpdateOptions().upsert(true)));
+        });
+        cohortDaysColl.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+    }
+
+    /**
+     * @param cohort: the key of the cohort
+     * @param dateInUTC: the date of the day
+     * @return the _id of the document of the cohort for the day
+     */
+    static String cohortDayId(String cohort, long dateInUTC) {
+        return cohort + ":" + dateInUTC;
+    }
+}
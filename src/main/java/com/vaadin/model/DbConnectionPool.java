@@ -0,0 +1,191 @@
+package com.vaadin.model;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Holds the MongoClient (and thereby the connection pool) shared by all sessions of the application and sets up the
+ * collections of the database once.
+ *
+ * The connection can be configured with the following system properties:
+ *      - trackfit.mongo.uri: the connection string (default: mongodb://localhost:27017); options given in the
+ *        connection string (e.g. ?maxPoolSize=20) take precedence over the properties below
+ *      - trackfit.mongo.maxPoolSize: maximum number of connections (default: 50)
+ *      - trackfit.mongo.minPoolSize: minimum number of connections kept open (default: 0)
+ *      - trackfit.mongo.maxWaitTimeMS: maximum time to wait for a free connection (default: 10000)
+ *      - trackfit.mongo.database: name of the database (default: trackFit), e.g. a separate database for the
+ *        benchmarks
+ *
+ * The server has to be MongoDB 3.6 or newer (see README.md). The daily queries only use joins on single fields and
+ * indexed range queries (see MongoFitDataStore.dailyPipeline and activitiesOf), so they use indexes on every supported
+ * version.
+ */
+public final class DbConnectionPool {
+
+    /* name of the database */
+    static final String DATABASE_NAME = System.getProperty("trackfit.mongo.database", "trackFit");
+
+    /* the oldest supported server */
+    private static final List<Integer> MINIMUM_SERVER_VERSION = Arrays.asList(3, 6);
+
+    /* the client shared by all sessions; created on first use */
+    private static MongoClient mongoClient;
+
+    private DbConnectionPool() {
+    }
+
+    /**
+     * returns the database; creates the client and sets up the collections if this has not happened yet
+     * @return the Mongo database
+     */
+    static synchronized MongoDatabase getDatabase() {
+        if (mongoClient == null) {
+            MongoClientOptions.Builder options = MongoClientOptions.builder()
+                    .connectionsPerHost(Integer.getInteger("trackfit.mongo.maxPoolSize", 50))
+                    .minConnectionsPerHost(Integer.getInteger("trackfit.mongo.minPoolSize", 0))
+                    .maxWaitTime(Integer.getInteger("trackfit.mongo.maxWaitTimeMS", 10000))
+                    .addCommandListener(new MongoCommandMetrics());
+            mongoClient = new MongoClient(new MongoClientURI(
+                    System.getProperty("trackfit.mongo.uri", "mongodb://localhost:27017"), options));
+
+            try {
+                checkServerVersion(mongoClient.getDatabase(DATABASE_NAME));
+                setupCollections(mongoClient.getDatabase(DATABASE_NAME));
+            } catch (RuntimeException e) {
+                // the application must not use a database which is not set up
+                close();
+                throw e;
+            }
+        }
+        return mongoClient.getDatabase(DATABASE_NAME);
+    }
+
+    /**
+     * closes the client and all of its connections
+     */
+    static synchronized void close() {
+        if (mongoClient != null) {
+            mongoClient.close();
+            mongoClient = null;
+        }
+    }
+
+    /**
+     * fails if the server is older than MongoDB 3.6 (see the class comment)
+     * @param db: the Mongo database
+     */
+    private static void checkServerVersion(MongoDatabase db) {
+        @SuppressWarnings("unchecked")
+        List<Integer> version = (List<Integer>) db.runCommand(new Document("buildInfo", 1)).get("versionArray");
+        if (compareVersions(version, MINIMUM_SERVER_VERSION) < 0) {
+            throw new IllegalStateException("MongoDB " + version + " is not supported, the minimum server version is "
+                    + MINIMUM_SERVER_VERSION);
+        }
+    }
+
+    /**
+     * @param version: the version of the server, e.g. [4, 4, 1, 0]
+     * @param minimum: the version to compare with, e.g. [3, 6]
+     * @return a negative number if the version is older, otherwise 0 or a positive number
+     */
+    static int compareVersions(List<Integer> version, List<Integer> minimum) {
+        for (int i = 0; i < minimum.size(); i++) {
+            int part = i < version.size() ? version.get(i) : 0;
+            if (part != minimum.get(i)) {
+                return Integer.compare(part, minimum.get(i));
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * creates the indexes for the collections for faster querying; the collections are created by MongoDB
+     * automatically if they don't exist yet
+     * @param db: the Mongo database
+     */
+    private static void setupCollections(MongoDatabase db) {
+
+        // databases set up by an older version might hold duplicate steps or days and indexes with the same keys
+        // without the unique option
+        UniqueIndexMigration.migrate(db);
+
+        // there must be only one document per user and day
+        createIndex(db.getCollection("steps"), Indexes.ascending("startDateInUTC", "user"),
+                new IndexOptions().unique(true));
+        createIndex(db.getCollection("steps"), Indexes.ascending("startDateInUTC", "user", "endDateInUTC"),
+                new IndexOptions());
+
+        // the latest and the stored days of a user and the days of the charts are read by user and date, sorted by date
+        // (see FitDataFetcher.planSync and MongoFitDataStore.dailyPipeline)
+        createIndex(db.getCollection("steps"), Indexes.ascending("user", "startDateInUTC"), new IndexOptions());
+
+        createIndex(db.getCollection("activities"), Indexes.ascending("dateInUTC", "user"), new IndexOptions());
+
+        // the activities of a user are read by user and date range, sorted by date (see MongoFitDataStore.activitiesOf)
+        createIndex(db.getCollection("activities"), Indexes.ascending("user", "dateInUTC"), new IndexOptions());
+
+        // there must be only one document per day
+        createIndex(db.getCollection("days"), Indexes.ascending("dateInUTC"), new IndexOptions().unique(true));
+
+        createIndex(db.getCollection("user_rollups"), Indexes.ascending("user", "resolution", "startDateInUTC"),
+                new IndexOptions());
+
+        // there must be only one bucket per user and month (see BucketedMongoFitDataStore)
+        createIndex(db.getCollection("user_months"), Indexes.ascending("user", "monthStart"),
+                new IndexOptions().unique(true));
+
+        // the recently active users are read by the time of their latest login (see BackgroundSync)
+        createIndex(db.getCollection("logins"), Indexes.ascending("lastLoginMillis"), new IndexOptions());
+
+        // the days of a cohort are read by date range (see DbCohorts)
+        createIndex(db.getCollection("cohort_days"), Indexes.ascending("cohort", "dateInUTC"), new IndexOptions());
+
+        // databases set up by an older version have no sketches of the days, no rollups and no days of the cohorts yet
+        // (the rollups of the users are rebuilt by MongoFitDataStore.ensureRollups)
+        MongoCollection<Document> daysColl = db.getCollection("days");
+        boolean hasMissingSketches = daysColl.find(Filters.exists("stepsSketch", false)).first() != null;
+        if (hasMissingSketches) {
+            MongoFitDataStore.rebuildDaysSketches(db);
+        }
+        if (hasMissingSketches || (db.getCollection("days_rollups").count() == 0 && daysColl.count() > 0)) {
+            DbRollups.rebuildDaysRollups(db);
+        }
+        if (db.getCollection("cohort_days").count() == 0 && db.getCollection("steps").count() > 0) {
+            DbCohorts.rebuildCohortDays(db);
+        }
+    }
+
+    /**
+     * creates the index if it does not exist yet
+     * @param collection: the collection to create the index for
+     * @param keys: the keys of the index
+     * @param indexOptions: the options of the index
+     * @throws IllegalStateException: if a unique index cannot be created, e.g. because of duplicates inserted while
+     * the application started; the stores rely on the unique indexes (see MongoFitDataStore.storeDaysAndSteps)
+     */
+    private static void createIndex(MongoCollection<Document> collection, Bson keys, IndexOptions indexOptions) {
+        try {
+            collection.createIndex(keys, indexOptions);
+        } catch (MongoCommandException e) {
+            if (indexOptions.isUnique()) {
+                throw new IllegalStateException("Cannot create the unique index " + keys + " for "
+                        + collection.getNamespace() + ": " + e.getErrorMessage(), e);
+            }
+            // e.g. an index with the same keys but different options exists already (databases set up by an older
+            // version); we keep using the existing one
+            System.out.println("Cannot create index for " + collection.getNamespace() + ": " + e.getErrorMessage());
+        }
+    }
+}
@@ -1,96 +1,49 @@
 package com.vaadin.model;
 
-import com.mongodb.BasicDBObject;
-import com.mongodb.MongoClient;
-import com.mongodb.client.*;
-import com.mongodb.client.model.Indexes;
-import com.mongodb.client.model.UpdateOptions;
 import com.mongodb.util.JSON;
 import org.bson.Document;
-import org.bson.conversions.Bson;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
-import static com.mongodb.client.model.Aggregates.*;
-import static com.mongodb.client.model.Filters.*;
-import static com.mongodb.client.model.Projections.*;
-
 /**
- * Connects the vaadin session and the MongoDB
+ * Connects the vaadin session and the database: stores and extracts the data of the user of the session in the store
+ * selected by FitDataStores (MongoDB or SQLite) and caches the data of the charts
  */
-public class DbConnector extends MongoClient {
-
-    private MongoDatabase db;                               // the Mongo database
-    private static MongoCollection<Document> userColl;      // collection storing the users
-    private MongoCollection<Document> stepColl;             // collection storing the steps
-    private MongoCollection<Document> daysColl;             // collection storing the days
-    private MongoCollection<Document> activityColl;         // collection storing the activities and their duration
-    private String sessionUserID;                           // the user session id (should be the same as the google
+public class DbConnector {
+
+    // caches the results of extractChartData for all sessions and counts its hits and misses (see Metrics); the size
+    // and the time to live (in seconds) of the entries can be set with the system properties trackfit.cache.maxEntries
+    // and trackfit.cache.ttlSeconds
+    private static final ExtractDataCache EXTRACT_DATA_CACHE = new ExtractDataCache(
+            Integer.getInteger("trackfit.cache.maxEntries", 1000),
+            Long.getLong("trackfit.cache.ttlSeconds", 300L) * 1000);
+
+    /* duration of storing the days of a response and the number of stored days (see Metrics) */
+    private static final Timer STORE_DAYS_TIMER = Metrics.timer("db.storeDays");
+    private static final Counter STORED_DAYS = Metrics.counter("db.storedDays");
+
+    /* duration of extracting the data by the length of the time range (see extractTimerOf) */
+    private static final Timer[] EXTRACT_TIMERS = {
+            Metrics.timer("db.extract.upTo31Days"),
+            Metrics.timer("db.extract.upTo92Days"),
+            Metrics.timer("db.extract.upTo366Days"),
+            Metrics.timer("db.extract.moreThan366Days")};
+
+    private final FitDataStore store;                       // the store holding the data of all users
+    private final String sessionUserID;                     // the user session id (should be the same as the google
                                                             // account id)
-    // see https://developers.google.com/fit/rest/v1/reference/activity-types for a list of activity types
-    // maps the integer to the corresponding activity
-    private Map<Integer, String> activityTypesValuesMapper = new HashMap<Integer, String>() {
-        {
-            // TODO: to extract more activities from google fit simply add them to this hash map
-            put(0, "in_vehicle");
-            put(1, "on_bicycle");
-            put(2, "on_foot");
-            put(8, "running");
-            put(3, "still");
-            //put(5, "tilting");
-            //put(4, "unknown");
-            put(7, "walking");
-            put(72, "sleeping");
-    /*        put(109, "light_sleep");
-            put(110, "deep_sleep");
-            put(111, "REM_sleep");
-            put(112, "awake_during_sleep_cycle");*/
-        }
-    };
 
     /**
-     * Accesses DB, creates an Instance if it does not exist yet.
+     * Accesses the store shared by all sessions (see FitDataStores).
      * @param sessionUserID: the user session id
      */
     public DbConnector(String sessionUserID) {
-        // get the database; create it if it doesn't exist yet
-        this.db = getDatabase("trackFit");
+        this.store = FitDataStores.get();
         this.sessionUserID = sessionUserID;
-
-        // check if the user collection exists
-        if (!this.db.listCollectionNames().into(new ArrayList<>()).contains("steps")) {
-            // create the steps collection
-            stepColl = db.getCollection("steps");
-
-            // create the indexes for the collections for faster querying
-            stepColl.createIndex(Indexes.ascending("startDateInUTC", "user"));
-            stepColl.createIndex(Indexes.ascending("startDateInUTC", "user", "endDateInUTC"));
-        }
-
-        // check if the activities collection exists
-        if (!this.db.listCollectionNames().into(new ArrayList<>()).contains("activities")) {
-            // create the activities collection
-            activityColl = db.getCollection("activities");
-
-            // create the indexes for the collections for faster querying
-            activityColl.createIndex(Indexes.ascending("dateInUTC", "user"));
-        }
-
-        // check if the days collection exists
-        if (!this.db.listCollectionNames().into(new ArrayList<>()).contains("days")) {
-            // create the days collection
-            daysColl = db.getCollection("days");
-
-            // create the indexes for the collections for faster querying
-            daysColl.createIndex(Indexes.ascending("startDateInUTC", "user"));
-        }
-
-        // get the different collections
-        userColl = db.getCollection("users");
-        stepColl = db.getCollection("steps");
-        daysColl = db.getCollection("days");
-        activityColl = db.getCollection("activities");
-
     }
 
     /**
@@ -99,100 +52,50 @@ public class DbConnector extends MongoClient {
      * @param googleUserData: the user data provided from google
      */
     void storeUser(String googleUserData) {
+        store.storeUser(googleUserData);
+    }
 
-        // parse the json formatted string to a mongodb document
-        Document userDoc = Document.parse(googleUserData);
-
-        // use the google account id as unique id for the database
-        Object user_id = userDoc.get("id");
-        userDoc.append("_id", user_id);
-        userDoc.remove("id");
+    /**
+     * stores the current time as the latest login of the user of the session (see BackgroundSync)
+     */
+    void storeLogin() {
+        store.storeLogin(sessionUserID, System.currentTimeMillis());
+    }
 
-        // update all fields (name, email, profile pic etc. ), if the user is already in the database
-        // if he's not in the database: insert him
-        userColl.replaceOne(eq("_id", user_id), userDoc, new UpdateOptions().upsert(true));
+    /**
+     * @return whether the user data of the user of the session is in the database already
+     */
+    boolean isUserStored() {
+        return store.hasUser(sessionUserID);
     }
 
     /**
      * This function stores the steps in the database. They are assigned to the user with the session id.
-     * @param stepData: string representing the steps
+     * @param stepData: string representing the steps (an aggregate response of google fit)
      */
     public void storeData(String stepData) {
+        try {
+            storeDays(FitResponseParser.parse(new ByteArrayInputStream(stepData.getBytes(StandardCharsets.UTF_8))));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("The step data is not a valid aggregate response", e);
+        }
+    }
 
-        // Create new Document parsed from Google JSON data
-        Document stepDoc = Document.parse(stepData);
-
-        // Split Document into Array
-        @SuppressWarnings("unchecked")
-        ArrayList<Document> dayList = (ArrayList<Document>)stepDoc.get("bucket");
+    /**
+     * This function stores the steps and activities of the days in the database. They are assigned to the user with
+     * the session id.
+     * @param fitDays: the days as read from google fit (see FitResponseParser)
+     */
+    public void storeDays(List<FitDay> fitDays) {
 
-        // grab the step and activity data for each day
-        dayList.forEach(stepsDocument -> {
+        long start = System.nanoTime();
 
-            // get the date
-            long dateInUTC = Long.valueOf(stepsDocument.get("startTimeMillis").toString());
+        List<FitDay> daysToStore = new ArrayList<>(fitDays.size());
+        for (FitDay fitDay : fitDays) {
 
             // variables for holding the step data and the activity data
-            int steps = -1;
-            Map<String, Integer> activities = new HashMap<>();
-
-            // Assign steps to currently logged in User
-            stepsDocument.append("user", sessionUserID);
-
-            // get the data set from the document and store it in a array list of documents
-            @SuppressWarnings("unchecked")
-            ArrayList<Document> dataSetList  =  (ArrayList<Document>) stepsDocument.get("dataset");
-
-            // iterate over each document representing either step or activity data from google
-            for (Document documentInDatasets : dataSetList) {
-
-                // get the actual data from the document
-                @SuppressWarnings("unchecked")
-                ArrayList<Document> dataInDataSet = (ArrayList<Document>) documentInDatasets.get("point");
-
-                // check if we have any data at all
-                if (dataInDataSet.size() > 0 ) {
-
-                    // iterate over the data entries (for step data we always have one; for activity data we have
-                    // one for each activity type (walking, sleeping, still, etc.))
-                    for (Document dataEntry : dataInDataSet) {
-
-                        // we have step data
-                        if (dataEntry.get("dataTypeName").equals("com.google.step_count.delta")) {
-
-                            // we only have one step entry, so simply setting the variable steps is fine..
-                            @SuppressWarnings("unchecked")
-                            ArrayList<Document> valueList = (ArrayList<Document>)(dataEntry.get("value"));
-                            steps =  valueList.get(0).getInteger("intVal");
-
-                        // we have activity data
-                        } else {
-
-                            // get the activities for the activity entry
-                            // we have three documents per value List
-                            @SuppressWarnings("unchecked")
-                            ArrayList<Document> valueList = (ArrayList<Document>)(dataEntry.get("value"));
-
-                            // check if the activity is in the activityTypesValueMapper
-                            if (activityTypesValuesMapper.get(valueList.get(0).getInteger("intVal")) != null) {
-
-                                String activity = activityTypesValuesMapper.get(valueList.get(0).getInteger("intVal"));
-                                int duration = valueList.get(1).getInteger("intVal");
-
-                                // put the activities into the activities object
-                                // we already have a activity entry for the current activity..
-                                if (activities.get(activityTypesValuesMapper.get(activity)) != null) {
-                                    int activityDuration = activities.get(activity);
-                                    activities.put(activity, activityDuration + duration);    // update the old entry
-                                    // we don't have a activity entry for the current activity
-                                } else {
-                                    activities.put(activity, duration);
-                                }
-                            }
-                        }
-                    }
-                }
-            }
+            int steps = fitDay.getSteps();
+            Map<String, Integer> activities = new HashMap<>(fitDay.getActivities());
 
             // TODO: if you don't want random data
             boolean generateRandomData = true;
@@ -220,29 +123,17 @@ public class DbConnector extends MongoClient {
                 }
             }
 
-            // Convert timeInMillis to long
-            stepsDocument.put("steps", steps);
-            stepsDocument.put("startDateInUTC", dateInUTC);
-            stepsDocument.put("endDateInUTC", Long.valueOf(stepsDocument.get("endTimeMillis").toString()));
-
-            // remove unnecessary fields in the document
-            stepsDocument.remove("dataset");
-            stepsDocument.remove("startTimeMillis");
-            stepsDocument.remove("endTimeMillis");
-
-            // create the document for the activities
-            Document activityDoc = new Document("user", sessionUserID);
-            activityDoc.put("activities", activities);
-            activityDoc.put("dateInUTC", dateInUTC);
+            daysToStore.add(new FitDay(fitDay.getStartDateInUTC(), fitDay.getEndDateInUTC(), steps, activities));
+        }
 
-            // store activities in the database with the user id as identifier
-            Bson activityFilter = and(eq("user", sessionUserID), eq("dateInUTC", dateInUTC));
-            activityColl.replaceOne(activityFilter, activityDoc, new UpdateOptions().upsert(true));
+        // store the steps, activities and the statistics of the days
+        store.storeDays(sessionUserID, daysToStore);
 
-            // Update Days Collection
-            storeDayAndSteps(dateInUTC, steps, stepsDocument);
+        // the cached results of the user are outdated now
+        EXTRACT_DATA_CACHE.invalidate(sessionUserID);
 
-        });
+        STORE_DAYS_TIMER.recordSince(start);
+        STORED_DAYS.add(fitDays.size());
     }
 
     /**
@@ -256,92 +147,13 @@ public class DbConnector extends MongoClient {
     }
 
     /**
-     * stores the days (basically date, steps and number of entries) and the steps in the database
-     * @param date : date in UTC
-     * @param steps : steps on that day
-     * @param stepsDocument: document for the steps
+     * makes sure the weekly and monthly rollups of the user exist; they are missing if the data of the user has been
+     * stored by an older version
      */
-    private void storeDayAndSteps(Long date, int steps, Document stepsDocument) {
-
-        // the sums for calculating the mean and the std error mean
-        double sum0 = 0;
-        double sum1 = 0;
-        double sum2 = 0;
-
-        // holds the sums for calculating the mean and the std error mean
-        Map<String, Double> sumsForMeanAndSEM = new HashMap<>();
-        sumsForMeanAndSEM.put("sum0", sum0);
-        sumsForMeanAndSEM.put("sum1", sum1);
-        sumsForMeanAndSEM.put("sum2", sum2);
-
-        // query the database for the current date
-        BasicDBObject whereQuery = new BasicDBObject();
-        whereQuery.put("dateInUTC", date);
-        Document dayDoc = daysColl.find(whereQuery).limit(1).first();
-
-        // day is already in the collection
-        if (dayDoc != null) {
-
-            // query the steps collection for the current date and user
-            BasicDBObject andQuery = new BasicDBObject();
-            List<BasicDBObject> queryFields = new ArrayList<>();
-            queryFields.add(new BasicDBObject("user", sessionUserID));
-            queryFields.add(new BasicDBObject("startDateInUTC", date));
-            andQuery.put("$and", queryFields);
-            Document stepsDoc = stepColl.find(andQuery).limit(1).first();
-
-            // check if we have data from that user for the current day
-            if (stepsDoc != null) {
-                // day is in the collection and the users data for that day is in the collection, so we don't need to
-                // do anything ..
-                return;
-            // we don't have the data from this user for this day
-            } else {
-                // get the hash map holding the sums of the other users for calculating the mean and the std error of
-                // mean
-                sumsForMeanAndSEM = (Map<String, Double>) dayDoc.get("sumsForMeanAndSEM");
-
-                // get the sums from the hash map
-                sum0 = sumsForMeanAndSEM.get("sum0");
-                sum1 = sumsForMeanAndSEM.get("sum1");
-                sum2 = sumsForMeanAndSEM.get("sum2");
-            }
-        }
-
-        // update the sums with the values from the current day
-        sum0 += 1;
-        sum1 += steps;
-        sum2 += steps*steps;
-
-        // calculate the mean and the stdErrorOfMean (SEM)
-        double mean = sum1/sum0;
-        double stdDev = 0;
-        if (sum0 >= 2) {	// we need at least two datapoints
-            stdDev = Math.sqrt((sum0 * sum2 - sum1 * sum1)/(sum0 * (sum0 - 1)));
+    public void ensureRollups() {
+        if (store.ensureRollups(sessionUserID)) {
+            EXTRACT_DATA_CACHE.invalidate(sessionUserID);
         }
-        double stdErrorOfMean = stdDev/Math.sqrt(sum0);
-
-        // update the hash map holding the sums
-        sumsForMeanAndSEM.put("sum0", sum0);
-        sumsForMeanAndSEM.put("sum1", sum1);
-        sumsForMeanAndSEM.put("sum2", sum2);
-
-        // create a new document for the current day
-        Document newDayDoc = new Document();
-
-        // put the values we want to store in the database in the new document
-        newDayDoc.put("sumsForMeanAndSEM", sumsForMeanAndSEM);
-        newDayDoc.put("mean", mean);
-        newDayDoc.put("stdErrorOfMean", stdErrorOfMean);
-        newDayDoc.put("dateInUTC", date);
-
-        // store steps in the database with the user id as identifier
-        Bson stepFilter = and(eq("user", sessionUserID), eq("startDateInUTC", date));
-        stepColl.replaceOne(stepFilter, stepsDocument, new UpdateOptions().upsert(true));
-
-        // store the current day in the database
-        daysColl.replaceOne(eq("dateInUTC", date), newDayDoc, new UpdateOptions().upsert(true));
-
     }
 
     /**
@@ -350,7 +162,7 @@ public class DbConnector extends MongoClient {
      * @return the link to the user profile picture
      */
     public static String extractUserProfilePictureFromDatabase(String userID) {
-        return userColl.find(eq("_id", userID)).first().getString("picture");
+        return FitDataStores.get().extractUserPicture(userID);
     }
 
     /**
@@ -359,7 +171,26 @@ public class DbConnector extends MongoClient {
      * @return the name of the user
      */
     public static String extractUserRealName(String userID) {
-        return userColl.find(eq("_id", userID)).first().getString("name");
+        return FitDataStores.get().extractUserName(userID);
+    }
+
+    /**
+     * extracts the date of the latest day stored for the current user; used as watermark for syncing with google fit
+     * @return the date in UTC of the latest day stored, or null if there is no data of the user in the database yet
+     */
+    public Long extractLatestStoredDay() {
+        return store.extractLatestStoredDay(sessionUserID);
+    }
+
+    /**
+     * extracts the days stored for the current user within the interval; used to plan the requests to google fit
+     * (see FitRequestPlanner)
+     * @param startTime: the start of the interval (date in UTC)
+     * @param endTime: the end of the interval (date in UTC)
+     * @return the dates in UTC of the stored days, sorted
+     */
+    public List<Long> extractStoredDays(long startTime, long endTime) {
+        return store.extractStoredDays(sessionUserID, startTime, endTime);
     }
 
     /**
@@ -368,23 +199,7 @@ public class DbConnector extends MongoClient {
      * @return ArrayList of MongoDB documents
      */
     public List<Document> extractMenuItemsCollection() {
-
-        // collection named menu_items should have document with entries like this:
-        /*
-        button_caption: "Sample Chart"      // the caption for the button
-        button_icon: "BOOKMARK"             // the vaadin icon for the button
-        view_title: "Showing sample data"   // the title of the chart which is displayed in the top left corner
-        plot_selected: "LineChart"          // ["LineChart", "StackedBarChart", "CalendarChart"] what kind of plot
-                                               should be drawn
-         */
-
-        List<Document> docList = new ArrayList<>();
-        try (MongoCursor<Document> cursor = db.getCollection("menu_items").find().iterator()) {
-            while (cursor.hasNext()) {
-                docList.add(cursor.next());
-            }
-        }
-        return docList;
+        return store.extractMenuItems();
     }
 
     /**
@@ -395,86 +210,106 @@ public class DbConnector extends MongoClient {
      * user, the average steps of the other users and the std error of mean for it
      */
     public String extractData(Long startTime, Long endTime) {
+        return extractData(startTime, endTime, Resolution.DAY);
+    }
 
-        List<Document> docList = new ArrayList<>();
-
-        for (Document document : db.getCollection("steps").aggregate(Arrays.asList(
-
-                // we only want the data from the current user within the time range startTime to endTime
-                match(
-                        and(
-                                eq("user", sessionUserID),
-                                gte("startDateInUTC", startTime),
-                                lte("endDateInUTC", endTime)
-                        )
-                ),
-
-                // we want the average steps from the days collection
-                lookup(
-                        "days", "startDateInUTC", "dateInUTC", "means"
-                ),
-
-                // reshape the document by including only the startMillis, steps and average fields
-                project(
-                        fields(
-                                excludeId(),
-                                //include("user"),
-                                include("startDateInUTC"),
-                                include("steps"),
-                                computed("mean", "$means.mean"),
-                                computed("stdErrorOfMean", "$means.stdErrorOfMean")
-                        )
-                )
-        ))) {
-            // get the date
-            Long date = (Long) document.get("startDateInUTC");
-
-            // get the activities for the current user and the current date
-            AggregateIterable<Document> databaseRequest = db.getCollection("activities").aggregate(Arrays.asList(
-
-                    // get the activity document for the current user and the current date
-                    match(
-                            and(
-                                    eq("user", sessionUserID),
-                                    eq("dateInUTC", date)
-                            )
-                    ),
-                    // we are only interested in the activities
-                    project(
-                            fields(
-                                    excludeId(),
-                                    include("activities")
-                            )
-                    )
-            ));
-
-            // create a document of the AggregateIterable (consists always of a single document)
-            Document activities = new Document();
-            for (Document doc : databaseRequest) {
-                activities = (Document) doc.get("activities");
-            }
+    /**
+     * extracts the data from the database within the range of startTime and endTime in the given resolution and
+     * returns them in json format
+     * @param startTime: the start of the interval (date in UTC)
+     * @param endTime: the end of the interval (date in UTC)
+     * @param resolution: whether to return the data day by day or the daily averages of each week or month (see
+     *                  Resolution.forRange for choosing a resolution fitting the range)
+     * @return json formatted string holding the date (in milliseconds), the steps and the activities of the current
+     * user, the average steps of the other users and the std error of mean for it
+     */
+    public String extractData(Long startTime, Long endTime, Resolution resolution) {
+        return JSON.serialize(extractDocuments(startTime, endTime, resolution));
+    }
 
-            // if we have activity found ..
-            if (!activities.isEmpty()) {
-                // .. add it to the document ..
-                document.put("activities", activities);
-                // .. and the document to the list
-                docList.add(document);
-            // add the document without the activity to the list
-            } else {
-                docList.add(document);
-            }
+    /**
+     * extracts the data for the charts from the database within the range of startTime and endTime in the given
+     * resolution, reduces it to at most targetPointCount points (see Downsampler) and returns it in the column
+     * oriented json format of ColumnarEncoder
+     * @param startTime: the start of the interval (date in UTC)
+     * @param endTime: the end of the interval (date in UTC)
+     * @param resolution: whether to return the data day by day or the daily averages of each week or month (see
+     *                  Resolution.forRange for choosing a resolution fitting the range)
+     * @param targetPointCount: the maximum number of points, e.g. the number of points the chart is able to display;
+     *                        0 returns all points
+     * @return json formatted string holding the columns for the date (in milliseconds), the steps and the activities of
+     * the current user, the average steps of the other users and the std error of mean for it
+     */
+    public String extractChartData(Long startTime, Long endTime, Resolution resolution, int targetPointCount) {
 
-            // for some reason the average steps are projected onto a array containing a single double value,
-            // so we simply extract the value and put it back into the document
-            ArrayList mean = (ArrayList) document.get("mean");
-            document.put("averageSteps", mean.get(0));
-            document.remove("mean");
+        // we might have the result already, e.g. if the user switches between the charts
+        String cachedData = EXTRACT_DATA_CACHE.get(sessionUserID, startTime, endTime, resolution, targetPointCount);
+        if (cachedData != null) {
+            return cachedData;
+        }
 
-            ArrayList stdErrorOfMean = (ArrayList) document.get("stdErrorOfMean");
-            document.put("stdErrorOfMean", stdErrorOfMean.get(0));
+        long invalidationCount = EXTRACT_DATA_CACHE.getInvalidationCount();
+        List<Document> docList = extractDocuments(startTime, endTime, resolution);
+        if (targetPointCount > 0) {
+            docList = Downsampler.largestTriangleThreeBuckets(docList, targetPointCount);
+        }
+        String data = ColumnarEncoder.toColumnarJson(docList);
+        EXTRACT_DATA_CACHE.put(sessionUserID, startTime, endTime, resolution, targetPointCount, data,
+                invalidationCount);
+        return data;
+    }
 
+    /**
+     * extracts the data from the database within the range of startTime and endTime in the given resolution
+     * @param startTime: the start of the interval (date in UTC)
+     * @param endTime: the end of the interval (date in UTC)
+     * @param resolution: the resolution of the data
+     * @return list of documents (one for each day, week or month)
+     */
+    private List<Document> extractDocuments(long startTime, long endTime, Resolution resolution) {
+        long start = System.nanoTime();
+        try {
+            return store.extractDays(sessionUserID, startTime, endTime, resolution);
+        } finally {
+            extractTimerOf(startTime, endTime).recordSince(start);
+        }
+    }
+
+    /**
+     * @param startTime: the start of the interval (date in UTC)
+     * @param endTime: the end of the interval (date in UTC)
+     * @return the timer for extracting the data of an interval of this length
+     */
+    private static Timer extractTimerOf(long startTime, long endTime) {
+        long days = (endTime - startTime) / DataRequest.DAY_IN_MILLIS;
+        if (days <= 31) {
+            return EXTRACT_TIMERS[0];
+        } else if (days <= 92) {
+            return EXTRACT_TIMERS[1];
+        } else if (days <= 366) {
+            return EXTRACT_TIMERS[2];
         }
-        return JSON.serialize(docList);
+        return EXTRACT_TIMERS[3];
+    }
+
+    /**
+     * returns the data of the current user within the range of startTime and endTime (one row for each day) as csv.
+     * The rows are read from the database while the stream is read, so even the whole history of a user can be
+     * exported without holding it in memory; the stream has to be closed.
+     * @param startTime: the start of the interval (date in UTC)
+     * @param endTime: the end of the interval (date in UTC)
+     * @return stream of the csv (see CsvExportStream for the columns)
+     */
+    public InputStream exportCsv(Long startTime, Long endTime) {
+        return new CsvExportStream(store.iterateDays(sessionUserID, startTime, endTime),
+                new TreeSet<>(FitResponseParser.ACTIVITY_TYPES.values()));
+    }
+
+    /**
+     * @return the cache for the results of extractChartData shared by all sessions, e.g. to read its hit and miss
+     * counts
+     */
+    public static ExtractDataCache getExtractDataCache() {
+        return EXTRACT_DATA_CACHE;
     }
 }
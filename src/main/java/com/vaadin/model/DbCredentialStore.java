@@ -0,0 +1,130 @@
+package com.vaadin.model;
+
+import com.google.api.client.auth.oauth2.StoredCredential;
+import com.google.api.client.util.store.AbstractDataStore;
+import com.google.api.client.util.store.AbstractDataStoreFactory;
+import com.google.api.client.util.store.DataStore;
+import com.google.api.client.util.store.DataStoreFactory;
+import org.bson.Document;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * Keeps the OAuth credentials (access token, refresh token and expiration time) of the users in the store of the data
+ * (see FitDataStore.storeCredential), keyed by the google account id. The authorization code flow of AuthRequest
+ * writes the credential after the code has been exchanged and whenever the access token has been refreshed, so a
+ * returning user (and the background sync) can use the refresh token instead of going through the consent again.
+ *
+ * The refresh tokens can be used for the scopes of ApiRequest, so the tokens are stored encrypted with the key of the
+ * server (see TokenCipher). Credentials stored in plain text by an older version are encrypted when they are read.
+ */
+final class DbCredentialStore extends AbstractDataStore<StoredCredential> {
+
+    private final FitDataStore store;   // the store holding the credentials
+    private final TokenCipher cipher;   // encrypts the tokens
+
+    /**
+     * @param factory: the factory creating the store
+     * @param store: the store holding the credentials
+     * @param cipher: encrypts the tokens
+     */
+    private DbCredentialStore(DataStoreFactory factory, FitDataStore store, TokenCipher cipher) {
+        super(factory, StoredCredential.DEFAULT_DATA_STORE_ID);
+        this.store = store;
+        this.cipher = cipher;
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return Collections.unmodifiableSet(new HashSet<>(store.extractCredentialUsers()));
+    }
+
+    @Override
+    public Collection<StoredCredential> values() {
+        List<StoredCredential> credentials = new ArrayList<>();
+        for (String user : store.extractCredentialUsers()) {
+            StoredCredential credential = get(user);
+            if (credential != null) {
+                credentials.add(credential);
+            }
+        }
+        return Collections.unmodifiableList(credentials);
+    }
+
+    @Override
+    public StoredCredential get(String user) {
+        if (user == null) {
+            return null;
+        }
+        Document credentialDoc = store.extractCredential(user);
+        if (credentialDoc == null) {
+            return null;
+        }
+        String accessToken = credentialDoc.getString("accessToken");
+        String refreshToken = credentialDoc.getString("refreshToken");
+        Number expirationTime = (Number) credentialDoc.get("expirationTimeMilliseconds");
+        StoredCredential credential = new StoredCredential()
+                .setAccessToken(cipher.decrypt(accessToken, user))
+                .setRefreshToken(cipher.decrypt(refreshToken, user))
+                .setExpirationTimeMilliseconds(expirationTime == null ? null : expirationTime.longValue());
+
+        // stored in plain text by an older version
+        if ((accessToken != null && !TokenCipher.isEncrypted(accessToken))
+                || (refreshToken != null && !TokenCipher.isEncrypted(refreshToken))) {
+            set(user, credential);
+        }
+        return credential;
+    }
+
+    @Override
+    public DataStore<StoredCredential> set(String user, StoredCredential credential) {
+        store.storeCredential(user, new Document("accessToken", cipher.encrypt(credential.getAccessToken(), user))
+                .append("refreshToken", cipher.encrypt(credential.getRefreshToken(), user))
+                .append("expirationTimeMilliseconds", credential.getExpirationTimeMilliseconds()));
+        return this;
+    }
+
+    @Override
+    public DataStore<StoredCredential> clear() {
+        for (String user : store.extractCredentialUsers()) {
+            store.deleteCredential(user);
+        }
+        return this;
+    }
+
+    @Override
+    public DataStore<StoredCredential> delete(String user) {
+        if (user != null) {
+            store.deleteCredential(user);
+        }
+        return this;
+    }
+
+    /**
+     * creates the credential store for GoogleAuthorizationCodeFlow.Builder.setDataStoreFactory; the flow only asks
+     * for the store of the credentials (StoredCredential.DEFAULT_DATA_STORE_ID)
+     */
+    static final class Factory extends AbstractDataStoreFactory {
+
+        private final FitDataStore store;   // the store holding the credentials
+        private final TokenCipher cipher;   // encrypts the tokens
+
+        /**
+         * @param store: the store holding the credentials
+         */
+        Factory(FitDataStore store) {
+            this.store = store;
+            this.cipher = TokenCipher.get();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected <V extends Serializable> DataStore<V> createDataStore(String id) {
+            if (!StoredCredential.DEFAULT_DATA_STORE_ID.equals(id)) {
+                throw new IllegalArgumentException("Only the credentials are kept in the database, not " + id);
+            }
+            return (DataStore<V>) (DataStore<?>) new DbCredentialStore(this, store, cipher);
+        }
+    }
+}
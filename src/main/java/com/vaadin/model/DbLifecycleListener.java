@@ -0,0 +1,29 @@
+package com.vaadin.model;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Connects to the database (see FitDataStores), sets up its collections and starts the background sync of the active
+ * users (see BackgroundSync) when the application starts; stops the downloads running in the background (see
+ * BackgroundSync and FitDataFetcher), closes the connections and removes the metrics from JMX (see Metrics) when the
+ * application stops
+ */
+@WebListener
+public class DbLifecycleListener implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent servletContextEvent) {
+        FitDataStores.get();
+        BackgroundSync.start();
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent servletContextEvent) {
+        BackgroundSync.stop();
+        FitDataFetcher.shutdown();
+        FitDataStores.close();
+        Metrics.unregisterAll();
+    }
+}
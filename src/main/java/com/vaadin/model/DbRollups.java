@@ -0,0 +1,342 @@
+package com.vaadin.model;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.*;
+import org.bson.Document;
+
+import java.util.*;
+
+import static com.mongodb.client.model.Aggregates.*;
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.*;
+import static com.mongodb.client.model.Updates.*;
+
+/**
+ * Maintains and queries the weekly and monthly rollups of the data, so that long time ranges can be displayed without
+ * sending every single day to the browser. There are two collections:
+ *      - user_rollups: one document per user and period holding the number of days, the sum of the steps and the
+ *        sums of the activity durations of the user
+ *      - days_rollups: one document per period holding the sums for calculating the mean and the std error of mean of
+ *        the steps of all users and the sketch of their steps merged from the days (see the days collection)
+ * Both are updated with atomic increments whenever a new day of a user is stored or the steps or activities of a stored
+ * day change.
+ */
+final class DbRollups {
+
+    /* the resolutions we keep rollups for */
+    private static final List<Resolution> ROLLUP_RESOLUTIONS = Arrays.asList(Resolution.WEEK, Resolution.MONTH);
+
+    private final MongoCollection<Document> userRollupsColl;   // collection storing the rollups of the users
+    private final MongoCollection<Document> daysRollupsColl;   // collection storing the rollups of the days
+    private final MongoCollection<Document> stepColl;          // collection storing the steps
+    private final MongoCollection<Document> activityColl;      // collection storing the activities
+    private final String sessionUserID;                        // the user session id
+
+    /**
+     * @param db: the Mongo database
+     * @param sessionUserID: the user session id
+     */
+    DbRollups(MongoDatabase db, String sessionUserID) {
+        this.userRollupsColl = db.getCollection("user_rollups");
+        this.daysRollupsColl = db.getCollection("days_rollups");
+        this.stepColl = db.getCollection("steps");
+        this.activityColl = db.getCollection("activities");
+        this.sessionUserID = sessionUserID;
+    }
+
+    /**
+     * adds newly stored days of the user to the rollups of the user and to the rollups of all users; days stored
+     * before with other steps or activities replace their old steps and activities in the rollups
+     * @param stepsByDate: the steps of the new days and of the days with changed steps by their date in UTC
+     * @param replacedStepsByDate: the steps the days with changed steps were stored with before by their date in UTC
+     * @param activitiesByDate: the activity durations of the stored days by their date in UTC
+     * @param replacedActivitiesByDate: the activity durations the days with changed activities were stored with before
+     * by their date in UTC
+     */
+    void addDays(Map<Long, Integer> stepsByDate, Map<Long, Integer> replacedStepsByDate,
+                 Map<Long, Map<String, Integer>> activitiesByDate,
+                 Map<Long, Map<String, Integer>> replacedActivitiesByDate) {
+
+        if (stepsByDate.isEmpty() && replacedActivitiesByDate.isEmpty()) {
+            return;
+        }
+
+        // sum up the days by period first, so that there is only a single increment per period
+        Map<String, Document> userIncrements = new LinkedHashMap<>();
+        Map<String, Document> daysIncrements = new LinkedHashMap<>();
+        Map<String, Long> periodStarts = new HashMap<>();
+        Map<String, Resolution> periodResolutions = new HashMap<>();
+
+        stepsByDate.forEach((date, steps) -> {
+            Integer replacedSteps = replacedStepsByDate.get(date);
+            int oldSteps = replacedSteps == null ? 0 : replacedSteps;
+            for (Resolution resolution : ROLLUP_RESOLUTIONS) {
+                long periodStart = resolution.periodStart(date);
+                String periodKey = getPeriodKey(resolution, periodStart);
+                periodStarts.put(periodKey, periodStart);
+                periodResolutions.put(periodKey, resolution);
+
+                Document userIncrement = userIncrements.computeIfAbsent(periodKey, key -> new Document());
+                addTo(userIncrement, "stepsSum", steps - oldSteps);
+                Document daysIncrement = daysIncrements.computeIfAbsent(periodKey, key -> new Document());
+                addTo(daysIncrement, "sumsForMeanAndSEM.sum1", (double) steps - oldSteps);
+                addTo(daysIncrement, "sumsForMeanAndSEM.sum2", (double) steps * steps - (double) oldSteps * oldSteps);
+                addTo(daysIncrement, "stepsSketch." + StepsSketch.fieldOf(steps), 1);
+                if (replacedSteps != null) {
+                    addTo(daysIncrement, "stepsSketch." + StepsSketch.fieldOf(replacedSteps), -1);
+                    continue;
+                }
+
+                addTo(userIncrement, "dayCount", 1);
+                activitiesByDate.getOrDefault(date, Collections.emptyMap()).forEach((activity, duration) ->
+                        addTo(userIncrement, "activities." + activity, duration));
+                addTo(daysIncrement, "sumsForMeanAndSEM.sum0", 1.0);
+            }
+        });
+
+        // the days stored before get the difference of their activities; a new day has been added with all of its
+        // activities above
+        replacedActivitiesByDate.forEach((date, replacedActivities) -> {
+            if (stepsByDate.containsKey(date) && !replacedStepsByDate.containsKey(date)) {
+                return;
+            }
+            Map<String, Integer> activities = activitiesByDate.getOrDefault(date, Collections.emptyMap());
+            Set<String> changedActivities = new HashSet<>(activities.keySet());
+            changedActivities.addAll(replacedActivities.keySet());
+            for (Resolution resolution : ROLLUP_RESOLUTIONS) {
+                long periodStart = resolution.periodStart(date);
+                String periodKey = getPeriodKey(resolution, periodStart);
+                periodStarts.put(periodKey, periodStart);
+                periodResolutions.put(periodKey, resolution);
+
+                Document userIncrement = userIncrements.computeIfAbsent(periodKey, key -> new Document());
+                for (String activity : changedActivities) {
+                    addTo(userIncrement, "activities." + activity, activities.getOrDefault(activity, 0)
+                            - replacedActivities.getOrDefault(activity, 0));
+                }
+            }
+        });
+
+        List<WriteModel<Document>> userWrites = new ArrayList<>();
+        userIncrements.forEach((periodKey, increment) -> userWrites.add(new UpdateOneModel<>(
+                eq("_id", sessionUserID + ":" + periodKey),
+                combine(
+                        setOnInsert("user", sessionUserID),
+                        setOnInsert("resolution", periodResolutions.get(periodKey).getKey()),
+                        setOnInsert("startDateInUTC", periodStarts.get(periodKey)),
+                        setOnInsert("periodKey", periodKey),
+                        new Document("$inc", increment)),
+                new UpdateOptions().upsert(true))));
+
+        List<WriteModel<Document>> daysWrites = new ArrayList<>();
+        daysIncrements.forEach((periodKey, increment) -> daysWrites.add(new UpdateOneModel<>(
+                eq("_id", periodKey),
+                combine(
+                        setOnInsert("resolution", periodResolutions.get(periodKey).getKey()),
+                        setOnInsert("startDateInUTC", periodStarts.get(periodKey)),
+                        new Document("$inc", increment)),
+                new UpdateOptions().upsert(true))));
+
+        MongoFitDataStore.upsertRetryingDuplicateKeys(userRollupsColl, userWrites);
+        MongoFitDataStore.upsertRetryingDuplicateKeys(daysRollupsColl, daysWrites);
+    }
+
+    /**
+     * @return whether there are rollups of the user in the database; they are missing for data stored by older versions
+     */
+    boolean hasUserRollups() {
+        return userRollupsColl.find(eq("user", sessionUserID)).first() != null;
+    }
+
+    /**
+     * recalculates all rollups of the user from the steps and activities collections
+     */
+    void rebuildUserRollups() {
+
+        // get the activities of the user by date
+        Map<Long, Document> activitiesByDate = new HashMap<>();
+        for (Document activityDoc : activityColl.find(eq("user", sessionUserID))) {
+            activitiesByDate.put(((Number) activityDoc.get("dateInUTC")).longValue(),
+                    (Document) activityDoc.get("activities"));
+        }
+
+        // sum up the steps and activities by period
+        Map<String, Document> rollups = new LinkedHashMap<>();
+        for (Document stepsDoc : stepColl.find(eq("user", sessionUserID))) {
+            long date = ((Number) stepsDoc.get("startDateInUTC")).longValue();
+            int steps = ((Number) stepsDoc.get("steps")).intValue();
+
+            for (Resolution resolution : ROLLUP_RESOLUTIONS) {
+                long periodStart = resolution.periodStart(date);
+                String periodKey = getPeriodKey(resolution, periodStart);
+                Document rollup = rollups.computeIfAbsent(periodKey, key ->
+                        new Document("_id", sessionUserID + ":" + key)
+                                .append("user", sessionUserID)
+                                .append("resolution", resolution.getKey())
+                                .append("startDateInUTC", periodStart)
+                                .append("periodKey", key)
+                                .append("activities", new Document()));
+
+                addTo(rollup, "dayCount", 1);
+                addTo(rollup, "stepsSum", steps);
+                Document activities = (Document) rollup.get("activities");
+                Document activitiesOfDay = activitiesByDate.get(date);
+                if (activitiesOfDay != null) {
+                    activitiesOfDay.forEach((activity, duration) -> addTo(activities, activity, (Number) duration));
+                }
+            }
+        }
+
+        replaceAll(userRollupsColl, rollups.values());
+    }
+
+    /**
+     * recalculates the rollups of all users from the days collection
+     * @param db: the Mongo database
+     */
+    static void rebuildDaysRollups(MongoDatabase db) {
+
+        Map<String, Document> rollups = new LinkedHashMap<>();
+        for (Document dayDoc : db.getCollection("days").find()) {
+            long date = ((Number) dayDoc.get("dateInUTC")).longValue();
+            Document sums = (Document) dayDoc.get("sumsForMeanAndSEM");
+
+            for (Resolution resolution : ROLLUP_RESOLUTIONS) {
+                long periodStart = resolution.periodStart(date);
+                Document rollup = rollups.computeIfAbsent(getPeriodKey(resolution, periodStart), key ->
+                        new Document("_id", key)
+                                .append("resolution", resolution.getKey())
+                                .append("startDateInUTC", periodStart)
+                                .append("sumsForMeanAndSEM", new Document("sum0", 0.0).append("sum1", 0.0)
+                                        .append("sum2", 0.0))
+                                .append("stepsSketch", new Document()));
+
+                Document rollupSums = (Document) rollup.get("sumsForMeanAndSEM");
+                for (String sum : Arrays.asList("sum0", "sum1", "sum2")) {
+                    rollupSums.put(sum, rollupSums.getDouble(sum) + ((Number) sums.get(sum)).doubleValue());
+                }
+
+                // merging the sketches means adding up their counts
+                Document rollupSketch = (Document) rollup.get("stepsSketch");
+                Document sketch = (Document) dayDoc.get("stepsSketch");
+                if (sketch != null) {
+                    sketch.forEach((bucket, count) -> addTo(rollupSketch, bucket, (Number) count));
+                }
+            }
+        }
+
+        replaceAll(db.getCollection("days_rollups"), rollups.values());
+    }
+
+    /**
+     * extracts the rollups of the user within the range of startTime and endTime
+     * @param startTime: the start of the interval (date in UTC)
+     * @param endTime: the end of the interval (date in UTC)
+     * @param resolution: the resolution of the rollups; either WEEK or MONTH
+     * @return list of documents (one for each period) in the same format as the daily documents of
+     * MongoFitDataStore.extractDays; the steps and activity durations are the daily averages within the period
+     */
+    List<Document> extract(long startTime, long endTime, Resolution resolution) {
+
+        List<Document> docList = userRollupsColl.aggregate(Arrays.asList(
+
+                // we want the periods of the current user which overlap the time range startTime to endTime
+                match(
+                        and(
+                                eq("user", sessionUserID),
+                                eq("resolution", resolution.getKey()),
+                                gte("startDateInUTC", resolution.periodStart(startTime)),
+                                lt("startDateInUTC", endTime)
+                        )
+                ),
+                sort(Sorts.ascending("startDateInUTC")),
+
+                // we want the sums of all users for the same period
+                lookup(
+                        "days_rollups", "periodKey", "_id", "means"
+                ),
+
+                project(
+                        fields(
+                                excludeId(),
+                                include("startDateInUTC"),
+                                include("dayCount"),
+                                include("activities"),
+                                computed("steps", new Document("$divide", Arrays.asList("$stepsSum", "$dayCount"))),
+                                computed("sums", MongoFitDataStore.firstElementOf("$means.sumsForMeanAndSEM")),
+                                computed("stepsSketch", MongoFitDataStore.firstElementOf("$means.stepsSketch"))
+                        )
+                ),
+
+                // calculate the mean and the stdErrorOfMean (SEM) of the steps of all users from the sums
+                project(
+                        fields(
+                                include("startDateInUTC"),
+                                include("steps"),
+                                include("dayCount"),
+                                include("activities"),
+                                include("stepsSketch"),
+                                computed("averageSteps", MongoFitDataStore.meanOfSums("$sums")),
+                                computed("stdErrorOfMean", MongoFitDataStore.stdErrorOfMeanOfSums("$sums"))
+                        )
+                )
+        )).into(new ArrayList<>());
+
+        // the activity durations are summed up over the period, but the charts expect the durations of a single day;
+        // the percentiles are read from the merged sketch of the period
+        for (Document document : docList) {
+            double dayCount = ((Number) document.remove("dayCount")).doubleValue();
+            Document activities = (Document) document.get("activities");
+            if (activities != null) {
+                Document dailyActivities = new Document();
+                activities.forEach((activity, duration) ->
+                        dailyActivities.put(activity, Math.round(((Number) duration).doubleValue() / dayCount)));
+                document.put("activities", dailyActivities);
+            }
+            StepsSketch.appendQuartiles(document, StepsSketch.of((Document) document.remove("stepsSketch")));
+        }
+        return docList;
+    }
+
+    /**
+     * @param resolution: the resolution of the period
+     * @param periodStart: the start of the period (date in UTC)
+     * @return the key identifying the period, e.g. "week:1515974400000"
+     */
+    private static String getPeriodKey(Resolution resolution, long periodStart) {
+        return resolution.getKey() + ":" + periodStart;
+    }
+
+    /**
+     * adds the value to the (numeric) field of the document
+     * @param document: the document holding the field
+     * @param field: name of the field
+     * @param value: the value to add
+     */
+    private static void addTo(Document document, String field, Number value) {
+        Number oldValue = (Number) document.get(field);
+        if (value instanceof Double) {
+            document.put(field, (oldValue == null ? 0 : oldValue.doubleValue()) + value.doubleValue());
+        } else {
+            // the activity durations of a month exceed the range of an integer
+            document.put(field, (oldValue == null ? 0 : oldValue.longValue()) + value.longValue());
+        }
+    }
+
+    /**
+     * replaces (or inserts) all documents by their _id
+     * @param collection: the collection to store the documents in
+     * @param documents: the documents to store
+     */
+    private static void replaceAll(MongoCollection<Document> collection, Collection<Document> documents) {
+        List<WriteModel<Document>> writes = new ArrayList<>();
+        for (Document document : documents) {
+            writes.add(new ReplaceOneModel<>(eq("_id", document.get("_id")), document,
+                    new UpdateOptions().upsert(true)));
+        }
+        if (!writes.isEmpty()) {
+            collection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+        }
+    }
+}
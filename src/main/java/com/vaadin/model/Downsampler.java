@@ -0,0 +1,159 @@
+package com.vaadin.model;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reduces the number of documents returned by DbConnector.extractChartData to the number of points the line chart is
+ * able to display, using the Largest-Triangle-Three-Buckets algorithm (Sveinn Steinarsson, 2013) on the steps of the
+ * user: the documents (sorted by date) are split into buckets and from each bucket the document forming the largest
+ * triangle with the document selected from the previous bucket and the average of the next bucket is kept. The
+ * documents holding the overall maximum and minimum of the steps are always kept, so that the peaks stay visible; if
+ * both fall into the same bucket, the minimum takes the place of a neighbouring bucket. Only with a single bucket
+ * (targetPointCount 3) the minimum might get lost.
+ */
+public final class Downsampler {
+
+    /* name of the field holding the date (x value) */
+    private static final String X_FIELD = "startDateInUTC";
+
+    /* name of the field holding the steps (y value) */
+    private static final String Y_FIELD = "steps";
+
+    private Downsampler() {
+    }
+
+    /**
+     * downsamples the documents to at most targetPointCount documents
+     * @param documents: the documents holding the date and the steps (in any order)
+     * @param targetPointCount: the maximum number of documents to return; values below 3 disable the downsampling
+     * @return the selected documents sorted by date; the documents themselves are not copied
+     */
+    public static List<Document> largestTriangleThreeBuckets(List<Document> documents, int targetPointCount) {
+
+        List<Document> sorted = new ArrayList<>(documents);
+        sorted.sort(Comparator.comparingLong(document -> x(document)));
+
+        if (targetPointCount < 3 || sorted.size() <= targetPointCount) {
+            return sorted;
+        }
+
+        int maxIndex = 0;
+        int minIndex = 0;
+        for (int i = 1; i < sorted.size(); i++) {
+            if (y(sorted.get(i)) > y(sorted.get(maxIndex))) {
+                maxIndex = i;
+            }
+            if (y(sorted.get(i)) < y(sorted.get(minIndex))) {
+                minIndex = i;
+            }
+        }
+
+        List<Document> sampled = new ArrayList<>(targetPointCount);
+
+        // the first and the last document are always kept; the others are split into targetPointCount - 2 buckets,
+        // bucket b holding the documents from bucketBounds[b] (inclusive) to bucketBounds[b + 1] (exclusive)
+        sampled.add(sorted.get(0));
+        int bucketCount = targetPointCount - 2;
+        double bucketSize = (double) (sorted.size() - 2) / bucketCount;
+        int[] bucketBounds = new int[bucketCount + 1];
+        for (int bucket = 0; bucket <= bucketCount; bucket++) {
+            bucketBounds[bucket] = (int) (bucket * bucketSize) + 1;
+        }
+        int selectedIndex = 0;
+
+        // the overall extrema win over any triangle; if they fall into the same bucket, the minimum takes the place
+        // of the neighbouring bucket on its side (or on the other side at the first and the last bucket)
+        int maxBucket = bucketOf(bucketBounds, maxIndex);
+        int minBucket = bucketOf(bucketBounds, minIndex);
+        if (minBucket >= 0 && minBucket == maxBucket) {
+            int neighbour = minIndex < maxIndex ? minBucket - 1 : minBucket + 1;
+            if (neighbour < 0 || neighbour >= bucketCount) {
+                neighbour = minIndex < maxIndex ? minBucket + 1 : minBucket - 1;
+            }
+            minBucket = neighbour < 0 || neighbour >= bucketCount ? -1 : neighbour;
+        }
+
+        for (int bucket = 0; bucket < bucketCount; bucket++) {
+            int bucketStart = bucketBounds[bucket];
+            int bucketEnd = bucketBounds[bucket + 1];
+
+            // the average of the next bucket (or the last document) is the third corner of the triangle
+            int nextBucketStart = bucketEnd;
+            int nextBucketEnd = Math.min((int) ((bucket + 2) * bucketSize) + 1, sorted.size());
+            double avgX = 0;
+            double avgY = 0;
+            for (int i = nextBucketStart; i < nextBucketEnd; i++) {
+                avgX += x(sorted.get(i));
+                avgY += y(sorted.get(i));
+            }
+            avgX /= nextBucketEnd - nextBucketStart;
+            avgY /= nextBucketEnd - nextBucketStart;
+
+            double selectedX = x(sorted.get(selectedIndex));
+            double selectedY = y(sorted.get(selectedIndex));
+
+            int largestIndex = bucketStart;
+            if (bucket == maxBucket) {
+                largestIndex = maxIndex;
+            } else if (bucket == minBucket) {
+                largestIndex = minIndex;
+            } else {
+                double largestArea = -1;
+                for (int i = bucketStart; i < bucketEnd; i++) {
+
+                    // twice the area of the triangle; the factor doesn't matter for the comparison
+                    double area = Math.abs((selectedX - avgX) * (y(sorted.get(i)) - selectedY) -
+                            (selectedX - x(sorted.get(i))) * (avgY - selectedY));
+                    if (area > largestArea) {
+                        largestArea = area;
+                        largestIndex = i;
+                    }
+                }
+            }
+
+            sampled.add(sorted.get(largestIndex));
+            selectedIndex = largestIndex;
+        }
+
+        sampled.add(sorted.get(sorted.size() - 1));
+
+        // a minimum taking the place of the first or the last bucket might be out of order
+        sampled.sort(Comparator.comparingLong(document -> x(document)));
+        return sampled;
+    }
+
+    /**
+     * @param bucketBounds: the first index of every bucket and the end of the last bucket
+     * @param index: the index of a document
+     * @return the bucket holding the document; -1 for the first and the last document, which are not in any bucket
+     */
+    private static int bucketOf(int[] bucketBounds, int index) {
+        for (int bucket = 0; bucket < bucketBounds.length - 1; bucket++) {
+            if (index >= bucketBounds[bucket] && index < bucketBounds[bucket + 1]) {
+                return bucket;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param document: document holding the date
+     * @return the date of the document in milliseconds
+     */
+    private static long x(Document document) {
+        return ((Number) document.get(X_FIELD)).longValue();
+    }
+
+    /**
+     * @param document: document holding the steps
+     * @return the steps of the document
+     */
+    private static double y(Document document) {
+        Number steps = (Number) document.get(Y_FIELD);
+        return steps == null ? 0 : steps.doubleValue();
+    }
+}
@@ -0,0 +1,193 @@
+package com.vaadin.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches the json formatted results of DbConnector.extractChartData by user, time range, resolution and number of
+ * points, so that switching between the charts does not query the database again. The cache holds at most
+ * maximumSize entries (the least recently used entry is evicted first); entries expire after timeToLiveMillis, since
+ * the averages of the other users may change in the meantime. All entries of a user are invalidated whenever new data
+ * of the user is stored. The hits and misses are counted by the counters db.extractCacheHits and db.extractCacheMisses
+ * (see Metrics).
+ */
+public class ExtractDataCache {
+
+    private final int maximumSize;              // maximum number of entries
+    private final long timeToLiveMillis;        // time after which an entry expires
+    private final Map<Key, Entry> entries;      // the cached results in access order
+    private final LongSupplier clock;           // the current time in milliseconds
+    private final Counter hitCount;             // requests served from the cache
+    private final Counter missCount;            // requests which had to query the database
+
+    // incremented by every invalidation; results queried before an invalidation must not be cached afterwards
+    private long invalidationCount = 0;
+
+    /**
+     * @param maximumSize: maximum number of entries
+     * @param timeToLiveMillis: time after which an entry expires
+     */
+    ExtractDataCache(int maximumSize, long timeToLiveMillis) {
+        this(maximumSize, timeToLiveMillis, System::currentTimeMillis, Metrics.counter("db.extractCacheHits"),
+                Metrics.counter("db.extractCacheMisses"));
+    }
+
+    /**
+     * @param maximumSize: maximum number of entries
+     * @param timeToLiveMillis: time after which an entry expires
+     * @param clock: returns the current time in milliseconds, e.g. System::currentTimeMillis
+     * @param hitCount: counts the requests served from the cache
+     * @param missCount: counts the requests which had to query the database
+     */
+    ExtractDataCache(int maximumSize, long timeToLiveMillis, LongSupplier clock, Counter hitCount, Counter missCount) {
+        this.maximumSize = maximumSize;
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.clock = clock;
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > ExtractDataCache.this.maximumSize;
+            }
+        };
+    }
+
+    /**
+     * returns the cached result
+     * @param user: the user id
+     * @param startTime: the start of the interval (date in UTC)
+     * @param endTime: the end of the interval (date in UTC)
+     * @param resolution: the resolution of the result
+     * @param targetPointCount: the maximum number of points of the result (0 for all points)
+     * @return the cached json formatted result or null, if there is none
+     */
+    synchronized String get(String user, long startTime, long endTime, Resolution resolution, int targetPointCount) {
+        Key key = new Key(user, startTime, endTime, resolution, targetPointCount);
+        Entry entry = entries.get(key);
+
+        // the entry has expired
+        if (entry != null && clock.getAsLong() - entry.creationTime > timeToLiveMillis) {
+            entries.remove(key);
+            entry = null;
+        }
+
+        if (entry == null) {
+            missCount.increment();
+            return null;
+        }
+        hitCount.increment();
+        return entry.json;
+    }
+
+    /**
+     * returns the number of invalidations so far; has to be passed to put
+     * @return the number of invalidations so far
+     */
+    synchronized long getInvalidationCount() {
+        return invalidationCount;
+    }
+
+    /**
+     * caches the result, unless the cache has been invalidated since the result has been queried
+     * @param user: the user id
+     * @param startTime: the start of the interval (date in UTC)
+     * @param endTime: the end of the interval (date in UTC)
+     * @param resolution: the resolution of the result
+     * @param targetPointCount: the maximum number of points of the result (0 for all points)
+     * @param json: the json formatted result
+     * @param invalidationCountBeforeQuery: the number of invalidations (see getInvalidationCount) before the result has
+     *                                    been queried
+     */
+    synchronized void put(String user, long startTime, long endTime, Resolution resolution, int targetPointCount,
+                          String json, long invalidationCountBeforeQuery) {
+        if (invalidationCountBeforeQuery == invalidationCount) {
+            entries.put(new Key(user, startTime, endTime, resolution, targetPointCount),
+                    new Entry(json, clock.getAsLong()));
+        }
+    }
+
+    /**
+     * removes all entries of the user
+     * @param user: the user id
+     */
+    synchronized void invalidate(String user) {
+        invalidationCount++;
+        entries.keySet().removeIf(key -> key.user.equals(user));
+    }
+
+    /**
+     * @return number of requests served from the cache
+     */
+    public long getHitCount() {
+        return hitCount.getCount();
+    }
+
+    /**
+     * @return number of requests which had to query the database
+     */
+    public long getMissCount() {
+        return missCount.getCount();
+    }
+
+    /**
+     * @return number of entries currently cached
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * identifies a result by the user, the time range, the resolution and the number of points
+     */
+    private static final class Key {
+
+        private final String user;
+        private final long startTime;
+        private final long endTime;
+        private final Resolution resolution;
+        private final int targetPointCount;
+
+        Key(String user, long startTime, long endTime, Resolution resolution, int targetPointCount) {
+            this.user = user;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.resolution = resolution;
+            this.targetPointCount = targetPointCount;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return startTime == key.startTime && endTime == key.endTime && user.equals(key.user) &&
+                    resolution == key.resolution && targetPointCount == key.targetPointCount;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(user, startTime, endTime, resolution, targetPointCount);
+        }
+    }
+
+    /**
+     * a cached result and the time it has been cached
+     */
+    private static final class Entry {
+
+        private final String json;
+        private final long creationTime;
+
+        Entry(String json, long creationTime) {
+            this.json = json;
+            this.creationTime = creationTime;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package com.vaadin.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downloads the google fit data missing in the database with the fewest requests (see FitRequestPlanner) and stores
+ * it. The requests to google fit are sent
+ * concurrently, while the responses are stored in the database as soon as they arrive, so downloading and storing the
+ * data overlap. The whole download can run in the background (see syncInBackground), so that the view can be
+ * displayed before the data has arrived.
+ */
+public class FitDataFetcher {
+
+    /* maximum number of requests to google fit running at the same time (shared by all sessions) */
+    private static final int MAX_CONCURRENT_REQUESTS = Integer.getInteger("trackfit.fit.maxConcurrentRequests", 4);
+
+    /* thread pool executing the requests to google fit */
+    private static final ExecutorService REQUEST_EXECUTOR = Executors.newFixedThreadPool(MAX_CONCURRENT_REQUESTS,
+            runnable -> {
+                Thread thread = new Thread(runnable, "fit-data-request");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /* thread pool running the downloads of the sessions in the background (see syncInBackground) */
+    private static final ExecutorService SYNC_EXECUTOR = Executors.newFixedThreadPool(
+            Integer.getInteger("trackfit.fit.maxConcurrentSyncs", 8),
+            runnable -> {
+                Thread thread = new Thread(runnable, "fit-data-sync");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /* duration of the downloads in the background and number of failed requests (see Metrics) */
+    private static final Timer SYNC_TIMER = Metrics.timer("fit.sync");
+    private static final Counter FAILED_REQUESTS = Metrics.counter("fit.failedRequests");
+
+    /* number of months kept in the database, i.e. requested when there is no data of the user yet */
+    private static final int MONTHS_OF_FULL_BACKFILL = 12;
+
+    /* number of days up to yesterday which are requested again by every sync, since google fit keeps adding the data
+     * the devices upload late; their stored steps and activities are replaced */
+    static final int REFRESH_DAYS = Integer.getInteger("trackfit.fit.refreshDays", 3);
+
+    /* reports the requests that failed and the syncs that ended with an error */
+    private static final Logger LOGGER = Logger.getLogger(FitDataFetcher.class.getName());
+
+    /**
+     * gets notified whenever the response of a request has been stored in the database
+     */
+    public interface ProgressListener {
+
+        /**
+         * @param startTime: the start of the stored days (date in UTC)
+         * @param endTime: the end of the stored days (date in UTC)
+         * @param requestsStored: number of requests stored so far
+         * @param requestsTotal: number of requests to store in total
+         */
+        void rangeStored(long startTime, long endTime, int requestsStored, int requestsTotal);
+
+        /**
+         * the request of a range failed or its response could not be stored; the other requests go on, the days are
+         * requested again by the next sync. Logs the error by default.
+         * @param startTime: the start of the requested days (date in UTC)
+         * @param endTime: the end of the requested days (date in UTC)
+         * @param cause: the error of the request or of the database
+         */
+        default void rangeFailed(long startTime, long endTime, Exception cause) {
+            LOGGER.log(Level.WARNING, "Error while downloading Fit Data of " + startTime + " - " + endTime, cause);
+        }
+
+        /**
+         * the sync has ended, whatever the outcome: all requests are stored or failed, there was nothing to request,
+         * the sync failed or it was cancelled (once it had started)
+         */
+        default void syncFinished() {
+        }
+    }
+
+    private final DataRequest dataRequest;      // sends the requests to google fit
+    private final DbConnector dbConnector;      // stores the responses in the database
+
+    /**
+     * @param dataRequest: the data request for the current user
+     * @param dbConnector: the database connector for the current user
+     */
+    public FitDataFetcher(DataRequest dataRequest, DbConnector dbConnector) {
+        this.dataRequest = dataRequest;
+        this.dbConnector = dbConnector;
+    }
+
+    /**
+     * brings the data of the last year of the current user in the database up to date: the days not stored yet are
+     * requested with the fewest requests (see FitRequestPlanner), e.g. the whole year on the first login of the user,
+     * the days since the last login and days whose request failed before, and the most recent REFRESH_DAYS days are
+     * requested again
+     * @param progressListener: gets notified after each stored or failed request and when the sync has ended
+     */
+    public void sync(ProgressListener progressListener) {
+        try {
+            fetchPlan(planSync(), progressListener);
+        } finally {
+            progressListener.syncFinished();
+        }
+    }
+
+    /**
+     * @return the requests needed to bring the data of the last year of the current user up to date, the most recent
+     * one first; the last REFRESH_DAYS days are always requested, even if they are stored
+     */
+    List<FitRequestPlanner.DayRange> planSync() {
+        return planSync(REFRESH_DAYS);
+    }
+
+    /**
+     * @param refreshDays: the number of days up to yesterday which are requested even if they are stored
+     * @return the requests needed to bring the data of the last year of the current user up to date, the most recent
+     * one first
+     */
+    List<FitRequestPlanner.DayRange> planSync(int refreshDays) {
+        long startOfToday = DataRequest.getStartOfToday().getTimeInMillis();
+        Calendar cal = DataRequest.getStartOfToday();
+        cal.add(Calendar.MONTH, -MONTHS_OF_FULL_BACKFILL);
+        long startOfBackfill = cal.getTimeInMillis();
+
+        // first login of the user: nothing is stored yet
+        List<Long> storedDays = Collections.emptyList();
+        if (dbConnector.extractLatestStoredDay() != null) {
+            // the data might have been stored by an older version without rollups
+            dbConnector.ensureRollups();
+            long startOfRefresh = Math.max(startOfBackfill, startOfToday - refreshDays * DataRequest.DAY_IN_MILLIS);
+            storedDays = dbConnector.extractStoredDays(startOfBackfill, startOfRefresh);
+        }
+        return FitRequestPlanner.plan(startOfBackfill, startOfToday, storedDays,
+                FitRequestPlanner.MAX_DAYS_PER_REQUEST);
+    }
+
+    /**
+     * requests the days of a single range of the plan and stores them; used by BackgroundSync, which spends one
+     * request of the quota at a time
+     * @param range: the days to request, e.g. the first range of planSync
+     * @throws IOException: if the request fails
+     */
+    void fetchRange(FitRequestPlanner.DayRange range) throws IOException {
+        dbConnector.storeDays(dataRequest.getFitDays(range.getStartTime(), range.getEndTime()));
+    }
+
+    /**
+     * runs sync on a background thread
+     * @param progressListener: gets notified after each stored or failed request and when the sync has ended (on the
+     * background thread)
+     * @return the running sync; cancelling it interrupts the download and cancels the remaining requests
+     */
+    public Future<?> syncInBackground(ProgressListener progressListener) {
+        return SYNC_EXECUTOR.submit(() -> {
+            long start = System.nanoTime();
+            try {
+                sync(progressListener);
+            } catch (RuntimeException e) {
+                // nobody might ever ask the future for the result, so at least log the error
+                LOGGER.log(Level.SEVERE, "Error while syncing Fit Data", e);
+                throw e;
+            } finally {
+                SYNC_TIMER.recordSince(start);
+            }
+        });
+    }
+
+    /**
+     * stops all running downloads, e.g. when the application stops
+     */
+    static void shutdown() {
+        SYNC_EXECUTOR.shutdownNow();
+        REQUEST_EXECUTOR.shutdownNow();
+    }
+
+    /**
+     * sends the requests of the plan to google fit and stores their responses in the database. The requests are sent
+     * in the order of the plan; every response is stored as soon as it arrives, regardless of the order of the
+     * requests. A failed request or a response that cannot be stored is reported to the listener and the other
+     * requests go on; once the thread is interrupted, the remaining requests are cancelled.
+     * @param plan: the requests to send, e.g. planned by FitRequestPlanner
+     * @param progressListener: gets notified after each stored or failed request
+     */
+    void fetchPlan(List<FitRequestPlanner.DayRange> plan, ProgressListener progressListener) {
+
+        CompletionService<RangeFitData> completionService = new ExecutorCompletionService<>(REQUEST_EXECUTOR);
+        List<Future<RangeFitData>> requests = new ArrayList<>();
+
+        // send the requests for all ranges; a failed request is handed over with its range
+        for (FitRequestPlanner.DayRange range : plan) {
+            requests.add(completionService.submit(() -> {
+                try {
+                    return new RangeFitData(range, dataRequest.getFitDays(range.getStartTime(), range.getEndTime()),
+                            null);
+                } catch (IOException | RuntimeException e) {
+                    return new RangeFitData(range, null, e);
+                }
+            }));
+        }
+
+        // store the responses in the order they arrive
+        int requestsStored = 0;
+        try {
+            for (int i = 0; i < plan.size(); i++) {
+                RangeFitData rangeFitData = completionService.take().get();
+                FitRequestPlanner.DayRange range = rangeFitData.range;
+                Exception failure = rangeFitData.failure;
+                if (failure == null) {
+                    try {
+                        dbConnector.storeDays(rangeFitData.fitDays);
+                    } catch (RuntimeException e) {
+                        failure = e;
+                    }
+                }
+                if (failure != null) {
+                    FAILED_REQUESTS.increment();
+                    progressListener.rangeFailed(range.getStartTime(), range.getEndTime(), failure);
+                    continue;
+                }
+                requestsStored++;
+                progressListener.rangeStored(range.getStartTime(), range.getEndTime(), requestsStored, plan.size());
+            }
+        } catch (InterruptedException e) {
+            // we are not interested in the remaining ranges anymore
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // the requests hand over their errors, so only an error of the executor itself ends up here
+            throw new IllegalStateException("Fit Data request failed", e.getCause());
+        } finally {
+            // nothing is left running after an interruption or an error of the listener
+            requests.forEach(request -> request.cancel(true));
+        }
+    }
+
+    /**
+     * holds the response of google fit for a single request
+     */
+    private static class RangeFitData {
+
+        private final FitRequestPlanner.DayRange range;     // the requested days
+        private final List<FitDay> fitDays;                 // the days of the response of google fit
+        private final Exception failure;                    // the error of the request, null if it succeeded
+
+        RangeFitData(FitRequestPlanner.DayRange range, List<FitDay> fitDays, Exception failure) {
+            this.range = range;
+            this.fitDays = fitDays;
+            this.failure = failure;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.vaadin.model;
+
+import org.bson.Document;
+
+import java.util.List;
+
+/**
+ * Stores the users, their OAuth credentials, their steps and activities by day and the statistics of all users by day
+ * (the sums for the mean and the std error of mean of the steps). DbConnector uses the store selected by
+ * FitDataStores: MongoDB (MongoFitDataStore) or an embedded SQLite database (SqliteFitDataStore).
+ *
+ * The documents returned for the charts hold the fields startDateInUTC, steps, activities (the durations by activity),
+ * averageSteps, stdErrorOfMean and the quartiles of the steps of all users (lowerQuartileSteps, medianSteps and
+ * upperQuartileSteps, see StepsSketch) and the statistics of the cohort of the user (cohortAverageSteps,
+ * cohortStdErrorOfMean and cohortMedianSteps, see CohortStats); for the resolutions WEEK and MONTH the steps and
+ * activities are the daily averages within the period.
+ */
+public interface FitDataStore {
+
+    /**
+     * stores a new user or updates the fields (name, email, profile picture) of a stored user
+     * @param googleUserData: the user data provided from google in json format
+     */
+    void storeUser(String googleUserData);
+
+    /**
+     * @param user: the id of the user
+     * @return whether the user data of the user is stored
+     */
+    boolean hasUser(String user);
+
+    /**
+     * @param user: the id of the user
+     * @return the link to the profile picture of the user
+     */
+    String extractUserPicture(String user);
+
+    /**
+     * @param user: the id of the user
+     * @return the name of the user
+     */
+    String extractUserName(String user);
+
+    /**
+     * stores the OAuth credential of the user (see DbCredentialStore), replacing a stored one
+     * @param user: the id of the user
+     * @param credential: the fields accessToken, refreshToken and expirationTimeMilliseconds; each might be null
+     */
+    void storeCredential(String user, Document credential);
+
+    /**
+     * @param user: the id of the user
+     * @return the credential of the user as stored by storeCredential; null if there is none
+     */
+    Document extractCredential(String user);
+
+    /**
+     * @return the ids of all users with a stored credential
+     */
+    List<String> extractCredentialUsers();
+
+    /**
+     * removes the credential of the user, e.g. after the user revoked the access
+     * @param user: the id of the user
+     */
+    void deleteCredential(String user);
+
+    /**
+     * stores the time of the latest login of the user, e.g. to keep the data of the recently active users up to date
+     * (see BackgroundSync)
+     * @param user: the id of the user
+     * @param loginTime: the time of the login in milliseconds
+     */
+    void storeLogin(String user, long loginTime);
+
+    /**
+     * @param time: the earliest time of a login in milliseconds
+     * @return the ids of the users whose latest login (see storeLogin) is at or after the time
+     */
+    List<String> extractUsersLoggedInSince(long time);
+
+    /**
+     * stores what is known about the data sources of the user at google fit (see DataSources), replacing the stored
+     * document
+     * @param user: the id of the user
+     * @param dataSources: the fields hasActivitySegments (boolean) and checkedAtMillis (the time of the discovery)
+     */
+    void storeDataSources(String user, Document dataSources);
+
+    /**
+     * @param user: the id of the user
+     * @return the data sources of the user as stored by storeDataSources; null if there is nothing stored
+     */
+    Document extractDataSources(String user);
+
+    /**
+     * stores the days of the user. The steps of a new day are added to the statistics of all users; a stored day with
+     * other steps (e.g. one of the days requested again, see FitDataFetcher.REFRESH_DAYS) gets the new steps and the
+     * statistics the difference. The activities of a day are replaced.
+     * @param user: the id of the user
+     * @param days: the days to store
+     */
+    void storeDays(String user, List<FitDay> days);
+
+    /**
+     * makes sure the weekly and monthly data of the user can be extracted, e.g. by rebuilding rollups missing for data
+     * stored by an older version
+     * @param user: the id of the user
+     * @return whether stored data of the user has changed
+     */
+    boolean ensureRollups(String user);
+
+    /**
+     * @param user: the id of the user
+     * @return the date in UTC of the latest day stored, or null if there is no data of the user yet
+     */
+    Long extractLatestStoredDay(String user);
+
+    /**
+     * @param user: the id of the user
+     * @param startTime: the start of the interval (date in UTC)
+     * @param endTime: the end of the interval (date in UTC)
+     * @return the dates in UTC of the days of the user stored within the interval, sorted
+     */
+    List<Long> extractStoredDays(String user, long startTime, long endTime);
+
+    /**
+     * TODO: experimental!
+     * @return the menu items which should be created and displayed (see MainView)
+     */
+    List<Document> extractMenuItems();
+
+    /**
+     * extracts the data of the user within the range of startTime and endTime
+     * @param user: the id of the user
+     * @param startTime: the start of the interval (date in UTC)
+     * @param endTime: the end of the interval (date in UTC)
+     * @param resolution: the resolution of the data
+     * @return list of documents (one for each day, week or month) sorted by date
+     */
+    List<Document> extractDays(String user, long startTime, long endTime, Resolution resolution);
+
+    /**
+     * returns the data of the user within the range of startTime and endTime day by day; the days are read while
+     * iterating, so the iterator has to be closed
+     * @param user: the id of the user
+     * @param startTime: the start of the interval (date in UTC)
+     * @param endTime: the end of the interval (date in UTC)
+     * @return the documents (one for each day) sorted by date
+     */
+    CloseableIterator<Document> iterateDays(String user, long startTime, long endTime);
+
+    /**
+     * closes the connections of the store
+     */
+    void close();
+}
@@ -0,0 +1,53 @@
+package com.vaadin.model;
+
+/**
+ * Holds the store of the data shared by all sessions (see FitDataStore). The store is selected with the system
+ * property trackfit.storage:
+ *      - mongo (default): MongoDB, see DbConnectionPool for its configuration
+ *      - mongo-buckets: MongoDB with one document per user and month (see BucketedMongoFitDataStore); existing data
+ *        is copied with BucketMigration
+ *      - sqlite: an embedded SQLite database in the file given by trackfit.sqlite.path (default: trackFit.db)
+ */
+public final class FitDataStores {
+
+    /* the store shared by all sessions; created on first use */
+    private static FitDataStore store;
+
+    private FitDataStores() {
+    }
+
+    /**
+     * returns the store; creates it if this has not happened yet
+     * @return the store selected by trackfit.storage
+     */
+    public static synchronized FitDataStore get() {
+        if (store == null) {
+            String storage = System.getProperty("trackfit.storage", "mongo");
+            switch (storage) {
+                case "mongo":
+                    store = new MongoFitDataStore();
+                    break;
+                case "mongo-buckets":
+                    store = new BucketedMongoFitDataStore();
+                    break;
+                case "sqlite":
+                    store = new SqliteFitDataStore(System.getProperty("trackfit.sqlite.path", "trackFit.db"));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown storage " + storage
+                            + " (use mongo, mongo-buckets or sqlite)");
+            }
+        }
+        return store;
+    }
+
+    /**
+     * closes the store and all of its connections
+     */
+    static synchronized void close() {
+        if (store != null) {
+            store.close();
+            store = null;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.vaadin.model;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The google fit data of a single day (a bucket of the aggregate response, see FitResponseParser): the steps and the
+ * duration of each activity in milliseconds
+ */
+public final class FitDay {
+
+    private final long startDateInUTC;              // start of the day in milliseconds
+    private final long endDateInUTC;                // end of the day in milliseconds
+    private final int steps;                        // the steps; -1 if google fit has no steps for the day
+    private final Map<String, Integer> activities;  // duration of the activities by their name (see ACTIVITY_TYPES)
+
+    /**
+     * @param startDateInUTC: start of the day in milliseconds
+     * @param endDateInUTC: end of the day in milliseconds
+     * @param steps: the steps; -1 if there are none
+     * @param activities: duration of the activities by their name
+     */
+    FitDay(long startDateInUTC, long endDateInUTC, int steps, Map<String, Integer> activities) {
+        this.startDateInUTC = startDateInUTC;
+        this.endDateInUTC = endDateInUTC;
+        this.steps = steps;
+        this.activities = Collections.unmodifiableMap(activities);
+    }
+
+    public long getStartDateInUTC() {
+        return startDateInUTC;
+    }
+
+    public long getEndDateInUTC() {
+        return endDateInUTC;
+    }
+
+    public int getSteps() {
+        return steps;
+    }
+
+    public Map<String, Integer> getActivities() {
+        return activities;
+    }
+}
@@ -0,0 +1,97 @@
+package com.vaadin.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Plans the aggregate requests to google fit for the days missing in the database (see FitDataFetcher.sync): the
+ * fewest requests covering every missing day, where each request spans at most trackfit.fit.maxDaysPerRequest days
+ * (default: 90), the longest time span google fit accepts for an aggregate request by days. Gaps lying closer together
+ * are merged into a single request, even if some stored days lie in between (storing them again keeps their steps,
+ * see FitDataStore.storeDays); ranges of stored days which are not needed to join gaps are never requested.
+ *
+ * The requests are placed greedily from the most recent missing day backwards: each request starts with the latest
+ * day not covered yet and reaches back as far as allowed, so the most recent data arrives with the first request. As
+ * every request covers as many missing days as possible, no plan needs fewer requests.
+ */
+final class FitRequestPlanner {
+
+    /* the longest time span of an aggregate request in days, i.e. the most buckets of a day */
+    static final int MAX_DAYS_PER_REQUEST = Integer.getInteger("trackfit.fit.maxDaysPerRequest", 90);
+
+    private FitRequestPlanner() {
+    }
+
+    /**
+     * @param startTime: the start of the first day to have in the database (date in UTC)
+     * @param endTime: the end of the last day to have in the database (date in UTC), e.g. the start of today
+     * @param storedDays: the dates in UTC of the days already stored within the interval
+     * @param maxDaysPerRequest: the longest time span of a request in days
+     * @return the requests covering all days of the interval which are not stored, the most recent one first; empty
+     * if all days are stored
+     */
+    static List<DayRange> plan(long startTime, long endTime, Collection<Long> storedDays, int maxDaysPerRequest) {
+        Set<Long> stored = storedDays instanceof Set ? (Set<Long>) storedDays : new HashSet<>(storedDays);
+        long maxSpan = maxDaysPerRequest * DataRequest.DAY_IN_MILLIS;
+        List<DayRange> plan = new ArrayList<>();
+
+        long requestEnd = -1;           // the end of the request being planned; -1 if there is none
+        long earliestMissingDay = -1;   // the earliest missing day covered by that request
+        for (long day = endTime - DataRequest.DAY_IN_MILLIS; day >= startTime; day -= DataRequest.DAY_IN_MILLIS) {
+            if (stored.contains(day)) {
+                continue;
+            }
+
+            // the missing day does not fit into the request anymore; it ends with the earliest day it covers
+            if (requestEnd >= 0 && requestEnd - day > maxSpan) {
+                plan.add(new DayRange(earliestMissingDay, requestEnd));
+                requestEnd = -1;
+            }
+            if (requestEnd < 0) {
+                requestEnd = day + DataRequest.DAY_IN_MILLIS;
+            }
+            earliestMissingDay = day;
+        }
+        if (requestEnd >= 0) {
+            plan.add(new DayRange(earliestMissingDay, requestEnd));
+        }
+        return plan;
+    }
+
+    /**
+     * a request of the plan: the days from startTime (inclusive) to endTime (exclusive)
+     */
+    static final class DayRange {
+
+        private final long startTime;       // the start of the first day (date in UTC)
+        private final long endTime;         // the end of the last day (date in UTC)
+
+        DayRange(long startTime, long endTime) {
+            this.startTime = startTime;
+            this.endTime = endTime;
+        }
+
+        long getStartTime() {
+            return startTime;
+        }
+
+        long getEndTime() {
+            return endTime;
+        }
+
+        /**
+         * @return number of days of the range
+         */
+        int getDays() {
+            return (int) ((endTime - startTime) / DataRequest.DAY_IN_MILLIS);
+        }
+
+        @Override
+        public String toString() {
+            return "[" + startTime + ", " + endTime + ")";
+        }
+    }
+}
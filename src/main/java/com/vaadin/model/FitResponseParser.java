@@ -0,0 +1,208 @@
+package com.vaadin.model;
+
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the aggregate responses of google fit (see DataRequest) token by token, while they are read from the
+ * connection, and keeps only what is stored in the database: a FitDay for each bucket. The response looks like
+ *      {"bucket": [{"startTimeMillis": "1510185600000", "endTimeMillis": "1510272000000", "dataset": [
+ *          {"point": [{"dataTypeName": "com.google.step_count.delta", "value": [{"intVal": 489}]}]},
+ *          {"point": [{"dataTypeName": "com.google.activity.summary",
+ *                      "value": [{"intVal": 7}, {"intVal": 2153308}, {"intVal": 3}]}, ...]}]}, ...]}
+ * where the values of an activity are its type, its duration in milliseconds and the number of segments.
+ */
+public final class FitResponseParser {
+
+    /* data type of the steps; all other points hold activities */
+    private static final String STEPS_DATA_TYPE = "com.google.step_count.delta";
+
+    // see https://developers.google.com/fit/rest/v1/reference/activity-types for a list of activity types
+    // maps the integer to the corresponding activity
+    static final Map<Integer, String> ACTIVITY_TYPES = new HashMap<Integer, String>() {
+        {
+            // TODO: to extract more activities from google fit simply add them to this hash map
+            put(0, "in_vehicle");
+            put(1, "on_bicycle");
+            put(2, "on_foot");
+            put(8, "running");
+            put(3, "still");
+            //put(5, "tilting");
+            //put(4, "unknown");
+            put(7, "walking");
+            put(72, "sleeping");
+    /*        put(109, "light_sleep");
+            put(110, "deep_sleep");
+            put(111, "REM_sleep");
+            put(112, "awake_during_sleep_cycle");*/
+        }
+    };
+
+    private FitResponseParser() {
+    }
+
+    /**
+     * parses the aggregate response; the stream is closed afterwards
+     * @param response: the aggregate response in json format
+     * @return the days of the response in the order of the buckets
+     */
+    public static List<FitDay> parse(InputStream response) throws IOException {
+        List<FitDay> days = new ArrayList<>();
+        JsonParser parser = ApiRequest.JSON_FACTORY.createJsonParser(response, StandardCharsets.UTF_8);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("The aggregate response is not a json object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (field.equals("bucket") && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        days.add(parseBucket(parser));
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } finally {
+            parser.close();
+        }
+        return days;
+    }
+
+    /**
+     * parses a bucket (a day); the parser is positioned at the start of the bucket object
+     * @param parser: the parser
+     * @return the day
+     */
+    private static FitDay parseBucket(JsonParser parser) throws IOException {
+        long startDateInUTC = 0;
+        long endDateInUTC = 0;
+        int[] steps = {-1};
+        Map<String, Integer> activities = new HashMap<>();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "startTimeMillis":
+                    // int64 values are sent as strings
+                    startDateInUTC = Long.parseLong(parser.getText());
+                    break;
+                case "endTimeMillis":
+                    endDateInUTC = Long.parseLong(parser.getText());
+                    break;
+                case "dataset":
+                    if (value == JsonToken.START_ARRAY) {
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            parseDataset(parser, steps, activities);
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        return new FitDay(startDateInUTC, endDateInUTC, steps[0], activities);
+    }
+
+    /**
+     * parses a data set of a bucket and adds its points to the steps or the activities
+     * @param parser: the parser positioned at the start of the data set object
+     * @param steps: holds the steps of the day
+     * @param activities: the durations of the activities of the day
+     */
+    private static void parseDataset(JsonParser parser, int[] steps, Map<String, Integer> activities)
+            throws IOException {
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (field.equals("point") && value == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    parsePoint(parser, steps, activities);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * parses a point of a data set; the data type might follow the values, so both are read before the point is added
+     * to the steps or the activities
+     * @param parser: the parser positioned at the start of the point object
+     * @param steps: holds the steps of the day
+     * @param activities: the durations of the activities of the day
+     */
+    private static void parsePoint(JsonParser parser, int[] steps, Map<String, Integer> activities)
+            throws IOException {
+
+        String dataTypeName = null;
+        int[] intValues = new int[2];   // we need at most the first two values (activity type and duration)
+        int valueCount = 0;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (field.equals("dataTypeName")) {
+                dataTypeName = parser.getText();
+            } else if (field.equals("value") && value == JsonToken.START_ARRAY) {
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    Integer intVal = parseIntVal(parser);
+                    if (valueCount < intValues.length) {
+                        intValues[valueCount] = intVal == null ? 0 : intVal;
+                    }
+                    valueCount++;
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if (valueCount == 0) {
+            return;
+        }
+
+        // we only have one step entry, so simply setting the steps is fine
+        if (STEPS_DATA_TYPE.equals(dataTypeName)) {
+            steps[0] = intValues[0];
+
+        // we have activity data; we only keep the activities of ACTIVITY_TYPES
+        } else if (valueCount > 1) {
+            String activity = ACTIVITY_TYPES.get(intValues[0]);
+            if (activity != null) {
+                activities.merge(activity, intValues[1], Integer::sum);
+            }
+        }
+    }
+
+    /**
+     * parses a value of a point
+     * @param parser: the parser positioned at the start of the value object
+     * @return the intVal of the value or null, if it has none
+     */
+    private static Integer parseIntVal(JsonParser parser) throws IOException {
+        Integer intVal = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if (field.equals("intVal")) {
+                intVal = parser.getIntValue();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return intVal;
+    }
+}
@@ -0,0 +1,70 @@
+package com.vaadin.model;
+
+/**
+ * The buckets of the log-linear histograms of Timer (durations) and StepsSketch (steps): the first 2^subBucketBits
+ * values have a bucket each, above them every power of two is split into 2^subBucketBits buckets of the same width. A
+ * bucket is therefore at most 1/2^subBucketBits as wide as its smallest value.
+ */
+final class LogLinearBuckets {
+
+    private final int subBucketBits;    // the number of buckets per power of two is 2^subBucketBits
+    private final int subBuckets;
+
+    /**
+     * @param subBucketBits: the number of buckets per power of two is 2^subBucketBits
+     */
+    LogLinearBuckets(int subBucketBits) {
+        this.subBucketBits = subBucketBits;
+        this.subBuckets = 1 << subBucketBits;
+    }
+
+    /**
+     * @param valueBits: the bits of the values, e.g. 32 for int values
+     * @return the number of buckets needed for all positive values with valueBits bits
+     */
+    int countFor(int valueBits) {
+        return (valueBits - subBucketBits) * subBuckets;
+    }
+
+    /**
+     * @param value: the value (not negative)
+     * @return the index of the bucket of the value
+     */
+    int bucketOf(long value) {
+        // the first buckets hold a single value each
+        if (value < subBuckets) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - subBucketBits)) & (subBuckets - 1);
+        return (exponent - subBucketBits + 1) * subBuckets + subBucket;
+    }
+
+    /**
+     * @param bucket: the index of a bucket
+     * @return the smallest value of the bucket
+     */
+    long lowerBoundOf(int bucket) {
+        if (bucket < subBuckets) {
+            return bucket;
+        }
+        int exponent = bucket / subBuckets + subBucketBits - 1;
+        long subBucket = bucket % subBuckets;
+        return (subBuckets + subBucket) << (exponent - subBucketBits);
+    }
+
+    /**
+     * @param bucket: the index of a bucket
+     * @return the largest value of the bucket
+     */
+    long upperBoundOf(int bucket) {
+        if (bucket < subBuckets) {
+            return bucket;
+        }
+        int exponent = bucket / subBuckets + subBucketBits - 1;
+        long subBucket = bucket % subBuckets;
+        long upperBound = ((subBuckets + subBucket + 1) << (exponent - subBucketBits)) - 1;
+        // the last bucket of long values ends at Long.MAX_VALUE
+        return upperBound < 0 ? Long.MAX_VALUE : upperBound;
+    }
+}
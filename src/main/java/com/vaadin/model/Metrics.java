@@ -0,0 +1,128 @@
+package com.vaadin.model;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds the timers and counters of the application (e.g. the requests to google fit, storing and extracting the data,
+ * the csv export and drawing the charts). They are registered with JMX under the domain com.vaadin.trackfit and
+ * shown by MetricsServlet.
+ *
+ * The names are dot separated, starting with the area they belong to: fit (requests to google fit), db (DbConnector),
+ * mongo (the commands sent to MongoDB by collection, see MongoCommandMetrics), export and ui.
+ */
+public final class Metrics {
+
+    /* JMX domain of the timers and counters */
+    private static final String JMX_DOMAIN = "com.vaadin.trackfit";
+
+    private static final ConcurrentMap<String, Timer> TIMERS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * returns the timer with the given name; creates and registers it if it does not exist yet. The callers should
+     * keep the timer instead of looking it up for every duration.
+     * @param name: the name of the timer, e.g. db.storeDays
+     * @return the timer
+     */
+    public static Timer timer(String name) {
+        Timer timer = TIMERS.get(name);
+        if (timer == null) {
+            timer = TIMERS.computeIfAbsent(name, newName -> register("Timer", newName, new Timer()));
+        }
+        return timer;
+    }
+
+    /**
+     * returns the counter with the given name; creates and registers it if it does not exist yet
+     * @param name: the name of the counter, e.g. db.storedDays
+     * @return the counter
+     */
+    public static Counter counter(String name) {
+        Counter counter = COUNTERS.get(name);
+        if (counter == null) {
+            counter = COUNTERS.computeIfAbsent(name, newName -> register("Counter", newName, new Counter()));
+        }
+        return counter;
+    }
+
+    /**
+     * @return the timers sorted by their names
+     */
+    static SortedMap<String, Timer> getTimers() {
+        return new TreeMap<>(TIMERS);
+    }
+
+    /**
+     * @return the counters sorted by their names
+     */
+    static SortedMap<String, Counter> getCounters() {
+        return new TreeMap<>(COUNTERS);
+    }
+
+    /**
+     * removes the timers and counters from JMX, e.g. when the application stops; they keep recording, but are not
+     * visible anymore
+     */
+    static void unregisterAll() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (Map.Entry<String, Timer> timer : TIMERS.entrySet()) {
+            unregister(server, "Timer", timer.getKey());
+        }
+        for (Map.Entry<String, Counter> counter : COUNTERS.entrySet()) {
+            unregister(server, "Counter", counter.getKey());
+        }
+    }
+
+    /**
+     * registers the timer or counter with JMX; the metric is used even if this fails
+     * @param type: Timer or Counter
+     * @param name: the name of the metric
+     * @param metric: the metric
+     * @return the metric
+     */
+    private static <T> T register(String type, String name, T metric) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = objectNameOf(type, name);
+            // e.g. left over from an earlier deployment of the application
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(metric, objectName);
+        } catch (JMException e) {
+            System.out.println("Cannot register " + type + " " + name + " with JMX: " + e.getMessage());
+        }
+        return metric;
+    }
+
+    /**
+     * @param server: the MBean server
+     * @param type: Timer or Counter
+     * @param name: the name of the metric
+     */
+    private static void unregister(MBeanServer server, String type, String name) {
+        try {
+            ObjectName objectName = objectNameOf(type, name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            System.out.println("Cannot unregister " + type + " " + name + " from JMX: " + e.getMessage());
+        }
+    }
+
+    private static ObjectName objectNameOf(String type, String name) throws JMException {
+        return new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+    }
+}
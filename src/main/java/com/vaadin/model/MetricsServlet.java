@@ -0,0 +1,65 @@
+package com.vaadin.model;
+
+import com.mongodb.util.JSON;
+import org.bson.Document;
+
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Map;
+
+/**
+ * Shows the timers and counters of the application (see Metrics) in json format at /metrics, e.g.
+ *      {"timers": {"db.storeDays": {"count": 12, "totalMillis": 1480.2, "meanMillis": 123.4, "maxMillis": 310.5,
+ *                                   "p50Millis": 117.4, "p95Millis": 310.5, "p99Millis": 310.5}, ...},
+ *       "counters": {"db.storedDays": 372, ...}}
+ * The metrics hold no user data, but they are only shown to requests from the local machine unless the system
+ * property trackfit.metrics.allowRemote is set to true.
+ */
+@WebServlet(urlPatterns = "/metrics")
+public class MetricsServlet extends HttpServlet {
+
+    /* whether the metrics are shown to requests from other machines */
+    private static final boolean ALLOW_REMOTE = Boolean.getBoolean("trackfit.metrics.allowRemote");
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!ALLOW_REMOTE && !InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress()) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        Document timers = new Document();
+        for (Map.Entry<String, Timer> entry : Metrics.getTimers().entrySet()) {
+            Timer timer = entry.getValue();
+            timers.append(entry.getKey(), new Document("count", timer.getCount())
+                    .append("totalMillis", round(timer.getTotalMillis()))
+                    .append("meanMillis", round(timer.getMeanMillis()))
+                    .append("maxMillis", round(timer.getMaxMillis()))
+                    .append("p50Millis", round(timer.getPercentile50Millis()))
+                    .append("p95Millis", round(timer.getPercentile95Millis()))
+                    .append("p99Millis", round(timer.getPercentile99Millis())));
+        }
+
+        Document counters = new Document();
+        for (Map.Entry<String, Counter> entry : Metrics.getCounters().entrySet()) {
+            counters.append(entry.getKey(), entry.getValue().getCount());
+        }
+
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        response.getWriter().write(JSON.serialize(new Document("timers", timers).append("counters", counters)));
+    }
+
+    /**
+     * @param millis: a duration in milliseconds
+     * @return the duration rounded to a tenth of a millisecond
+     */
+    private static double round(double millis) {
+        return Math.round(millis * 10) / 10.0;
+    }
+}
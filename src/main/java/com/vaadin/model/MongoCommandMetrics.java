@@ -0,0 +1,82 @@
+package com.vaadin.model;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the commands sent to MongoDB by collection and command, e.g. mongo.steps.aggregate or mongo.days.update (see
+ * Metrics); registered with the client in DbConnectionPool. Commands without a collection (e.g. isMaster) are not
+ * timed.
+ */
+final class MongoCommandMetrics implements CommandListener {
+
+    /* the timers by collection and command name */
+    private final ConcurrentMap<String, ConcurrentMap<String, Timer>> timers = new ConcurrentHashMap<>();
+
+    /* the timers of the running commands by their request id */
+    private final ConcurrentMap<Integer, Timer> runningCommands = new ConcurrentHashMap<>();
+
+    private final Counter failedCommands = Metrics.counter("mongo.failedCommands");
+
+    @Override
+    public void commandStarted(CommandStartedEvent event) {
+        String collection = collectionOf(event.getCommandName(), event.getCommand());
+        if (collection != null) {
+            runningCommands.put(event.getRequestId(), timerOf(collection, event.getCommandName()));
+        }
+    }
+
+    @Override
+    public void commandSucceeded(CommandSucceededEvent event) {
+        Timer timer = runningCommands.remove(event.getRequestId());
+        if (timer != null) {
+            timer.record(event.getElapsedTime(TimeUnit.NANOSECONDS));
+        }
+    }
+
+    @Override
+    public void commandFailed(CommandFailedEvent event) {
+        Timer timer = runningCommands.remove(event.getRequestId());
+        if (timer != null) {
+            timer.record(event.getElapsedTime(TimeUnit.NANOSECONDS));
+        }
+        failedCommands.increment();
+    }
+
+    /**
+     * @param collection: the name of the collection
+     * @param commandName: the name of the command
+     * @return the timer for the command on the collection
+     */
+    private Timer timerOf(String collection, String commandName) {
+        ConcurrentMap<String, Timer> timersOfCollection = timers.get(collection);
+        if (timersOfCollection == null) {
+            timersOfCollection = timers.computeIfAbsent(collection, newCollection -> new ConcurrentHashMap<>());
+        }
+        Timer timer = timersOfCollection.get(commandName);
+        if (timer == null) {
+            timer = timersOfCollection.computeIfAbsent(commandName,
+                    newCommandName -> Metrics.timer("mongo." + collection + "." + newCommandName));
+        }
+        return timer;
+    }
+
+    /**
+     * @param commandName: the name of the command
+     * @param command: the command
+     * @return the collection the command is sent to or null, if the command does not belong to a collection
+     */
+    private static String collectionOf(String commandName, BsonDocument command) {
+        // the cursor of a query is continued by getMore, which names the collection in a separate field
+        BsonValue collection = command.get(commandName.equals("getMore") ? "collection" : commandName);
+        return collection != null && collection.isString() ? collection.asString().getValue() : null;
+    }
+}
@@ -0,0 +1,704 @@
+package com.vaadin.model;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.client.*;
+import com.mongodb.client.model.*;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.*;
+
+import static com.mongodb.client.model.Aggregates.*;
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Projections.*;
+import static com.mongodb.client.model.Updates.*;
+
+/**
+ * Stores the data in MongoDB (see DbConnectionPool for the connection). The collections are:
+ *      - users: the user data provided from google, with the google account id as _id
+ *      - credentials: the OAuth credential of each user, with the google account id as _id (see DbCredentialStore)
+ *      - logins: the time of the latest login of each user (lastLoginMillis), with the google account id as _id
+ *      - data_sources: the data sources of each user at google fit (see DataSources), with the google account id as _id
+ *      - steps: one document per user and day holding the steps
+ *      - activities: one document per user and day holding the durations of the activities
+ *      - days: one document per day holding the sums for the mean and the std error of mean of the steps of all users
+ *        and a quantile sketch of the steps of all users (see StepsSketch)
+ *      - user_rollups and days_rollups: the weekly and monthly rollups (see DbRollups)
+ *      - cohort_days: one document per cohort and day holding the same sums and sketch as the days (see DbCohorts)
+ */
+final class MongoFitDataStore implements FitDataStore {
+
+    /* number of days fetched from the database at once while iterating (e.g. exporting) */
+    private static final int ITERATE_BATCH_SIZE = 500;
+
+    private final MongoDatabase db;                             // the Mongo database
+    private final MongoCollection<Document> userColl;           // collection storing the users
+    private final MongoCollection<Document> credentialColl;     // collection storing the credentials of the users
+    private final MongoCollection<Document> loginColl;          // collection storing the latest logins of the users
+    private final MongoCollection<Document> dataSourceColl;     // collection storing the data sources of the users
+    private final MongoCollection<Document> stepColl;           // collection storing the steps
+    private final MongoCollection<Document> daysColl;           // collection storing the days
+    private final MongoCollection<Document> activityColl;       // collection storing the activities and their duration
+
+    /**
+     * Accesses the DB through the connection pool shared by all sessions (see DbConnectionPool).
+     */
+    MongoFitDataStore() {
+        // get the database; it is created by MongoDB if it doesn't exist yet
+        this.db = DbConnectionPool.getDatabase();
+
+        // get the different collections
+        userColl = db.getCollection("users");
+        credentialColl = db.getCollection("credentials");
+        loginColl = db.getCollection("logins");
+        dataSourceColl = db.getCollection("data_sources");
+        stepColl = db.getCollection("steps");
+        daysColl = db.getCollection("days");
+        activityColl = db.getCollection("activities");
+    }
+
+    @Override
+    public void storeUser(String googleUserData) {
+
+        // parse the json formatted string to a mongodb document
+        Document userDoc = Document.parse(googleUserData);
+
+        // use the google account id as unique id for the database
+        Object user_id = userDoc.get("id");
+        userDoc.append("_id", user_id);
+        userDoc.remove("id");
+
+        // update all fields (name, email, profile pic etc. ), if the user is already in the database
+        // if he's not in the database: insert him
+        userColl.replaceOne(eq("_id", user_id), userDoc, new UpdateOptions().upsert(true));
+    }
+
+    @Override
+    public boolean hasUser(String user) {
+        return userColl.find(eq("_id", user)).projection(include("_id")).first() != null;
+    }
+
+    @Override
+    public String extractUserPicture(String user) {
+        return userColl.find(eq("_id", user)).first().getString("picture");
+    }
+
+    @Override
+    public String extractUserName(String user) {
+        return userColl.find(eq("_id", user)).first().getString("name");
+    }
+
+    @Override
+    public void storeCredential(String user, Document credential) {
+        Document credentialDoc = new Document("_id", user)
+                .append("accessToken", credential.getString("accessToken"))
+                .append("refreshToken", credential.getString("refreshToken"))
+                .append("expirationTimeMilliseconds", credential.get("expirationTimeMilliseconds"));
+        credentialColl.replaceOne(eq("_id", user), credentialDoc, new UpdateOptions().upsert(true));
+    }
+
+    @Override
+    public Document extractCredential(String user) {
+        return credentialColl.find(eq("_id", user)).projection(excludeId()).first();
+    }
+
+    @Override
+    public List<String> extractCredentialUsers() {
+        List<String> users = new ArrayList<>();
+        for (Document credentialDoc : credentialColl.find().projection(include("_id"))) {
+            users.add(credentialDoc.getString("_id"));
+        }
+        return users;
+    }
+
+    @Override
+    public void deleteCredential(String user) {
+        credentialColl.deleteOne(eq("_id", user));
+    }
+
+    @Override
+    public void storeLogin(String user, long loginTime) {
+        loginColl.replaceOne(eq("_id", user), new Document("_id", user).append("lastLoginMillis", loginTime),
+                new UpdateOptions().upsert(true));
+    }
+
+    @Override
+    public List<String> extractUsersLoggedInSince(long time) {
+        List<String> users = new ArrayList<>();
+        for (Document loginDoc : loginColl.find(gte("lastLoginMillis", time)).projection(include("_id"))) {
+            users.add(loginDoc.getString("_id"));
+        }
+        return users;
+    }
+
+    @Override
+    public void storeDataSources(String user, Document dataSources) {
+        Document dataSourcesDoc = new Document("_id", user)
+                .append("hasActivitySegments", dataSources.getBoolean("hasActivitySegments"))
+                .append("checkedAtMillis", dataSources.get("checkedAtMillis"));
+        dataSourceColl.replaceOne(eq("_id", user), dataSourcesDoc, new UpdateOptions().upsert(true));
+    }
+
+    @Override
+    public Document extractDataSources(String user) {
+        return dataSourceColl.find(eq("_id", user)).projection(excludeId()).first();
+    }
+
+    @Override
+    public void storeDays(String user, List<FitDay> days) {
+
+        // collect the steps documents and the activities of all days, so that they can be sent to the database in bulk
+        Map<Long, Document> stepsDocumentsByDate = new LinkedHashMap<>();
+        Map<Long, Map<String, Integer>> activitiesByDate = new HashMap<>();
+
+        for (FitDay day : days) {
+            long dateInUTC = day.getStartDateInUTC();
+
+            // create the document for the steps
+            Document stepsDocument = new Document("user", user)
+                    .append("steps", day.getSteps())
+                    .append("startDateInUTC", dateInUTC)
+                    .append("endDateInUTC", day.getEndDateInUTC());
+
+            // remember the steps and activities for updating the days collection and the rollups
+            stepsDocumentsByDate.put(dateInUTC, stepsDocument);
+            activitiesByDate.put(dateInUTC, day.getActivities());
+        }
+
+        // store the activities in the database with the user id as identifier
+        Map<Long, Map<String, Integer>> replacedActivitiesByDate = replaceActivities(user, activitiesByDate);
+
+        // Update Days Collection
+        storeDaysAndSteps(user, stepsDocumentsByDate, activitiesByDate, replacedActivitiesByDate);
+    }
+
+    /**
+     * stores the activities of the days; the activities of a day stored before are replaced if they have changed
+     * @param user: the id of the user
+     * @param activitiesByDate: the activity durations by their date in UTC
+     * @return the activity durations the changed days were stored with before by their date in UTC
+     */
+    private Map<Long, Map<String, Integer>> replaceActivities(String user,
+                                                             Map<Long, Map<String, Integer>> activitiesByDate) {
+
+        Map<Long, Map<String, Integer>> replacedActivitiesByDate = new HashMap<>();
+        if (activitiesByDate.isEmpty()) {
+            return replacedActivitiesByDate;
+        }
+
+        // the stored activities are compared first (with the (user, dateInUTC) index), as most days requested again
+        // are unchanged
+        Map<Long, Document> storedActivitiesByDate = new HashMap<>();
+        for (Document stored : activityColl.find(and(eq("user", user), in("dateInUTC", activitiesByDate.keySet())))
+                .projection(fields(excludeId(), include("dateInUTC", "activities")))) {
+            storedActivitiesByDate.put(((Number) stored.get("dateInUTC")).longValue(),
+                    (Document) stored.get("activities"));
+        }
+
+        // the new days are inserted in bulk; the writes are independent of each other, so the database does not need
+        // to apply them in order. Each replacement of a changed day returns the activities it replaced, so a day
+        // changed by another session at the same time is counted with the activities it really had.
+        List<WriteModel<Document>> activityWrites = new ArrayList<>();
+        activitiesByDate.forEach((date, activities) -> {
+            Document activityDoc = new Document("user", user)
+                    .append("activities", activities)
+                    .append("dateInUTC", date);
+            Bson activityFilter = and(eq("user", user), eq("dateInUTC", date));
+            Document storedActivities = storedActivitiesByDate.get(date);
+            if (storedActivities == null) {
+                activityWrites.add(new ReplaceOneModel<>(activityFilter, activityDoc,
+                        new UpdateOptions().upsert(true)));
+            } else if (!activitiesOf(storedActivities).equals(activities)) {
+                Document replaced = activityColl.findOneAndReplace(activityFilter, activityDoc,
+                        new FindOneAndReplaceOptions()
+                                .projection(fields(excludeId(), include("activities")))
+                                .returnDocument(ReturnDocument.BEFORE));
+                if (replaced != null) {
+                    replacedActivitiesByDate.put(date, activitiesOf((Document) replaced.get("activities")));
+                }
+            }
+        });
+        if (!activityWrites.isEmpty()) {
+            activityColl.bulkWrite(activityWrites, new BulkWriteOptions().ordered(false));
+        }
+        return replacedActivitiesByDate;
+    }
+
+    /**
+     * @param activities: the activities document of a day; may be null
+     * @return the activity durations of the day by activity
+     */
+    private static Map<String, Integer> activitiesOf(Document activities) {
+        Map<String, Integer> durations = new HashMap<>();
+        if (activities != null) {
+            activities.forEach((activity, duration) -> durations.put(activity, ((Number) duration).intValue()));
+        }
+        return durations;
+    }
+
+    /**
+     * stores the steps and updates the days (basically date, sum of the steps and number of entries) in the database.
+     * The steps of a user are inserted once per day; the sums of the days are updated with atomic increments for the
+     * newly inserted steps, so concurrent ingestions of different users never overwrite each other. A day stored
+     * before with other steps (e.g. one of the days requested again, see FitDataFetcher.REFRESH_DAYS) gets the new
+     * steps, and the sums get the difference. The new and changed days are added to the rollups as well (see
+     * DbRollups).
+     * @param user: the id of the user
+     * @param stepsDocumentsByDate: the documents for the steps (holding the steps of the day) by their date in UTC
+     * @param activitiesByDate: the activity durations by their date in UTC
+     * @param replacedActivitiesByDate: the activity durations the days with changed activities were stored with before
+     */
+    private void storeDaysAndSteps(String user, Map<Long, Document> stepsDocumentsByDate,
+                                   Map<Long, Map<String, Integer>> activitiesByDate,
+                                   Map<Long, Map<String, Integer>> replacedActivitiesByDate) {
+
+        if (stepsDocumentsByDate.isEmpty()) {
+            return;
+        }
+
+        // insert the steps of the user for the days which are not in the database yet; already stored days are
+        // compared below
+        List<Long> dates = new ArrayList<>(stepsDocumentsByDate.keySet());
+        List<WriteModel<Document>> stepWrites = new ArrayList<>();
+        for (Long date : dates) {
+            Bson stepFilter = and(eq("user", user), eq("startDateInUTC", date));
+            stepWrites.add(new UpdateOneModel<>(stepFilter,
+                    new Document("$setOnInsert", stepsDocumentsByDate.get(date)), new UpdateOptions().upsert(true)));
+        }
+
+        // the upserts tell us which days of the user are new; only those are added to the sums of the days. If
+        // another session of the same user inserted a day at the same time, the unique index rejects our insert and
+        // the day is counted by the other session.
+        List<BulkWriteUpsert> insertedSteps;
+        try {
+            insertedSteps = stepColl.bulkWrite(stepWrites, new BulkWriteOptions().ordered(false)).getUpserts();
+        } catch (MongoBulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (error.getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                    throw e;
+                }
+            }
+            insertedSteps = e.getWriteResult().getUpserts();
+        }
+        Map<Long, Integer> stepsByDate = new LinkedHashMap<>();
+        for (BulkWriteUpsert insertedStep : insertedSteps) {
+            Long date = dates.get(insertedStep.getIndex());
+            stepsByDate.put(date, stepsDocumentsByDate.get(date).getInteger("steps"));
+        }
+
+        // the days stored before keep their steps unless they have changed
+        Map<Long, Integer> replacedStepsByDate = replaceChangedSteps(user, stepsDocumentsByDate, stepsByDate.keySet());
+        replacedStepsByDate.keySet().forEach(date ->
+                stepsByDate.put(date, stepsDocumentsByDate.get(date).getInteger("steps")));
+
+        // add the steps of the new days to the sums for calculating the mean and the std error mean and to the sketch
+        // for the percentiles; the changed days replace their old steps
+        List<WriteModel<Document>> dayWrites = new ArrayList<>();
+        stepsByDate.forEach((date, steps) -> dayWrites.add(new UpdateOneModel<>(eq("dateInUTC", date),
+                combine(stepsIncrements(steps, replacedStepsByDate.get(date))), new UpdateOptions().upsert(true))));
+        upsertRetryingDuplicateKeys(daysColl, dayWrites);
+
+        // add the new and changed days to the weekly and monthly rollups and to the days of the cohort of the user
+        new DbRollups(db, user).addDays(stepsByDate, replacedStepsByDate, activitiesByDate, replacedActivitiesByDate);
+        new DbCohorts(db, user).addDays(stepsByDate, replacedStepsByDate);
+    }
+
+    /**
+     * sets the new steps of the days which were stored before with other steps
+     * @param user: the id of the user
+     * @param stepsDocumentsByDate: the documents for the steps by their date in UTC
+     * @param insertedDates: the dates of the days inserted just now
+     * @return the steps the changed days were stored with before by their date in UTC
+     */
+    private Map<Long, Integer> replaceChangedSteps(String user, Map<Long, Document> stepsDocumentsByDate,
+                                                   Set<Long> insertedDates) {
+
+        List<Long> storedDates = new ArrayList<>(stepsDocumentsByDate.keySet());
+        storedDates.removeAll(insertedDates);
+        Map<Long, Integer> replacedStepsByDate = new LinkedHashMap<>();
+        if (storedDates.isEmpty()) {
+            return replacedStepsByDate;
+        }
+
+        // usually the steps of most days are unchanged, so they are compared first and only the changed ones are
+        // written; each write returns the steps it replaced, so a day changed by another session at the same time
+        // is counted with the steps it really had
+        for (Document stored : stepColl.find(and(eq("user", user), in("startDateInUTC", storedDates)))
+                .projection(fields(excludeId(), include("startDateInUTC", "steps")))) {
+            long date = ((Number) stored.get("startDateInUTC")).longValue();
+            int steps = stepsDocumentsByDate.get(date).getInteger("steps");
+            if (((Number) stored.get("steps")).intValue() == steps) {
+                continue;
+            }
+            Document replaced = stepColl.findOneAndUpdate(and(eq("user", user), eq("startDateInUTC", date)),
+                    set("steps", steps), new FindOneAndUpdateOptions()
+                            .projection(fields(excludeId(), include("steps")))
+                            .returnDocument(ReturnDocument.BEFORE));
+            int replacedSteps = ((Number) replaced.get("steps")).intValue();
+            if (replacedSteps != steps) {
+                replacedStepsByDate.put(date, replacedSteps);
+            }
+        }
+        return replacedStepsByDate;
+    }
+
+    /**
+     * builds the increments of the sums for the mean and the std error of mean (field sumsForMeanAndSEM) and of the
+     * sketch (field stepsSketch) of a day, e.g. of the days collection or of a cohort (see DbCohorts)
+     * @param steps: the steps of a user for the day
+     * @param replacedSteps: the steps of the user the day was counted with before; null for a new day of the user
+     * @return the increments adding the steps of the user to the day or replacing the steps counted before
+     */
+    static List<Bson> stepsIncrements(int steps, Integer replacedSteps) {
+        int oldSteps = replacedSteps == null ? 0 : replacedSteps;
+        List<Bson> increments = new ArrayList<>(Arrays.asList(
+                inc("sumsForMeanAndSEM.sum0", replacedSteps == null ? 1.0 : 0.0),
+                inc("sumsForMeanAndSEM.sum1", (double) steps - oldSteps),
+                inc("sumsForMeanAndSEM.sum2", (double) steps * steps - (double) oldSteps * oldSteps)));
+        String bucket = StepsSketch.fieldOf(steps);
+        if (replacedSteps == null) {
+            increments.add(inc("stepsSketch." + bucket, 1));
+        } else if (!bucket.equals(StepsSketch.fieldOf(replacedSteps))) {
+            increments.add(inc("stepsSketch." + bucket, 1));
+            increments.add(inc("stepsSketch." + StepsSketch.fieldOf(replacedSteps), -1));
+        }
+        return increments;
+    }
+
+    /**
+     * sends incrementing upserts (e.g. for the days collection) to the database. Two sessions upserting the same (new)
+     * document at the same time lead to a duplicate key error for one of them; since the document exists afterwards,
+     * the rejected upserts are simply sent again.
+     * @param collection: the collection to write to
+     * @param upserts: the upserts incrementing the documents
+     */
+    static void upsertRetryingDuplicateKeys(MongoCollection<Document> collection,
+                                            List<WriteModel<Document>> upserts) {
+
+        if (upserts.isEmpty()) {
+            return;
+        }
+
+        try {
+            collection.bulkWrite(upserts, new BulkWriteOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            List<WriteModel<Document>> rejectedUpserts = new ArrayList<>();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                if (error.getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                    throw e;
+                }
+                rejectedUpserts.add(upserts.get(error.getIndex()));
+            }
+            collection.bulkWrite(rejectedUpserts, new BulkWriteOptions().ordered(false));
+        }
+    }
+
+    /**
+     * recalculates the sketches of the days from the steps collection; databases set up by an older version hold the
+     * sums of the days only. Days without any steps get an empty sketch.
+     * @param db: the Mongo database
+     */
+    static void rebuildDaysSketches(MongoDatabase db) {
+        MongoCollection<Document> daysColl = db.getCollection("days");
+        List<WriteModel<Document>> writes = new ArrayList<>();
+
+        // the steps of all users are read sorted by date, so only a single sketch is held in memory; the server walks
+        // the whole (startDateInUTC, user) index for the sort instead of sorting the collection in memory
+        Long date = null;
+        StepsSketch sketch = new StepsSketch();
+        for (Document stepsDoc : db.getCollection("steps").find()
+                .sort(Sorts.ascending("startDateInUTC"))
+                .projection(fields(excludeId(), include("startDateInUTC", "steps")))) {
+            long stepsDate = ((Number) stepsDoc.get("startDateInUTC")).longValue();
+            if (date != null && date != stepsDate) {
+                writes.add(new UpdateOneModel<>(eq("dateInUTC", date), set("stepsSketch", sketch.toDocument())));
+                sketch = new StepsSketch();
+            }
+            date = stepsDate;
+            sketch.add(((Number) stepsDoc.get("steps")).intValue());
+        }
+        if (date != null) {
+            writes.add(new UpdateOneModel<>(eq("dateInUTC", date), set("stepsSketch", sketch.toDocument())));
+        }
+
+        if (!writes.isEmpty()) {
+            daysColl.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+        }
+        daysColl.updateMany(exists("stepsSketch", false), set("stepsSketch", new Document()));
+    }
+
+    @Override
+    public boolean ensureRollups(String user) {
+        DbRollups rollups = new DbRollups(db, user);
+        if (!rollups.hasUserRollups()) {
+            rollups.rebuildUserRollups();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Long extractLatestStoredDay(String user) {
+        Document latestDay = stepColl.find(eq("user", user))
+                .sort(Sorts.descending("startDateInUTC"))
+                .projection(fields(excludeId(), include("startDateInUTC")))
+                .first();
+        return latestDay == null ? null : ((Number) latestDay.get("startDateInUTC")).longValue();
+    }
+
+    @Override
+    public List<Long> extractStoredDays(String user, long startTime, long endTime) {
+        List<Long> storedDays = new ArrayList<>();
+        for (Document day : stepColl.find(and(eq("user", user), gte("startDateInUTC", startTime),
+                lt("startDateInUTC", endTime)))
+                .sort(Sorts.ascending("startDateInUTC"))
+                .projection(fields(excludeId(), include("startDateInUTC")))) {
+            storedDays.add(((Number) day.get("startDateInUTC")).longValue());
+        }
+        return storedDays;
+    }
+
+    @Override
+    public List<Document> extractMenuItems() {
+
+        // collection named menu_items should have document with entries like this:
+        /*
+        button_caption: "Sample Chart"      // the caption for the button
+        button_icon: "BOOKMARK"             // the vaadin icon for the button
+        view_title: "Showing sample data"   // the title of the chart which is displayed in the top left corner
+        plot_selected: "LineChart"          // ["LineChart", "StackedBarChart", "CalendarChart"] what kind of plot
+                                               should be drawn
+         */
+
+        List<Document> docList = new ArrayList<>();
+        try (MongoCursor<Document> cursor = db.getCollection("menu_items").find().iterator()) {
+            while (cursor.hasNext()) {
+                docList.add(cursor.next());
+            }
+        }
+        return docList;
+    }
+
+    @Override
+    public List<Document> extractDays(String user, long startTime, long endTime, Resolution resolution) {
+        List<Document> docList;
+        if (resolution != Resolution.DAY) {
+            docList = new DbRollups(db, user).extract(startTime, endTime, resolution);
+        } else {
+            docList = new ArrayList<>();
+            try (CloseableIterator<Document> days = new ActivityMergingIterator(
+                    stepColl.aggregate(dailyPipeline(user, startTime, endTime, true)).iterator(),
+                    activitiesOf(user, startTime, endTime))) {
+                while (days.hasNext()) {
+                    Document document = days.next();
+                    StepsSketch.appendQuartiles(document, StepsSketch.of((Document) document.remove("stepsSketch")));
+                    docList.add(document);
+                }
+            }
+        }
+        new DbCohorts(db, user).appendTo(docList, resolution);
+        return docList;
+    }
+
+    @Override
+    public CloseableIterator<Document> iterateDays(String user, long startTime, long endTime) {
+        MongoCursor<Document> days = stepColl.aggregate(dailyPipeline(user, startTime, endTime, false))
+                .allowDiskUse(true)
+                .batchSize(ITERATE_BATCH_SIZE)
+                .iterator();
+        return new ActivityMergingIterator(days, activitiesOf(user, startTime, endTime));
+    }
+
+    @Override
+    public void close() {
+        DbConnectionPool.close();
+    }
+
+    /**
+     * reads the activities of the user within the interval with a single query on the (user, dateInUTC) index of the
+     * activities collection, which returns them in the order of the days on every supported server version
+     * @param user: the id of the user
+     * @param startTime: the start of the interval (date in UTC)
+     * @param endTime: the end of the interval (date in UTC)
+     * @return the activities of the days sorted by date (fields dateInUTC and activities)
+     */
+    MongoCursor<Document> activitiesOf(String user, long startTime, long endTime) {
+        return activityColl.find(and(eq("user", user), gte("dateInUTC", startTime), lt("dateInUTC", endTime)))
+                .sort(Sorts.ascending("dateInUTC"))
+                .projection(fields(excludeId(), include("dateInUTC", "activities")))
+                .batchSize(ITERATE_BATCH_SIZE)
+                .iterator();
+    }
+
+    /**
+     * builds the aggregation pipeline on the steps collection returning the data of the user day by day; the
+     * activities are merged into the days afterwards (see activitiesOf and ActivityMergingIterator)
+     * @param user: the id of the user
+     * @param startTime: the start of the interval (date in UTC)
+     * @param endTime: the end of the interval (date in UTC)
+     * @param withSketch: whether the sketch of the steps of all users (field stepsSketch) is returned as well
+     * @return the stages of the pipeline; the resulting documents (sorted by date) hold the date (in milliseconds),
+     * the steps of the user, the average steps of the other users and the std error of mean for it
+     */
+    List<Bson> dailyPipeline(String user, long startTime, long endTime, boolean withSketch) {
+
+        // reshape the document by including only the startMillis, steps and sums fields; the lookup projects onto an
+        // array holding a single entry, so we simply take the first element of it
+        List<Bson> joinedFields = new ArrayList<>(Arrays.asList(
+                excludeId(),
+                include("startDateInUTC"),
+                include("steps"),
+                computed("sums", firstElementOf("$means.sumsForMeanAndSEM"))));
+
+        // calculate the mean and the stdErrorOfMean (SEM) of the steps of all users from the sums
+        List<Bson> resultFields = new ArrayList<>(Arrays.asList(
+                include("startDateInUTC"),
+                include("steps"),
+                computed("averageSteps", meanOfSums("$sums")),
+                computed("stdErrorOfMean", stdErrorOfMeanOfSums("$sums"))));
+
+        // the sketches are converted to percentiles by extractDays; the export does not need them
+        if (withSketch) {
+            joinedFields.add(computed("stepsSketch", firstElementOf("$means.stepsSketch")));
+            resultFields.add(include("stepsSketch"));
+        }
+
+        return Arrays.asList(
+
+                // we only want the data from the user within the time range startTime to endTime
+                match(
+                        and(
+                                eq("user", user),
+                                gte("startDateInUTC", startTime),
+                                lte("endDateInUTC", endTime)
+                        )
+                ),
+
+                // the days of the user are matched on the (user, startDateInUTC) index, which returns them in order
+                // anyway
+                sort(Sorts.ascending("startDateInUTC")),
+
+                // we want the average steps from the days collection
+                lookup(
+                        "days", "startDateInUTC", "dateInUTC", "means"
+                ),
+
+                project(fields(joinedFields)),
+                project(fields(resultFields))
+        );
+    }
+
+    /**
+     * merges the activities of the user into the days of the daily pipeline; both are sorted by date, so they are
+     * walked side by side and never held in memory as a whole
+     */
+    static final class ActivityMergingIterator implements CloseableIterator<Document> {
+
+        private final MongoCursor<Document> days;           // the days of the daily pipeline sorted by date
+        private final MongoCursor<Document> activities;     // the activities of the user sorted by date
+        private Document nextActivities;                    // the activities not merged yet; null if there are none
+
+        /**
+         * @param days: the days of the daily pipeline (see dailyPipeline)
+         * @param activities: the activities of the same user and interval (see activitiesOf)
+         */
+        ActivityMergingIterator(MongoCursor<Document> days, MongoCursor<Document> activities) {
+            this.days = days;
+            this.activities = activities;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return days.hasNext();
+        }
+
+        @Override
+        public Document next() {
+            Document day = days.next();
+            long date = ((Number) day.get("startDateInUTC")).longValue();
+
+            // skip the activities of days without steps
+            while ((nextActivities == null || dateOf(nextActivities) < date) && activities.hasNext()) {
+                nextActivities = activities.next();
+            }
+            if (nextActivities == null || dateOf(nextActivities) != date) {
+                return day;
+            }
+
+            // the activities follow the steps, as they did when they were joined within the pipeline
+            Document merged = new Document();
+            for (Map.Entry<String, Object> field : day.entrySet()) {
+                merged.put(field.getKey(), field.getValue());
+                if (field.getKey().equals("steps")) {
+                    merged.put("activities", nextActivities.get("activities"));
+                }
+            }
+            nextActivities = null;
+            return merged;
+        }
+
+        @Override
+        public void close() {
+            days.close();
+            activities.close();
+        }
+
+        /**
+         * @param activities: a document of the activities collection
+         * @return its date in UTC
+         */
+        private static long dateOf(Document activities) {
+            return ((Number) activities.get("dateInUTC")).longValue();
+        }
+    }
+
+    /**
+     * helper function for the aggregation pipelines, returns the first element of the array referenced by the field
+     * path; if the array is empty, the field is simply missing in the resulting document
+     * @param arrayFieldPath: the path to the array, e.g. "$means.mean"
+     * @return aggregation expression evaluating to the first element of the array
+     */
+    static Document firstElementOf(String arrayFieldPath) {
+        return new Document("$arrayElemAt", Arrays.asList(arrayFieldPath, 0));
+    }
+
+    /**
+     * helper function for the aggregation pipelines, calculates the mean from the sums of a day
+     * @param sumsPath: the path to the sums, e.g. "$sums"
+     * @return aggregation expression evaluating to sum1 / sum0
+     */
+    static Document meanOfSums(String sumsPath) {
+        return new Document("$divide", Arrays.asList(sumsPath + ".sum1", sumsPath + ".sum0"));
+    }
+
+    /**
+     * helper function for the aggregation pipelines, calculates the std error of mean from the sums of a day:
+     * sqrt((sum0 * sum2 - sum1 * sum1) / (sum0 * (sum0 - 1))) / sqrt(sum0); we need at least two datapoints, otherwise
+     * the std error of mean is 0
+     * @param sumsPath: the path to the sums, e.g. "$sums"
+     * @return aggregation expression evaluating to the std error of mean
+     */
+    static Document stdErrorOfMeanOfSums(String sumsPath) {
+        String sum0 = sumsPath + ".sum0";
+        String sum1 = sumsPath + ".sum1";
+        String sum2 = sumsPath + ".sum2";
+
+        Document variance = new Document("$divide", Arrays.asList(
+                new Document("$subtract", Arrays.asList(
+                        new Document("$multiply", Arrays.asList(sum0, sum2)),
+                        new Document("$multiply", Arrays.asList(sum1, sum1)))),
+                new Document("$multiply", Arrays.asList(sum0,
+                        new Document("$subtract", Arrays.asList(sum0, 1))))));
+
+        // rounding errors might lead to a slightly negative variance if all users have the same steps
+        Document stdDev = new Document("$sqrt", new Document("$max", Arrays.asList(0, variance)));
+
+        return new Document("$cond", Arrays.asList(
+                new Document("$gte", Arrays.asList(sum0, 2)),
+                new Document("$divide", Arrays.asList(stdDev, new Document("$sqrt", sum0))),
+                0));
+    }
+}
@@ -0,0 +1,125 @@
+package com.vaadin.model;
+
+import org.bson.Document;
+
+import java.util.*;
+
+/**
+ * Sums up days by week or month for the stores which have no rollups (SqliteFitDataStore, BucketedMongoFitDataStore):
+ * the steps and activity durations of the user, the sums for the mean and the std error of mean of all users and the
+ * sketches of the steps of all users (see StepsSketch). The resulting documents look like the ones of
+ * DbRollups.extract, i.e. the steps and activities are the daily averages within the period.
+ */
+final class PeriodSums {
+
+    private final Resolution resolution;                                      // the resolution of the periods
+    private final Map<Long, long[]> stepsByPeriod = new TreeMap<>();          // day count and sum of the steps
+    private final Map<Long, Map<String, Long>> activitiesByPeriod = new HashMap<>();
+    private final Map<Long, double[]> sumsByPeriod = new HashMap<>();         // sum0, sum1 and sum2 of all users
+    private final Map<Long, StepsSketch> sketchesByPeriod = new HashMap<>();  // the merged sketches of all users
+
+    /**
+     * @param resolution: the resolution of the periods; either WEEK or MONTH
+     */
+    PeriodSums(Resolution resolution) {
+        this.resolution = resolution;
+    }
+
+    /**
+     * adds a day of the user to its period
+     * @param date: the date of the day in UTC
+     * @param steps: the steps of the day
+     * @param activities: the durations by activity; null if there are none
+     */
+    void addDayOfUser(long date, int steps, Map<String, ?> activities) {
+        long periodStart = resolution.periodStart(date);
+        long[] stepsOfPeriod = stepsByPeriod.computeIfAbsent(periodStart, key -> new long[2]);
+        stepsOfPeriod[0]++;
+        stepsOfPeriod[1] += steps;
+
+        Map<String, Long> activitiesOfPeriod = activitiesByPeriod.computeIfAbsent(periodStart, key -> new TreeMap<>());
+        if (activities != null) {
+            activities.forEach((activity, duration) ->
+                    activitiesOfPeriod.merge(activity, ((Number) duration).longValue(), Long::sum));
+        }
+    }
+
+    /**
+     * adds the sums of all users of a day to its period
+     * @param date: the date of the day in UTC
+     * @param sum0: the number of users
+     * @param sum1: the sum of the steps
+     * @param sum2: the sum of the squared steps
+     */
+    void addDayOfAllUsers(long date, double sum0, double sum1, double sum2) {
+        double[] sums = sumsByPeriod.computeIfAbsent(resolution.periodStart(date), key -> new double[3]);
+        sums[0] += sum0;
+        sums[1] += sum1;
+        sums[2] += sum2;
+    }
+
+    /**
+     * @param date: the date of a day in UTC
+     * @return the sketch of the period of the day; the sketch of the day has to be merged into it
+     */
+    StepsSketch sketchOf(long date) {
+        return sketchesByPeriod.computeIfAbsent(resolution.periodStart(date), key -> new StepsSketch());
+    }
+
+    /**
+     * @return one document for each period holding days of the user, sorted by date
+     */
+    List<Document> toDocuments() {
+        // the charts expect the steps and activity durations of a single day
+        List<Document> docList = new ArrayList<>();
+        stepsByPeriod.forEach((periodStart, steps) -> {
+            double dayCount = steps[0];
+            Document activities = new Document();
+            activitiesByPeriod.get(periodStart).forEach((activity, duration) ->
+                    activities.put(activity, Math.round(duration / dayCount)));
+
+            Document period = new Document("startDateInUTC", periodStart)
+                    .append("steps", steps[1] / dayCount)
+                    .append("activities", activities);
+            appendMeanAndStdErrorOfMean(period, sumsByPeriod.get(periodStart));
+            StepsSketch.appendQuartiles(period, sketchesByPeriod.get(periodStart));
+            docList.add(period);
+        });
+        return docList;
+    }
+
+    /**
+     * adds the mean (averageSteps) and the std error of mean (stdErrorOfMean) of the steps of all users to the
+     * document; calculated like MongoFitDataStore.meanOfSums and MongoFitDataStore.stdErrorOfMeanOfSums
+     * @param document: the document of a day or period
+     * @param sums: the sums (sum0, sum1, sum2) of the day or period; null if there are none
+     */
+    static void appendMeanAndStdErrorOfMean(Document document, double[] sums) {
+        document.append("averageSteps", meanOf(sums)).append("stdErrorOfMean", stdErrorOfMeanOf(sums));
+    }
+
+    /**
+     * @param sums: the sums (sum0, sum1, sum2) of the steps; null if there are none
+     * @return the mean of the steps; null if there are none
+     */
+    static Double meanOf(double[] sums) {
+        return sums == null || sums[0] == 0 ? null : sums[1] / sums[0];
+    }
+
+    /**
+     * @param sums: the sums (sum0, sum1, sum2) of the steps; null if there are none
+     * @return the std error of mean of the steps
+     */
+    static double stdErrorOfMeanOf(double[] sums) {
+        // we need at least two datapoints, otherwise the std error of mean is 0; rounding errors might lead to a
+        // slightly negative variance if all users have the same steps
+        if (sums == null || sums[0] < 2) {
+            return 0.0;
+        }
+        double sum0 = sums[0];
+        double sum1 = sums[1];
+        double sum2 = sums[2];
+        double variance = (sum0 * sum2 - sum1 * sum1) / (sum0 * (sum0 - 1));
+        return Math.sqrt(Math.max(0, variance)) / Math.sqrt(sum0);
+    }
+}
@@ -0,0 +1,83 @@
+package com.vaadin.model;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.temporal.TemporalAdjusters;
+
+/**
+ * The resolution of the data returned by DbConnector.extractData: day by day, or aggregated by weeks (starting on
+ * Monday) or by months (all in UTC)
+ */
+public enum Resolution {
+    DAY, WEEK, MONTH;
+
+    /* ranges up to this number of days are returned day by day */
+    private static final long MAX_DAYS_FOR_DAILY_RESOLUTION = 92;
+
+    /* ranges up to this number of days are returned week by week; longer ranges are returned month by month */
+    private static final long MAX_DAYS_FOR_WEEKLY_RESOLUTION = 732;
+
+    /**
+     * selects the resolution for the time range, so that the number of data points stays roughly the same no matter how
+     * long the range is
+     * @param startTime: the start of the interval (date in UTC)
+     * @param endTime: the end of the interval (date in UTC)
+     * @return the resolution fitting the time range
+     */
+    public static Resolution forRange(long startTime, long endTime) {
+        long days = (endTime - startTime) / DataRequest.DAY_IN_MILLIS;
+        if (days <= MAX_DAYS_FOR_DAILY_RESOLUTION) {
+            return DAY;
+        } else if (days <= MAX_DAYS_FOR_WEEKLY_RESOLUTION) {
+            return WEEK;
+        }
+        return MONTH;
+    }
+
+    /**
+     * returns the start of the period (day, week or month) the date belongs to
+     * @param dateInUTC: the date in milliseconds
+     * @return the start of the period in milliseconds
+     */
+    long periodStart(long dateInUTC) {
+        LocalDate date = Instant.ofEpochMilli(dateInUTC).atZone(ZoneOffset.UTC).toLocalDate();
+        switch (this) {
+            case WEEK:
+                date = date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+                break;
+            case MONTH:
+                date = date.withDayOfMonth(1);
+                break;
+        }
+        return date.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    }
+
+    /**
+     * returns the start of the period following the period the date belongs to
+     * @param dateInUTC: the date in milliseconds
+     * @return the end of the period (exclusive) in milliseconds
+     */
+    long periodEnd(long dateInUTC) {
+        LocalDate periodStart = Instant.ofEpochMilli(periodStart(dateInUTC)).atZone(ZoneOffset.UTC).toLocalDate();
+        switch (this) {
+            case WEEK:
+                periodStart = periodStart.plusWeeks(1);
+                break;
+            case MONTH:
+                periodStart = periodStart.plusMonths(1);
+                break;
+            default:
+                periodStart = periodStart.plusDays(1);
+        }
+        return periodStart.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    }
+
+    /**
+     * @return the name of the resolution as stored in the database, e.g. "week"
+     */
+    String getKey() {
+        return name().toLowerCase();
+    }
+}
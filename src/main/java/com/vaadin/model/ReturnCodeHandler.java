@@ -24,15 +24,25 @@ public class ReturnCodeHandler implements RequestHandler{
         if (request.getParameter("code") != null) {
             String code = request.getParameter("code");
             authRequest.handleReturnCode(code);
+
+            // google sends a refresh token only with a consent; without one (e.g. the database has lost it) the user
+            // is asked for the consent again, and this handler gets the next return code
+            if (authRequest.needsConsent()) {
+                ((VaadinServletResponse) response).getHttpServletResponse().sendRedirect(authRequest.getConsentURI());
+                return true;
+            }
             VaadinSession.getCurrent().removeRequestHandler(this);
 
             String redirectURL = "http://localhost:8080";
             ((VaadinServletResponse) response).getHttpServletResponse().
                     sendRedirect(redirectURL);
 
-            // Set UI Content to Main View
-            MainView mainView = new MainView();
-            VaadinSession.getCurrent().getUIById(0).setContent(mainView);
+            // Set UI Content to Main View; request handlers are called without holding the session lock, but the UI
+            // must only be changed while holding it
+            session.accessSynchronously(() -> {
+                MainView mainView = new MainView();
+                session.getUIById(0).setContent(mainView);
+            });
             return true;
         }
         return false;
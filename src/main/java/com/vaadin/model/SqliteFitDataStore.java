@@ -0,0 +1,851 @@
+package com.vaadin.model;
+
+import org.bson.Document;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Stores the data in an embedded SQLite database file, e.g. for single node deployments without a MongoDB. The tables
+ * are:
+ *      - users: the user data provided from google
+ *      - credentials: the OAuth credential of each user (see DbCredentialStore)
+ *      - logins: the time of the latest login of each user
+ *      - data_sources: the data sources of each user at google fit (see DataSources)
+ *      - steps: one row per user and day holding the steps
+ *      - activities: one row per user, day and activity holding the duration
+ *      - days: one row per day holding the sums for the mean and the std error of mean of the steps of all users
+ *      - day_sketches: one row per day and bucket of the sketch of the steps of all users (see StepsSketch)
+ *      - cohort_days and cohort_day_sketches: the same as days and day_sketches for the users of a cohort (see Cohort);
+ *        a new day of a user is counted for the cohort the user belongs to at that time
+ * The tables are stored in the order of their primary keys (WITHOUT ROWID), so the primary keys are covering indexes
+ * for all queries: the days of a user are read in a single range scan. The weekly and monthly data is summed up from
+ * the days when it is extracted, so there are no rollups to maintain.
+ *
+ * The database runs in WAL mode: all writes go through a single connection, while the reads use a pool of
+ * trackfit.sqlite.readConnections (default: 4) connections and are not blocked by the writes. A read waits at most
+ * trackfit.sqlite.readTimeoutSeconds (default: 30) for an idle connection and fails afterwards.
+ */
+final class SqliteFitDataStore implements FitDataStore {
+
+    /* the driver; used directly, since DriverManager does not find drivers of web applications reliably */
+    private static final Driver DRIVER = new org.sqlite.JDBC();
+
+    /* number of connections for reading */
+    private static final int READ_CONNECTIONS = Integer.getInteger("trackfit.sqlite.readConnections", 4);
+
+    /* how long a read waits for an idle connection */
+    private static final long READ_TIMEOUT_SECONDS = Long.getLong("trackfit.sqlite.readTimeoutSeconds", 30L);
+
+    private static final String[] CREATE_TABLES = {
+            "CREATE TABLE IF NOT EXISTS users (id TEXT PRIMARY KEY, name TEXT, picture TEXT, data TEXT NOT NULL)",
+            "CREATE TABLE IF NOT EXISTS credentials (user TEXT PRIMARY KEY, access_token TEXT, refresh_token TEXT, "
+                    + "expiration_time INTEGER)",
+            "CREATE TABLE IF NOT EXISTS logins (user TEXT PRIMARY KEY, last_login INTEGER NOT NULL)",
+            "CREATE INDEX IF NOT EXISTS logins_by_time ON logins (last_login)",
+            "CREATE TABLE IF NOT EXISTS data_sources (user TEXT PRIMARY KEY, has_activity_segments INTEGER NOT NULL, "
+                    + "checked_at INTEGER NOT NULL)",
+            "CREATE TABLE IF NOT EXISTS steps (user TEXT NOT NULL, date INTEGER NOT NULL, end_date INTEGER NOT NULL, "
+                    + "steps INTEGER NOT NULL, PRIMARY KEY (user, date)) WITHOUT ROWID",
+            "CREATE TABLE IF NOT EXISTS activities (user TEXT NOT NULL, date INTEGER NOT NULL, activity TEXT NOT NULL, "
+                    + "duration INTEGER NOT NULL, PRIMARY KEY (user, date, activity)) WITHOUT ROWID",
+            "CREATE TABLE IF NOT EXISTS days (date INTEGER PRIMARY KEY, sum0 REAL NOT NULL, sum1 REAL NOT NULL, "
+                    + "sum2 REAL NOT NULL)",
+            "CREATE TABLE IF NOT EXISTS day_sketches (date INTEGER NOT NULL, bucket INTEGER NOT NULL, "
+                    + "count INTEGER NOT NULL, PRIMARY KEY (date, bucket)) WITHOUT ROWID",
+            "CREATE TABLE IF NOT EXISTS cohort_days (cohort TEXT NOT NULL, date INTEGER NOT NULL, sum0 REAL NOT NULL, "
+                    + "sum1 REAL NOT NULL, sum2 REAL NOT NULL, PRIMARY KEY (cohort, date)) WITHOUT ROWID",
+            "CREATE TABLE IF NOT EXISTS cohort_day_sketches (cohort TEXT NOT NULL, date INTEGER NOT NULL, "
+                    + "bucket INTEGER NOT NULL, count INTEGER NOT NULL, PRIMARY KEY (cohort, date, bucket)) "
+                    + "WITHOUT ROWID"
+    };
+
+    private static final String INSERT_USER =
+            "INSERT OR REPLACE INTO users (id, name, picture, data) VALUES (?, ?, ?, ?)";
+    private static final String INSERT_CREDENTIAL = "INSERT OR REPLACE INTO credentials "
+            + "(user, access_token, refresh_token, expiration_time) VALUES (?, ?, ?, ?)";
+    private static final String INSERT_LOGIN = "INSERT OR REPLACE INTO logins (user, last_login) VALUES (?, ?)";
+    private static final String INSERT_DATA_SOURCES = "INSERT OR REPLACE INTO data_sources "
+            + "(user, has_activity_segments, checked_at) VALUES (?, ?, ?)";
+    private static final String INSERT_STEPS =
+            "INSERT OR IGNORE INTO steps (user, date, end_date, steps) VALUES (?, ?, ?, ?)";
+    private static final String SELECT_STORED_STEPS = "SELECT steps FROM steps WHERE user = ? AND date = ?";
+    private static final String UPDATE_STEPS = "UPDATE steps SET end_date = ?, steps = ? WHERE user = ? AND date = ?";
+    private static final String DELETE_ACTIVITIES = "DELETE FROM activities WHERE user = ? AND date = ?";
+    private static final String INSERT_ACTIVITY =
+            "INSERT INTO activities (user, date, activity, duration) VALUES (?, ?, ?, ?)";
+    private static final String INSERT_DAY = "INSERT OR IGNORE INTO days (date, sum0, sum1, sum2) VALUES (?, 0, 0, 0)";
+    private static final String UPDATE_DAY =
+            "UPDATE days SET sum0 = sum0 + ?, sum1 = sum1 + ?, sum2 = sum2 + ? WHERE date = ?";
+    private static final String INSERT_SKETCH_BUCKET =
+            "INSERT OR IGNORE INTO day_sketches (date, bucket, count) VALUES (?, ?, 0)";
+    private static final String UPDATE_SKETCH_BUCKET =
+            "UPDATE day_sketches SET count = count + ? WHERE date = ? AND bucket = ?";
+    private static final String INSERT_COHORT_DAY =
+            "INSERT OR IGNORE INTO cohort_days (cohort, date, sum0, sum1, sum2) VALUES (?, ?, 0, 0, 0)";
+    private static final String UPDATE_COHORT_DAY =
+            "UPDATE cohort_days SET sum0 = sum0 + ?, sum1 = sum1 + ?, sum2 = sum2 + ? WHERE cohort = ? AND date = ?";
+    private static final String INSERT_COHORT_SKETCH_BUCKET =
+            "INSERT OR IGNORE INTO cohort_day_sketches (cohort, date, bucket, count) VALUES (?, ?, ?, 0)";
+    private static final String UPDATE_COHORT_SKETCH_BUCKET =
+            "UPDATE cohort_day_sketches SET count = count + ? WHERE cohort = ? AND date = ? AND bucket = ?";
+
+    /* the days of a user with the sums of all users and the activities (one row per activity) sorted by date */
+    private static final String SELECT_DAYS = "SELECT s.date, s.steps, d.sum0, d.sum1, d.sum2, a.activity, a.duration "
+            + "FROM steps s "
+            + "LEFT JOIN days d ON d.date = s.date "
+            + "LEFT JOIN activities a ON a.user = s.user AND a.date = s.date ";
+    private static final String SELECT_DAYS_WITHIN_RANGE = SELECT_DAYS
+            + "WHERE s.user = ? AND s.date >= ? AND s.end_date <= ? ORDER BY s.date";
+    private static final String SELECT_DAYS_OF_PERIODS = SELECT_DAYS
+            + "WHERE s.user = ? AND s.date >= ? AND s.date < ? ORDER BY s.date";
+    private static final String SELECT_SUMS_OF_PERIODS = "SELECT date, sum0, sum1, sum2 FROM days "
+            + "WHERE date >= ? AND date < ?";
+    private static final String SELECT_SKETCHES = "SELECT date, bucket, count FROM day_sketches "
+            + "WHERE date >= ? AND date < ?";
+    private static final String SELECT_COHORT_DAYS = "SELECT date, sum0, sum1, sum2 FROM cohort_days "
+            + "WHERE cohort = ? AND date >= ? AND date < ?";
+    private static final String SELECT_COHORT_SKETCHES = "SELECT date, bucket, count FROM cohort_day_sketches "
+            + "WHERE cohort = ? AND date >= ? AND date < ?";
+
+    private final String url;                               // the jdbc url of the database file
+    private final Connection writeConnection;               // the connection for all writes
+    private final BlockingQueue<Connection> readConnections; // the idle connections for reading
+    private final List<Connection> connections;             // all opened connections, also the borrowed ones
+    private volatile boolean closed = false;                // whether close has been called
+
+    /**
+     * opens the database and creates the tables if they don't exist yet
+     * @param path: the path of the database file; it is created if it doesn't exist yet
+     */
+    SqliteFitDataStore(String path) {
+        this.url = "jdbc:sqlite:" + path;
+        this.readConnections = new ArrayBlockingQueue<>(READ_CONNECTIONS);
+        this.connections = new CopyOnWriteArrayList<>();
+        Connection connection = null;
+        try {
+            connection = open();
+            try (Statement statement = connection.createStatement()) {
+                for (String createTable : CREATE_TABLES) {
+                    statement.executeUpdate(createTable);
+                }
+            }
+            for (int i = 0; i < READ_CONNECTIONS; i++) {
+                readConnections.add(open());
+            }
+        } catch (SQLException e) {
+            close();
+            throw new IllegalStateException("Cannot open the SQLite database " + path, e);
+        }
+        this.writeConnection = connection;
+    }
+
+    /**
+     * @return a new connection to the database
+     */
+    private Connection open() throws SQLException {
+        Connection connection = DRIVER.connect(url, new Properties());
+        connections.add(connection);
+        try (Statement statement = connection.createStatement()) {
+            // readers do not block the writer and vice versa; with WAL, NORMAL is still safe against corruption
+            statement.execute("PRAGMA journal_mode = WAL");
+            statement.execute("PRAGMA synchronous = NORMAL");
+            // wait for the lock instead of failing, e.g. while the WAL is checkpointed
+            statement.execute("PRAGMA busy_timeout = 10000");
+        }
+        return connection;
+    }
+
+    @Override
+    public void storeUser(String googleUserData) {
+        Document userDoc = Document.parse(googleUserData);
+        synchronized (writeConnection) {
+            try (PreparedStatement insertUser = writeConnection.prepareStatement(INSERT_USER)) {
+                insertUser.setString(1, userDoc.getString("id"));
+                insertUser.setString(2, userDoc.getString("name"));
+                insertUser.setString(3, userDoc.getString("picture"));
+                insertUser.setString(4, googleUserData);
+                insertUser.executeUpdate();
+            } catch (SQLException e) {
+                throw new IllegalStateException("Cannot store the user " + userDoc.getString("id"), e);
+            }
+        }
+    }
+
+    @Override
+    public boolean hasUser(String user) {
+        return extractUserField(user, "id") != null;
+    }
+
+    @Override
+    public String extractUserPicture(String user) {
+        return extractUserField(user, "picture");
+    }
+
+    @Override
+    public String extractUserName(String user) {
+        return extractUserField(user, "name");
+    }
+
+    /**
+     * @param user: the id of the user
+     * @param column: the column to read, either id, name, picture or data
+     * @return the value of the column or null, if the user is not stored
+     */
+    private String extractUserField(String user, String column) {
+        Connection connection = borrowReadConnection();
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT " + column + " FROM users WHERE id = ?")) {
+            select.setString(1, user);
+            try (ResultSet resultSet = select.executeQuery()) {
+                return resultSet.next() ? resultSet.getString(1) : null;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot read the user " + user, e);
+        } finally {
+            readConnections.add(connection);
+        }
+    }
+
+    @Override
+    public void storeCredential(String user, Document credential) {
+        Number expirationTime = (Number) credential.get("expirationTimeMilliseconds");
+        synchronized (writeConnection) {
+            try (PreparedStatement insertCredential = writeConnection.prepareStatement(INSERT_CREDENTIAL)) {
+                insertCredential.setString(1, user);
+                insertCredential.setString(2, credential.getString("accessToken"));
+                insertCredential.setString(3, credential.getString("refreshToken"));
+                if (expirationTime == null) {
+                    insertCredential.setNull(4, Types.INTEGER);
+                } else {
+                    insertCredential.setLong(4, expirationTime.longValue());
+                }
+                insertCredential.executeUpdate();
+            } catch (SQLException e) {
+                throw new IllegalStateException("Cannot store the credential of the user " + user, e);
+            }
+        }
+    }
+
+    @Override
+    public Document extractCredential(String user) {
+        Connection connection = borrowReadConnection();
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT access_token, refresh_token, expiration_time FROM credentials WHERE user = ?")) {
+            select.setString(1, user);
+            try (ResultSet resultSet = select.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                long expirationTime = resultSet.getLong(3);
+                return new Document("accessToken", resultSet.getString(1))
+                        .append("refreshToken", resultSet.getString(2))
+                        .append("expirationTimeMilliseconds", resultSet.wasNull() ? null : expirationTime);
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot read the credential of the user " + user, e);
+        } finally {
+            readConnections.add(connection);
+        }
+    }
+
+    @Override
+    public List<String> extractCredentialUsers() {
+        Connection connection = borrowReadConnection();
+        try (Statement select = connection.createStatement();
+             ResultSet resultSet = select.executeQuery("SELECT user FROM credentials")) {
+            List<String> users = new ArrayList<>();
+            while (resultSet.next()) {
+                users.add(resultSet.getString(1));
+            }
+            return users;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot read the users with credentials", e);
+        } finally {
+            readConnections.add(connection);
+        }
+    }
+
+    @Override
+    public void deleteCredential(String user) {
+        synchronized (writeConnection) {
+            try (PreparedStatement delete = writeConnection.prepareStatement(
+                    "DELETE FROM credentials WHERE user = ?")) {
+                delete.setString(1, user);
+                delete.executeUpdate();
+            } catch (SQLException e) {
+                throw new IllegalStateException("Cannot delete the credential of the user " + user, e);
+            }
+        }
+    }
+
+    @Override
+    public void storeLogin(String user, long loginTime) {
+        synchronized (writeConnection) {
+            try (PreparedStatement insertLogin = writeConnection.prepareStatement(INSERT_LOGIN)) {
+                insertLogin.setString(1, user);
+                insertLogin.setLong(2, loginTime);
+                insertLogin.executeUpdate();
+            } catch (SQLException e) {
+                throw new IllegalStateException("Cannot store the login of the user " + user, e);
+            }
+        }
+    }
+
+    @Override
+    public List<String> extractUsersLoggedInSince(long time) {
+        Connection connection = borrowReadConnection();
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT user FROM logins WHERE last_login >= ?")) {
+            select.setLong(1, time);
+            try (ResultSet resultSet = select.executeQuery()) {
+                List<String> users = new ArrayList<>();
+                while (resultSet.next()) {
+                    users.add(resultSet.getString(1));
+                }
+                return users;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot read the users logged in since " + time, e);
+        } finally {
+            readConnections.add(connection);
+        }
+    }
+
+    @Override
+    public void storeDataSources(String user, Document dataSources) {
+        synchronized (writeConnection) {
+            try (PreparedStatement insertDataSources = writeConnection.prepareStatement(INSERT_DATA_SOURCES)) {
+                insertDataSources.setString(1, user);
+                insertDataSources.setInt(2, dataSources.getBoolean("hasActivitySegments") ? 1 : 0);
+                insertDataSources.setLong(3, ((Number) dataSources.get("checkedAtMillis")).longValue());
+                insertDataSources.executeUpdate();
+            } catch (SQLException e) {
+                throw new IllegalStateException("Cannot store the data sources of the user " + user, e);
+            }
+        }
+    }
+
+    @Override
+    public Document extractDataSources(String user) {
+        Connection connection = borrowReadConnection();
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT has_activity_segments, checked_at FROM data_sources WHERE user = ?")) {
+            select.setString(1, user);
+            try (ResultSet resultSet = select.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                return new Document("hasActivitySegments", resultSet.getInt(1) != 0)
+                        .append("checkedAtMillis", resultSet.getLong(2));
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot read the data sources of the user " + user, e);
+        } finally {
+            readConnections.add(connection);
+        }
+    }
+
+    @Override
+    public void storeDays(String user, List<FitDay> days) {
+
+        if (days.isEmpty()) {
+            return;
+        }
+        String cohort = cohortOf(user);
+
+        synchronized (writeConnection) {
+            try {
+                // all days are stored in a single transaction, so they are written to the file at once
+                writeConnection.setAutoCommit(false);
+                try (PreparedStatement insertSteps = writeConnection.prepareStatement(INSERT_STEPS);
+                     PreparedStatement selectStoredSteps = writeConnection.prepareStatement(SELECT_STORED_STEPS);
+                     PreparedStatement updateSteps = writeConnection.prepareStatement(UPDATE_STEPS);
+                     PreparedStatement deleteActivities = writeConnection.prepareStatement(DELETE_ACTIVITIES);
+                     PreparedStatement insertActivity = writeConnection.prepareStatement(INSERT_ACTIVITY);
+                     PreparedStatement insertDay = writeConnection.prepareStatement(INSERT_DAY);
+                     PreparedStatement updateDay = writeConnection.prepareStatement(UPDATE_DAY);
+                     PreparedStatement insertSketchBucket = writeConnection.prepareStatement(INSERT_SKETCH_BUCKET);
+                     PreparedStatement updateSketchBucket = writeConnection.prepareStatement(UPDATE_SKETCH_BUCKET);
+                     PreparedStatement insertCohortDay = writeConnection.prepareStatement(INSERT_COHORT_DAY);
+                     PreparedStatement updateCohortDay = writeConnection.prepareStatement(UPDATE_COHORT_DAY);
+                     PreparedStatement insertCohortSketchBucket =
+                             writeConnection.prepareStatement(INSERT_COHORT_SKETCH_BUCKET);
+                     PreparedStatement updateCohortSketchBucket =
+                             writeConnection.prepareStatement(UPDATE_COHORT_SKETCH_BUCKET)) {
+
+                    boolean hasActivities = false;
+                    for (FitDay day : days) {
+                        insertSteps.setString(1, user);
+                        insertSteps.setLong(2, day.getStartDateInUTC());
+                        insertSteps.setLong(3, day.getEndDateInUTC());
+                        insertSteps.setInt(4, day.getSteps());
+                        insertSteps.addBatch();
+
+                        // the activities of a day are replaced
+                        deleteActivities.setString(1, user);
+                        deleteActivities.setLong(2, day.getStartDateInUTC());
+                        deleteActivities.addBatch();
+                        for (Map.Entry<String, Integer> activity : day.getActivities().entrySet()) {
+                            insertActivity.setString(1, user);
+                            insertActivity.setLong(2, day.getStartDateInUTC());
+                            insertActivity.setString(3, activity.getKey());
+                            insertActivity.setInt(4, activity.getValue());
+                            insertActivity.addBatch();
+                            hasActivities = true;
+                        }
+                    }
+
+                    // already stored days are ignored, so the update counts tell us which days are new; those are
+                    // added to the sums of the days and of the cohort of the user
+                    int[] insertedSteps = insertSteps.executeBatch();
+                    deleteActivities.executeBatch();
+                    if (hasActivities) {
+                        insertActivity.executeBatch();
+                    }
+
+                    // the days stored before keep their steps unless they have changed (e.g. one of the days
+                    // requested again, see FitDataFetcher.REFRESH_DAYS); the sums get the difference
+                    Map<FitDay, Integer> replacedSteps = new HashMap<>();
+                    List<FitDay> storedDays = new ArrayList<>();
+                    for (int i = 0; i < insertedSteps.length; i++) {
+                        FitDay day = days.get(i);
+                        if (insertedSteps[i] > 0) {
+                            storedDays.add(day);
+                            continue;
+                        }
+                        selectStoredSteps.setString(1, user);
+                        selectStoredSteps.setLong(2, day.getStartDateInUTC());
+                        try (ResultSet resultSet = selectStoredSteps.executeQuery()) {
+                            if (resultSet.next() && resultSet.getInt(1) != day.getSteps()) {
+                                replacedSteps.put(day, resultSet.getInt(1));
+                                storedDays.add(day);
+                                updateSteps.setLong(1, day.getEndDateInUTC());
+                                updateSteps.setInt(2, day.getSteps());
+                                updateSteps.setString(3, user);
+                                updateSteps.setLong(4, day.getStartDateInUTC());
+                                updateSteps.addBatch();
+                            }
+                        }
+                    }
+                    if (!replacedSteps.isEmpty()) {
+                        updateSteps.executeBatch();
+                    }
+
+                    for (FitDay day : storedDays) {
+                        long date = day.getStartDateInUTC();
+                        Integer replaced = replacedSteps.get(day);
+                        int oldSteps = replaced == null ? 0 : replaced;
+                        double sum0 = replaced == null ? 1 : 0;
+                        double sum1 = (double) day.getSteps() - oldSteps;
+                        double sum2 = (double) day.getSteps() * day.getSteps() - (double) oldSteps * oldSteps;
+                        insertDay.setLong(1, date);
+                        insertDay.addBatch();
+                        updateDay.setDouble(1, sum0);
+                        updateDay.setDouble(2, sum1);
+                        updateDay.setDouble(3, sum2);
+                        updateDay.setLong(4, date);
+                        updateDay.addBatch();
+                        insertCohortDay.setString(1, cohort);
+                        insertCohortDay.setLong(2, date);
+                        insertCohortDay.addBatch();
+                        updateCohortDay.setDouble(1, sum0);
+                        updateCohortDay.setDouble(2, sum1);
+                        updateCohortDay.setDouble(3, sum2);
+                        updateCohortDay.setString(4, cohort);
+                        updateCohortDay.setLong(5, date);
+                        updateCohortDay.addBatch();
+
+                        // the new steps are counted in their bucket of the sketches, the replaced ones are removed
+                        Map<Integer, Integer> bucketCounts = new HashMap<>();
+                        bucketCounts.merge(StepsSketch.bucketOf(Math.max(day.getSteps(), 0)), 1, Integer::sum);
+                        if (replaced != null) {
+                            bucketCounts.merge(StepsSketch.bucketOf(Math.max(replaced, 0)), -1, Integer::sum);
+                        }
+                        for (Map.Entry<Integer, Integer> bucketCount : bucketCounts.entrySet()) {
+                            if (bucketCount.getValue() == 0) {
+                                continue;
+                            }
+                            insertSketchBucket.setLong(1, date);
+                            insertSketchBucket.setInt(2, bucketCount.getKey());
+                            insertSketchBucket.addBatch();
+                            updateSketchBucket.setInt(1, bucketCount.getValue());
+                            updateSketchBucket.setLong(2, date);
+                            updateSketchBucket.setInt(3, bucketCount.getKey());
+                            updateSketchBucket.addBatch();
+                            insertCohortSketchBucket.setString(1, cohort);
+                            insertCohortSketchBucket.setLong(2, date);
+                            insertCohortSketchBucket.setInt(3, bucketCount.getKey());
+                            insertCohortSketchBucket.addBatch();
+                            updateCohortSketchBucket.setInt(1, bucketCount.getValue());
+                            updateCohortSketchBucket.setString(2, cohort);
+                            updateCohortSketchBucket.setLong(3, date);
+                            updateCohortSketchBucket.setInt(4, bucketCount.getKey());
+                            updateCohortSketchBucket.addBatch();
+                        }
+                    }
+                    if (!storedDays.isEmpty()) {
+                        insertDay.executeBatch();
+                        updateDay.executeBatch();
+                        insertSketchBucket.executeBatch();
+                        updateSketchBucket.executeBatch();
+                        insertCohortDay.executeBatch();
+                        updateCohortDay.executeBatch();
+                        insertCohortSketchBucket.executeBatch();
+                        updateCohortSketchBucket.executeBatch();
+                    }
+                }
+                writeConnection.commit();
+            } catch (SQLException e) {
+                rollback();
+                throw new IllegalStateException("Cannot store the days of the user " + user, e);
+            } finally {
+                try {
+                    writeConnection.setAutoCommit(true);
+                } catch (SQLException e) {
+                    System.out.println("Cannot reset the SQLite connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * rolls back the transaction of the write connection after a failed write
+     */
+    private void rollback() {
+        try {
+            writeConnection.rollback();
+        } catch (SQLException e) {
+            System.out.println("Cannot roll back the SQLite transaction: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean ensureRollups(String user) {
+        // the weeks and months are summed up when they are extracted
+        return false;
+    }
+
+    @Override
+    public Long extractLatestStoredDay(String user) {
+        Connection connection = borrowReadConnection();
+        try (PreparedStatement select = connection.prepareStatement("SELECT MAX(date) FROM steps WHERE user = ?")) {
+            select.setString(1, user);
+            try (ResultSet resultSet = select.executeQuery()) {
+                long latestStoredDay = resultSet.next() ? resultSet.getLong(1) : 0;
+                return resultSet.wasNull() ? null : latestStoredDay;
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot read the latest day of the user " + user, e);
+        } finally {
+            readConnections.add(connection);
+        }
+    }
+
+    @Override
+    public List<Long> extractStoredDays(String user, long startTime, long endTime) {
+        Connection connection = borrowReadConnection();
+        try (PreparedStatement select = connection.prepareStatement(
+                "SELECT date FROM steps WHERE user = ? AND date >= ? AND date < ? ORDER BY date")) {
+            select.setString(1, user);
+            select.setLong(2, startTime);
+            select.setLong(3, endTime);
+            List<Long> storedDays = new ArrayList<>();
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    storedDays.add(resultSet.getLong(1));
+                }
+            }
+            return storedDays;
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot read the stored days of the user " + user, e);
+        } finally {
+            readConnections.add(connection);
+        }
+    }
+
+    @Override
+    public List<Document> extractMenuItems() {
+        // the experimental menu items are only read from MongoDB
+        return Collections.emptyList();
+    }
+
+    @Override
+    public List<Document> extractDays(String user, long startTime, long endTime, Resolution resolution) {
+        List<Document> docList;
+        if (resolution != Resolution.DAY) {
+            docList = extractPeriods(user, startTime, endTime, resolution);
+        } else {
+            docList = new ArrayList<>();
+            try (DayIterator days = new DayIterator(SELECT_DAYS_WITHIN_RANGE, user, startTime, endTime)) {
+                days.forEachRemaining(docList::add);
+            }
+
+            Map<Long, StepsSketch> sketchesByDate = new HashMap<>();
+            readSketches(startTime, endTime, date -> sketchesByDate.computeIfAbsent(date, key -> new StepsSketch()));
+            for (Document document : docList) {
+                StepsSketch.appendQuartiles(document, sketchesByDate.get(document.getLong("startDateInUTC")));
+            }
+        }
+        appendCohortStats(cohortOf(user), docList, resolution);
+        return docList;
+    }
+
+    @Override
+    public CloseableIterator<Document> iterateDays(String user, long startTime, long endTime) {
+        return new DayIterator(SELECT_DAYS_WITHIN_RANGE, user, startTime, endTime);
+    }
+
+    /**
+     * sums up the days of the user and the sums of all users by period; like the rollups of MongoFitDataStore, the
+     * periods overlapping the range of startTime and endTime are returned as a whole
+     * @param user: the id of the user
+     * @param startTime: the start of the interval (date in UTC)
+     * @param endTime: the end of the interval (date in UTC)
+     * @param resolution: the resolution of the periods; either WEEK or MONTH
+     * @return list of documents (one for each period) holding the daily averages within the period
+     */
+    private List<Document> extractPeriods(String user, long startTime, long endTime, Resolution resolution) {
+        long firstPeriodStart = resolution.periodStart(startTime);
+        long lastPeriodEnd = resolution.periodEnd(endTime - 1);
+
+        // sum up the steps and activities of the user by period
+        PeriodSums periodSums = new PeriodSums(resolution);
+        try (DayIterator days = new DayIterator(SELECT_DAYS_OF_PERIODS, user, firstPeriodStart, lastPeriodEnd)) {
+            days.forEachRemaining(day -> periodSums.addDayOfUser(day.getLong("startDateInUTC"),
+                    day.getInteger("steps"), (Document) day.get("activities")));
+        }
+
+        // sum up the sums of all users by period
+        Connection connection = borrowReadConnection();
+        try (PreparedStatement select = connection.prepareStatement(SELECT_SUMS_OF_PERIODS)) {
+            select.setLong(1, firstPeriodStart);
+            select.setLong(2, lastPeriodEnd);
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    periodSums.addDayOfAllUsers(resultSet.getLong(1), resultSet.getDouble(2),
+                            resultSet.getDouble(3), resultSet.getDouble(4));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot read the days", e);
+        } finally {
+            readConnections.add(connection);
+        }
+        readSketches(firstPeriodStart, lastPeriodEnd, periodSums::sketchOf);
+
+        return periodSums.toDocuments();
+    }
+
+    /**
+     * reads the sketches of the steps of all users of the days within the range of startTime and endTime
+     * @param startTime: the start of the interval (date in UTC)
+     * @param endTime: the end of the interval (date in UTC)
+     * @param sketchOfDay: returns the sketch the buckets of the day with the given date are added to
+     */
+    private void readSketches(long startTime, long endTime, Function<Long, StepsSketch> sketchOfDay) {
+        Connection connection = borrowReadConnection();
+        try (PreparedStatement select = connection.prepareStatement(SELECT_SKETCHES)) {
+            select.setLong(1, startTime);
+            select.setLong(2, endTime);
+            try (ResultSet resultSet = select.executeQuery()) {
+                while (resultSet.next()) {
+                    sketchOfDay.apply(resultSet.getLong(1)).add(resultSet.getInt(2), resultSet.getLong(3));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot read the sketches of the days", e);
+        } finally {
+            readConnections.add(connection);
+        }
+    }
+
+    /**
+     * @param user: the id of the user
+     * @return the cohort of the user derived from the stored user data (see Cohort)
+     */
+    private String cohortOf(String user) {
+        String userData = extractUserField(user, "data");
+        return Cohort.of(userData == null ? null : Document.parse(userData));
+    }
+
+    /**
+     * adds the statistics of the cohort (see CohortStats) to the days or periods of the user
+     * @param cohort: the cohort of the user
+     * @param documents: the documents of the user returned by extractDays, sorted by date
+     * @param resolution: the resolution of the documents
+     */
+    private void appendCohortStats(String cohort, List<Document> documents, Resolution resolution) {
+        CohortStats cohortStats = new CohortStats(resolution);
+        if (!documents.isEmpty()) {
+            long startTime = CohortStats.firstDateOf(documents);
+            long endTime = CohortStats.endDateOf(documents, resolution);
+            Connection connection = borrowReadConnection();
+            try (PreparedStatement selectDays = connection.prepareStatement(SELECT_COHORT_DAYS);
+                 PreparedStatement selectSketches = connection.prepareStatement(SELECT_COHORT_SKETCHES)) {
+                for (PreparedStatement select : Arrays.asList(selectDays, selectSketches)) {
+                    select.setString(1, cohort);
+                    select.setLong(2, startTime);
+                    select.setLong(3, endTime);
+                }
+                try (ResultSet resultSet = selectDays.executeQuery()) {
+                    while (resultSet.next()) {
+                        cohortStats.addDay(resultSet.getLong(1), resultSet.getDouble(2), resultSet.getDouble(3),
+                                resultSet.getDouble(4));
+                    }
+                }
+                try (ResultSet resultSet = selectSketches.executeQuery()) {
+                    while (resultSet.next()) {
+                        cohortStats.sketchOf(resultSet.getLong(1)).add(resultSet.getInt(2), resultSet.getLong(3));
+                    }
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException("Cannot read the days of the cohort " + cohort, e);
+            } finally {
+                readConnections.add(connection);
+            }
+        }
+        cohortStats.appendTo(documents);
+    }
+
+    /**
+     * takes an idle connection for reading; waits at most READ_TIMEOUT_SECONDS if all of them are in use
+     * @return the connection; has to be given back to readConnections
+     */
+    private Connection borrowReadConnection() {
+        if (closed) {
+            throw new IllegalStateException("The SQLite database " + url + " is closed");
+        }
+        Connection connection;
+        try {
+            connection = readConnections.poll(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a SQLite connection", e);
+        }
+        if (connection == null) {
+            throw new IllegalStateException("No SQLite connection for reading got idle within "
+                    + READ_TIMEOUT_SECONDS + " seconds");
+        }
+        return connection;
+    }
+
+    /**
+     * closes all connections, also the ones borrowed for reading at the moment (their reads fail)
+     */
+    @Override
+    public void close() {
+        closed = true;
+        readConnections.clear();
+        for (Connection connection : connections) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                System.out.println("Cannot close the SQLite connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * reads the days (see SELECT_DAYS) while iterating and converts them to the documents of extractDays; holds a
+     * read connection until it is closed (which happens automatically after the last day)
+     */
+    private final class DayIterator implements CloseableIterator<Document> {
+
+        private final Connection connection;    // the borrowed read connection
+        private PreparedStatement select;
+        private ResultSet resultSet;
+        private boolean hasRow;                 // whether the result set is positioned on a row not converted yet
+        private boolean closed = false;
+
+        /**
+         * @param query: either SELECT_DAYS_WITHIN_RANGE or SELECT_DAYS_OF_PERIODS
+         * @param user: the id of the user
+         * @param startTime: the start of the interval (date in UTC)
+         * @param endTime: the end of the interval (date in UTC)
+         */
+        DayIterator(String query, String user, long startTime, long endTime) {
+            connection = borrowReadConnection();
+            try {
+                select = connection.prepareStatement(query);
+                select.setString(1, user);
+                select.setLong(2, startTime);
+                select.setLong(3, endTime);
+                resultSet = select.executeQuery();
+                hasRow = resultSet.next();
+            } catch (SQLException e) {
+                close();
+                throw new IllegalStateException("Cannot read the days of the user " + user, e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!hasRow) {
+                close();
+            }
+            return hasRow;
+        }
+
+        @Override
+        public Document next() {
+            if (!hasRow) {
+                throw new NoSuchElementException();
+            }
+            try {
+                long date = resultSet.getLong(1);
+                Document day = new Document("startDateInUTC", date).append("steps", resultSet.getInt(2));
+                double[] sums = {resultSet.getDouble(3), resultSet.getDouble(4), resultSet.getDouble(5)};
+                boolean hasSums = !resultSet.wasNull();
+
+                // the activities of the day are in consecutive rows
+                Document activities = null;
+                do {
+                    String activity = resultSet.getString(6);
+                    if (activity != null) {
+                        if (activities == null) {
+                            activities = new Document();
+                        }
+                        activities.append(activity, resultSet.getInt(7));
+                    }
+                    hasRow = resultSet.next();
+                } while (hasRow && resultSet.getLong(1) == date);
+
+                if (activities != null) {
+                    day.append("activities", activities);
+                }
+                PeriodSums.appendMeanAndStdErrorOfMean(day, hasSums ? sums : null);
+                return day;
+            } catch (SQLException e) {
+                close();
+                throw new IllegalStateException("Cannot read the days", e);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            hasRow = false;
+            try {
+                if (resultSet != null) {
+                    resultSet.close();
+                }
+                if (select != null) {
+                    select.close();
+                }
+            } catch (SQLException e) {
+                System.out.println("Cannot close the SQLite statement: " + e.getMessage());
+            } finally {
+                readConnections.add(connection);
+            }
+        }
+    }
+}
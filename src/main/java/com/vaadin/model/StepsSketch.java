@@ -0,0 +1,168 @@
+package com.vaadin.model;
+
+import org.bson.Document;
+
+import java.util.Map;
+
+/**
+ * A mergeable quantile sketch of the steps of all users, e.g. of a single day (see the days collection) or of a week
+ * or month (merged from the days). It is a histogram with 32 buckets for every power of two, so the percentiles are
+ * estimated with a relative error of at most 1/64 (about 1.6%) no matter how many users there are.
+ *
+ * In the database a sketch is stored sparsely as document holding the count by bucket, e.g. {"0": 3, "412": 1, ...};
+ * adding the steps of a user is a single $inc of one of its fields, so concurrent ingestions can update the same day
+ * atomically. Merging two sketches means adding their counts bucket by bucket.
+ */
+final class StepsSketch {
+
+    /* 32 buckets per power of two */
+    private static final LogLinearBuckets LOG_LINEAR_BUCKETS = new LogLinearBuckets(5);
+
+    /* number of buckets needed for all positive int values */
+    static final int BUCKETS = LOG_LINEAR_BUCKETS.countFor(32);
+
+    /* the percentiles sent to the charts */
+    private static final double LOWER_QUARTILE = 0.25;
+    private static final double MEDIAN = 0.5;
+    private static final double UPPER_QUARTILE = 0.75;
+
+    private final long[] counts = new long[BUCKETS];    // the number of users per bucket
+    private long total;                                 // the number of users
+
+    /**
+     * @param steps: the steps of a user; negative steps are added as 0
+     */
+    void add(int steps) {
+        add(bucketOf(Math.max(steps, 0)), 1);
+    }
+
+    /**
+     * @param bucket: the index of a bucket
+     * @param count: the number of users to add to the bucket
+     */
+    void add(int bucket, long count) {
+        counts[bucket] += count;
+        total += count;
+    }
+
+    /**
+     * adds the counts of the other sketch to this sketch
+     * @param sketch: the sketch to merge
+     */
+    void merge(StepsSketch sketch) {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            counts[bucket] += sketch.counts[bucket];
+        }
+        total += sketch.total;
+    }
+
+    /**
+     * adds the counts of a sketch stored in the database to this sketch
+     * @param sketchDoc: the counts by bucket; null is ignored
+     */
+    void merge(Document sketchDoc) {
+        if (sketchDoc != null) {
+            for (Map.Entry<String, Object> entry : sketchDoc.entrySet()) {
+                add(Integer.parseInt(entry.getKey()), ((Number) entry.getValue()).longValue());
+            }
+        }
+    }
+
+    /**
+     * @return the number of users added
+     */
+    long getCount() {
+        return total;
+    }
+
+    /**
+     * @param quantile: the quantile, e.g. 0.5 for the median
+     * @return the estimated steps of the user with the rank ceil(quantile * count), i.e. the middle of the bucket
+     * holding that user; null if the sketch is empty
+     */
+    Double getQuantile(double quantile) {
+        if (total == 0) {
+            return null;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return (lowerBoundOf(bucket) + upperBoundOf(bucket)) / 2.0;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the counts by bucket as stored in the database, leaving out the empty buckets
+     */
+    Document toDocument() {
+        Document sketchDoc = new Document();
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            if (counts[bucket] > 0) {
+                sketchDoc.append(String.valueOf(bucket), counts[bucket]);
+            }
+        }
+        return sketchDoc;
+    }
+
+    /**
+     * adds the lower quartile (lowerQuartileSteps), the median (medianSteps) and the upper quartile
+     * (upperQuartileSteps) of the steps of all users to the document
+     * @param document: the document of a day or period
+     * @param sketch: the sketch of the day or period; null if there is none (e.g. stored by an older version)
+     */
+    static void appendQuartiles(Document document, StepsSketch sketch) {
+        boolean isEmpty = sketch == null || sketch.getCount() == 0;
+        document.append("lowerQuartileSteps", isEmpty ? null : sketch.getQuantile(LOWER_QUARTILE))
+                .append("medianSteps", isEmpty ? null : sketch.getQuantile(MEDIAN))
+                .append("upperQuartileSteps", isEmpty ? null : sketch.getQuantile(UPPER_QUARTILE));
+    }
+
+    /**
+     * @param sketchDoc: a sketch as stored in the database; might be null
+     * @return the sketch; null if sketchDoc is null
+     */
+    static StepsSketch of(Document sketchDoc) {
+        if (sketchDoc == null) {
+            return null;
+        }
+        StepsSketch sketch = new StepsSketch();
+        sketch.merge(sketchDoc);
+        return sketch;
+    }
+
+    /**
+     * @param steps: the steps of a user (not negative)
+     * @return the name of the field of the bucket, e.g. "412"; used for the $inc updates of the stored sketches
+     */
+    static String fieldOf(int steps) {
+        return String.valueOf(bucketOf(Math.max(steps, 0)));
+    }
+
+    /**
+     * @param steps: the steps (not negative)
+     * @return the index of the bucket of the steps
+     */
+    static int bucketOf(int steps) {
+        return LOG_LINEAR_BUCKETS.bucketOf(steps);
+    }
+
+    /**
+     * @param bucket: the index of a bucket
+     * @return the smallest steps of the bucket
+     */
+    static long lowerBoundOf(int bucket) {
+        return LOG_LINEAR_BUCKETS.lowerBoundOf(bucket);
+    }
+
+    /**
+     * @param bucket: the index of a bucket
+     * @return the largest steps of the bucket
+     */
+    static long upperBoundOf(int bucket) {
+        return LOG_LINEAR_BUCKETS.upperBoundOf(bucket);
+    }
+}
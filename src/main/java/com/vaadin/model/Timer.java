@@ -0,0 +1,114 @@
+package com.vaadin.model;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records durations (e.g. of a request to google fit) in a histogram, so that percentiles can be reported; see
+ * Metrics. Recording does not allocate and does not lock, so the timers can stay on in production.
+ *
+ * The histogram has 8 buckets for every power of two nanoseconds, i.e. the percentiles are the upper bounds of the
+ * buckets and at most 12.5% above the actual durations. All values are kept since the start of the application.
+ */
+public final class Timer implements TimerMXBean {
+
+    /* 8 buckets per power of two nanoseconds */
+    private static final LogLinearBuckets LOG_LINEAR_BUCKETS = new LogLinearBuckets(3);
+
+    /* number of buckets needed for all positive long values */
+    private static final int BUCKETS = LOG_LINEAR_BUCKETS.countFor(64);
+
+    private static final double NANOS_PER_MILLI = 1e6;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);     // the number of durations per bucket
+    private final LongAdder count = new LongAdder();                            // the number of durations
+    private final LongAdder totalNanos = new LongAdder();                       // the sum of the durations
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0); // the longest duration
+
+    Timer() {
+    }
+
+    /**
+     * records the time passed since startNanos
+     * @param startNanos: the start as returned by System.nanoTime()
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @param durationNanos: the duration in nanoseconds; negative durations are recorded as 0
+     */
+    public void record(long durationNanos) {
+        long duration = Math.max(durationNanos, 0);
+        buckets.incrementAndGet(LOG_LINEAR_BUCKETS.bucketOf(duration));
+        count.increment();
+        totalNanos.add(duration);
+        maxNanos.accumulate(duration);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getTotalMillis() {
+        return totalNanos.sum() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getMeanMillis() {
+        long count = getCount();
+        return count == 0 ? 0 : totalNanos.sum() / NANOS_PER_MILLI / count;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return maxNanos.get() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getPercentile50Millis() {
+        return getPercentileMillis(0.5);
+    }
+
+    @Override
+    public double getPercentile95Millis() {
+        return getPercentileMillis(0.95);
+    }
+
+    @Override
+    public double getPercentile99Millis() {
+        return getPercentileMillis(0.99);
+    }
+
+    /**
+     * @param quantile: the quantile, e.g. 0.95 for the 95th percentile
+     * @return the upper bound of the bucket holding the quantile (at most the longest duration); 0 if nothing has been
+     * recorded yet
+     */
+    public double getPercentileMillis(double quantile) {
+        // copy the buckets, so that the total fits to the buckets even while durations are recorded
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(LOG_LINEAR_BUCKETS.upperBoundOf(i), maxNanos.get()) / NANOS_PER_MILLI;
+            }
+        }
+        return getMaxMillis();
+    }
+}
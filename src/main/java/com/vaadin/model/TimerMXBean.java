@@ -0,0 +1,21 @@
+package com.vaadin.model;
+
+/**
+ * The values of a Timer as shown by JMX (e.g. in jconsole); all durations in milliseconds
+ */
+public interface TimerMXBean {
+
+    long getCount();
+
+    double getTotalMillis();
+
+    double getMeanMillis();
+
+    double getMaxMillis();
+
+    double getPercentile50Millis();
+
+    double getPercentile95Millis();
+
+    double getPercentile99Millis();
+}
@@ -0,0 +1,146 @@
+package com.vaadin.model;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Encrypts the OAuth tokens of the users before they are stored (see DbCredentialStore), so a copy of the database
+ * (e.g. a dump or a backup) does not give access to the fitness data of the users. The tokens are encrypted with
+ * AES-GCM and the google account id of the user as associated data, so a token cannot be moved to another user either.
+ *
+ * The key is read from the file given by the system property trackfit.credentials.keyFile (default: trackFit.key;
+ * base64 encoded, 256 bits). If the file does not exist, a new key is generated and written to it, readable by the
+ * owner only; the file has to be kept apart from the database and backed up, as the stored tokens cannot be decrypted
+ * without it. Tokens stored in plain text by an older version are recognized by the missing prefix.
+ */
+final class TokenCipher {
+
+    /* prefix of the encrypted tokens */
+    private static final String PREFIX = "aesgcm:";
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int KEY_BYTES = 32;
+    private static final int IV_BYTES = 12;
+    private static final int TAG_BITS = 128;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static TokenCipher instance;    // the cipher with the key of trackfit.credentials.keyFile
+
+    private final SecretKeySpec key;
+
+    /**
+     * @param key: the AES key (256 bits)
+     */
+    TokenCipher(byte[] key) {
+        if (key.length != KEY_BYTES) {
+            throw new IllegalArgumentException("The key of the credentials needs " + KEY_BYTES * 8 + " bits");
+        }
+        this.key = new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * @return the cipher with the key of the file given by trackfit.credentials.keyFile; the key is generated if the
+     * file does not exist
+     */
+    static synchronized TokenCipher get() {
+        if (instance == null) {
+            Path keyFile = Paths.get(System.getProperty("trackfit.credentials.keyFile", "trackFit.key"));
+            try {
+                instance = new TokenCipher(readOrGenerateKey(keyFile));
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read the key of the credentials from " + keyFile, e);
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @param token: the token; might be null
+     * @param user: the google account id of the user
+     * @return the encrypted token; null if token is null
+     */
+    String encrypt(String token, String user) {
+        if (token == null) {
+            return null;
+        }
+        byte[] iv = new byte[IV_BYTES];
+        RANDOM.nextBytes(iv);
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(user.getBytes(StandardCharsets.UTF_8));
+            byte[] encrypted = cipher.doFinal(token.getBytes(StandardCharsets.UTF_8));
+
+            byte[] ivAndEncrypted = new byte[IV_BYTES + encrypted.length];
+            System.arraycopy(iv, 0, ivAndEncrypted, 0, IV_BYTES);
+            System.arraycopy(encrypted, 0, ivAndEncrypted, IV_BYTES, encrypted.length);
+            return PREFIX + Base64.getEncoder().encodeToString(ivAndEncrypted);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot encrypt the credential of the user " + user, e);
+        }
+    }
+
+    /**
+     * @param stored: the token as stored by encrypt, or in plain text by an older version; might be null
+     * @param user: the google account id of the user
+     * @return the token; null if stored is null
+     */
+    String decrypt(String stored, String user) {
+        if (!isEncrypted(stored)) {
+            return stored;
+        }
+        byte[] ivAndEncrypted = Base64.getDecoder().decode(stored.substring(PREFIX.length()));
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, ivAndEncrypted, 0, IV_BYTES));
+            cipher.updateAAD(user.getBytes(StandardCharsets.UTF_8));
+            return new String(cipher.doFinal(ivAndEncrypted, IV_BYTES, ivAndEncrypted.length - IV_BYTES),
+                    StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot decrypt the credential of the user " + user
+                    + "; it has been stored with another key or for another user", e);
+        }
+    }
+
+    /**
+     * @param stored: a stored token; might be null
+     * @return whether the token has been encrypted; false for tokens stored in plain text by an older version
+     */
+    static boolean isEncrypted(String stored) {
+        return stored != null && stored.startsWith(PREFIX);
+    }
+
+    /**
+     * @param keyFile: the file of the key
+     * @return the key read from the file; a new key if the file does not exist
+     * @throws IOException: if the file cannot be read or written
+     */
+    private static byte[] readOrGenerateKey(Path keyFile) throws IOException {
+        if (Files.exists(keyFile)) {
+            return Base64.getDecoder().decode(new String(Files.readAllBytes(keyFile), StandardCharsets.US_ASCII)
+                    .trim());
+        }
+        byte[] key = new byte[KEY_BYTES];
+        RANDOM.nextBytes(key);
+        byte[] encodedKey = Base64.getEncoder().encode(key);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(keyFile,
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            Files.write(keyFile, encodedKey);
+        } else {
+            Files.write(keyFile, encodedKey, StandardOpenOption.CREATE_NEW);
+        }
+        System.out.println("Generated a new key for the credentials in " + keyFile.toAbsolutePath()
+                + "; keep it apart from the database");
+        return key;
+    }
+}
@@ -0,0 +1,131 @@
+package com.vaadin.model;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.*;
+import org.bson.Document;
+
+import java.util.*;
+
+import static com.mongodb.client.model.Aggregates.*;
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Updates.*;
+
+/**
+ * Prepares databases set up by an older version for the unique indexes of the steps (startDateInUTC, user) and of the
+ * days (dateInUTC), which the atomic updates of MongoFitDataStore rely on. The older versions created the same keys
+ * without the unique option and wrote the steps and days without them, so concurrent sessions could insert a user's
+ * day or a day twice:
+ *      - the indexes with the same keys but without the unique option are dropped (DbConnectionPool creates the unique
+ *        ones afterwards)
+ *      - of duplicate steps or days only the first inserted document is kept
+ *      - if duplicates were removed, the sums and sketches of the days, the rollups and the days of the cohorts are
+ *        recalculated from the remaining steps, as the duplicates might have been counted in them
+ * Collections which have the unique index already are not touched, so the migration runs on every start of the
+ * application (see DbConnectionPool.setupCollections).
+ */
+final class UniqueIndexMigration {
+
+    private UniqueIndexMigration() {
+    }
+
+    /**
+     * @param db: the Mongo database
+     */
+    static void migrate(MongoDatabase db) {
+        MongoCollection<Document> stepColl = db.getCollection("steps");
+        MongoCollection<Document> daysColl = db.getCollection("days");
+
+        Set<String> usersWithDuplicates = new HashSet<>();
+        for (Document duplicate : prepareUniqueIndex(stepColl, "startDateInUTC", "user")) {
+            usersWithDuplicates.add(duplicate.getString("user"));
+        }
+        int removedDays = prepareUniqueIndex(daysColl, "dateInUTC").size();
+        if (usersWithDuplicates.isEmpty() && removedDays == 0) {
+            return;
+        }
+
+        System.out.println("Removed duplicate steps of " + usersWithDuplicates.size() + " users and " + removedDays
+                + " duplicate days; recalculating the days, the rollups and the days of the cohorts");
+        rebuildDaysSums(db);
+        MongoFitDataStore.rebuildDaysSketches(db);
+        DbRollups.rebuildDaysRollups(db);
+        DbCohorts.rebuildCohortDays(db);
+        for (String user : usersWithDuplicates) {
+            new DbRollups(db, user).rebuildUserRollups();
+        }
+    }
+
+    /**
+     * drops the index with the keys if it exists without the unique option and removes the duplicates; nothing to do
+     * if the unique index exists already
+     * @param collection: the collection of the index
+     * @param keys: the (ascending) keys of the index
+     * @return the keys of the removed documents, one document per removed document
+     */
+    private static List<Document> prepareUniqueIndex(MongoCollection<Document> collection, String... keys) {
+        for (Document index : collection.listIndexes()) {
+            if (new ArrayList<>(((Document) index.get("key")).keySet()).equals(Arrays.asList(keys))) {
+                if (Boolean.TRUE.equals(index.get("unique"))) {
+                    return Collections.emptyList();
+                }
+                System.out.println("Dropping the index " + index.getString("name") + " of " + collection.getNamespace()
+                        + " to replace it with a unique one");
+                collection.dropIndex(index.getString("name"));
+            }
+        }
+        return removeDuplicates(collection, keys);
+    }
+
+    /**
+     * removes all but the first inserted document (the smallest _id) of the documents with the same keys
+     * @param collection: the collection to remove the duplicates of
+     * @param keys: the keys which have to be unique
+     * @return the keys of the removed documents, one document per removed document
+     */
+    private static List<Document> removeDuplicates(MongoCollection<Document> collection, String... keys) {
+        Document groupKeys = new Document();
+        for (String key : keys) {
+            groupKeys.append(key, "$" + key);
+        }
+
+        List<Document> removed = new ArrayList<>();
+        for (Document group : collection.aggregate(Arrays.asList(
+                sort(Sorts.ascending("_id")),
+                group(groupKeys, Accumulators.push("ids", "$_id"), Accumulators.sum("count", 1)),
+                match(gt("count", 1))
+        )).allowDiskUse(true)) {
+            @SuppressWarnings("unchecked")
+            List<Object> ids = (List<Object>) group.get("ids");
+            List<Object> duplicateIds = ids.subList(1, ids.size());
+            collection.deleteMany(in("_id", duplicateIds));
+            for (int i = 0; i < duplicateIds.size(); i++) {
+                removed.add((Document) group.get("_id"));
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * recalculates the sums for the mean and the std error of mean of all days from the steps collection
+     * @param db: the Mongo database
+     */
+    private static void rebuildDaysSums(MongoDatabase db) {
+        List<WriteModel<Document>> writes = new ArrayList<>();
+        for (Document day : db.getCollection("steps").aggregate(Collections.singletonList(
+                group("$startDateInUTC",
+                        Accumulators.sum("sum0", 1),
+                        Accumulators.sum("sum1", "$steps"),
+                        Accumulators.sum("sum2", new Document("$multiply", Arrays.asList("$steps", "$steps"))))
+        )).allowDiskUse(true)) {
+            writes.add(new UpdateOneModel<>(eq("dateInUTC", day.get("_id")), set("sumsForMeanAndSEM",
+                    new Document("sum0", ((Number) day.get("sum0")).doubleValue())
+                            .append("sum1", ((Number) day.get("sum1")).doubleValue())
+                            .append("sum2", ((Number) day.get("sum2")).doubleValue())),
+                    new UpdateOptions().upsert(true)));
+        }
+        if (!writes.isEmpty()) {
+            db.getCollection("days").bulkWrite(writes, new BulkWriteOptions().ordered(false));
+        }
+    }
+}
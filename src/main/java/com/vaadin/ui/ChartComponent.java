@@ -1,6 +1,11 @@
 package com.vaadin.ui;
 
 import com.vaadin.annotations.JavaScript;
+import com.vaadin.model.Metrics;
+import com.vaadin.model.Timer;
+
+import java.util.HashMap;
+import java.util.Map;
 
 // these .js files are associated with the ChartComponent
 @JavaScript({"d3.v4.min.js", "GraphConnector.js", "GraphSelector.js", "HelperFunctions.js", "StackedBarChart.js",
@@ -12,6 +17,40 @@ import com.vaadin.annotations.JavaScript;
  */
 public class ChartComponent extends AbstractJavaScriptComponent{
 
+    // time needed by the browsers to parse the data and draw the charts, by chart (see Metrics); only the known charts
+    // are timed, since the names are sent by the client
+    private static final Map<String, Timer> RENDER_TIMERS = new HashMap<String, Timer>() {
+        {
+            put("LineChart", Metrics.timer("ui.render.LineChart"));
+            put("StackedBarChart", Metrics.timer("ui.render.StackedBarChart"));
+            put("CalendarChart", Metrics.timer("ui.render.CalendarChart"));
+        }
+    };
+
+    private int targetPointCount = 0;           // number of points fitting into the chart; 0 until the client knows
+    private Runnable targetPointCountListener;  // gets notified whenever targetPointCount changes
+
+    public ChartComponent() {
+        // called by GraphConnector.js whenever the size of the chart changes
+        addFunction("setTargetPointCount", arguments -> {
+            int newTargetPointCount = (int) arguments.getNumber(0);
+            if (newTargetPointCount != targetPointCount) {
+                targetPointCount = newTargetPointCount;
+                if (targetPointCountListener != null) {
+                    targetPointCountListener.run();
+                }
+            }
+        });
+
+        // called by GraphConnector.js after the chart has been drawn with new data
+        addFunction("reportRenderTime", arguments -> {
+            Timer renderTimer = RENDER_TIMERS.get(arguments.getString(0));
+            if (renderTimer != null) {
+                renderTimer.record((long) (arguments.getNumber(1) * 1e6));
+            }
+        });
+    }
+
     void setData(String data, String selectedOptions) {
         getState().data = data;
         getState().selectedOptions = selectedOptions;
@@ -21,6 +60,22 @@ public class ChartComponent extends AbstractJavaScriptComponent{
         return getState().data;
     }
 
+    /**
+     * @return the number of points fitting into the line chart (see DbConnector.extractChartData); 0 if the chart has
+     * not been drawn yet
+     */
+    int getTargetPointCount() {
+        return targetPointCount;
+    }
+
+    /**
+     * @param targetPointCountListener: gets notified whenever the number of points fitting into the chart changes,
+     *                                e.g. after the window has been resized
+     */
+    void setTargetPointCountListener(Runnable targetPointCountListener) {
+        this.targetPointCountListener = targetPointCountListener;
+    }
+
     @Override
     protected ChartComponentState getState() {
         return (ChartComponentState) super.getState();
@@ -2,22 +2,23 @@ package com.vaadin.ui;
 
 import com.vaadin.data.HasValue;
 import com.vaadin.icons.VaadinIcons;
+import com.vaadin.model.BackgroundSync;
 import com.vaadin.model.DataRequest;
 import com.vaadin.model.DbConnector;
+import com.vaadin.model.FitDataFetcher;
+import com.vaadin.model.Resolution;
 import com.vaadin.navigator.View;
 import com.vaadin.navigator.ViewChangeListener;
 import com.vaadin.server.*;
+import com.vaadin.shared.communication.PushMode;
 import com.vaadin.shared.ui.colorpicker.Color;
 import org.bson.Document;
-import org.json.CDL;
-import org.json.JSONArray;
-import org.json.JSONObject;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.io.InputStream;
 import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 
 /**
@@ -32,6 +33,11 @@ public class MainView extends MainDesign implements View {
     private DbConnector dbConnector; // the connector between Vaadin and MongoDB
     private Calendar cal;   // the calender
     private boolean hasUserModifiedDate = false;    // whether the user has modified the date to plot or not
+    private Supplier<InputStream> dataForDownload;  // exports the data of the selected time as csv
+    private Future<?> backgroundSync;   // the download of the google fit data running in the background
+
+    /* interval of the polling of the browser while the data is downloaded, if push is not available */
+    private static final int POLL_INTERVAL_MILLIS = 1000;
 
     public MainView() {
 
@@ -42,8 +48,6 @@ public class MainView extends MainDesign implements View {
         // sets the user profile picture and the user name to display in the application
         updateUserDataForView();
 
-        // gets the data from the database (currently: last year)
-        getDataFromGoogleFit();
         cal = Calendar.getInstance();   // calendar to calculate which dates to use
 
         // create a new ChartComponent to display the charts
@@ -59,12 +63,22 @@ public class MainView extends MainDesign implements View {
                 "Circles", "Monthly", "LineChart", "Date",
                 "%d-%m-%Y");
 
-        // hand the data (stored in chartComponent) and the selected options to the line chart
+        // hand the data already in the database (stored in chartComponent) and the selected options to the line chart
         setDataForCharts(chartComponent, selectedOptions);
 
         // add all the listener to the view
         addListenerToView(chartComponent, selectedOptions);
 
+        // gets the data missing in the database from google fit (at most the last year) while the view is displayed,
+        // e.g. after the login; the DataRequest has to be created here, since it needs the credential of the current
+        // session. The data of users who have been active recently is kept up to date on the server, so the view only
+        // reads it.
+        if (!BackgroundSync.keepsUpToDate(userID)) {
+            FitDataFetcher fitDataFetcher = new FitDataFetcher(new DataRequest(), dbConnector);
+            addAttachListener(event -> startBackgroundSync(fitDataFetcher, chartComponent, selectedOptions));
+            addDetachListener(event -> stopBackgroundSync());
+        }
+
         // TODO: experimental!!!
         if (false) {
             // creates menu items based on some collection in the database
@@ -89,48 +103,6 @@ public class MainView extends MainDesign implements View {
         }
     }
 
-    /**
-     * prepares the user data by converting the unix time to a date and flattening the activities array
-     * @param userDataAsJsonArray: user data stored in a json array:
-     *                           [{"startDateInUTC":1510185600000,"averageSteps":2597.659574468085,"activities":
-     *                           {"still":23249677,"walking":2153308,"in_vehicle":1745901,"sleeping":23000271},
-     *                           "steps":489, "stdErrorOfMean" : 1008.1493738529028}, ...]
-     * @return JSONArray [{"date":09-11-2017,"average steps":2597.659574468085,"still[ms]":23249677,
-     * "walking[ms]":2153308,"in_vehicle[ms]":1745901,"sleeping[ms]":23000271,"steps":489,
-     * "stdErrorOfMean" : 1008.1493738529028}, ...]
-     */
-    private JSONArray prepareUserData(JSONArray userDataAsJsonArray) {
-
-        // iterate over the json array
-        for (int i=0; i < userDataAsJsonArray.length(); i++){
-
-            // get the current json object
-            JSONObject currentJsonObject = userDataAsJsonArray.getJSONObject(i);
-
-            // convert the date from unix time to a european data format (1510185600000 -> 09-11-2017) and put it back
-            // to the json object
-            Date date = new Date(currentJsonObject.getLong("startDateInUTC"));
-            SimpleDateFormat sm = new SimpleDateFormat("dd-MM-yyyy");
-            String strDate = sm.format(date);
-            currentJsonObject.remove("startDateInUTC");
-            currentJsonObject.put("date", strDate);
-
-            // flatten the activities array: "activities": {"still":23249677,"walking":2153308,"in_vehicle":1745901,
-            // "sleeping":23000271} changes to "still":23249677, "walking":2153308,"in_vehicle":1745901,"
-            // sleeping":23000271
-            JSONObject activities = currentJsonObject.getJSONObject("activities");
-            for(int j = 0; j < activities.names().length(); j++){
-                String activityName = activities.names().getString(j);
-                long activityDuration = activities.getLong(activityName);
-                currentJsonObject.put(activityName + "[ms]", activityDuration);
-            }
-            currentJsonObject.remove("activities");
-            userDataAsJsonArray.put(i, currentJsonObject);
-        }
-        return userDataAsJsonArray;
-    }
-
-
     /**
      * adds all the listeners (mostly for the buttons) to the view
      * @param chartComponent: the line chart to set the data for
@@ -151,6 +123,13 @@ public class MainView extends MainDesign implements View {
             }
         });
 
+        // redraw the line chart with the number of points fitting into it, e.g. after the window has been resized
+        chartComponent.setTargetPointCountListener(() -> {
+            if (selectedOptions.getPlotSelected().equals("LineChart")) {
+                setDataForCharts(chartComponent, selectedOptions);
+            }
+        });
+
         // Handle the events with an anonymous class
         // https://vaadin.com/docs/-/part/framework/application/application-events.html
         // https://vaadin.com/docs/-/part/framework/application/application-notifications.html
@@ -177,33 +156,35 @@ public class MainView extends MainDesign implements View {
            setDataForCharts(chartComponent, selectedOptions);
         });
 
-        // add a file downloader to the download_data button
+        // add a file downloader to the download_data button; it exports every day of the selected time as csv, the
+        // rows are streamed from the database to the browser
         StreamResource resource = new StreamResource((StreamResource.StreamSource) () -> {
             try {
-                // get the user data
-                String userData = chartComponent.getData();
-
-                System.out.println(userData);
-
-                // convert it to json
-                JSONArray userDataAsJsonArray = new JSONArray(userData);
-
-                // prepare the data by converting the date from unix time to the local date any by flattening the
-                // activities array
-                userDataAsJsonArray = prepareUserData(userDataAsJsonArray);
-
-                // convert it to csv
-                String userDataAsCSV = CDL.toString(userDataAsJsonArray);
-
-                return new ByteArrayInputStream(userDataAsCSV.getBytes());
-
+                return dataForDownload.get();
             } catch (Exception e) {
                 e.printStackTrace();
                 return null;
             }
         }, "Data.csv");
+        resource.setCacheTime(0);
         new FileDownloader(resource).extend(download_data);
 
+        // add a second button below, which exports the whole history of the user regardless of the selected time
+        Button downloadHistory = new Button("Download History", VaadinIcons.DOWNLOAD);
+        downloadHistory.setStyleName("borderless");
+        downloadHistory.setWidth("100%");
+        menu.addComponent(downloadHistory, menu.getComponentIndex(download_data) + 1);
+        StreamResource historyResource = new StreamResource((StreamResource.StreamSource) () -> {
+            try {
+                return dbConnector.exportCsv(0L, Long.MAX_VALUE);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+        }, "History.csv");
+        historyResource.setCacheTime(0);
+        new FileDownloader(historyResource).extend(downloadHistory);
+
         logout.addClickListener(event -> {
             // get back to login page
             Page.getCurrent().setLocation( "/" );
@@ -224,30 +205,53 @@ public class MainView extends MainDesign implements View {
                 hasUserModifiedDate = false;
                 selectedOptions.setStartDate(lastWeek()+86400000);
                 selectedOptions.setEndDate(getNow()-86400000);
-                chartComponent.setData(dbConnector.extractData(lastWeek(), getNow()),
+                chartComponent.setData(extractChartData(lastWeek(), getNow(), chartComponent, selectedOptions),
                         selectedOptions.getJSONRepresentation());
                 break;
             case "Monthly":
                 hasUserModifiedDate = false;
                 selectedOptions.setStartDate(lastMonth());
                 selectedOptions.setEndDate(getNow()-86400000);
-                chartComponent.setData(dbConnector.extractData(lastMonth(), getNow()),
+                chartComponent.setData(extractChartData(lastMonth(), getNow(), chartComponent, selectedOptions),
                         selectedOptions.getJSONRepresentation());
                 break;
             case "Yearly":
                 hasUserModifiedDate = false;
                 selectedOptions.setStartDate(lastYear());
                 selectedOptions.setEndDate(getNow()-86400000);
-                chartComponent.setData(dbConnector.extractData(lastYear()-86400000, getNow()),
+                chartComponent.setData(extractChartData(lastYear()-86400000, getNow(), chartComponent, selectedOptions),
                         selectedOptions.getJSONRepresentation());
                 break;
             case "Custom Date":
-                chartComponent.setData(dbConnector.extractData(selectedOptions.getStartDate(),
-                        selectedOptions.getEndDate()), selectedOptions.getJSONRepresentation());
+                chartComponent.setData(extractChartData(selectedOptions.getStartDate(), selectedOptions.getEndDate(),
+                        chartComponent, selectedOptions), selectedOptions.getJSONRepresentation());
                 break;
         }
     }
 
+    /**
+     * extracts the data for the selected chart; long ranges are returned as weekly or monthly averages, except for the
+     * calendar chart which shows every single day. The data of the line chart is reduced to the number of points
+     * fitting into the chart.
+     * @param startTime: the start of the interval (date in UTC)
+     * @param endTime: the end of the interval (date in UTC)
+     * @param chartComponent: the connector between vaadin and javascript
+     * @param selectedOptions: Object holding all the selected options
+     * @return json formatted string holding the data columns (see DbConnector.extractChartData)
+     */
+    private String extractChartData(long startTime, long endTime, ChartComponent chartComponent,
+                                    SelectedOptions selectedOptions) {
+        Resolution resolution = selectedOptions.getPlotSelected().equals("CalendarChart") ? Resolution.DAY :
+                Resolution.forRange(startTime, endTime);
+
+        // the download is exported from the database only when the user actually clicks on it
+        dataForDownload = () -> dbConnector.exportCsv(startTime, endTime);
+
+        int targetPointCount = selectedOptions.getPlotSelected().equals("LineChart") ?
+                chartComponent.getTargetPointCount() : 0;
+        return dbConnector.extractChartData(startTime, endTime, resolution, targetPointCount);
+    }
+
     /**
      * opens the settings window and updates the selectedOptions object according to the selected options
      * @param chartComponent: the connector between vaadin and javascript
@@ -488,19 +492,94 @@ public class MainView extends MainDesign implements View {
     }
 
     /**
-     * requests the data from google fit and stores it in the database
+     * requests the data which is not yet in the database from google fit in the background, stores it in the database
+     * and redraws the charts; the sync is queued ahead of the background sync of the other users and shares its quota
+     * (see BackgroundSync.syncFirst)
+     * @param fitDataFetcher: downloads and stores the data of the current user
+     * @param chartComponent: the connector between vaadin and javascript
+     * @param selectedOptions: Object holding all the selected options
      */
-    private void getDataFromGoogleFit() {
-        DataRequest dataRequest = new DataRequest();
+    private void startBackgroundSync(FitDataFetcher fitDataFetcher, ChartComponent chartComponent,
+                                     SelectedOptions selectedOptions) {
 
-        // get the data for the last 12 months and store them in the database
-        for (int month = 0; month < 12; month++) {
-            try {
-                dbConnector.storeData(dataRequest.getFitData(month));
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.out.println("Error while downloading Fit Data");
+        // the sync is still running, e.g. the view has been attached again
+        if (backgroundSync != null && !backgroundSync.isDone()) {
+            return;
+        }
+
+        // push the redrawn charts to the browser as soon as they are ready; push is enabled here instead of with @Push
+        // on the UI, so only the sessions downloading data keep a push connection. Without push (e.g. a servlet
+        // without asyncSupported) the browser polls for the charts until the download is done.
+        UI ui = getUI();
+        boolean pushSupported = isPushSupported();
+        if (pushSupported) {
+            ui.getPushConfiguration().setPushMode(PushMode.AUTOMATIC);
+        } else {
+            ui.setPollInterval(POLL_INTERVAL_MILLIS);
+        }
+
+        // get the data missing in the database (at most the last 12 months) and store it; the charts are redrawn
+        // whenever the response of a request has been stored. The listener runs on the background thread, so the view
+        // must only be changed within ui.access (which locks the session)
+        backgroundSync = BackgroundSync.syncFirst(userID, fitDataFetcher, new FitDataFetcher.ProgressListener() {
+            @Override
+            public void rangeStored(long startTime, long endTime, int requestsStored, int requestsTotal) {
+                accessIfAttached(ui, () -> setDataForCharts(chartComponent, selectedOptions));
+            }
+
+            @Override
+            public void syncFinished() {
+                // whatever the outcome (all stored, failed requests, nothing to request), the browser stops polling
+                // and the push connection is closed; the charts pushed before are sent first
+                accessIfAttached(ui, () -> stopUpdatingBrowser(ui, pushSupported));
             }
+        });
+    }
+
+    /**
+     * runs a change of the view from a background thread
+     * @param ui: the UI of the view
+     * @param command: the change of the view
+     */
+    private static void accessIfAttached(UI ui, Runnable command) {
+        try {
+            ui.access(command);
+        } catch (UIDetachedException e) {
+            // the view has been closed in the meantime; the data is stored anyway
+        }
+    }
+
+    /**
+     * stops pushing or polling the charts once the download is done
+     * @param ui: the UI of the view
+     * @param pushSupported: whether the charts have been pushed (see isPushSupported) or polled
+     */
+    private static void stopUpdatingBrowser(UI ui, boolean pushSupported) {
+        if (pushSupported) {
+            ui.getPushConfiguration().setPushMode(PushMode.DISABLED);
+        } else {
+            ui.setPollInterval(-1);
+        }
+    }
+
+    /**
+     * @return whether the charts can be pushed to the browser: the vaadin-push dependency is available and the
+     * servlet of the current request supports asynchronous requests (asyncSupported = true in the @WebServlet of the
+     * UI or in web.xml)
+     */
+    private static boolean isPushSupported() {
+        VaadinRequest request = VaadinService.getCurrentRequest();
+        return VaadinService.getCurrent().ensurePushAvailable() && request instanceof VaadinServletRequest
+                && ((VaadinServletRequest) request).isAsyncSupported();
+    }
+
+    /**
+     * cancels the download of the google fit data, e.g. when the user logs out or closes the browser
+     */
+    private void stopBackgroundSync() {
+        if (backgroundSync != null) {
+            backgroundSync.cancel(true);
+            backgroundSync = null;
         }
     }
 
@@ -7,40 +7,42 @@
 var CELL_HEIGHT = 19;
 
 /**
- * creates the legend for the horizontal color scale
- * @param element: element for the svg container
- * @param width: width for the legend
- * @param colorScaleLegendHeight: height for the legend
- * @param lastYear: Date, last year we have data from
- * @param firstYear: Date, first year we have data from
- * @param adjusted_height: height for each year "block"
+ * creates the legend for the horizontal color scale on the first call and updates it afterwards
+ * @param parent: element holding the legend, i.e. the corner of the svg
  * @param margin: object, holds the margins
  * @param colorScale: the color scale
  */
-function createHorizontalColorScaleLegend(element, width, colorScaleLegendHeight, lastYear, firstYear, adjusted_height,
-                                          margin, colorScale) {
-
-    // create the svg which holds the horizontal color scale legend; move it on top of the other divs
-    var colorScaleLegendSVG = d3.select(element).append("svg").attr("width", width / 2).attr("height",
-        colorScaleLegendHeight).attr("transform", "translate(0," +
-        (lastYear + 4 - firstYear) * adjusted_height * (-1) + ")");
+function createHorizontalColorScaleLegend(parent, margin, colorScale) {
 
-    // create the color scale legend
-    var colorScaleLegend = colorScaleLegendSVG.append("g")
+    var colorScaleLegendG = selectOrAppend(parent, "g", "color-scale-legend")
         .attr("font-family", "sans-serif")
         .attr("font-size", 10)
-        .attr("text-anchor", "end")
-        .selectAll("g")
-        .data(colorScale.range())
-        .enter().append("g")
-        .attr("transform", function (d, i) {
-            return "translate(" + i * 40 + ",20)";
-        })
-        .attr("class", "legend");
+        .attr("text-anchor", "end");
+
+    // create the color scale legend; its colors never change, only the domain values
+    var colorScaleLegend = joinChildren(colorScaleLegendG, "g", "legend", colorScale.range(), undefined,
+        function(entered) {
+            entered.attr("transform", function (d, i) {
+                return "translate(" + i * 40 + ",20)";
+            });
+
+            // add the colored rectangles to the legend
+            entered.append("rect")
+                .attr("x", margin.left)
+                .attr("width", 30)
+                .attr("height", CELL_HEIGHT)
+                .attr("fill", function (d) {
+                    return d;
+                });
+
+            entered.append("text")
+                .attr("x", margin.left + CELL_HEIGHT)
+                .attr("y", CELL_HEIGHT*1.5)
+                .attr("dy", "0.32em");
+        });
 
     // add the caption of the color scale legend
-    colorScaleLegendSVG.append("text")
-        .attr("class", "caption")
+    selectOrAppend(colorScaleLegendG, "text", "caption")
         .attr("x", margin.left)
         .attr("y", margin.top)
         .attr("fill", "#000")
@@ -48,37 +50,35 @@ function createHorizontalColorScaleLegend(element, width, colorScaleLegendHeight
         .attr("font-weight", "bold")
         .text("Activity duration (h)");
 
-    // add the colored rectangles to the legend
-    colorScaleLegend.append("rect")
-        .attr("x", margin.left)
-        .attr("width", 30)
-        .attr("height", CELL_HEIGHT)
-        .attr("fill", function (d) {
-            return d;
-        });
-
     // add the domain values of the respective colors to the legend
-    colorScaleLegend.append("text")
-        .attr("x", margin.left + CELL_HEIGHT)
-        .attr("y", CELL_HEIGHT*1.5)
-        .attr("dy", "0.32em")
+    colorScaleLegend.select("text")
         .text(function (d) {
             return colorScale.invertExtent(d)[0].toFixed(2);
         });    // invertExtent returns e.g. [40, 70]
 
     // we need to add the last domain value manually, since we have one domain value more than we have colors (we are
     // calling colorScaleLegend with the array of colors; so we're one element short..)
-    colorScaleLegendSVG.append("text")
+    selectOrAppend(colorScaleLegendG, "text", "upper-bound")
         .attr("x", margin.left + 40 * colorScale.range().length + CELL_HEIGHT)
         .attr("y", CELL_HEIGHT*1.5 + 20)
         .attr("dy", "0.32em")
-        .attr("font-family", "sans-serif")
-        .attr("font-size", 10)
-        .attr("text-anchor", "end")
         .text(colorScale.domain()[1].toFixed(2));    // upper domain boundary
 }
 
 
+/**
+ * sets the attribute only on the elements where its value has changed, so that unchanged days are not touched
+ * @param selection: the elements
+ * @param name: name of the attribute
+ * @param value: function returning the value of the attribute for the datum; null removes the attribute
+ */
+function updateChangedAttribute(selection, name, value) {
+
+    selection.filter(function(d) { return this.getAttribute(name) !== value(d); })
+        .attr(name, value);
+}
+
+
 
 
 /**
@@ -96,7 +96,8 @@ function createHorizontalColorScaleLegend(element, width, colorScaleLegendHeight
  * @param selectedOptions: options selected by the user; currently not used
  * @param element: element for the svg container
  * @param svg: svg container which holds the g container
- * @param g: container which holds the plots
+ * @param g: container (the layer of the calendar chart) which holds the plots; the elements drawn into it before are
+ * updated, i.e. the years and their days are joined by their date and only the changed days are touched
  * @param width: width available for the svg container
  * @param height: height available for the svg container
  * @param margin: margin for the svg: container
@@ -122,36 +123,51 @@ function drawCalendarChart(data, selectedOptions, element, svg, g, width, height
         selectedActivities = selectedActivities_;
     }
 
-    // remove all previously drawn elements
-    d3.selectAll("svg").remove();
-
     // calculate the cell size and the height for each "year block"
     var cellSize = Math.floor((width-margin.right) / 53);  // there are 52 (+1 overlap) weeks in 1 year
     var adjusted_height = cellSize*8;
 
+    // nothing stored yet, e.g. on the first login before the first response of google fit: the calendar drawn before
+    // (if any) is removed and the chart stays empty until the data arrives
+    if (data.length === 0) {
+        g.select("g.calendar").remove();
+        return;
+    }
+
     // get the first and last year we have data from
     var firstYear = new Date(data[0].startDateInUTC).getFullYear();
     var lastYear = new Date(data[data.length-1].startDateInUTC).getFullYear();
 
+    // the calendar is laid out from the corner of the svg; the svg grows with the years below the legends
+    var calendar = selectOrAppend(g, "g", "calendar")
+        .attr("transform", "translate(" + (-margin.left) + "," + (-margin.top) + ")");
+    svg.attr("height", Math.max(+svg.attr("height"),
+        colorScaleLegendHeight + (lastYear + 1 - firstYear) * adjusted_height + margin.bottom));
+
     // create the "blocks" each one representing one year
-    svg = d3.select(element)
-        .selectAll("svg")
-        .data(d3.range(firstYear, lastYear+1))
-        .enter().append("svg")
-        .attr("width", width)
-        .attr("height", adjusted_height)
-        .attr("transform", "translate(0," + colorScaleLegendHeight + ")")
-        .append("g")
-        .attr("transform", "translate(" + ((width - cellSize * 53) / 2) + ","
-            + (adjusted_height - cellSize * 7 - 1) + ")");
-
-    // write the year next to the "year row"
-    svg.append("text")
-        .attr("transform", "translate(-6," + cellSize * 3.5 + ")rotate(-90)")
-        .attr("font-family", "sans-serif")
-        .attr("font-size", 10)
-        .attr("text-anchor", "middle")
-        .text(function(d) { return d; });
+    var years = joinChildren(selectOrAppend(calendar, "g", "years"), "g", "year", d3.range(firstYear, lastYear+1),
+        function(d) { return d; },
+        function(entered) {
+            // write the year next to the "year row"
+            entered.append("text")
+                .attr("font-family", "sans-serif")
+                .attr("font-size", 10)
+                .attr("text-anchor", "middle")
+                .text(function(d) { return d; });
+
+            // holds the individual days
+            entered.append("g")
+                .attr("class", "days")
+                .attr("fill", "none")
+                .attr("stroke", "#ccc");
+        })
+        .attr("transform", function(d, i) {
+            return "translate(" + ((width - cellSize * 53) / 2) + ","
+                + (colorScaleLegendHeight + i * adjusted_height + adjusted_height - cellSize * 7 - 1) + ")";
+        });
+
+    years.select("text")
+        .attr("transform", "translate(-6," + cellSize * 3.5 + ")rotate(-90)");
 
     // time format for the dates
     var timeFormat = d3.timeFormat(selectedOptions.timeFormat);
@@ -192,72 +208,92 @@ function drawCalendarChart(data, selectedOptions, element, svg, g, width, height
         .rollup(function(d) { return d[0].total; })
         .object(data);
 
-    // prepare drawing the individual days
-    var rect = svg.append("g")
-        .attr("fill", "none")
-        .attr("stroke", "#ccc")
-        .selectAll("rect")
-        .data(function(d) { return d3.timeDays(new Date(d, 0, 1), new Date(d + 1, 0, 1)); })
-        .enter().append("rect")
-        .attr("width", cellSize)
-        .attr("height", cellSize)
-        .attr("x", function(d) { return d3.timeWeek.count(d3.timeYear(d), d) * cellSize; })
-        .attr("y", function(d) { return d.getDay() * cellSize; })
-        .datum(timeFormat);
-
-    // actually draw them
-    rect.filter(function(d) { return d in nestedData; })
-        .attr("fill", function(d) { return color(nestedData[d]); })
-        .append("title")
-        .text(function(d) { return d + ": " + nestedData[d].toFixed(2) + " h"; });
+    // join the individual days of each year by their date; the days of a year never change, so they are appended
+    // when the year is drawn first
+    var rect = joinChildren(years.select("g.days"), "rect", "day",
+        function(d) { return d3.timeDays(new Date(d, 0, 1), new Date(d + 1, 0, 1)); },
+        function(d) { return +d; },
+        function(entered) {
+            entered.append("title");
+        });
 
-    // create the horizontal legend for the color scale
-    createHorizontalColorScaleLegend(element, width, colorScaleLegendHeight, lastYear, firstYear, adjusted_height,
-                                     margin, color);
+    // position the days of the years drawn first or with another cell size
+    years.each(function() {
+        var year = d3.select(this);
+        if (+year.attr("data-cell-size") !== cellSize) {
+            year.selectAll("rect.day")
+                .attr("width", cellSize)
+                .attr("height", cellSize)
+                .attr("x", function(d) { return d3.timeWeek.count(d3.timeYear(d), d) * cellSize; })
+                .attr("y", function(d) { return d.getDay() * cellSize; });
+            year.attr("data-cell-size", cellSize);
+        }
+    });
 
-    // holds the vertical legend for selecting the activities to display
-    var activitySelectionSVG = d3.select(element).append("svg").attr("width", margin.right).attr("height",
-        height).attr("transform", "translate(" + width / 2 + "," +
-        (lastYear + 1 - firstYear) * adjusted_height * (-1) + ")");
+    // actually draw them; the days without data are left empty
+    updateChangedAttribute(rect, "fill", function(d) {
+        var date = timeFormat(d);
+        return date in nestedData ? color(nestedData[date]) : null;
+    });
+    rect.select("title")
+        .filter(function(d) { return this.textContent !== titleOf(d); })
+        .text(titleOf);
+
+    /**
+     * @param day: Date of the day
+     * @return the tooltip of the day; empty if there is no data for the day
+     */
+    function titleOf(day) {
+        var date = timeFormat(day);
+        return date in nestedData ? date + ": " + nestedData[date].toFixed(2) + " h" : "";
+    }
 
-    // the array which holds all the categories for the legend
-    var legendCategoryArray = [];
+    // create the horizontal legend for the color scale
+    createHorizontalColorScaleLegend(calendar, margin, color);
 
-    // create the legend for the activity selection
-    var legend = activitySelectionSVG.append("g")
+    // holds the vertical legend for selecting the activities to display
+    var activitySelectionG = selectOrAppend(calendar, "g", "activity-selection")
+        .attr("transform", "translate(" + width / 2 + ",0)")
         .attr("font-family", "sans-serif")
         .attr("font-size", 10)
-        .attr("text-anchor", "end")
-        .selectAll("g")
-        .data(allActivities.slice().reverse())
-        .enter().append("g")
+        .attr("text-anchor", "end");
+
+    // create the legend for the activity selection
+    var legend = joinChildren(activitySelectionG, "g", "legend", allActivities.slice().reverse(),
+        function(d) { return d; },
+        function(entered) {
+            // add the colored rectangles to the legend
+            entered.append("rect")
+                .attr("y", 5)
+                .attr("width", CELL_HEIGHT)
+                .attr("height", CELL_HEIGHT)
+                .attr("fill", "#C0C0C0")
+                .attr("id", function (d) {
+                    return "id" + d.replace(/\s+/g, '');
+                })
+                .on("mouseover", function(){
+                    d3.select(this).style("cursor", "pointer");
+                });
+
+            // add the text to the legend
+            entered.append("text")
+                .attr("y", 9.5 + 5)
+                .attr("dy", "0.32em")
+                .text(function (d) {
+                    return d;
+                });
+        })
         .attr("transform", function (d, i) {
             return "translate(0," + i * 20 + ")";
-        })
-        .attr("class", function (d) {
-            // remove the spaces from the category and add it to the array
-            legendCategoryArray.push(d.replace(/\s+/g, ''));
-            return "legend";
         });
 
-    //reverse order to match order in which bars are stacked
-    legendCategoryArray = legendCategoryArray.reverse();
-
-    // add the colored rectangles to the legend
-    legend.append("rect")
+    // the listener is replaced on every draw, since it redraws the chart with the data and the selected activities of
+    // this draw
+    legend.select("rect")
         .attr("x", margin.right-20)
-        .attr("y", 5)
-        .attr("width", CELL_HEIGHT)
-        .attr("height", CELL_HEIGHT)
-        .attr("fill", "#C0C0C0")
-        .attr("id", function (d) {
-            return "id" + d.replace(/\s+/g, '');
-        })
-        .on("mouseover", function(){
-            d3.select(this).style("cursor", "pointer");
-        })
-        .on("click",function(){
-            var currentCategory = this.id.split("id").pop();
+        .on("click",function(d){
+            // remove the spaces from the category
+            var currentCategory = d.replace(/\s+/g, '');
             var posOfCurrentCategoryInArray = selectedActivities.indexOf(currentCategory);
 
             // category is in array -> user wants to disable the category -> remove it
@@ -279,29 +315,15 @@ function drawCalendarChart(data, selectedOptions, element, svg, g, width, height
             } finally {
                 drawCalendarChart(data, selectedOptions, element, svg, g, width, height, margin, selectedActivities);
             }
-        });
-
-    // mark the active categories as selected in the legend by setting a border for the respective rectangle
-    for (var m = 0; m < legendCategoryArray.length; m++) {
-        if (selectedActivities.indexOf(legendCategoryArray[m]) < 0) {
-            d3.select("#id" + legendCategoryArray[m])
-                .style("stroke", "none");
-        } else {
-            d3.select("#id" + legendCategoryArray[m])
-                .style("stroke", "black")
-                .style("stroke-width", 2);
-        }
-    }
+        })
+        // mark the active categories as selected in the legend by setting a border for the respective rectangle
+        .style("stroke", function(d) {
+            return selectedActivities.indexOf(d.replace(/\s+/g, '')) < 0 ? "none" : "black";
+        })
+        .style("stroke-width", 2);
 
-    // add the text to the legend
-    legend.append("text")
-        .attr("x", margin.right - 35)
-        .attr("y", 9.5 + 5)
-        .attr("dy", "0.32em")
-        .text(function (d) {
-            return d;
-        });
+    legend.select("text")
+        .attr("x", margin.right - 35);
 
     return selectedActivities;
 }
-
@@ -3,8 +3,15 @@
  */
 window.com_vaadin_ui_ChartComponent = function() {
 
-    // Create the component
-    var chart = new GraphSelector.ChartComponent(this.getElement());
+    var connector = this;
+
+    // Create the component; it reports the number of points fitting into the chart and the time needed to draw the
+    // chart (in milliseconds) to the server-side
+    var chart = new GraphSelector.ChartComponent(this.getElement(), function(targetPointCount) {
+        connector.setTargetPointCount(targetPointCount);
+    }, function(plot, renderMillis) {
+        connector.reportRenderTime(plot, renderMillis);
+    });
 
     // Handle changes from the server-side
     this.onStateChange = function() {
@@ -5,7 +5,12 @@
 
 var GraphSelector = GraphSelector || {};
 
-GraphSelector.ChartComponent = function (element) {
+GraphSelector.ChartComponent = function (element, onTargetPointCountChange, onRendered) {
+
+    // minimal horizontal distance in pixels between two points of the line chart; the server reduces the data to the
+    // number of points fitting into the chart
+    var MIN_PIXELS_PER_POINT = 8;
+    var targetPointCount = 0;
 
     var data;
     var selectedOptions;
@@ -17,18 +22,15 @@ GraphSelector.ChartComponent = function (element) {
 
     // this function gets called whenever the data for GraphSelector has been set
     this.setData = function (dataString, userSelectedOptions) {
+
+        var renderStart = performance.now();
     
-        // parse the input represented by json 
-        var dat = JSON.parse(dataString);
+        // parse the input represented by json; the columns are already sorted by time
+        data = fromColumns(JSON.parse(dataString));
         selectedOptions = JSON.parse(userSelectedOptions);
 
         console.log(selectedOptions);
 
-        // sort the data by time
-        data = dat.sort(function(a,b){
-            return a.startDateInUTC-b.startDateInUTC;
-        });
-
         console.log(data);
         
         // update the window variables according to the screen resolution
@@ -36,30 +38,78 @@ GraphSelector.ChartComponent = function (element) {
 
         // draw the chart
         drawChart();
+
+        // report the time needed for parsing the data and drawing the chart
+        if (onRendered) {
+            onRendered(selectedOptions.plotSelected, performance.now() - renderStart);
+        }
     };
 
     function drawChart() {
 
+        // every chart keeps its elements in a layer of its own, which stays until another chart is selected; the
+        // charts update the elements of their layer instead of drawing them anew
+        var layer = joinChildren(g, "g", "chart-layer", [selectedOptions.plotSelected], function(d) { return d; });
+
         switch(selectedOptions.plotSelected) {
 
             case "LineChart":
-                drawLineChart(data, selectedOptions, svg, g, width, adjusted_height);
+                drawLineChart(data, selectedOptions, svg, layer, width, adjusted_height);
                 break;
             case "StackedBarChart":
                 selectedCategories =
-                    drawStackedBarChart(data, selectedOptions, element, svg, g, width, adjusted_height, margin,
+                    drawStackedBarChart(data, selectedOptions, element, svg, layer, width, adjusted_height, margin,
                         selectedCategories);
-                console.log("mygraph after:")
-                console.log(selectedCategories);
                 break;
             case "CalendarChart":
-                selectedCategories = drawCalendarChart(data, selectedOptions, element, svg, g, width, adjusted_height,
-                    margin, selectedCategories);
+                selectedCategories = drawCalendarChart(data, selectedOptions, element, svg, layer, width,
+                    adjusted_height, margin, selectedCategories);
                 break;
         }
     }
 
 
+    /*
+     * converts the columns sent by the server (see ColumnarEncoder.java) to the array of objects used by the charts:
+     * {startDateInUTC: 1510185600000, dateDeltas: [86400000], steps: [489, 6023], ...} changes to
+     * [{startDateInUTC: 1510185600000, steps: 489, ..., activities: {...}},
+     *  {startDateInUTC: 1510272000000, steps: 6023, ..., activities: {...}}]
+     */
+    function fromColumns(columns) {
+
+        var rows = new Array(columns.steps.length);
+        var activityNames = Object.keys(columns.activities);
+        var date = columns.startDateInUTC;
+
+        for (var i = 0; i < rows.length; i++) {
+            if (i > 0) {
+                date += columns.dateDeltas[i-1];
+            }
+
+            var activities = {};
+            for (var j = 0; j < activityNames.length; j++) {
+                var duration = columns.activities[activityNames[j]][i];
+                if (duration !== null) {
+                    activities[activityNames[j]] = duration;
+                }
+            }
+
+            rows[i] = {
+                startDateInUTC: date,
+                steps: columns.steps[i],
+                averageSteps: columns.averageSteps[i],
+                stdErrorOfMean: columns.stdErrorOfMean[i],
+                lowerQuartileSteps: columns.lowerQuartileSteps[i],
+                medianSteps: columns.medianSteps[i],
+                upperQuartileSteps: columns.upperQuartileSteps[i],
+                cohortAverageSteps: columns.cohortAverageSteps[i],
+                activities: activities
+            };
+        }
+        return rows;
+    }
+
+
     /*
      * updates the variables related to the window
      */
@@ -95,16 +145,21 @@ GraphSelector.ChartComponent = function (element) {
             width = windowX - margin.left - margin.right - vaadin_menu_width,
             height = windowY - margin.top - margin.bottom - vaadin_top_bar_height;
 
-        // remove previously drawn elements
-        d3.selectAll("svg").remove();
+        // tell the server how many points fit into the chart
+        var newTargetPointCount = Math.max(Math.floor(width / MIN_PIXELS_PER_POINT), 3);
+        if (newTargetPointCount !== targetPointCount) {
+            targetPointCount = newTargetPointCount;
+            onTargetPointCountChange(targetPointCount);
+        }
 
         // adjust the height for the range of the y axis
         adjusted_height = height-margin.top-margin.bottom;
 
-        // create the svg with the corresponding size
-        svg = d3.select(element).append("svg:svg").attr("width", width+margin.right).attr("height",
+        // create the svg on the first call; afterwards only its size is updated, while the charts keep their elements
+        svg = selectOrAppend(d3.select(element), "svg", "chart-svg").attr("width", width+margin.right).attr("height",
                                                                                     height),
-            g  = svg.append("g").attr("transform", "translate(" + margin.left + "," + margin.top + ")");
+            g  = selectOrAppend(svg, "g", "chart-plot")
+                .attr("transform", "translate(" + margin.left + "," + margin.top + ")");
 
     }
 
@@ -146,3 +146,50 @@ function extractActivityNames(data) {
     return Array.from(uniqueActivityNames);
 }
 
+
+
+/**
+ * returns the child of the parent with the tag and the class; the child is appended on the first call, so the charts
+ * keep their elements between two draws instead of removing and appending them again
+ * @param parent: selection of the parent element
+ * @param tag: tag of the child, e.g. "g"
+ * @param className: class of the child
+ * @return the selection of the child
+ */
+function selectOrAppend(parent, tag, className) {
+
+    var child = parent.select(tag + "." + className);
+    if (child.empty()) {
+        child = parent.append(tag).attr("class", className);
+    }
+    return child;
+}
+
+
+/**
+ * joins the data to the children of the parent with the tag and the class (enter, update and exit, see
+ * https://bost.ocks.org/mike/join/): the children of data which is gone are removed, children for new data are
+ * appended and the children of the other data are kept, so a draw only touches the nodes which have changed
+ * @param parent: selection of the parent element(s)
+ * @param tag: tag of the children, e.g. "rect"
+ * @param className: class of the children
+ * @param data: array of the data or function returning the data of each parent
+ * @param key: function returning the key of a datum, e.g. its date; the index is used if undefined
+ * @param init: function setting the attributes which never change on the appended children; optional
+ * @return the selection of the appended and the kept children in the order of the data
+ */
+function joinChildren(parent, tag, className, data, key, init) {
+
+    var children = parent.selectAll(tag + "." + className).data(data, key);
+
+    // remove the children of data which is gone
+    children.exit().remove();
+
+    // append the children of new data
+    var entered = children.enter().append(tag).attr("class", className);
+    if (init) {
+        entered.call(init);
+    }
+
+    return entered.merge(children).order();
+}
@@ -3,12 +3,13 @@
  */
 
 /**
- * draws the line chart displaying the step data for the user and the average of other users
+ * draws the line chart displaying the step data for the user and the average of other users; the elements drawn
+ * before are updated (the points of the days are joined by their date), so only the changed nodes are touched
  * @param dat: the data to plot (array of objects containing the avg steps, user steps and date in milliseconds, etc)
  * @param selectedOptions: object holding the user selected options as properties, e.g. the selected time, the
  * the selected plot, colors, etc.
- * @param svg: the svg element where the drawn content gets added to
- * @param g: grouped element where the drawn content gets added to
+ * @param svg: the svg element where the tooltips get added to
+ * @param g: grouped element (the layer of the line chart) where the drawn content gets added to
  * @param width: the width of the plot
  * @param height: the height of the plot
  */
@@ -20,7 +21,9 @@ function drawLineChart(dat, selectedOptions, svg, g, width, height) {
 
     // Scale the range of the data
     x.domain(d3.extent(dat, function(d) { return d.startDateInUTC; }));
-    y.domain([0, d3.max(dat, function(d) {return Math.max(d.steps, d.averageSteps); })]);
+    y.domain([0, d3.max(dat, function(d) {
+        return Math.max(d.steps, d.averageSteps, d.upperQuartileSteps || 0, d.cohortAverageSteps || 0);
+    })]);
 
     // define the 1st line
     var userStepsLine = d3.line()
@@ -32,9 +35,53 @@ function drawLineChart(dat, selectedOptions, svg, g, width, height) {
         .x(function(d) { return x(d.startDateInUTC); })
         .y(function(d) { return y(d.averageSteps); });
 
+    // define the band between the lower and the upper quartile of all users and the median; days stored by an older
+    // version have no quartiles
+    var hasQuartiles = function(d) { return d.lowerQuartileSteps != null && d.upperQuartileSteps != null; };
+    var quartileArea = d3.area()
+        .defined(hasQuartiles)
+        .x(function(d) { return x(d.startDateInUTC); })
+        .y0(function(d) { return y(d.lowerQuartileSteps); })
+        .y1(function(d) { return y(d.upperQuartileSteps); });
+    var medianStepsLine = d3.line()
+        .defined(function(d) { return d.medianSteps != null; })
+        .x(function(d) { return x(d.startDateInUTC); })
+        .y(function(d) { return y(d.medianSteps); });
+
+    // define the average of the users of the same country, gender and age band as the user (their cohort); it is
+    // missing where no day of the cohort is stored
+    var cohortStepsLine = d3.line()
+        .defined(function(d) { return d.cohortAverageSteps != null; })
+        .x(function(d) { return x(d.startDateInUTC); })
+        .y(function(d) { return y(d.cohortAverageSteps); });
+
+    // Add the quartiles behind the lines
+    selectOrAppend(g, "path", "quartile-band")
+        .datum(dat)
+        .attr("d", quartileArea)
+        .attr("fill", selectedOptions.colorForAvgSteps)
+        .attr("fill-opacity", 0.2)
+        .attr("stroke", "none");
+
+    selectOrAppend(g, "path", "median-line")
+        .datum(dat)
+        .attr("d", medianStepsLine)
+        .attr("fill", "none")
+        .attr("stroke", selectedOptions.colorForAvgSteps)
+        .attr("stroke-width", "1px")
+        .style("stroke-dasharray", ("6, 3"));
+
+    selectOrAppend(g, "path", "cohort-line")
+        .datum(dat)
+        .attr("d", cohortStepsLine)
+        .attr("fill", "none")
+        .attr("stroke", selectedOptions.colorForUserSteps)
+        .attr("stroke-width", "1.5px")
+        .style("stroke-dasharray", ("2, 2"));
+
     // Add the user steps
-    g.append("path")
-        .data([dat])
+    selectOrAppend(g, "path", "user-line")
+        .datum(dat)
         .attr("d", userStepsLine)
         .attr("stroke", selectedOptions.colorForUserSteps)
         .attr("fill", "none")
@@ -43,45 +90,52 @@ function drawLineChart(dat, selectedOptions, svg, g, width, height) {
     // time format for the dates
     var timeFormat = d3.timeFormat(selectedOptions.timeFormat);
 
+    // the points of the days are joined by their date
+    var dateOf = function(d) { return d.startDateInUTC; };
+
     // add the circles to select the tooltips
-    svg.selectAll("dot")
-        .data(dat)
-        .enter().append("circle")
-        .attr("r", 5)
+    var userDots = joinChildren(selectOrAppend(g, "g", "user-dots"), "circle", "user-dot", dat, dateOf,
+        function(entered) {
+            entered.attr("r", 5);
+            entered.append("svg:title");
+        })
         .attr("cx", function(d) { return x(d.startDateInUTC); })
         .attr("cy", function(d) { return y(d.steps); })
-        .attr("transform", "translate(50,12)")
-        .attr("fill", selectedOptions.colorForUserSteps)
-        .attr("id", function(d,i) { return "user_"+i; })
-        .append("svg:title")
-        .text(function(d, i) { return timeFormat(d.startDateInUTC)});
+        .attr("fill", selectedOptions.colorForUserSteps);
+    userDots.select("title")
+        .text(function(d) { return timeFormat(d.startDateInUTC)});
 
     // Add the average steps
-    g.append("path")
-        .data([dat])
+    selectOrAppend(g, "path", "average-line")
+        .datum(dat)
         .attr("d", avgStepsLine)
         .attr("stroke-width", "3px")
         .attr("fill", "none")
         .attr("stroke", selectedOptions.colorForAvgSteps);
 
     // add the circles to select the tooltips
-    svg.selectAll("dot")
-        .data(dat)
-        .enter().append("circle")
-        .attr("r", 5)
+    var avgDots = joinChildren(selectOrAppend(g, "g", "average-dots"), "circle", "average-dot", dat, dateOf,
+        function(entered) {
+            entered.attr("r", 5);
+            entered.append("svg:title");
+        })
         .attr("cx", function(d) { return x(d.startDateInUTC); })
         .attr("cy", function(d) { return y(d.averageSteps); })
-        .attr("transform", "translate(50,12)")
-        .attr("fill", selectedOptions.colorForAvgSteps)
-        .attr("id", function(d,i) { return "avg_"+i; })
-        .append("svg:title")
-        .text(function(d, i) { return timeFormat(d.startDateInUTC)});
+        .attr("fill", selectedOptions.colorForAvgSteps);
+    avgDots.select("title")
+        .text(function(d) { return timeFormat(d.startDateInUTC)});
+
+    // sets the constant attributes of the lines of the error bars
+    var initErrorLine = function(entered) {
+        entered.attr("stroke-width", 2)
+            .attr("stroke", "black");
+    };
 
     // Add Error Line
-    svg.append("g").selectAll("line")
-    	.data(dat).enter()
-        .append("line")
-        .attr("class", "error-line")
+    joinChildren(selectOrAppend(g, "g", "error-lines"), "line", "error-line", dat, dateOf, function(entered) {
+            entered.call(initErrorLine)
+                .style("stroke-dasharray", ("3, 3"));
+        })
         .attr("x1", function(d) {
             return x(d.startDateInUTC);
         })
@@ -93,17 +147,10 @@ function drawLineChart(dat, selectedOptions, svg, g, width, height) {
         })
         .attr("y2", function(d) {
             return y(d.averageSteps - d.stdErrorOfMean);
-        })
-        .attr("transform", "translate(50,12)")
-        .attr("stroke-width", 2)
-        .style("stroke-dasharray", ("3, 3"))
-        .attr("stroke", "black");
+        });
 
     // Add Error Top Cap
-    svg.append("g").selectAll("line")
-    	.data(dat).enter()
-        .append("line")
-        .attr("class", "error-cap")
+    joinChildren(selectOrAppend(g, "g", "error-top-caps"), "line", "error-cap", dat, dateOf, initErrorLine)
         .attr("x1", function(d) {
       	    return x(d.startDateInUTC) - 4;
         })
@@ -115,16 +162,10 @@ function drawLineChart(dat, selectedOptions, svg, g, width, height) {
         })
         .attr("y2", function(d) {
       	    return y(d.averageSteps + d.stdErrorOfMean);
-        })
-        .attr("transform", "translate(50,12)")
-        .attr("stroke-width", 2)
-        .attr("stroke", "black");
+        });
 
      // Add Error Bottom Cap
-    svg.append("g").selectAll("line")
-    	.data(dat).enter()
-        .append("line")
-        .attr("class", "error-cap")
+    joinChildren(selectOrAppend(g, "g", "error-bottom-caps"), "line", "error-cap", dat, dateOf, initErrorLine)
         .attr("x1", function(d) {
         	return x(d.startDateInUTC) - 4;
         })
@@ -136,10 +177,7 @@ function drawLineChart(dat, selectedOptions, svg, g, width, height) {
         })
         .attr("y2", function(d) {
         	return y(d.averageSteps - d.stdErrorOfMean);
-        })
-        .attr("transform", "translate(50,12)")
-        .attr("stroke-width", 2)
-        .attr("stroke", "black");
+        });
 
     /**
      * creates the tooltip text elements which are displayed when the user is hovering over the dots
@@ -184,50 +222,35 @@ function drawLineChart(dat, selectedOptions, svg, g, width, height) {
     }
 
     /**
-     * adds event listener to the k-th data point
-     * @param k: index of the data point to add the event listener to
+     * removes the tooltip, e.g. when the user stops hovering over a dot
      */
-    function addEventListenerToDataPoint(k) {
-
-        var event = document.createEvent('Event');
-        event.initEvent('mouseover', true, true);
+    function removeTooltipTextElements() {
+        removeElementFromDOM("tooltip1");
+        removeElementFromDOM("tooltip2");
+    }
 
-        document.getElementById("avg_"+k).addEventListener("mouseover", function() {
+    // add the event listeners for the tooltips to the data points; they replace the listeners of the previous draw,
+    // which refer to its scales
+    avgDots
+        .on("mouseover", function(d) {
             var isUserSelected = false;
-            createTooltipTextElements({"cx": x(dat[k].startDateInUTC), "cy": y(dat[k].averageSteps),
-                "cy_other": y(dat[k].steps), "selectedSteps": dat[k].averageSteps,
-                "notSelectedSteps": dat[k].steps}, isUserSelected);
-        });
+            createTooltipTextElements({"cx": x(d.startDateInUTC), "cy": y(d.averageSteps),
+                "cy_other": y(d.steps), "selectedSteps": d.averageSteps,
+                "notSelectedSteps": d.steps}, isUserSelected);
+        })
+        .on("mouseout", removeTooltipTextElements);
 
-        document.getElementById("user_"+k).addEventListener("mouseover", function() {
+    userDots
+        .on("mouseover", function(d) {
             var isUserSelected = true;
-            createTooltipTextElements({"cx": x(dat[k].startDateInUTC), "cy": y(dat[k].steps),
-                "cy_other": y(dat[k].averageSteps), "selectedSteps": dat[k].steps,
-                "notSelectedSteps": dat[k].averageSteps}, isUserSelected);
-        });
-
-        // when user stops hovering over a dot ..
-        document.getElementById("avg_"+k).addEventListener("mouseout", function() {
-            // .. delete the tooltip
-            removeElementFromDOM("tooltip1");
-            removeElementFromDOM("tooltip2");
-        });
-
-        // when user stops hovering over a dot ..
-        document.getElementById("user_"+k).addEventListener("mouseout", function() {
-            // .. delete the tooltip
-            removeElementFromDOM("tooltip1");
-            removeElementFromDOM("tooltip2");
-        });
-    }
-
-    // add the event listeners for the tooltips to the data points
-    for (var k = 0; k < dat.length; k++) {
-        addEventListenerToDataPoint(k, x, y);
-    }
+            createTooltipTextElements({"cx": x(d.startDateInUTC), "cy": y(d.steps),
+                "cy_other": y(d.averageSteps), "selectedSteps": d.steps,
+                "notSelectedSteps": d.averageSteps}, isUserSelected);
+        })
+        .on("mouseout", removeTooltipTextElements);
 
-    // Add the X Axis
-    g.append("g")
+    // Add the X Axis; the axis updates its ticks itself
+    selectOrAppend(g, "g", "x-axis")
         .attr("transform", "translate(0," + height + ")")
         .call(d3.axisBottom(x)
             .tickFormat(timeFormat)
@@ -235,10 +258,10 @@ function drawLineChart(dat, selectedOptions, svg, g, width, height) {
         );
 
     // Add the Y Axis
-    g.append("g")
-        .attr("class", "axis")
-        .call(d3.axisLeft(y).ticks(null, "r"))
-        .append("text")
+    var yAxis = selectOrAppend(g, "g", "y-axis")
+        .classed("axis", true)
+        .call(d3.axisLeft(y).ticks(null, "r"));
+    selectOrAppend(yAxis, "text", "axis-label")
         .attr("x", 2)
         .attr("y", y(y.ticks().pop()) + 0.5)
         .attr("dy", "0.32em")
@@ -252,26 +275,27 @@ function drawLineChart(dat, selectedOptions, svg, g, width, height) {
         .range([selectedOptions.colorForUserSteps, selectedOptions.colorForAvgSteps]);
 
     // create the legend
-    var legend = g.append("g")
-        .attr("font-family", "sans-serif")
-        .attr("font-size", 10)
-        .attr("text-anchor", "end")
-        .selectAll("g")
-        .data(["You", "Other Users"])
-        .enter().append("g")
-        .attr("transform", function(d, i) { return "translate(0," + i * 20 + ")"; });
+    var legend = joinChildren(selectOrAppend(g, "g", "legend-items")
+            .attr("font-family", "sans-serif")
+            .attr("font-size", 10)
+            .attr("text-anchor", "end"), "g", "legend", ["You", "Other Users"], function(d) { return d; },
+        function(entered) {
+            entered.attr("transform", function(d, i) { return "translate(0," + i * 20 + ")"; });
+            entered.append("rect")
+                .attr("width", 19)
+                .attr("height", 19);
+            entered.append("text")
+                .attr("y", 9.5)
+                .attr("dy", "0.32em")
+                .text(function(d) { return d; });
+        });
 
     // add the colored rectangles to the legend
-    legend.append("rect")
+    legend.select("rect")
         .attr("x", width + 20)
-        .attr("width", 19)
-        .attr("height", 19)
         .attr("fill", colorScale);
 
     // add the text to the legend
-    legend.append("text")
-        .attr("x", width + 15)
-        .attr("y", 9.5)
-        .attr("dy", "0.32em")
-        .text(function(d) { return d; });
-}
\ No newline at end of file
+    legend.select("text")
+        .attr("x", width + 15);
+}
@@ -18,7 +18,8 @@
  * @param selectedOptions: options selected by the user; currently not used
  * @param element: element for the svg container
  * @param svg: svg container which holds the g container
- * @param g: container which holds the plots
+ * @param g: container (the layer of the bar chart) which holds the plots; the elements drawn into it before are
+ * updated, i.e. the stacks are joined by their activity and the bars by their date
  * @param width: width available for the svg container
  * @param height: height available for the svg container
  * @param margin: margin for the svg: container
@@ -28,7 +29,6 @@
 function drawStackedBarChart(data, selectedOptions, element, svg, g, width, height, margin, selectedActivities_) {
 
     var selectedActivities;
-    console.log(data);
     var allActivities = extractActivityNames(data);
 
     if (selectedActivities_ === null || selectedActivities_.length === 0) {
@@ -40,9 +40,7 @@ function drawStackedBarChart(data, selectedOptions, element, svg, g, width, heig
 
     // check if there is at least one category to display
     var hasCategoryBeenFound = false;
-    console.log("selected activities:");
     for (var i = 0; i < selectedActivities.length; i++) {
-        console.log(selectedActivities[i]);
         if (allActivities.indexOf(selectedActivities[i]) > -1) {
             hasCategoryBeenFound = true;
         }
@@ -53,14 +51,6 @@ function drawStackedBarChart(data, selectedOptions, element, svg, g, width, heig
         selectedActivities = allActivities;
     }
 
-    // remove previously drawn elements
-    d3.selectAll("svg").remove();
-
-    // create the svg with the corresponding size
-    var svg = d3.select(element).append("svg:svg").attr("width", width+margin.right).attr("height",
-        height+margin.top+margin.bottom);
-    g  = svg.append("g").attr("transform", "translate(" + margin.left + "," + margin.top + ")");
-
     // create the x and y scales
     var x = d3.scaleBand()
         .rangeRound([0, width])
@@ -127,36 +117,37 @@ function drawStackedBarChart(data, selectedOptions, element, svg, g, width, heig
         x.paddingInner = 0;
     }
 
-    // draw the bars
-    g.append("g")
-        .selectAll("g")
-        .data(d3.stack().keys(selectedActivities)(data))
-        .enter().append("g")
-        .attr("fill", function(d) { return colorScale(d.key); })
-        .selectAll("rect")
-        .data(function(d) { return d; })
-        .enter().append("rect")
+    // draw the bars: a group for each activity holding a bar for each day
+    var stackedData = d3.stack().keys(selectedActivities)(data);
+    var layers = joinChildren(selectOrAppend(g, "g", "bars"), "g", "activity", stackedData,
+        function(d) { return d.key; })
+        .attr("fill", function(d) { return colorScale(d.key); });
+
+    joinChildren(layers, "rect", "bar", function(d) { return d; }, function(d) { return d.data.startDateInUTC; },
+        function(entered) {
+            entered.append("svg:title");
+        })
         .attr("x", function(d) { return x(timeFormat(d.data.startDateInUTC)); })
         .attr("y", function(d) { return y(d[1]); })
         .attr("height", function(d) { return y(d[0]) - y(d[1]); })
         .attr("width", x.bandwidth())
         .attr("id", function(d,i) { return i; })
-        .append("svg:title")
+        .select("title")
         .text(function(d) { return timeFormat(d.data.startDateInUTC)});
 
-    // draw the x axis
-    g.append("g")
-        .attr("class", "axis")
+    // draw the x axis; the axis updates its ticks itself
+    selectOrAppend(g, "g", "x-axis")
+        .classed("axis", true)
         .attr("transform", "translate(0," + height + ")")
         .call(d3.axisBottom(x)
             .tickValues(getDatesForXAxis(x, width))
         );
 
     // draw the y axis
-    g.append("g")
-        .attr("class", "axis")
-        .call(d3.axisLeft(y).ticks(null, "r"))
-        .append("text")
+    var yAxis = selectOrAppend(g, "g", "y-axis")
+        .classed("axis", true)
+        .call(d3.axisLeft(y).ticks(null, "r"));
+    selectOrAppend(yAxis, "text", "axis-label")
         .attr("x", 2)
         .attr("y", y(y.ticks().pop()) + 0.5)
         .attr("dy", "0.32em")
@@ -165,41 +156,36 @@ function drawStackedBarChart(data, selectedOptions, element, svg, g, width, heig
         .attr("text-anchor", "start")
         .text("Hours");
 
-    // the array which holds all the categories for the legend
-    var legendCategoryArray = [];
-
     // create the legend
-    var legend = g.append("g")
-        .attr("font-family", "sans-serif")
-        .attr("font-size", 10)
-        .attr("text-anchor", "end")
-        .selectAll("g")
-        .data(allActivities.slice().reverse())
-        .enter().append("g")
-        .attr("transform", function(d, i) { return "translate(0," + i * 20 + ")"; })
-        .attr("class", function (d) {
-            // remove the spaces from the category and add it to the array
-            legendCategoryArray.push(d.replace(/\s+/g, ''));
-            return "legend";
-        });
-
-    //reverse order to match order in which bars are stacked
-    legendCategoryArray = legendCategoryArray.reverse();
+    var legend = joinChildren(selectOrAppend(g, "g", "legend-items")
+            .attr("font-family", "sans-serif")
+            .attr("font-size", 10)
+            .attr("text-anchor", "end"), "g", "legend", allActivities.slice().reverse(), function(d) { return d; },
+        function(entered) {
+            entered.append("rect")
+                .attr("width", 19)
+                .attr("height", 19)
+                .attr("id", function (d) {
+                    return "id" + d.replace(/\s+/g, '');
+                })
+                .on("mouseover", function(){
+                    d3.select(this).style("cursor", "pointer");
+                });
+            entered.append("text")
+                .attr("y", 9.5)
+                .attr("dy", "0.32em")
+                .text(function(d) { return d; });
+        })
+        .attr("transform", function(d, i) { return "translate(0," + i * 20 + ")"; });
 
-    // add the colored rectangles to the legend
-    legend.append("rect")
+    // add the colored rectangles to the legend; the listener is replaced on every draw, since it redraws the chart
+    // with the data and the selected activities of this draw
+    legend.select("rect")
         .attr("x", width + 20)
-        .attr("width", 19)
-        .attr("height", 19)
         .attr("fill", colorScale)
-        .attr("id", function (d) {
-            return "id" + d.replace(/\s+/g, '');
-        })
-        .on("mouseover", function(){
-            d3.select(this).style("cursor", "pointer");
-        })
-        .on("click",function(){
-            var currentCategory = this.id.split("id").pop();
+        .on("click",function(d){
+            // remove the spaces from the category
+            var currentCategory = d.replace(/\s+/g, '');
             var posOfCurrentCategoryInArray = selectedActivities.indexOf(currentCategory);
 
             // category is in array -> user wants to disable the category -> remove it
@@ -221,46 +207,39 @@ function drawStackedBarChart(data, selectedOptions, element, svg, g, width, heig
             } finally {
                 drawStackedBarChart(data, selectedOptions, element, svg, g, width, height, margin, selectedActivities);
             }
-        });
-
-    // mark the active categories as selected in the legend by setting a border for the respective rectangle
-    for (var m = 0; m < legendCategoryArray.length; m++) {
-        if (selectedActivities.indexOf(legendCategoryArray[m]) < 0) {
-            d3.select("#id" + legendCategoryArray[m])
-                .style("stroke", "none");
-        } else {
-            d3.select("#id" + legendCategoryArray[m])
-                .style("stroke", "black")
-                .style("stroke-width", 2);
-        }
-    }
+        })
+        // mark the active categories as selected in the legend by setting a border for the respective rectangle
+        .style("stroke", function(d) {
+            return selectedActivities.indexOf(d.replace(/\s+/g, '')) < 0 ? "none" : "black";
+        })
+        .style("stroke-width", 2);
 
     // add the text to the legend
-    legend.append("text")
-        .attr("x", width + 15)
-        .attr("y", 9.5)
-        .attr("dy", "0.32em")
-        .text(function(d) { return d; });
+    legend.select("text")
+        .attr("x", width + 15);
 
     // TODO: actual tooltips
     // Prep the tooltip bits, initial display is hidden
-    var tooltip = svg.append("g")
-        .attr("class", "tooltip")
-        .style("display", "none");
-
-    tooltip.append("rect")
-        .attr("width", 60)
-        .attr("height", 20)
-        .attr("fill", "white")
-        .style("opacity", 0.5);
-
-    tooltip.append("text")
-        .attr("x", 30)
-        .attr("dy", "1.2em")
-        .style("text-anchor", "middle")
-        .attr("font-size", "12px")
-        .attr("font-weight", "bold");
+    var tooltip = g.select("g.tooltip");
+    if (tooltip.empty()) {
+        tooltip = g.append("g")
+            .attr("class", "tooltip")
+            .style("display", "none");
+
+        tooltip.append("rect")
+            .attr("width", 60)
+            .attr("height", 20)
+            .attr("fill", "white")
+            .style("opacity", 0.5);
+
+        tooltip.append("text")
+            .attr("x", 30)
+            .attr("dy", "1.2em")
+            .style("text-anchor", "middle")
+            .attr("font-size", "12px")
+            .attr("font-weight", "bold");
+    }
 
     // send the selected activities back to my graph
     return selectedActivities;
-}
\ No newline at end of file
+}
@@ -0,0 +1,121 @@
+package com.vaadin.model;
+
+import com.mongodb.ServerAddress;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.MongoCursor;
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the merge of the activities of a user into the days of the daily pipeline (see
+ * MongoFitDataStore.ActivityMergingIterator): every day gets the activities of its date, days without activities and
+ * activities of days without steps are skipped, the activities follow the steps, and both cursors are closed.
+ */
+public class ActivityMergingIteratorTest {
+
+    private static final long DAY = DataRequest.DAY_IN_MILLIS;
+
+    @Test
+    public void activitiesAreMergedIntoTheirDays() {
+        ListCursor days = new ListCursor(Arrays.asList(day(1), day(2), day(4), day(5)));
+        // no activities on day 2, and activities on day 3, which has no steps
+        ListCursor activities = new ListCursor(Arrays.asList(activities(1), activities(3), activities(4),
+                activities(5)));
+
+        List<Document> merged = new ArrayList<>();
+        try (CloseableIterator<Document> iterator = new MongoFitDataStore.ActivityMergingIterator(days, activities)) {
+            iterator.forEachRemaining(merged::add);
+        }
+
+        assertEquals(4, merged.size());
+        assertEquals(Collections.singletonMap("walking", 1), merged.get(0).get("activities"));
+        assertNull(merged.get(1).get("activities"));
+        assertEquals(Collections.singletonMap("walking", 4), merged.get(2).get("activities"));
+        assertEquals(Collections.singletonMap("walking", 5), merged.get(3).get("activities"));
+        assertEquals(Arrays.asList("startDateInUTC", "steps", "activities", "averageSteps"),
+                new ArrayList<>(merged.get(0).keySet()));
+        assertTrue(days.closed);
+        assertTrue(activities.closed);
+    }
+
+    @Test
+    public void daysWithoutAnyActivitiesAreReturnedUnchanged() {
+        List<Document> merged = new ArrayList<>();
+        try (CloseableIterator<Document> iterator = new MongoFitDataStore.ActivityMergingIterator(
+                new ListCursor(Arrays.asList(day(1), day(2))), new ListCursor(Collections.emptyList()))) {
+            iterator.forEachRemaining(merged::add);
+        }
+        assertEquals(Arrays.asList(day(1), day(2)), merged);
+        assertFalse(merged.get(0).containsKey("activities"));
+    }
+
+    /**
+     * @param day: the number of the day
+     * @return a document of the daily pipeline
+     */
+    private static Document day(int day) {
+        return new Document("startDateInUTC", day * DAY).append("steps", 1000 * day).append("averageSteps", 5000.0);
+    }
+
+    /**
+     * @param day: the number of the day
+     * @return a document of the activities of the user
+     */
+    private static Document activities(int day) {
+        return new Document("dateInUTC", day * DAY).append("activities", new Document("walking", day));
+    }
+
+    /**
+     * a cursor over documents in memory, remembering whether it has been closed
+     */
+    private static final class ListCursor implements MongoCursor<Document> {
+
+        private final Iterator<Document> documents;
+        private boolean closed;
+
+        ListCursor(List<Document> documents) {
+            this.documents = documents.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return documents.hasNext();
+        }
+
+        @Override
+        public Document next() {
+            return documents.next();
+        }
+
+        @Override
+        public Document tryNext() {
+            return documents.hasNext() ? documents.next() : null;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public ServerCursor getServerCursor() {
+            return null;
+        }
+
+        @Override
+        public ServerAddress getServerAddress() {
+            return null;
+        }
+    }
+}
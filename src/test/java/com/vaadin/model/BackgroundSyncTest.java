@@ -0,0 +1,288 @@
+package com.vaadin.model;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the schedule of the background sync (see BackgroundSync.runDueSyncs) with a fake clock against a local stand-in
+ * of google fit (see GoogleStandIn), minute by minute of the fake clock:
+ *      - the first syncs of the users are spread over the interval instead of starting at once
+ *      - a gap of GAP_DAYS days is closed with two requests (see FitDataFetcher.planSync), the most recent days first
+ *        and the rest on the next tick
+ *      - users who have not logged in recently and users without data are not synced
+ *      - once the users are up to date, only the recent days (see FitDataFetcher.REFRESH_DAYS) are requested again,
+ *        once per user and interval
+ *      - with the limits of the quota and of the concurrent syncs, no minute of the fake clock has more requests than
+ *        allowed and never more syncs run at the same time than allowed
+ *      - the sync of a view (see BackgroundSync.syncFirst) starts ahead of the due users and stays within the quota;
+ *        the rest of its plan follows on the next ticks
+ */
+@RunWith(Parameterized.class)
+public class BackgroundSyncTest {
+
+    /* number of active users of each test */
+    private static final int USERS = 50;
+
+    /* the settings of the sync: the users are synced hourly, if they logged in within two weeks */
+    private static final long MINUTE_IN_MILLIS = 60000;
+    private static final long INTERVAL_MILLIS = 60 * MINUTE_IN_MILLIS;
+    private static final long ACTIVE_MILLIS = 14 * DataRequest.DAY_IN_MILLIS;
+
+    /* the limits of the throttled sync */
+    private static final int MAX_CONCURRENT_SYNCS = 2;
+    private static final int MAX_REQUESTS_PER_MINUTE = 5;
+
+    /* the days missing for the users: one request of the longest time span (see FitRequestPlanner) and one more */
+    private static final int GAP_DAYS = FitRequestPlanner.MAX_DAYS_PER_REQUEST + 9;
+
+    /* the days stored for the users with data end GAP_DAYS days ago and reach back beyond the year that is synced */
+    private static final int STORED_DAYS = 370 - GAP_DAYS;
+
+    private static GoogleStandIn google;
+    private static long yesterday;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> storages() {
+        return Arrays.asList(new Object[][]{{"mongo"}, {"sqlite"}});
+    }
+
+    /* the store the data is kept in (see FitDataStores) */
+    @Parameterized.Parameter
+    public String storage;
+
+    private final AtomicLong clock = new AtomicLong(1514764800000L);    // the fake clock, starting on 2018-01-01
+    private AuthRequest authRequest;
+
+    @BeforeClass
+    public static void startStandIn() throws IOException {
+        google = new GoogleStandIn();
+        // the requests read the urls of google when ApiRequest is loaded
+        System.setProperty("trackfit.fit.rootUrl", google.getFitRootUrl());
+        System.setProperty("trackfit.oauth.tokenUrl", google.getTokenServerUrl());
+        yesterday = DataRequest.getStartOfToday().getTimeInMillis() - DataRequest.DAY_IN_MILLIS;
+    }
+
+    @AfterClass
+    public static void stopStandIn() {
+        google.close();
+    }
+
+    @Before
+    public void useStorage() throws IOException {
+        TestStores.use(storage);
+        authRequest = new AuthRequest(google.getClientSecrets(), FitDataStores.get(), google.getTokenServerUrl());
+    }
+
+    @After
+    public void closeStore() {
+        TestStores.close();
+    }
+
+    @Test
+    public void gapsOfActiveUsersAreClosedWithinTheInterval() throws Exception {
+        long login = clock.get();
+        for (int user = 0; user < USERS; user++) {
+            storeUser("active-" + user, login, true);
+        }
+        storeUser("inactive", login - 30 * DataRequest.DAY_IN_MILLIS, true);
+        storeUser("new", login, false);
+        Long latestDayOfInactiveUser = FitDataStores.get().extractLatestStoredDay("inactive");
+
+        BackgroundSync backgroundSync = new BackgroundSync(authRequest, clock::get, INTERVAL_MILLIS, ACTIVE_MILLIS,
+                USERS, Integer.MAX_VALUE);
+        try {
+            int requests = google.getAggregateRequests();
+            int answered = google.getAnsweredTimeIntervals().size();
+            tick(backgroundSync);
+            int requestsOfFirstTick = google.getAggregateRequests() - requests;
+            assertTrue(requestsOfFirstTick + " users synced on the first tick; the first syncs are spread",
+                    requestsOfFirstTick <= USERS / 10);
+
+            // the users due in the last minute of the interval need one more tick for their second request
+            for (long minute = 1; minute <= 61; minute++) {
+                clock.addAndGet(MINUTE_IN_MILLIS);
+                tick(backgroundSync);
+            }
+            // the users synced at the start of the interval are due again in its last minute
+            assertEquals("requests to close the gaps", 2 * USERS, requestsLongerThanRefresh(answered));
+            for (int user = 0; user < USERS; user++) {
+                assertEquals("active-" + user, yesterday, (long) FitDataStores.get().extractLatestStoredDay(
+                        "active-" + user));
+            }
+            assertEquals("a user who has not logged in recently is not synced", latestDayOfInactiveUser,
+                    FitDataStores.get().extractLatestStoredDay("inactive"));
+            assertNull("a user without data is left to the first login",
+                    FitDataStores.get().extractLatestStoredDay("new"));
+
+            answered = google.getAnsweredTimeIntervals().size();
+            for (long minute = 1; minute <= 60; minute++) {
+                clock.addAndGet(MINUTE_IN_MILLIS);
+                tick(backgroundSync);
+            }
+            int requestsOfInterval = google.getAnsweredTimeIntervals().size() - answered;
+            assertEquals("only the recent days are requested for users who are up to date", 0,
+                    requestsLongerThanRefresh(answered));
+            assertTrue(requestsOfInterval + " requests of the recent days within an interval",
+                    requestsOfInterval > 0 && requestsOfInterval <= USERS);
+        } finally {
+            backgroundSync.close();
+        }
+    }
+
+    @Test
+    public void quotaAndConcurrentSyncsAreLimited() throws Exception {
+        long login = clock.get();
+        for (int user = 0; user < USERS; user++) {
+            storeUser("throttled-" + user, login, true);
+        }
+
+        BackgroundSync backgroundSync = new BackgroundSync(authRequest, clock::get, INTERVAL_MILLIS, ACTIVE_MILLIS,
+                MAX_CONCURRENT_SYNCS, MAX_REQUESTS_PER_MINUTE);
+        try {
+            // ticks every 10 seconds of the fake clock for two intervals; the users need 2 * USERS requests, i.e.
+            // 20 minutes of the quota
+            google.resetMaxConcurrentAggregateRequests();
+            int answered = google.getAnsweredTimeIntervals().size();
+            int requestsOfMinute = 0;
+            for (int tick = 0; tick < 6 * 120; tick++) {
+                int requestsBefore = google.getAggregateRequests();
+                tick(backgroundSync);
+                requestsOfMinute += google.getAggregateRequests() - requestsBefore;
+                assertTrue(requestsOfMinute + " requests within a minute",
+                        requestsOfMinute <= MAX_REQUESTS_PER_MINUTE);
+                clock.addAndGet(MINUTE_IN_MILLIS / 6);
+                if (clock.get() % MINUTE_IN_MILLIS == 0) {
+                    requestsOfMinute = 0;
+                }
+            }
+            // the users are due again in the second interval and request the recent days
+            assertEquals("requests to close the gaps", 2 * USERS, requestsLongerThanRefresh(answered));
+            for (int user = 0; user < USERS; user++) {
+                assertEquals("throttled-" + user, yesterday, (long) FitDataStores.get().extractLatestStoredDay(
+                        "throttled-" + user));
+            }
+            assertTrue(google.getMaxConcurrentAggregateRequests() + " syncs at the same time",
+                    google.getMaxConcurrentAggregateRequests() <= MAX_CONCURRENT_SYNCS);
+        } finally {
+            backgroundSync.close();
+        }
+    }
+
+    @Test
+    public void syncOfViewGoesFirstWithinTheQuota() throws Exception {
+        long login = clock.get();
+        for (int user = 0; user < USERS; user++) {
+            storeUser("queued-" + user, login, true);
+        }
+        storeUser("viewer", login, false);
+
+        BackgroundSync backgroundSync = new BackgroundSync(authRequest, clock::get, INTERVAL_MILLIS, ACTIVE_MILLIS,
+                1, MAX_REQUESTS_PER_MINUTE);
+        try {
+            // all users are due after an interval; the view of the first login is opened while they are queued
+            tick(backgroundSync);
+            clock.addAndGet(INTERVAL_MILLIS);
+            int requests = google.getAggregateRequests();
+            List<Future<?>> dueSyncs = backgroundSync.runDueSyncs();
+
+            AtomicInteger rangesStored = new AtomicInteger();
+            AtomicInteger syncsFinished = new AtomicInteger();
+            FitDataFetcher fitDataFetcher = new FitDataFetcher(
+                    new DataRequest(authRequest.loadCredential("viewer"), "viewer"), new DbConnector("viewer"));
+            backgroundSync.syncNow("viewer", fitDataFetcher, new FitDataFetcher.ProgressListener() {
+                @Override
+                public void rangeStored(long startTime, long endTime, int requestsStored, int requestsTotal) {
+                    rangesStored.incrementAndGet();
+                }
+
+                @Override
+                public void syncFinished() {
+                    syncsFinished.incrementAndGet();
+                }
+            }).get(1, TimeUnit.MINUTES);
+            for (Future<?> dueSync : dueSyncs) {
+                dueSync.get();
+            }
+
+            // at most the sync taken by the thread before the view was opened was ahead of the view
+            assertTrue(rangesStored + " requests of the view", rangesStored.get() >= MAX_REQUESTS_PER_MINUTE - 1);
+            assertEquals("the sync of the view has ended", 1, syncsFinished.get());
+            assertEquals("requests within the minute", MAX_REQUESTS_PER_MINUTE,
+                    google.getAggregateRequests() - requests);
+            assertTrue("the viewer is synced with the active users", backgroundSync.isScheduled("viewer"));
+
+            // the rest of the year of the viewer is requested on the next ticks, in turn with the users due before
+            // (2 * USERS requests, i.e. 20 minutes of the quota)
+            for (long minute = 1; minute <= 30; minute++) {
+                clock.addAndGet(MINUTE_IN_MILLIS);
+                tick(backgroundSync);
+            }
+            assertEquals(yesterday, (long) FitDataStores.get().extractLatestStoredDay("viewer"));
+            assertTrue("the whole year of the viewer is stored", fitDataFetcher.planSync(0).isEmpty());
+        } finally {
+            backgroundSync.close();
+        }
+    }
+
+    /**
+     * @param answered: the number of requests answered by the stand-in before
+     * @return the number of requests answered since, which span more days than the days requested again (see
+     * FitDataFetcher.REFRESH_DAYS), i.e. the requests closing the gaps
+     */
+    private static int requestsLongerThanRefresh(int answered) {
+        List<long[]> requests = google.getAnsweredTimeIntervals();
+        int longerRequests = 0;
+        for (long[] request : requests.subList(answered, requests.size())) {
+            if (request[1] - request[0] > FitDataFetcher.REFRESH_DAYS * DataRequest.DAY_IN_MILLIS) {
+                longerRequests++;
+            }
+        }
+        return longerRequests;
+    }
+
+    /**
+     * runs a tick of the sync and waits for the queued syncs
+     * @param backgroundSync: the background sync
+     */
+    private static void tick(BackgroundSync backgroundSync) throws InterruptedException, ExecutionException {
+        for (Future<?> userSync : backgroundSync.runDueSyncs()) {
+            userSync.get();
+        }
+    }
+
+    /**
+     * stores a user with a credential and a login; the data of the user ends GAP_DAYS days ago
+     * @param user: the google account id of the user
+     * @param login: the time of the login on the fake clock
+     * @param withData: whether the user has data at all
+     */
+    private void storeUser(String user, long login, boolean withData) throws IOException {
+        authRequest.authorize(GoogleStandIn.codeOf(user, true));
+        FitDataStores.get().storeLogin(user, login);
+        if (withData) {
+            List<FitDay> days = new ArrayList<>();
+            for (int day = GAP_DAYS + STORED_DAYS; day > GAP_DAYS; day--) {
+                long date = yesterday + DataRequest.DAY_IN_MILLIS - day * DataRequest.DAY_IN_MILLIS;
+                days.add(new FitDay(date, date + DataRequest.DAY_IN_MILLIS, 5000 + day, Collections.emptyMap()));
+            }
+            new DbConnector(user).storeDays(days);
+        }
+    }
+}
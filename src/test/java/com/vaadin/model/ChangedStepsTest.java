@@ -0,0 +1,132 @@
+package com.vaadin.model;
+
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Stores the days of several users and stores the most recent days again with other steps, like the days requested
+ * again by every sync (see FitDataFetcher.REFRESH_DAYS). The users see their new steps, and the statistics of all users
+ * and of the cohort (mean, std error of mean and median) are the same as if the new steps had been stored right away,
+ * by day as well as by week and month.
+ */
+@RunWith(Parameterized.class)
+public class ChangedStepsTest {
+
+    /* the users share the (unknown) cohort and are enough for its statistics (see CohortStats) */
+    private static final int USERS = 12;
+
+    /* two months starting on 2018-01-01; the last CHANGED_DAYS days are stored again */
+    private static final long START_TIME = 1514764800000L;
+    private static final int DAYS = 59;
+    private static final int CHANGED_DAYS = 10;
+    private static final long END_TIME = START_TIME + DAYS * DataRequest.DAY_IN_MILLIS;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> storages() {
+        return Arrays.asList(new Object[][]{{"mongo"}, {"mongo-buckets"}, {"sqlite"}});
+    }
+
+    /* the store the data is kept in (see FitDataStores) */
+    @Parameterized.Parameter
+    public String storage;
+
+    @Before
+    public void useStorage() throws IOException {
+        TestStores.use(storage);
+    }
+
+    @After
+    public void closeStore() {
+        TestStores.close();
+    }
+
+    @Test
+    public void changedStepsReplaceTheStoredOnes() {
+        Random random = new Random(42);
+        int[][] steps = new int[USERS][DAYS];
+        for (int user = 0; user < USERS; user++) {
+            for (int day = 0; day < DAYS; day++) {
+                steps[user][day] = 2000 + random.nextInt(10000);
+            }
+            FitDataStores.get().storeDays(userOf(user), daysOf(steps[user], 0));
+        }
+
+        // a third of the users keeps the steps of the changed days, the others get more or fewer steps, often of
+        // another bucket of the sketch
+        for (int user = 0; user < USERS; user++) {
+            for (int day = DAYS - CHANGED_DAYS; day < DAYS; day++) {
+                steps[user][day] += (user % 3 - 1) * random.nextInt(5000);
+            }
+            FitDataStores.get().storeDays(userOf(user), daysOf(steps[user], DAYS - CHANGED_DAYS));
+        }
+
+        for (Resolution resolution : Resolution.values()) {
+            List<Document> documents = FitDataStores.get().extractDays(userOf(0), START_TIME, END_TIME, resolution);
+            for (Document document : documents) {
+                long periodStart = ((Number) document.get("startDateInUTC")).longValue();
+                String period = resolution + " " + periodStart;
+
+                // the steps of all users and of the first user within the period
+                double[] sums = new double[3];
+                StepsSketch sketch = new StepsSketch();
+                double stepsOfUser = 0;
+                int daysOfUser = 0;
+                for (int day = 0; day < DAYS; day++) {
+                    long date = START_TIME + day * DataRequest.DAY_IN_MILLIS;
+                    if (resolution.periodStart(date) != periodStart) {
+                        continue;
+                    }
+                    stepsOfUser += steps[0][day];
+                    daysOfUser++;
+                    for (int user = 0; user < USERS; user++) {
+                        sums[0] += 1;
+                        sums[1] += steps[user][day];
+                        sums[2] += (double) steps[user][day] * steps[user][day];
+                        sketch.add(steps[user][day]);
+                    }
+                }
+
+                assertEquals(period, stepsOfUser / daysOfUser, ((Number) document.get("steps")).doubleValue(), 0.5);
+                assertEquals(period, PeriodSums.meanOf(sums), ((Number) document.get("averageSteps")).doubleValue(),
+                        1e-6);
+                assertEquals(period, PeriodSums.stdErrorOfMeanOf(sums),
+                        ((Number) document.get("stdErrorOfMean")).doubleValue(), 1e-6);
+                assertEquals(period, sketch.getQuantile(0.5), document.get("medianSteps"));
+                assertEquals(period, PeriodSums.meanOf(sums),
+                        ((Number) document.get("cohortAverageSteps")).doubleValue(), 1e-6);
+                assertEquals(period, sketch.getQuantile(0.5), document.get("cohortMedianSteps"));
+            }
+        }
+    }
+
+    /**
+     * @param steps: the steps of a user by day
+     * @param firstDay: the first day to return
+     * @return the days from the first day on, without activities
+     */
+    private static List<FitDay> daysOf(int[] steps, int firstDay) {
+        List<FitDay> days = new ArrayList<>();
+        for (int day = firstDay; day < steps.length; day++) {
+            long date = START_TIME + day * DataRequest.DAY_IN_MILLIS;
+            days.add(new FitDay(date, date + DataRequest.DAY_IN_MILLIS, steps[day], Collections.emptyMap()));
+        }
+        return days;
+    }
+
+    /**
+     * @param user: the number of the user
+     * @return the id of the user
+     */
+    private static String userOf(int user) {
+        return "changed-steps-user-" + user;
+    }
+}
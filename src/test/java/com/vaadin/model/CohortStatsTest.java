@@ -0,0 +1,87 @@
+package com.vaadin.model;
+
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that the statistics of a cohort are only added to the data of a user if the cohort has at least
+ * trackfit.cohort.minUsers (default: 10) users, also for weeks, where sum0 counts a user once per day.
+ */
+public class CohortStatsTest {
+
+    /* Monday, 2018-01-01 */
+    private static final long START_TIME = 1514764800000L;
+
+    @Test
+    public void dayOfLargeCohortHasStatistics() {
+        Document day = appendToDay(10);
+        assertEquals(6000.0, day.get("cohortAverageSteps"));
+        assertNotNull(day.get("cohortMedianSteps"));
+    }
+
+    @Test
+    public void dayOfSmallCohortHasNoStatistics() {
+        Document day = appendToDay(9);
+        assertNull(day.get("cohortAverageSteps"));
+        assertEquals(0.0, day.get("cohortStdErrorOfMean"));
+        assertNull(day.get("cohortMedianSteps"));
+    }
+
+    @Test
+    public void weekOfSmallCohortHasNoStatistics() {
+        // 3 users on every day of the week: sum0 of the week is 21, but only 3 users are in the cohort
+        CohortStats weeks = new CohortStats(Resolution.WEEK);
+        for (int day = 0; day < 7; day++) {
+            addDay(weeks, START_TIME + day * DataRequest.DAY_IN_MILLIS, 3);
+        }
+        List<Document> documents = Collections.singletonList(new Document("startDateInUTC", START_TIME));
+        weeks.appendTo(documents);
+        assertNull(documents.get(0).get("cohortAverageSteps"));
+        assertNull(documents.get(0).get("cohortMedianSteps"));
+    }
+
+    @Test
+    public void weekWithOneLargeDayHasStatistics() {
+        CohortStats weeks = new CohortStats(Resolution.WEEK);
+        addDay(weeks, START_TIME, 2);
+        addDay(weeks, START_TIME + DataRequest.DAY_IN_MILLIS, 12);
+        List<Document> documents = Collections.singletonList(new Document("startDateInUTC", START_TIME));
+        weeks.appendTo(documents);
+        assertEquals(6000.0, documents.get(0).get("cohortAverageSteps"));
+    }
+
+    /**
+     * @param users: the number of users of the cohort on the day
+     * @return the day of the user with the statistics of the cohort
+     */
+    private static Document appendToDay(int users) {
+        CohortStats days = new CohortStats(Resolution.DAY);
+        addDay(days, START_TIME, users);
+        List<Document> documents = new ArrayList<>();
+        documents.add(new Document("startDateInUTC", START_TIME));
+        days.appendTo(documents);
+        return documents.get(0);
+    }
+
+    /**
+     * adds a day on which every user of the cohort walked 6000 steps
+     * @param cohortStats: the statistics to add the day to
+     * @param date: the date of the day in UTC
+     * @param users: the number of users of the cohort on the day
+     */
+    private static void addDay(CohortStats cohortStats, long date, int users) {
+        cohortStats.addDay(date, users, users * 6000.0, users * 6000.0 * 6000.0);
+        StepsSketch sketch = cohortStats.sketchOf(date);
+        for (int user = 0; user < users; user++) {
+            sketch.add(6000);
+        }
+    }
+}
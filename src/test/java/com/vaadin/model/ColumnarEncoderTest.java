@@ -0,0 +1,123 @@
+package com.vaadin.model;
+
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Encodes days with ColumnarEncoder and decodes the columns again like fromColumns of GraphSelector.js does:
+ *      - the days come back sorted by date, also across days missing in between
+ *      - the steps, the statistics of all users (rounded to one decimal) and the activities are those of the day
+ *      - a missing activity, a day without activities and a missing mean or std error of mean come back as the same
+ *        gaps, i.e. the charts see no activity and no mean for them
+ *      - no days give no rows
+ */
+public class ColumnarEncoderTest {
+
+    private static final long DAY = DataRequest.DAY_IN_MILLIS;
+
+    /* 2018-01-01 */
+    private static final long START_TIME = 1514764800000L;
+
+    private static final List<String> STATISTICS = Arrays.asList("averageSteps", "stdErrorOfMean",
+            "lowerQuartileSteps", "medianSteps", "upperQuartileSteps", "cohortAverageSteps");
+
+    @Test
+    public void daysComeBackWithTheirGaps() {
+        List<Document> days = Arrays.asList(
+                dayOf(START_TIME + 6 * DAY, 7311, new Document("walking", 1803311).append("still", 19102337))
+                        .append("averageSteps", 4002.14).append("stdErrorOfMean", 912.05),
+                dayOf(START_TIME, 489, new Document("walking", 2153308).append("still", 23249677))
+                        .append("averageSteps", 2597.66).append("stdErrorOfMean", 1008.149),
+                // no other user has steps on this day, so there is no mean and no std error of mean
+                dayOf(START_TIME + DAY, 6023, new Document("still", 20133420)),
+                // a week summed up by DbRollups holds the averages as doubles
+                dayOf(START_TIME + 3 * DAY, 5120, null)
+                        .append("averageSteps", 3120.4).append("stdErrorOfMean", 880.34)
+                        .append("medianSteps", 2890.0).append("cohortAverageSteps", 3377.25));
+
+        List<Document> rows = fromColumns(Document.parse(ColumnarEncoder.toColumnarJson(days)));
+
+        List<Document> sorted = new ArrayList<>(days);
+        sorted.sort(Comparator.comparingLong(day -> day.getLong("startDateInUTC")));
+        assertEquals(sorted.size(), rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            Document day = sorted.get(i);
+            Document row = rows.get(i);
+            String date = String.valueOf(day.get("startDateInUTC"));
+
+            assertEquals(date, day.get("startDateInUTC"), row.get("startDateInUTC"));
+            assertEquals(date, day.getInteger("steps").longValue(), ((Number) row.get("steps")).longValue());
+            for (String statistic : STATISTICS) {
+                Number value = (Number) day.get(statistic);
+                if (value == null) {
+                    assertNull(date + " " + statistic, row.get(statistic));
+                } else {
+                    assertEquals(date + " " + statistic, Math.round(value.doubleValue() * 10) / 10.0,
+                            ((Number) row.get(statistic)).doubleValue(), 0);
+                }
+            }
+
+            Document activities = (Document) day.get("activities");
+            assertEquals(date, activities == null ? new Document() : activities, row.get("activities"));
+        }
+    }
+
+    @Test
+    public void noDaysGiveNoRows() {
+        assertTrue(fromColumns(Document.parse(ColumnarEncoder.toColumnarJson(Collections.emptyList()))).isEmpty());
+    }
+
+    /**
+     * @param date: the date of the day in UTC
+     * @param steps: the steps of the user
+     * @param activities: the activities of the user; null for a day without activities
+     * @return the day as returned by the queries of DbConnector
+     */
+    private static Document dayOf(long date, int steps, Document activities) {
+        Document day = new Document("startDateInUTC", date).append("steps", steps);
+        if (activities != null) {
+            day.append("activities", activities);
+        }
+        return day;
+    }
+
+    /**
+     * decodes the columns line by line like fromColumns of GraphSelector.js
+     * @param columns: the columns (see ColumnarEncoder)
+     * @return one row for each day
+     */
+    private static List<Document> fromColumns(Document columns) {
+        List<?> steps = (List<?>) columns.get("steps");
+        List<Document> rows = new ArrayList<>(steps.size());
+        Document activityColumns = (Document) columns.get("activities");
+        Number date = (Number) columns.get("startDateInUTC");
+
+        for (int i = 0; i < steps.size(); i++) {
+            if (i > 0) {
+                date = date.longValue() + ((Number) ((List<?>) columns.get("dateDeltas")).get(i - 1)).longValue();
+            }
+
+            Document activities = new Document();
+            for (String activityName : activityColumns.keySet()) {
+                Object duration = ((List<?>) activityColumns.get(activityName)).get(i);
+                if (duration != null) {
+                    activities.put(activityName, duration);
+                }
+            }
+
+            Document row = new Document("startDateInUTC", date.longValue())
+                    .append("steps", steps.get(i));
+            for (String statistic : STATISTICS) {
+                row.append(statistic, ((List<?>) columns.get(statistic)).get(i));
+            }
+            rows.add(row.append("activities", activities));
+        }
+        return rows;
+    }
+}
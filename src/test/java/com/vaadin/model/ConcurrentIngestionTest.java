@@ -0,0 +1,112 @@
+package com.vaadin.model;
+
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Stores overlapping days of several users from concurrent sessions at the same time, two sessions per user, like
+ * logins of the same user in two browsers. The sessions send the same days with other steps. Every day of a user has
+ * to be stored once and counted once, with its latest steps, in the sums of the days of all users (see
+ * MongoFitDataStore.storeDaysAndSteps and SqliteFitDataStore.storeDays).
+ */
+@RunWith(Parameterized.class)
+public class ConcurrentIngestionTest {
+
+    private static final int USERS = 8;
+    private static final int SESSIONS_PER_USER = 2;
+
+    /* every session stores three responses of 30 days, starting 15 days apart; together they cover 75 days */
+    private static final int RESPONSES_PER_SESSION = 3;
+    private static final int DAYS_PER_RESPONSE = 30;
+    private static final int DAYS = 75;
+    private static final long START_TIME = Fixtures.END_OF_SEEDED_DATA - DAYS * Fixtures.DAY_IN_MILLIS;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> storages() {
+        return Arrays.asList(new Object[][]{{"mongo"}, {"sqlite"}});
+    }
+
+    @Parameterized.Parameter
+    public String storage;
+
+    @Before
+    public void useStorage() throws IOException {
+        TestStores.use(storage);
+    }
+
+    @After
+    public void closeStore() {
+        TestStores.close();
+    }
+
+    @Test
+    public void concurrentSessionsCountEveryDayOnce() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(USERS * SESSIONS_PER_USER);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> sessions = new ArrayList<>();
+        for (int user = 0; user < USERS; user++) {
+            for (int session = 0; session < SESSIONS_PER_USER; session++) {
+                int seed = user * 100 + session * 10;
+                int firstResponse = session;
+                DbConnector dbConnector = new DbConnector(userOf(user));
+                sessions.add(executor.submit(() -> {
+                    start.await();
+                    for (int response = 0; response < RESPONSES_PER_SESSION; response++) {
+                        long startTime = START_TIME + (firstResponse + response) * 15 * Fixtures.DAY_IN_MILLIS;
+                        dbConnector.storeData(Fixtures.fitAggregateResponse(startTime, DAYS_PER_RESPONSE,
+                                seed + response));
+                    }
+                    return null;
+                }));
+            }
+        }
+        start.countDown();
+        for (Future<?> session : sessions) {
+            session.get(2, TimeUnit.MINUTES);
+        }
+        executor.shutdown();
+
+        // every day of every user is stored once, with the steps of whichever session stored it last
+        long endTime = START_TIME + DAYS * Fixtures.DAY_IN_MILLIS;
+        Map<Long, double[]> sumsByDate = new HashMap<>();
+        for (int user = 0; user < USERS; user++) {
+            List<Document> days = FitDataStores.get().extractDays(userOf(user), START_TIME, endTime, Resolution.DAY);
+            assertEquals("days of " + userOf(user), DAYS, days.size());
+            for (int day = 0; day < DAYS; day++) {
+                long date = ((Number) days.get(day).get("startDateInUTC")).longValue();
+                assertEquals(START_TIME + day * Fixtures.DAY_IN_MILLIS, date);
+                double steps = ((Number) days.get(day).get("steps")).doubleValue();
+                double[] sums = sumsByDate.computeIfAbsent(date, key -> new double[3]);
+                sums[0] += 1;
+                sums[1] += steps;
+                sums[2] += steps * steps;
+            }
+        }
+
+        // the statistics of all users count every stored day once
+        for (Document day : FitDataStores.get().extractDays(userOf(0), START_TIME, endTime, Resolution.DAY)) {
+            double[] sums = sumsByDate.get(((Number) day.get("startDateInUTC")).longValue());
+            assertEquals(PeriodSums.meanOf(sums), ((Number) day.get("averageSteps")).doubleValue(), 1e-6);
+            assertEquals(PeriodSums.stdErrorOfMeanOf(sums), ((Number) day.get("stdErrorOfMean")).doubleValue(),
+                    1e-6);
+        }
+    }
+
+    /**
+     * @param user: the number of the user
+     * @return the id of the user
+     */
+    private static String userOf(int user) {
+        return "ingestion-user-" + user;
+    }
+}
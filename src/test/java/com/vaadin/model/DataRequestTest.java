@@ -0,0 +1,200 @@
+package com.vaadin.model;
+
+import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.http.HttpResponseException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sends the requests of DataRequest to a local stand-in of google fit (see GoogleStandIn), for users with and without
+ * the merged activity segments:
+ *      - the data sources are discovered once for the concurrent requests of the first login (see FitDataFetcher.sync),
+ *        stored, and not discovered again by the following logins
+ *      - no request of a user without the activities fails because of them
+ *      - requests answered with 503 or 429 are repeated and succeed; a 429 with Retry-After is waited for
+ *      - requests answered with 403 and the reason rateLimitExceeded or userRateLimitExceeded are repeated like 429;
+ *        other errors are neither repeated nor sent again without the activities
+ *      - a request failing on every attempt fails after trackfit.fit.maxAttempts attempts
+ */
+@RunWith(Parameterized.class)
+public class DataRequestTest {
+
+    /* the attempts of a request (see DataRequest) */
+    private static final int MAX_ATTEMPTS = Integer.getInteger("trackfit.fit.maxAttempts", 4);
+
+    /* numbers the users; the data sources are remembered in memory as well, so every test gets a user of its own */
+    private static final AtomicInteger USERS = new AtomicInteger();
+
+    private static GoogleStandIn google;
+    private static long endTime;
+
+    @Parameterized.Parameters(name = "{0}, {1}")
+    public static Collection<Object[]> storagesAndActivities() {
+        return Arrays.asList(new Object[][]{
+                {"mongo", "with-activities"}, {"mongo", "without-activities"},
+                {"sqlite", "with-activities"}, {"sqlite", "without-activities"}});
+    }
+
+    /* the store the data sources are kept in (see FitDataStores) */
+    @Parameterized.Parameter
+    public String storage;
+
+    /* the stand-in has no activities for ids containing "without-activities" */
+    @Parameterized.Parameter(1)
+    public String activities;
+
+    private String user;
+    private Credential credential;
+
+    @BeforeClass
+    public static void startStandIn() throws IOException {
+        google = new GoogleStandIn();
+        // the requests read the urls of google and the backoff when ApiRequest and DataRequest are loaded
+        System.setProperty("trackfit.fit.rootUrl", google.getFitRootUrl());
+        System.setProperty("trackfit.oauth.tokenUrl", google.getTokenServerUrl());
+        System.setProperty("trackfit.fit.initialBackoffMillis", "10");
+        endTime = DataRequest.getStartOfToday().getTimeInMillis();
+    }
+
+    @AfterClass
+    public static void stopStandIn() {
+        google.close();
+    }
+
+    @Before
+    public void authorize() throws IOException {
+        TestStores.use(storage);
+        user = "data-request-user-" + USERS.incrementAndGet() + "-" + activities;
+        AuthRequest authRequest = new AuthRequest(google.getClientSecrets(), FitDataStores.get(),
+                google.getTokenServerUrl());
+        authRequest.authorize(GoogleStandIn.codeOf(user, true));
+        credential = authRequest.loadCredential(user);
+    }
+
+    @After
+    public void closeStore() {
+        TestStores.close();
+    }
+
+    @Test
+    public void dataSourcesAreDiscoveredOnce() throws IOException {
+        Counter requestsWithoutActivity = Metrics.counter("fit.requestsWithoutActivity");
+        long repeated = requestsWithoutActivity.getCount();
+        int aggregateRequests = google.getAggregateRequests();
+        int dataSourceRequests = google.getDataSourceRequests();
+
+        // the first login requests the whole year at the same time
+        FitDataFetcher firstLogin = new FitDataFetcher(new DataRequest(credential, user), new DbConnector(user));
+        int plannedRequests = firstLogin.planSync().size();
+        firstLogin.sync((startTime, endTime, requestsStored, requestsTotal) -> { });
+        assertEquals("discoveries of the data sources for the first login", 1,
+                google.getDataSourceRequests() - dataSourceRequests);
+        assertEquals(plannedRequests, google.getAggregateRequests() - aggregateRequests);
+        assertEquals("the discovered data sources are stored", !activities.startsWith("without"),
+                FitDataStores.get().extractDataSources(user).getBoolean("hasActivitySegments"));
+
+        new DataRequest(credential, user).getFitDays(endTime - 31 * DataRequest.DAY_IN_MILLIS, endTime);
+        assertEquals("a later login uses the stored data sources", 1,
+                google.getDataSourceRequests() - dataSourceRequests);
+        assertEquals("a later login needs a single request", plannedRequests + 1,
+                google.getAggregateRequests() - aggregateRequests);
+        assertEquals("no request is repeated without the activities", repeated, requestsWithoutActivity.getCount());
+    }
+
+    @Test
+    public void temporaryErrorsAreRetried() throws IOException {
+        Counter retriedRequests = Metrics.counter("fit.retriedRequests");
+        DataRequest dataRequest = new DataRequest(credential, user);
+        long startTime = endTime - 31 * DataRequest.DAY_IN_MILLIS;
+        dataRequest.getFitDays(startTime, endTime);
+
+        long retried = retriedRequests.getCount();
+        int aggregateRequests = google.getAggregateRequests();
+        google.failNextAggregateRequests(2, 503, null);
+        assertEquals(31, dataRequest.getFitDays(startTime, endTime).size());
+        assertEquals("the request is repeated twice after two 503", 3,
+                google.getAggregateRequests() - aggregateRequests);
+        assertEquals(2, retriedRequests.getCount() - retried);
+
+        long start = System.currentTimeMillis();
+        google.failNextAggregateRequests(1, 429, "1");
+        assertEquals(31, dataRequest.getFitDays(startTime, endTime).size());
+        assertTrue("the request waits for the Retry-After of the 429", System.currentTimeMillis() - start >= 1000);
+    }
+
+    @Test
+    public void rateLimitErrorsAreRetried() throws IOException {
+        Counter throttledRequests = Metrics.counter("fit.throttledRequests");
+        DataRequest dataRequest = new DataRequest(credential, user);
+        long startTime = endTime - 31 * DataRequest.DAY_IN_MILLIS;
+        dataRequest.getFitDays(startTime, endTime);
+
+        for (String reason : new String[]{"rateLimitExceeded", "userRateLimitExceeded"}) {
+            long throttled = throttledRequests.getCount();
+            int aggregateRequests = google.getAggregateRequests();
+            google.failNextAggregateRequests(1, 403, null, reason);
+            assertEquals(31, dataRequest.getFitDays(startTime, endTime).size());
+            assertEquals("the request is repeated after a 403 with " + reason, 2,
+                    google.getAggregateRequests() - aggregateRequests);
+            assertEquals(1, throttledRequests.getCount() - throttled);
+        }
+    }
+
+    @Test
+    public void otherErrorsAreNotRetried() throws IOException {
+        Counter requestsWithoutActivity = Metrics.counter("fit.requestsWithoutActivity");
+        DataRequest dataRequest = new DataRequest(credential, user);
+        long startTime = endTime - 31 * DataRequest.DAY_IN_MILLIS;
+        dataRequest.getFitDays(startTime, endTime);
+        Boolean hasActivitySegments = FitDataStores.get().extractDataSources(user).getBoolean("hasActivitySegments");
+
+        long repeated = requestsWithoutActivity.getCount();
+        for (int status : new int[]{400, 403, 404}) {
+            int aggregateRequests = google.getAggregateRequests();
+            google.failNextAggregateRequests(1, status, null, status == 403 ? "forbidden" : null);
+            try {
+                dataRequest.getFitDays(startTime, endTime);
+                fail("a request answered with " + status + " fails");
+            } catch (HttpResponseException e) {
+                assertEquals(status, e.getStatusCode());
+            }
+            assertEquals("the request is not repeated after " + status, 1,
+                    google.getAggregateRequests() - aggregateRequests);
+        }
+        assertEquals("errors not naming the data source keep the activities", repeated,
+                requestsWithoutActivity.getCount());
+        assertEquals(hasActivitySegments,
+                FitDataStores.get().extractDataSources(user).getBoolean("hasActivitySegments"));
+    }
+
+    @Test
+    public void requestFailingOnEveryAttemptFails() throws IOException {
+        DataRequest dataRequest = new DataRequest(credential, user);
+        long startTime = endTime - 31 * DataRequest.DAY_IN_MILLIS;
+        dataRequest.getFitDays(startTime, endTime);
+
+        int aggregateRequests = google.getAggregateRequests();
+        google.failNextAggregateRequests(MAX_ATTEMPTS, 500, null);
+        try {
+            dataRequest.getFitDays(startTime, endTime);
+            fail("a request failing on every attempt fails");
+        } catch (HttpResponseException e) {
+            assertEquals("the last error is thrown", 500, e.getStatusCode());
+        }
+        assertEquals(MAX_ATTEMPTS, google.getAggregateRequests() - aggregateRequests);
+    }
+}
@@ -0,0 +1,180 @@
+package com.vaadin.model;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import org.bson.Document;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Projections.*;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares DbConnector.storeData (bulk writes and atomic increments, see MongoFitDataStore.storeDays) with the former
+ * path, which parsed the aggregate response into documents and wrote every day on its own (one upsert of the
+ * activities, a read of the day and upserts of the steps and the day). Both store the same fixtures, in a database of
+ * their own, and have to end up with the same steps, activities and sums of the days.
+ */
+public class DbConnectorTest {
+
+    /* the stored days: two users with overlapping days, and days of the first user sent again with other values */
+    private static final long START_TIME = Fixtures.END_OF_SEEDED_DATA - 90 * Fixtures.DAY_IN_MILLIS;
+
+    private static MongoClient client;
+    private static MongoDatabase perDayDb;
+
+    @BeforeClass
+    public static void useMongo() {
+        TestStores.useMongo();
+        client = TestStores.newMongoClient();
+        perDayDb = client.getDatabase(System.getProperty("trackfit.mongo.database") + "PerDay");
+    }
+
+    @AfterClass
+    public static void dropDatabases() {
+        if (client != null) {
+            perDayDb.drop();
+            client.close();
+        }
+        TestStores.close();
+    }
+
+    @Test
+    public void storeDataMatchesTheFormerPerDayPath() {
+        String[][] responses = {
+                {"store-user-a", Fixtures.fitAggregateResponse(START_TIME, 60, 1)},
+                {"store-user-b", Fixtures.fitAggregateResponse(START_TIME + 30 * Fixtures.DAY_IN_MILLIS, 60, 2)},
+                {"store-user-a", Fixtures.fitAggregateResponse(START_TIME + 45 * Fixtures.DAY_IN_MILLIS, 30, 3)}};
+        for (String[] userAndResponse : responses) {
+            new DbConnector(userAndResponse[0]).storeData(userAndResponse[1]);
+            storeDataPerDay(userAndResponse[0], userAndResponse[1]);
+        }
+
+        MongoDatabase db = DbConnectionPool.getDatabase();
+        assertEquals(read(perDayDb.getCollection("steps"), "startDateInUTC", "steps", "endDateInUTC"),
+                read(db.getCollection("steps"), "startDateInUTC", "steps", "endDateInUTC"));
+        assertEquals(read(perDayDb.getCollection("activities"), "dateInUTC", "activities"),
+                read(db.getCollection("activities"), "dateInUTC", "activities"));
+
+        List<Document> perDayDays = perDayDb.getCollection("days").find().projection(fields(excludeId(),
+                include("dateInUTC", "sumsForMeanAndSEM"))).sort(Sorts.ascending("dateInUTC")).into(new ArrayList<>());
+        List<Document> days = db.getCollection("days").find().projection(fields(excludeId(),
+                include("dateInUTC", "sumsForMeanAndSEM"))).sort(Sorts.ascending("dateInUTC")).into(new ArrayList<>());
+        assertEquals(90, days.size());
+        assertEquals(perDayDays.size(), days.size());
+        for (int i = 0; i < days.size(); i++) {
+            assertEquals(perDayDays.get(i).get("dateInUTC"), days.get(i).get("dateInUTC"));
+            Document perDaySums = (Document) perDayDays.get(i).get("sumsForMeanAndSEM");
+            Document sums = (Document) days.get(i).get("sumsForMeanAndSEM");
+            for (String sum : new String[]{"sum0", "sum1", "sum2"}) {
+                assertEquals(sum + " of " + days.get(i).get("dateInUTC"), perDaySums.getDouble(sum),
+                        sums.getDouble(sum), 1e-6);
+            }
+        }
+    }
+
+    /**
+     * @param collection: the steps or the activities
+     * @param dateField: the field holding the date
+     * @param fields: the fields to compare besides the user
+     * @return the documents of the collection sorted by user and date, without their ids
+     */
+    private static List<Document> read(MongoCollection<Document> collection, String dateField, String... fields) {
+        List<String> included = new ArrayList<>();
+        included.add("user");
+        for (String field : fields) {
+            included.add(field);
+        }
+        return collection.find().projection(fields(excludeId(), include(included)))
+                .sort(Sorts.ascending("user", dateField)).into(new ArrayList<>());
+    }
+
+    /**
+     * the former DbConnector.storeData: parses the response into documents and stores every day on its own
+     * @param user: the id of the user
+     * @param stepData: the aggregate response of google fit
+     */
+    @SuppressWarnings("unchecked")
+    private static void storeDataPerDay(String user, String stepData) {
+        for (Document stepsDocument : (List<Document>) Document.parse(stepData).get("bucket")) {
+            long dateInUTC = Long.valueOf(stepsDocument.get("startTimeMillis").toString());
+            int steps = -1;
+            Map<String, Integer> activities = new HashMap<>();
+
+            for (Document dataSet : (List<Document>) stepsDocument.get("dataset")) {
+                for (Document dataEntry : (List<Document>) dataSet.get("point")) {
+                    List<Document> valueList = (List<Document>) dataEntry.get("value");
+                    if (dataEntry.get("dataTypeName").equals("com.google.step_count.delta")) {
+                        steps = valueList.get(0).getInteger("intVal");
+                    } else {
+                        String activity = FitResponseParser.ACTIVITY_TYPES.get(valueList.get(0).getInteger("intVal"));
+                        if (activity != null) {
+                            activities.merge(activity, valueList.get(1).getInteger("intVal"), Integer::sum);
+                        }
+                    }
+                }
+            }
+
+            Document newStepsDocument = new Document("user", user)
+                    .append("steps", steps)
+                    .append("startDateInUTC", dateInUTC)
+                    .append("endDateInUTC", Long.valueOf(stepsDocument.get("endTimeMillis").toString()));
+            Document activityDoc = new Document("user", user).append("activities", activities)
+                    .append("dateInUTC", dateInUTC);
+            perDayDb.getCollection("activities").replaceOne(and(eq("user", user), eq("dateInUTC", dateInUTC)),
+                    activityDoc, new UpdateOptions().upsert(true));
+            storeDayAndStepsPerDay(user, dateInUTC, steps, newStepsDocument);
+        }
+    }
+
+    /**
+     * the former DbConnector.storeDayAndSteps: reads the sums of the day, adds the steps and writes the day back; like
+     * storeDays, a stored day with other steps gets the new steps and replaces the old ones in the sums
+     * @param user: the id of the user
+     * @param date: date in UTC
+     * @param steps: steps on that day
+     * @param stepsDocument: document for the steps
+     */
+    private static void storeDayAndStepsPerDay(String user, long date, int steps, Document stepsDocument) {
+        MongoCollection<Document> stepColl = perDayDb.getCollection("steps");
+        MongoCollection<Document> daysColl = perDayDb.getCollection("days");
+        double sum0 = 0;
+        double sum1 = 0;
+        double sum2 = 0;
+
+        Document dayDoc = daysColl.find(eq("dateInUTC", date)).first();
+        if (dayDoc != null) {
+            Document sums = (Document) dayDoc.get("sumsForMeanAndSEM");
+            sum0 = sums.getDouble("sum0");
+            sum1 = sums.getDouble("sum1");
+            sum2 = sums.getDouble("sum2");
+            Document storedSteps = stepColl.find(and(eq("user", user), eq("startDateInUTC", date))).first();
+            if (storedSteps != null) {
+                int oldSteps = storedSteps.getInteger("steps");
+                sum0 -= 1;
+                sum1 -= oldSteps;
+                sum2 -= (double) oldSteps * oldSteps;
+            }
+        }
+        sum0 += 1;
+        sum1 += steps;
+        sum2 += (double) steps * steps;
+
+        Document newDayDoc = new Document("sumsForMeanAndSEM", new Document("sum0", sum0).append("sum1", sum1)
+                .append("sum2", sum2)).append("dateInUTC", date);
+        stepColl.replaceOne(and(eq("user", user), eq("startDateInUTC", date)), stepsDocument,
+                new UpdateOptions().upsert(true));
+        daysColl.replaceOne(eq("dateInUTC", date), newDayDoc, new UpdateOptions().upsert(true));
+    }
+}
@@ -0,0 +1,136 @@
+package com.vaadin.model;
+
+import com.google.api.client.auth.oauth2.Credential;
+import org.bson.Document;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the logins of a new and of a returning user and the refresh of an expired credential (see AuthRequest and
+ * DbCredentialStore) against a local stand-in of google's token endpoint (see GoogleStandIn): the first code gets a
+ * refresh token, later codes keep it, loading the credential needs no request, and an expired credential is refreshed
+ * with a single request and stored again. The tokens are stored encrypted (see TokenCipher), also the ones stored in
+ * plain text by an older version once they have been read.
+ */
+@RunWith(Parameterized.class)
+public class DbCredentialStoreTest {
+
+    /* the google account id of the user logging in */
+    private static final String USER = "credential-user";
+
+    /* the refresh token sent by the stand-in for the first code of the user */
+    private static final String REFRESH_TOKEN = GoogleStandIn.refreshTokenOf(USER);
+
+    private static GoogleStandIn google;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> storages() {
+        return Arrays.asList(new Object[][]{{"mongo"}, {"sqlite"}});
+    }
+
+    @Parameterized.Parameter
+    public String storage;
+
+    private AuthRequest authRequest;
+
+    @BeforeClass
+    public static void startStandIn() throws IOException {
+        google = new GoogleStandIn();
+    }
+
+    @AfterClass
+    public static void stopStandIn() {
+        google.close();
+    }
+
+    @Before
+    public void useStorage() throws IOException {
+        TestStores.use(storage);
+        authRequest = new AuthRequest(google.getClientSecrets(), FitDataStores.get(), google.getTokenServerUrl());
+    }
+
+    @After
+    public void closeStore() {
+        TestStores.close();
+    }
+
+    @Test
+    public void returningUserKeepsTheRefreshToken() throws IOException {
+        assertEquals("the user is taken from the id token", USER,
+                authRequest.authorize(GoogleStandIn.codeOf(USER, true)));
+        assertEquals(REFRESH_TOKEN, authRequest.loadCredential(USER).getRefreshToken());
+
+        authRequest.authorize(GoogleStandIn.codeOf(USER, false));
+        assertEquals("a later login keeps the stored refresh token", REFRESH_TOKEN,
+                authRequest.loadCredential(USER).getRefreshToken());
+        assertFalse("a later login needs no consent", authRequest.needsConsent());
+    }
+
+    @Test
+    public void storedCredentialIsLoadedWithoutRequest() throws IOException {
+        authRequest.authorize(GoogleStandIn.codeOf(USER, true));
+        int requests = google.getTokenRequests();
+        assertNotNull(authRequest.loadCredential(USER));
+        assertEquals(requests, google.getTokenRequests());
+    }
+
+    @Test
+    public void expiredCredentialIsRefreshedAndStored() throws IOException {
+        authRequest.authorize(GoogleStandIn.codeOf(USER, true));
+        Document expired = FitDataStores.get().extractCredential(USER)
+                .append("expirationTimeMilliseconds", System.currentTimeMillis() - 1000);
+        FitDataStores.get().storeCredential(USER, expired);
+
+        int requests = google.getTokenRequests();
+        Credential credential = authRequest.loadCredential(USER);
+        assertTrue("the credential is loaded as expired", credential.getExpiresInSeconds() < 0);
+        assertTrue(credential.refreshToken());
+        assertEquals("the expired credential is refreshed with one request", requests + 1, google.getTokenRequests());
+
+        Credential refreshed = authRequest.loadCredential(USER);
+        assertEquals("the refreshed access token is stored", credential.getAccessToken(), refreshed.getAccessToken());
+        assertTrue(refreshed.getExpirationTimeMilliseconds() > System.currentTimeMillis());
+        assertEquals("the refresh keeps the refresh token", REFRESH_TOKEN, refreshed.getRefreshToken());
+        assertEquals(requests + 1, google.getTokenRequests());
+    }
+
+    @Test
+    public void tokensAreStoredEncrypted() throws IOException {
+        authRequest.authorize(GoogleStandIn.codeOf(USER, true));
+        Document stored = FitDataStores.get().extractCredential(USER);
+        assertTrue(TokenCipher.isEncrypted(stored.getString("refreshToken")));
+        assertFalse(stored.getString("refreshToken").contains(REFRESH_TOKEN));
+        assertTrue(TokenCipher.isEncrypted(stored.getString("accessToken")));
+        assertFalse(stored.getString("accessToken").contains(authRequest.loadCredential(USER).getAccessToken()));
+    }
+
+    @Test
+    public void plainTextCredentialIsEncryptedWhenRead() throws IOException {
+        // stored by an older version
+        FitDataStores.get().storeCredential(USER, new Document("accessToken", "plain-access-token")
+                .append("refreshToken", REFRESH_TOKEN)
+                .append("expirationTimeMilliseconds", System.currentTimeMillis() + 3600000));
+
+        Credential credential = authRequest.loadCredential(USER);
+        assertEquals("plain-access-token", credential.getAccessToken());
+        assertEquals(REFRESH_TOKEN, credential.getRefreshToken());
+        Document stored = FitDataStores.get().extractCredential(USER);
+        assertTrue(TokenCipher.isEncrypted(stored.getString("accessToken")));
+        assertTrue(TokenCipher.isEncrypted(stored.getString("refreshToken")));
+        assertEquals(REFRESH_TOKEN, authRequest.loadCredential(USER).getRefreshToken());
+    }
+}
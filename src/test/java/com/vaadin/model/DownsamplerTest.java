@@ -0,0 +1,137 @@
+package com.vaadin.model;
+
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DownsamplerTest {
+
+    /* the target point counts checked; 3 is the smallest one downsampling at all */
+    private static final int[] TARGETS = {3, 4, 5, 10, 97, 200, 365};
+
+    @Test
+    public void returnsTheTargetCount() {
+        for (int size : new int[]{10, 366, 1000, 1826}) {
+            List<Document> documents = randomDays(size, size);
+            for (int target : TARGETS) {
+                int expected = Math.min(size, target);
+                assertEquals(size + " days to " + target, expected,
+                        Downsampler.largestTriangleThreeBuckets(documents, target).size());
+            }
+        }
+    }
+
+    @Test
+    public void keepsTheFirstAndTheLastDay() {
+        List<Document> documents = randomDays(1826, 7);
+        List<Document> shuffled = new ArrayList<>(documents);
+        Collections.shuffle(shuffled, new Random(7));
+        for (int target : TARGETS) {
+            List<Document> sampled = Downsampler.largestTriangleThreeBuckets(shuffled, target);
+            assertSame(documents.get(0), sampled.get(0));
+            assertSame(documents.get(documents.size() - 1), sampled.get(sampled.size() - 1));
+        }
+    }
+
+    @Test
+    public void keepsTheDaysSortedByDate() {
+        List<Document> shuffled = randomDays(1000, 11);
+        Collections.shuffle(shuffled, new Random(11));
+        for (int target : TARGETS) {
+            List<Document> sampled = Downsampler.largestTriangleThreeBuckets(shuffled, target);
+            for (int i = 1; i < sampled.size(); i++) {
+                assertTrue(date(sampled.get(i - 1)) < date(sampled.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void keepsTheMinimumAndTheMaximum() {
+        for (long seed = 0; seed < 20; seed++) {
+            List<Document> documents = randomDays(500, seed);
+            for (int target : TARGETS) {
+                if (target > 3) {
+                    assertExtremaKept(documents, target);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void keepsTheMinimumInTheBucketOfTheMaximum() {
+        // the maximum and the minimum are neighbours, so they fall into the same bucket; also in the first and the
+        // last bucket, where the minimum has a neighbouring bucket on one side only
+        for (int maxIndex : new int[]{1, 2, 250, 497, 498}) {
+            for (int minOffset : new int[]{-1, 1}) {
+                int minIndex = maxIndex + minOffset;
+                List<Document> documents = randomDays(500, maxIndex);
+                documents.get(maxIndex).put("steps", 100000);
+                documents.get(minIndex).put("steps", 0);
+                for (int target : TARGETS) {
+                    if (target > 3) {
+                        assertExtremaKept(documents, target);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void returnsShortRangesUnchanged() {
+        List<Document> documents = randomDays(31, 3);
+        assertEquals(documents, Downsampler.largestTriangleThreeBuckets(documents, 200));
+        assertEquals(documents, Downsampler.largestTriangleThreeBuckets(documents, 0));
+    }
+
+    /**
+     * @param documents: the days
+     * @param target: the target point count
+     */
+    private static void assertExtremaKept(List<Document> documents, int target) {
+        Document max = documents.get(0);
+        Document min = documents.get(0);
+        for (Document document : documents) {
+            if (steps(document) > steps(max)) {
+                max = document;
+            }
+            if (steps(document) < steps(min)) {
+                min = document;
+            }
+        }
+        List<Document> sampled = Downsampler.largestTriangleThreeBuckets(documents, target);
+        assertEquals(target, sampled.size());
+        assertTrue("maximum kept with " + target + " points", sampled.contains(max));
+        assertTrue("minimum kept with " + target + " points", sampled.contains(min));
+    }
+
+    /**
+     * @param days: number of days
+     * @param seed: seed for the steps
+     * @return one document per day with random steps, sorted by date
+     */
+    private static List<Document> randomDays(int days, long seed) {
+        Random random = new Random(seed);
+        List<Document> documents = new ArrayList<>(days);
+        for (int day = 0; day < days; day++) {
+            documents.add(new Document("startDateInUTC", 1514764800000L + day * 86400000L)
+                    .append("steps", 250 + random.nextInt(14750)));
+        }
+        return documents;
+    }
+
+    private static long date(Document document) {
+        return document.getLong("startDateInUTC");
+    }
+
+    private static int steps(Document document) {
+        return document.getInteger("steps");
+    }
+}
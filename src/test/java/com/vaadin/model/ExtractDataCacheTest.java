@@ -0,0 +1,97 @@
+package com.vaadin.model;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the cache of the chart data (see ExtractDataCache) with a fake clock:
+ *      - an entry is returned until its time to live has passed, and counted as a hit; a missing or expired entry is
+ *        counted as a miss
+ *      - once the cache is full, the least recently used entry is evicted
+ *      - invalidating a user removes the entries of the user only, and a result queried before an invalidation is not
+ *        cached afterwards
+ */
+public class ExtractDataCacheTest {
+
+    private static final long TTL_MILLIS = 60000;
+    private static final int MAXIMUM_SIZE = 3;
+
+    /* the range of the entries: January 2018 */
+    private static final long START_TIME = 1514764800000L;
+    private static final long END_TIME = START_TIME + 31 * DataRequest.DAY_IN_MILLIS;
+
+    private final AtomicLong clock = new AtomicLong(START_TIME);
+    private final ExtractDataCache cache = new ExtractDataCache(MAXIMUM_SIZE, TTL_MILLIS, clock::get, new Counter(),
+            new Counter());
+
+    @Test
+    public void entriesExpireAfterTheirTimeToLive() {
+        put("user", 0, "json");
+        clock.addAndGet(TTL_MILLIS);
+        assertEquals("json", get("user", 0));
+
+        clock.addAndGet(1);
+        assertNull(get("user", 0));
+        assertNull(get("other", 0));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals("the expired entry is removed", 0, cache.size());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntryIsEvicted() {
+        for (int entry = 0; entry < MAXIMUM_SIZE; entry++) {
+            put("user", entry, "json-" + entry);
+        }
+        // the first entry is used again, so the second one is the least recently used
+        assertEquals("json-0", get("user", 0));
+        put("user", MAXIMUM_SIZE, "json-" + MAXIMUM_SIZE);
+
+        assertEquals(MAXIMUM_SIZE, cache.size());
+        assertNull(get("user", 1));
+        assertEquals("json-0", get("user", 0));
+        assertEquals("json-2", get("user", 2));
+        assertEquals("json-" + MAXIMUM_SIZE, get("user", MAXIMUM_SIZE));
+    }
+
+    @Test
+    public void resultQueriedBeforeAnInvalidationIsNotCached() {
+        put("user", 0, "json");
+        put("other", 0, "json-of-other");
+
+        // the data of the user is stored while the result is queried
+        long invalidationCount = cache.getInvalidationCount();
+        cache.invalidate("user");
+        cache.put("user", START_TIME, END_TIME, Resolution.DAY, 1, "stale", invalidationCount);
+
+        assertNull(get("user", 0));
+        assertNull(get("user", 1));
+        assertEquals("the entries of the other users are kept", "json-of-other", get("other", 0));
+
+        put("user", 1, "fresh");
+        assertEquals("fresh", get("user", 1));
+    }
+
+    /**
+     * caches a result queried without an invalidation in between
+     * @param user: the user id
+     * @param targetPointCount: the number of points, which tells the entries of the user apart
+     * @param json: the result
+     */
+    private void put(String user, int targetPointCount, String json) {
+        cache.put(user, START_TIME, END_TIME, Resolution.DAY, targetPointCount, json, cache.getInvalidationCount());
+    }
+
+    /**
+     * @param user: the user id
+     * @param targetPointCount: the number of points
+     * @return the cached result or null
+     */
+    private String get(String user, int targetPointCount) {
+        return cache.get(user, START_TIME, END_TIME, Resolution.DAY, targetPointCount);
+    }
+}
@@ -0,0 +1,175 @@
+package com.vaadin.model;
+
+import com.google.api.client.auth.oauth2.Credential;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the first login of a user (the whole year, see FitDataFetcher.syncInBackground) against a stand-in of google fit
+ * which answers every request after a second: the view gets the sync back at once, and the first response is stored
+ * (and drawn, see MainView.startBackgroundSync) after a single request instead of after the whole year. The sync of a
+ * returning user sends exactly the planned requests (see FitRequestPlanner), and only the request of the recent days
+ * (see FitDataFetcher.REFRESH_DAYS) once the days are stored. A
+ * failed request is reported to the listener while the other requests are stored, and the end of the sync is reported
+ * whatever its outcome, so the view stops polling (see MainView.startBackgroundSync).
+ */
+public class FitDataFetcherTest {
+
+    /* the latency of the stand-in for every aggregate request */
+    private static final long LATENCY_MILLIS = 1000;
+
+    private static GoogleStandIn google;
+    private static AuthRequest authRequest;
+    private static Credential credential;
+
+    @BeforeClass
+    public static void startStandIn() throws Exception {
+        google = new GoogleStandIn();
+        google.setAggregateLatencyMillis(LATENCY_MILLIS);
+        // the requests read the urls of google when ApiRequest is loaded
+        System.setProperty("trackfit.fit.rootUrl", google.getFitRootUrl());
+        System.setProperty("trackfit.oauth.tokenUrl", google.getTokenServerUrl());
+        TestStores.useSqlite();
+
+        authRequest = new AuthRequest(google.getClientSecrets(), FitDataStores.get(), google.getTokenServerUrl());
+        authRequest.authorize(GoogleStandIn.codeOf("fetcher-user", true));
+        credential = authRequest.loadCredential("fetcher-user");
+    }
+
+    @AfterClass
+    public static void stopStandIn() {
+        if (google != null) {
+            google.close();
+        }
+        TestStores.close();
+    }
+
+    @Test
+    public void firstResponseIsStoredAfterASingleSlowRequest() throws Exception {
+        FitDataFetcher fitDataFetcher = new FitDataFetcher(new DataRequest(credential, "fetcher-user"),
+                new DbConnector("fetcher-user"));
+        int plannedRequests = fitDataFetcher.planSync().size();
+        List<Long> storedAfterMillis = new CopyOnWriteArrayList<>();
+
+        long start = System.nanoTime();
+        Future<?> sync = fitDataFetcher.syncInBackground((startTime, endTime, requestsStored, requestsTotal) ->
+                storedAfterMillis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        long returnedAfterMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        sync.get(1, TimeUnit.MINUTES);
+        long syncedAfterMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // the first login needs more requests than run at the same time (see FitDataFetcher), so the whole year takes
+        // at least two rounds of requests
+        assertTrue(plannedRequests > Integer.getInteger("trackfit.fit.maxConcurrentRequests", 4));
+        assertEquals(plannedRequests, storedAfterMillis.size());
+        assertTrue("returned after " + returnedAfterMillis + " ms", returnedAfterMillis < LATENCY_MILLIS);
+        assertTrue("first response stored after " + storedAfterMillis.get(0) + " ms",
+                storedAfterMillis.get(0) >= LATENCY_MILLIS && storedAfterMillis.get(0) < 2 * LATENCY_MILLIS);
+        assertTrue("synced after " + syncedAfterMillis + " ms", syncedAfterMillis >= 2 * LATENCY_MILLIS);
+    }
+
+    @Test
+    public void returningUserGetsThePlannedRequestsOnce() throws Exception {
+        String user = "fetcher-returning-user";
+        authRequest.authorize(GoogleStandIn.codeOf(user, true));
+        FitDataFetcher fitDataFetcher = new FitDataFetcher(new DataRequest(authRequest.loadCredential(user), user),
+                new DbConnector(user));
+
+        // the year except for a gap of a week and a gap of three days, far apart
+        long startOfToday = DataRequest.getStartOfToday().getTimeInMillis();
+        Calendar cal = DataRequest.getStartOfToday();
+        cal.add(Calendar.YEAR, -1);
+        List<FitDay> days = new ArrayList<>();
+        for (long date = cal.getTimeInMillis(); date < startOfToday; date += DataRequest.DAY_IN_MILLIS) {
+            long daysAgo = (startOfToday - date) / DataRequest.DAY_IN_MILLIS;
+            if (daysAgo > 7 && (daysAgo < 200 || daysAgo > 202)) {
+                days.add(new FitDay(date, date + DataRequest.DAY_IN_MILLIS, 5000, Collections.emptyMap()));
+            }
+        }
+        new DbConnector(user).storeDays(days);
+
+        List<FitRequestPlanner.DayRange> plan = fitDataFetcher.planSync();
+        assertEquals(2, plan.size());
+        Set<String> planned = new HashSet<>();
+        for (FitRequestPlanner.DayRange range : plan) {
+            planned.add(range.getStartTime() + "-" + range.getEndTime());
+        }
+        int answered = google.getAnsweredTimeIntervals().size();
+        fitDataFetcher.sync((startTime, endTime, requestsStored, requestsTotal) -> { });
+        List<long[]> requests = google.getAnsweredTimeIntervals();
+        Set<String> requested = new HashSet<>();
+        for (long[] request : requests.subList(answered, requests.size())) {
+            requested.add(request[0] + "-" + request[1]);
+        }
+        assertEquals("the planned requests are sent", planned, requested);
+        assertEquals(plan.size(), requests.size() - answered);
+
+        // once the days are stored, only the recent days are requested again
+        long startOfRefresh = startOfToday - FitDataFetcher.REFRESH_DAYS * DataRequest.DAY_IN_MILLIS;
+        assertEquals(Collections.singletonList(new FitRequestPlanner.DayRange(startOfRefresh, startOfToday))
+                .toString(), fitDataFetcher.planSync().toString());
+        answered = google.getAnsweredTimeIntervals().size();
+        fitDataFetcher.sync((startTime, endTime, requestsStored, requestsTotal) -> { });
+        requests = google.getAnsweredTimeIntervals();
+        assertEquals("a sync of stored days requests the recent days again", 1, requests.size() - answered);
+        assertEquals(startOfRefresh, requests.get(answered)[0]);
+    }
+
+    @Test
+    public void failedRequestIsReportedAndTheEndOfTheSync() throws Exception {
+        String user = "fetcher-failing-user";
+        authRequest.authorize(GoogleStandIn.codeOf(user, true));
+        FitDataFetcher fitDataFetcher = new FitDataFetcher(new DataRequest(authRequest.loadCredential(user), user),
+                new DbConnector(user));
+        int plannedRequests = fitDataFetcher.planSync().size();
+        List<String> reported = new CopyOnWriteArrayList<>();
+        AtomicInteger syncsFinished = new AtomicInteger();
+        FitDataFetcher.ProgressListener listener = new FitDataFetcher.ProgressListener() {
+            @Override
+            public void rangeStored(long startTime, long endTime, int requestsStored, int requestsTotal) {
+                reported.add("stored");
+            }
+
+            @Override
+            public void rangeFailed(long startTime, long endTime, Exception cause) {
+                reported.add("failed");
+            }
+
+            @Override
+            public void syncFinished() {
+                syncsFinished.incrementAndGet();
+            }
+        };
+
+        // a client error is not retried (see DataRequest), so the first request fails
+        google.failNextAggregateRequests(1, 400, null);
+        fitDataFetcher.syncInBackground(listener).get(1, TimeUnit.MINUTES);
+        assertEquals(plannedRequests, reported.size());
+        assertEquals(1, Collections.frequency(reported, "failed"));
+        assertEquals(1, syncsFinished.get());
+
+        // the days of the failed request are requested again by the next sync
+        reported.clear();
+        fitDataFetcher.sync(listener);
+        assertFalse(reported.isEmpty());
+        assertFalse(reported.contains("failed"));
+        assertEquals(2, syncsFinished.get());
+        assertTrue("the whole year is stored", fitDataFetcher.planSync(0).isEmpty());
+    }
+}
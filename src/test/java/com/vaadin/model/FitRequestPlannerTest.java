@@ -0,0 +1,160 @@
+package com.vaadin.model;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the plans of FitRequestPlanner for the year up to END_TIME:
+ *      - the whole year of a new user is requested with the fewest requests of the longest allowed time span, the most
+ *        recent one first
+ *      - gaps lying close together are requested with a single request; gaps further apart than a request may span
+ *        get requests of their own
+ *      - ranges of stored days which are not needed to join gaps are never requested; no request starts or ends with
+ *        a stored day and every missing day is requested
+ *      - no plan needs more requests than planning from the earliest missing day on, which is optimal as well
+ *      - nothing is planned once all days are stored
+ */
+public class FitRequestPlannerTest {
+
+    private static final long DAY = DataRequest.DAY_IN_MILLIS;
+    private static final int MAX_DAYS = 90;
+
+    /* the end of the planned interval, 2018-01-01, and its start a year before */
+    private static final long END_TIME = 1514764800000L;
+    private static final long START_TIME = END_TIME - 365 * DAY;
+
+    /* the missing days of a returning user (days ago): two gaps close to today, which are joined, and two gaps
+     * further apart than a request may span */
+    private static final int[][] GAPS = {{1, 5}, {20, 22}, {200, 209}, {300, 300}};
+
+    @Test
+    public void yearOfNewUserIsSplitIntoLongestRequests() {
+        List<FitRequestPlanner.DayRange> plan = FitRequestPlanner.plan(START_TIME, END_TIME, Collections.emptySet(),
+                MAX_DAYS);
+        assertEquals("the fewest requests for 365 days", 5, plan.size());
+        assertEquals("the most recent days are requested first", END_TIME, plan.get(0).getEndTime());
+        for (int request = 0; request < plan.size(); request++) {
+            assertTrue(plan.get(request).getDays() <= MAX_DAYS);
+            if (request > 0) {
+                assertEquals("the requests join without gaps", plan.get(request - 1).getStartTime(),
+                        plan.get(request).getEndTime());
+            }
+        }
+        assertEquals(START_TIME, plan.get(plan.size() - 1).getStartTime());
+        for (int request = 0; request < plan.size() - 1; request++) {
+            assertEquals(MAX_DAYS, plan.get(request).getDays());
+        }
+    }
+
+    @Test
+    public void closeGapsAreMergedAndStoredRangesSkipped() {
+        Set<Long> storedDays = storedDaysExcept(GAPS);
+        List<FitRequestPlanner.DayRange> plan = FitRequestPlanner.plan(START_TIME, END_TIME, storedDays, MAX_DAYS);
+
+        // the first two gaps fit into a single request, the others are too far apart
+        assertEquals(Arrays.asList(rangeOf(GAPS[1][1], GAPS[0][0] - 1), rangeOf(GAPS[2][1], GAPS[2][0] - 1),
+                rangeOf(GAPS[3][1], GAPS[3][0] - 1)).toString(), plan.toString());
+        assertCoversMissingDays(plan, storedDays);
+    }
+
+    @Test
+    public void requestsSpanningTheLongestTimeAreSplit() {
+        // a gap of 100 days is split at 90 days, the most recent ones first
+        Set<Long> storedDays = storedDaysExcept(new int[][]{{1, 100}});
+        List<FitRequestPlanner.DayRange> plan = FitRequestPlanner.plan(START_TIME, END_TIME, storedDays, MAX_DAYS);
+
+        assertEquals(Arrays.asList(rangeOf(90, 0), rangeOf(100, 90)).toString(), plan.toString());
+        assertCoversMissingDays(plan, storedDays);
+    }
+
+    @Test
+    public void noPlanNeedsFewerRequests() {
+        Random random = new Random(42);
+        for (int run = 0; run < 100; run++) {
+            Set<Long> storedDays = new HashSet<>();
+            for (long day = START_TIME; day < END_TIME; day += DAY) {
+                if (random.nextInt(10) < 8) {
+                    storedDays.add(day);
+                }
+            }
+            List<FitRequestPlanner.DayRange> plan = FitRequestPlanner.plan(START_TIME, END_TIME, storedDays,
+                    MAX_DAYS);
+            assertCoversMissingDays(plan, storedDays);
+            assertEquals(planForwards(storedDays), plan.size());
+        }
+    }
+
+    @Test
+    public void nothingIsPlannedForStoredDays() {
+        assertTrue(FitRequestPlanner.plan(START_TIME, END_TIME, storedDaysExcept(new int[0][]), MAX_DAYS).isEmpty());
+    }
+
+    /**
+     * checks that the plan requests every missing day, no request spans more than MAX_DAYS days and none starts or ends
+     * with a stored day
+     * @param plan: the planned requests
+     * @param storedDays: the dates of the stored days
+     */
+    private static void assertCoversMissingDays(List<FitRequestPlanner.DayRange> plan, Set<Long> storedDays) {
+        Set<Long> requestedDays = new HashSet<>();
+        for (FitRequestPlanner.DayRange range : plan) {
+            assertTrue(range + " spans " + range.getDays() + " days", range.getDays() <= MAX_DAYS);
+            assertFalse(range + " starts with a stored day", storedDays.contains(range.getStartTime()));
+            assertFalse(range + " ends with a stored day", storedDays.contains(range.getEndTime() - DAY));
+            for (long day = range.getStartTime(); day < range.getEndTime(); day += DAY) {
+                assertTrue("every day is requested once", requestedDays.add(day));
+            }
+        }
+        for (long day = START_TIME; day < END_TIME; day += DAY) {
+            assertTrue("every missing day is requested", storedDays.contains(day) || requestedDays.contains(day));
+        }
+    }
+
+    /**
+     * plans the requests from the earliest missing day on, each as long as allowed, as an independent optimal plan
+     * @param storedDays: the dates of the stored days
+     * @return the number of requests
+     */
+    private static int planForwards(Set<Long> storedDays) {
+        int requests = 0;
+        long requestEnd = START_TIME;
+        for (long day = START_TIME; day < END_TIME; day += DAY) {
+            if (!storedDays.contains(day) && day >= requestEnd) {
+                requests++;
+                requestEnd = day + MAX_DAYS * DAY;
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * @param gaps: the missing days, each from the first to the last day ago (inclusive)
+     * @return the dates of all days of the year except the gaps
+     */
+    private static Set<Long> storedDaysExcept(int[][] gaps) {
+        Set<Long> storedDays = new HashSet<>();
+        for (long day = START_TIME; day < END_TIME; day += DAY) {
+            storedDays.add(day);
+        }
+        for (int[] gap : gaps) {
+            for (int daysAgo = gap[0]; daysAgo <= gap[1]; daysAgo++) {
+                storedDays.remove(END_TIME - daysAgo * DAY);
+            }
+        }
+        return storedDays;
+    }
+
+    /**
+     * @param firstDayAgo: the first day of the range (days ago)
+     * @param endDaysAgo: the end of the range (days ago)
+     * @return the range of days
+     */
+    private static FitRequestPlanner.DayRange rangeOf(int firstDayAgo, int endDaysAgo) {
+        return new FitRequestPlanner.DayRange(END_TIME - firstDayAgo * DAY, END_TIME - endDaysAgo * DAY);
+    }
+}
@@ -0,0 +1,137 @@
+package com.vaadin.model;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Creates the inputs of the tests and the benchmarks: aggregate responses as sent by google fit (see
+ * DataRequest.getFitDays) and documents as returned by the queries of DbConnector. The values follow the ranges of the
+ * generated data in database/trackFit; the same seed always gives the same data.
+ */
+public final class Fixtures {
+
+    /* a day in milliseconds */
+    public static final long DAY_IN_MILLIS = 86400000L;
+
+    /* the user of database/trackFit used by the benchmarks reading from the database */
+    public static final String SEEDED_USER = "116593162550487313559";
+
+    /* the day after the latest day stored in database/trackFit (date in UTC) */
+    public static final long END_OF_SEEDED_DATA = 1518652800000L + DAY_IN_MILLIS;
+
+    /* the activity types (see FitResponseParser.ACTIVITY_TYPES) and their names in the database */
+    private static final int[] ACTIVITY_TYPES = {0, 3, 7, 72};
+    private static final String[] ACTIVITY_NAMES = {"in_vehicle", "still", "walking", "sleeping"};
+
+    private static final long HOUR_IN_MILLIS = 3600000L;
+
+    private Fixtures() {
+    }
+
+    /**
+     * creates an aggregate response of google fit holding one bucket per day with the steps and the activity segments
+     * @param startTime: the first day (date in UTC)
+     * @param days: number of days (buckets)
+     * @param seed: seed for the random values
+     * @return the response in json format
+     */
+    public static String fitAggregateResponse(long startTime, int days, long seed) {
+        Random random = new Random(seed);
+        StringBuilder json = new StringBuilder("{\"bucket\":[");
+
+        for (int day = 0; day < days; day++) {
+            long bucketStart = startTime + day * DAY_IN_MILLIS;
+            long bucketEnd = bucketStart + DAY_IN_MILLIS;
+            if (day > 0) {
+                json.append(',');
+            }
+
+            json.append("{\"startTimeMillis\":\"").append(bucketStart)
+                    .append("\",\"endTimeMillis\":\"").append(bucketEnd).append("\",\"dataset\":[");
+
+            // the steps of the day
+            json.append("{\"dataSourceId\":\"derived:com.google.step_count.delta:com.google.android.gms:aggregated\",")
+                    .append("\"point\":[");
+            appendPoint(json, bucketStart, bucketEnd, "com.google.step_count.delta", 250 + random.nextInt(14750));
+            json.append("]},");
+
+            // the activity segments of the day: type, duration in milliseconds and number of segments
+            json.append("{\"dataSourceId\":\"derived:com.google.activity.summary:com.google.android.gms:aggregated\",")
+                    .append("\"point\":[");
+            for (int i = 0; i < ACTIVITY_TYPES.length; i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                appendPoint(json, bucketStart, bucketEnd, "com.google.activity.summary", ACTIVITY_TYPES[i],
+                        randomDuration(random), 1 + random.nextInt(5));
+            }
+            json.append("]}]}");
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * creates the documents returned by DbConnector.extractDocuments (one per day)
+     * @param startTime: the first day (date in UTC)
+     * @param days: number of days
+     * @param seed: seed for the random values
+     * @return the documents sorted by date
+     */
+    public static List<Document> dailyDocuments(long startTime, int days, long seed) {
+        Random random = new Random(seed);
+        List<Document> documents = new ArrayList<>(days);
+
+        for (int day = 0; day < days; day++) {
+            Document activities = new Document();
+            for (String activityName : ACTIVITY_NAMES) {
+                activities.append(activityName, randomDuration(random));
+            }
+            documents.add(new Document("startDateInUTC", startTime + day * DAY_IN_MILLIS)
+                    .append("steps", 250 + random.nextInt(14750))
+                    .append("activities", activities)
+                    .append("averageSteps", 2000 + random.nextDouble() * 7000)
+                    .append("stdErrorOfMean", 500 + random.nextDouble() * 1000)
+                    .append("lowerQuartileSteps", 1000 + random.nextDouble() * 2000)
+                    .append("medianSteps", 3000 + random.nextDouble() * 2000)
+                    .append("upperQuartileSteps", 5000 + random.nextDouble() * 4000)
+                    .append("cohortAverageSteps", 2000 + random.nextDouble() * 7000)
+                    .append("cohortStdErrorOfMean", 500 + random.nextDouble() * 1000)
+                    .append("cohortMedianSteps", 3000 + random.nextDouble() * 2000));
+        }
+        return documents;
+    }
+
+    /**
+     * @param random: the random number generator
+     * @return an activity duration between 10 minutes and about 6 hours in milliseconds
+     */
+    private static int randomDuration(Random random) {
+        return (int) (HOUR_IN_MILLIS / 6 + random.nextInt((int) (HOUR_IN_MILLIS * 6)));
+    }
+
+    /**
+     * appends a data point of the aggregate response
+     * @param json: the response so far
+     * @param startTime: start of the point (date in UTC)
+     * @param endTime: end of the point (date in UTC)
+     * @param dataTypeName: the data type of google fit
+     * @param intValues: the values of the point
+     */
+    private static void appendPoint(StringBuilder json, long startTime, long endTime, String dataTypeName,
+                                    int... intValues) {
+        json.append("{\"startTimeNanos\":\"").append(startTime * 1000000)
+                .append("\",\"endTimeNanos\":\"").append(endTime * 1000000)
+                .append("\",\"dataTypeName\":\"").append(dataTypeName)
+                .append("\",\"originDataSourceId\":\"\",\"value\":[");
+        for (int i = 0; i < intValues.length; i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"intVal\":").append(intValues[i]).append(",\"mapVal\":[]}");
+        }
+        json.append("]}");
+    }
+}
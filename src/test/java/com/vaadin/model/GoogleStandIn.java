@@ -0,0 +1,430 @@
+package com.vaadin.model;
+
+import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.bson.Document;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A local stand-in of the google endpoints used by the application (an HttpServer on localhost), so that the login and
+ * the download of the fitness data can be tested and measured without google:
+ *      - the token endpoint (see AuthRequest) answers the authorization code and refresh token grants. The codes carry
+ *        the google account id of the user (see codeOf); only the first code of a user gets a refresh token, like the
+ *        first consent at google. The access tokens carry the user as well.
+ *      - the aggregate endpoint of google fit (see DataRequest) answers with generated days (see
+ *        Fixtures.fitAggregateResponse) for the requested time interval, seeded by the user and the interval.
+ *      - the data source endpoint of google fit answers whether the user has the merged activity segments. Users whose
+ *        id contains "without-activities" have none; like at google, their aggregate requests asking for the activities
+ *        fail with 400.
+ * Temporary errors of google (e.g. 429 or 503) can be injected into the aggregate requests (see
+ * failNextAggregateRequests), and the aggregate requests can be answered with the latency of google (see
+ * setAggregateLatencyMillis). The requests are answered concurrently by a thread pool.
+ */
+final class GoogleStandIn implements Closeable {
+
+    /* the client id the stand-in issues the id tokens for */
+    private static final String CLIENT_ID = "benchmark-client";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicInteger tokenRequests = new AtomicInteger();
+    private final AtomicInteger aggregateRequests = new AtomicInteger();
+    private final AtomicInteger dataSourceRequests = new AtomicInteger();
+    private final List<long[]> answeredTimeIntervals = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger runningAggregateRequests = new AtomicInteger();
+    private final AtomicInteger maxRunningAggregateRequests = new AtomicInteger();
+    private final AtomicInteger accessTokenCounter = new AtomicInteger();
+
+    /* the injected errors: the number of aggregate requests still to fail, their status, Retry-After header and
+     * reason (e.g. rateLimitExceeded) */
+    private int failingAggregateRequests;
+    private int failureStatus;
+    private String failureRetryAfter;
+    private String failureReason;
+
+    /* the time every aggregate request takes before it is answered */
+    private volatile long aggregateLatencyMillis;
+
+    /**
+     * starts the stand-in on a free port of localhost
+     * @throws IOException: if the server cannot be started
+     */
+    GoogleStandIn() throws IOException {
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "google-stand-in");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/token", this::answerTokenRequest);
+        server.createContext("/fitness/v1/users/me/dataset:aggregate", this::answerAggregateRequest);
+        server.createContext("/fitness/v1/users/me/dataSources/", this::answerDataSourceRequest);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return the url of the token endpoint, e.g. for the system property trackfit.oauth.tokenUrl
+     */
+    String getTokenServerUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/token";
+    }
+
+    /**
+     * @return the root url of google fit, e.g. for the system property trackfit.fit.rootUrl
+     */
+    String getFitRootUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * @return the client id and secret of the application as registered with the stand-in
+     */
+    GoogleClientSecrets getClientSecrets() {
+        return new GoogleClientSecrets().setWeb(new GoogleClientSecrets.Details()
+                .setClientId(CLIENT_ID)
+                .setClientSecret("benchmark-secret")
+                .setAuthUri("http://localhost/auth")
+                .setTokenUri(getTokenServerUrl()));
+    }
+
+    /**
+     * @return number of requests to the token endpoint so far
+     */
+    int getTokenRequests() {
+        return tokenRequests.get();
+    }
+
+    /**
+     * @return number of requests to the aggregate endpoint so far
+     */
+    int getAggregateRequests() {
+        return aggregateRequests.get();
+    }
+
+    /**
+     * @return the start and end time of every aggregate request answered with days so far, in the order of the answers
+     */
+    List<long[]> getAnsweredTimeIntervals() {
+        synchronized (answeredTimeIntervals) {
+            return new ArrayList<>(answeredTimeIntervals);
+        }
+    }
+
+    /**
+     * @return number of requests to the data source endpoint so far
+     */
+    int getDataSourceRequests() {
+        return dataSourceRequests.get();
+    }
+
+    /**
+     * answers the next aggregate requests with an error instead of the days
+     * @param count: the number of requests to fail
+     * @param status: the http status of the error, e.g. 429 or 503
+     * @param retryAfter: the value of the Retry-After header; null to send none
+     */
+    synchronized void failNextAggregateRequests(int count, int status, String retryAfter) {
+        failNextAggregateRequests(count, status, retryAfter, null);
+    }
+
+    /**
+     * answers the next aggregate requests with an error giving the reason, like the rate limits of google answered with
+     * 403 and the reason rateLimitExceeded or userRateLimitExceeded
+     * @param count: the number of requests to fail
+     * @param status: the http status of the error, e.g. 403
+     * @param retryAfter: the value of the Retry-After header; null to send none
+     * @param reason: the reason of the error; null to send none
+     */
+    synchronized void failNextAggregateRequests(int count, int status, String retryAfter, String reason) {
+        failingAggregateRequests = count;
+        failureStatus = status;
+        failureRetryAfter = retryAfter;
+        failureReason = reason;
+    }
+
+    /**
+     * lets every following aggregate request take the time before it is answered, like the requests to google
+     * @param latencyMillis: the time in milliseconds; 0 to answer at once
+     */
+    void setAggregateLatencyMillis(long latencyMillis) {
+        aggregateLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * @return the maximum number of aggregate requests answered at the same time so far
+     */
+    int getMaxConcurrentAggregateRequests() {
+        return maxRunningAggregateRequests.get();
+    }
+
+    /**
+     * starts counting the maximum number of aggregate requests answered at the same time anew
+     */
+    void resetMaxConcurrentAggregateRequests() {
+        maxRunningAggregateRequests.set(runningAggregateRequests.get());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @param user: the google account id
+     * @param firstConsent: whether the user gives the consent for the first time; only then the code is answered with
+     *                    a refresh token
+     * @return an authorization code of the user
+     */
+    static String codeOf(String user, boolean firstConsent) {
+        return (firstConsent ? "first:" : "code:") + user;
+    }
+
+    /**
+     * @param user: the google account id
+     * @return the refresh token the stand-in issues for the user
+     */
+    static String refreshTokenOf(String user) {
+        return "refresh:" + user;
+    }
+
+    /**
+     * answers a request to the token endpoint like google: a new access token for an authorization code (with a
+     * refresh token for the first code of the user only) or for a refresh token issued by the stand-in
+     * @param exchange: the request and its response
+     */
+    private void answerTokenRequest(HttpExchange exchange) throws IOException {
+        tokenRequests.incrementAndGet();
+        Map<String, String> form = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+            String body = reader.readLine();
+            for (String parameter : body == null ? new String[0] : body.split("&")) {
+                String[] keyAndValue = parameter.split("=", 2);
+                form.put(URLDecoder.decode(keyAndValue[0], "UTF-8"),
+                        keyAndValue.length > 1 ? URLDecoder.decode(keyAndValue[1], "UTF-8") : "");
+            }
+        }
+
+        String grantType = form.get("grant_type");
+        String[] codeAndUser = form.getOrDefault("code", "").split(":", 2);
+        String[] refreshTokenAndUser = form.getOrDefault("refresh_token", "").split(":", 2);
+        Document response;
+        if ("authorization_code".equals(grantType) && codeAndUser.length == 2) {
+            response = accessTokenOf(codeAndUser[1]).append("id_token", idTokenOf(codeAndUser[1]));
+            if (codeAndUser[0].equals("first")) {
+                response.append("refresh_token", refreshTokenOf(codeAndUser[1]));
+            }
+        } else if ("refresh_token".equals(grantType) && refreshTokenAndUser.length == 2
+                && refreshTokenAndUser[0].equals("refresh")) {
+            response = accessTokenOf(refreshTokenAndUser[1]);
+        } else {
+            sendJson(exchange, 400, new Document("error", "invalid_grant"));
+            return;
+        }
+        sendJson(exchange, 200, response);
+    }
+
+    /**
+     * answers an aggregate request of google fit with a day (bucket) for every day of the requested time interval
+     * @param exchange: the request and its response
+     */
+    private void answerAggregateRequest(HttpExchange exchange) throws IOException {
+        aggregateRequests.incrementAndGet();
+        maxRunningAggregateRequests.accumulateAndGet(runningAggregateRequests.incrementAndGet(), Math::max);
+        try {
+            if (aggregateLatencyMillis > 0) {
+                Thread.sleep(aggregateLatencyMillis);
+            }
+            answerAggregateRequestOf(exchange);
+        } catch (InterruptedException e) {
+            // the stand-in is closed
+            Thread.currentThread().interrupt();
+        } finally {
+            runningAggregateRequests.decrementAndGet();
+        }
+    }
+
+    /**
+     * @param exchange: the aggregate request and its response
+     */
+    private void answerAggregateRequestOf(HttpExchange exchange) throws IOException {
+        String user = authenticate(exchange);
+        if (user == null) {
+            return;
+        }
+        synchronized (this) {
+            if (failingAggregateRequests > 0) {
+                failingAggregateRequests--;
+                if (failureRetryAfter != null) {
+                    exchange.getResponseHeaders().set("Retry-After", failureRetryAfter);
+                }
+                sendError(exchange, failureStatus, "Injected error of the stand-in.", failureReason);
+                return;
+            }
+        }
+
+        // the google client compresses the content of its requests
+        Document request;
+        InputStream requestBody = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            requestBody = new GZIPInputStream(requestBody);
+        }
+        try (InputStream body = requestBody) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read = body.read(buffer); read >= 0; read = body.read(buffer)) {
+                bytes.write(buffer, 0, read);
+            }
+            request = Document.parse(new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        }
+
+        // google fit fails the whole request if a data source does not exist
+        List<?> aggregateBys = (List<?>) request.get("aggregateBy");
+        for (Object aggregateBy : aggregateBys == null ? Collections.emptyList() : aggregateBys) {
+            if (DataRequest.ACTIVITY_SEGMENT_SOURCE.equals(((Document) aggregateBy).getString("dataSourceId"))
+                    && !hasActivitySegments(user)) {
+                sendError(exchange, 400, "no default datasource found for: " + DataRequest.ACTIVITY_SEGMENT_SOURCE);
+                return;
+            }
+        }
+
+        // the client sends the times as strings (int64 in the discovery document of google fit)
+        long startTime = Long.parseLong(String.valueOf(request.get("startTimeMillis")));
+        long endTime = Long.parseLong(String.valueOf(request.get("endTimeMillis")));
+        int days = (int) Math.max(0, (endTime - startTime) / Fixtures.DAY_IN_MILLIS);
+        answeredTimeIntervals.add(new long[]{startTime, endTime});
+        byte[] response = Fixtures.fitAggregateResponse(startTime, days, user.hashCode() * 31L + startTime)
+                .getBytes(StandardCharsets.UTF_8);
+        sendBytes(exchange, 200, response);
+    }
+
+    /**
+     * answers a request for a data source of the user; only the merged activity segments are known to the stand-in
+     * @param exchange: the request and its response
+     */
+    private void answerDataSourceRequest(HttpExchange exchange) throws IOException {
+        dataSourceRequests.incrementAndGet();
+        String user = authenticate(exchange);
+        if (user == null) {
+            return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        String dataSourceId = path.substring(path.lastIndexOf('/') + 1);
+        if (!DataRequest.ACTIVITY_SEGMENT_SOURCE.equals(dataSourceId) || !hasActivitySegments(user)) {
+            sendError(exchange, 404, "DataSourceId: " + dataSourceId + " not found");
+            return;
+        }
+        sendJson(exchange, 200, new Document("dataStreamId", dataSourceId)
+                .append("type", "derived")
+                .append("dataType", new Document("name", "com.google.activity.segment")));
+    }
+
+    /**
+     * @param user: the google account id
+     * @return whether the user has the merged activity segments
+     */
+    private static boolean hasActivitySegments(String user) {
+        return !user.contains("without-activities");
+    }
+
+    /**
+     * checks the access token of the request and answers with 401 if it is not one issued by the stand-in
+     * @param exchange: the request and its response
+     * @return the google account id of the user; null if the request has been answered with 401
+     */
+    private static String authenticate(HttpExchange exchange) throws IOException {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        String[] accessToken = authorization == null ? new String[0] : authorization.split(":", 3);
+        if (accessToken.length != 3 || !accessToken[0].equals("Bearer access")) {
+            sendError(exchange, 401, "Request had invalid authentication credentials.");
+            return null;
+        }
+        return accessToken[1];
+    }
+
+    /**
+     * @param user: the google account id
+     * @return the token response with a new access token of the user, valid for an hour
+     */
+    private Document accessTokenOf(String user) {
+        return new Document("access_token", "access:" + user + ":" + accessTokenCounter.incrementAndGet())
+                .append("token_type", "Bearer")
+                .append("expires_in", 3600);
+    }
+
+    /**
+     * @param user: the google account id
+     * @return an (unsigned) id token for the user; AuthRequest does not verify the signature of tokens received from
+     * the token endpoint
+     */
+    private static String idTokenOf(String user) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        String header = new Document("alg", "RS256").append("typ", "JWT").toJson();
+        String payload = new Document("iss", "https://accounts.google.com").append("sub", user)
+                .append("aud", CLIENT_ID).toJson();
+        return encoder.encodeToString(header.getBytes(StandardCharsets.UTF_8)) + "."
+                + encoder.encodeToString(payload.getBytes(StandardCharsets.UTF_8)) + "."
+                + encoder.encodeToString("signature".getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * answers with an error in the format of the google apis
+     * @param exchange: the request and its response
+     * @param status: the http status of the error
+     * @param message: the message of the error
+     */
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        sendError(exchange, status, message, null);
+    }
+
+    /**
+     * answers with an error in the format of the google apis, listing the reason of the error
+     * @param exchange: the request and its response
+     * @param status: the http status of the error
+     * @param message: the message of the error
+     * @param reason: the reason of the error, e.g. rateLimitExceeded; null to list none
+     */
+    private static void sendError(HttpExchange exchange, int status, String message, String reason)
+            throws IOException {
+        Document error = new Document("code", status).append("message", message);
+        if (reason != null) {
+            error.append("errors", Collections.singletonList(new Document("domain", "usageLimits")
+                    .append("reason", reason).append("message", message)));
+        }
+        sendJson(exchange, status, new Document("error", error));
+    }
+
+    /**
+     * @param exchange: the request and its response
+     * @param status: the http status of the response
+     * @param response: the body of the response
+     */
+    private static void sendJson(HttpExchange exchange, int status, Document response) throws IOException {
+        sendBytes(exchange, status, response.toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param exchange: the request and its response
+     * @param status: the http status of the response
+     * @param json: the json body of the response
+     */
+    private static void sendBytes(HttpExchange exchange, int status, byte[] json) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, json.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(json);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.vaadin.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the buckets of Timer (8 per power of two, long values) and of StepsSketch (32 per power of two, int values):
+ * they cover all values without gaps, every bound falls into its own bucket and no bucket is wider than
+ * 1/2^subBucketBits of its smallest value.
+ */
+public class LogLinearBucketsTest {
+
+    @Test
+    public void bucketsOfTimerCoverAllLongValues() {
+        assertContiguous(new LogLinearBuckets(3), 3, 64, Long.MAX_VALUE);
+    }
+
+    @Test
+    public void bucketsOfStepsSketchCoverAllIntValues() {
+        assertContiguous(new LogLinearBuckets(5), 5, 32, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param buckets: the buckets to check
+     * @param subBucketBits: the number of buckets per power of two is 2^subBucketBits
+     * @param valueBits: the bits of the values
+     * @param maxValue: the largest value
+     */
+    private static void assertContiguous(LogLinearBuckets buckets, int subBucketBits, int valueBits, long maxValue) {
+        int count = buckets.countFor(valueBits);
+        assertEquals(0, buckets.lowerBoundOf(0));
+        for (int bucket = 0; bucket < count; bucket++) {
+            long lowerBound = buckets.lowerBoundOf(bucket);
+            long upperBound = buckets.upperBoundOf(bucket);
+            assertEquals(bucket, buckets.bucketOf(lowerBound));
+            assertEquals(bucket, buckets.bucketOf(upperBound));
+            assertTrue("width of bucket " + bucket,
+                    upperBound - lowerBound <= Math.max(0, lowerBound >> subBucketBits));
+            if (bucket + 1 < count) {
+                assertEquals(upperBound + 1, buckets.lowerBoundOf(bucket + 1));
+            }
+        }
+        assertEquals(maxValue, buckets.upperBoundOf(count - 1));
+        assertEquals(count - 1, buckets.bucketOf(maxValue));
+    }
+}
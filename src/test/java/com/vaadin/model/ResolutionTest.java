@@ -0,0 +1,49 @@
+package com.vaadin.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the resolutions of the ranges of the charts (see Resolution.forRange) at their boundaries and the periods the
+ * days belong to:
+ *      - up to 92 days are returned day by day, up to 732 days week by week and longer ranges month by month
+ *      - a range is measured in whole days, so a range a few hours longer than the boundary keeps the resolution
+ *      - the weeks start on Monday, the months on their first day (in UTC)
+ */
+public class ResolutionTest {
+
+    private static final long DAY = DataRequest.DAY_IN_MILLIS;
+
+    /* 2018-01-03, a Wednesday */
+    private static final long START_TIME = 1514937600000L;
+
+    @Test
+    public void resolutionChangesAfterTheBoundaries() {
+        assertEquals(Resolution.DAY, Resolution.forRange(START_TIME, START_TIME + DAY));
+        assertEquals(Resolution.DAY, Resolution.forRange(START_TIME, START_TIME + 92 * DAY));
+        assertEquals(Resolution.WEEK, Resolution.forRange(START_TIME, START_TIME + 93 * DAY));
+        assertEquals(Resolution.WEEK, Resolution.forRange(START_TIME, START_TIME + 732 * DAY));
+        assertEquals(Resolution.MONTH, Resolution.forRange(START_TIME, START_TIME + 733 * DAY));
+    }
+
+    @Test
+    public void rangesAreMeasuredInWholeDays() {
+        assertEquals(Resolution.DAY, Resolution.forRange(START_TIME, START_TIME + 93 * DAY - 1));
+        assertEquals(Resolution.WEEK, Resolution.forRange(START_TIME, START_TIME + 733 * DAY - 1));
+    }
+
+    @Test
+    public void periodsStartOnMondayAndOnTheFirstOfTheMonth() {
+        long monday = START_TIME - 2 * DAY;
+        assertEquals(START_TIME, Resolution.DAY.periodStart(START_TIME + DAY / 2));
+        assertEquals(START_TIME + DAY, Resolution.DAY.periodEnd(START_TIME));
+        assertEquals(monday, Resolution.WEEK.periodStart(START_TIME));
+        assertEquals(monday, Resolution.WEEK.periodStart(monday));
+        assertEquals(monday + 7 * DAY, Resolution.WEEK.periodEnd(START_TIME));
+        assertEquals(monday + 7 * DAY, Resolution.WEEK.periodStart(monday + 7 * DAY));
+        assertEquals(START_TIME - 2 * DAY, Resolution.MONTH.periodStart(START_TIME));
+        assertEquals(START_TIME + 29 * DAY, Resolution.MONTH.periodEnd(START_TIME));
+        assertEquals(START_TIME + 29 * DAY, Resolution.MONTH.periodStart(START_TIME + 29 * DAY));
+    }
+}
@@ -0,0 +1,186 @@
+package com.vaadin.model;
+
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Stores the days of several users with activities, and then the most recent days again with other steps and other
+ * activities (see FitDataFetcher.REFRESH_DAYS). The weeks and months (see DbRollups and PeriodSums) are the same as the
+ * days of the users summed up by period: the daily averages of the steps and activities of the user and the mean, std
+ * error of mean and median of the steps of all users. The days start on a Wednesday and end in the middle of a month,
+ * so the first and last periods are partial.
+ */
+@RunWith(Parameterized.class)
+public class RollupsTest {
+
+    private static final int USERS = 8;
+
+    /* 100 days starting on 2018-01-03, a Wednesday; the last CHANGED_DAYS days are stored again */
+    private static final long START_TIME = 1514937600000L;
+    private static final int DAYS = 100;
+    private static final int CHANGED_DAYS = 12;
+    private static final long END_TIME = START_TIME + DAYS * DataRequest.DAY_IN_MILLIS;
+
+    private static final List<String> ACTIVITIES = Arrays.asList("walking", "still", "running");
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> storages() {
+        return Arrays.asList(new Object[][]{{"mongo"}, {"mongo-buckets"}, {"sqlite"}});
+    }
+
+    /* the store the data is kept in (see FitDataStores) */
+    @Parameterized.Parameter
+    public String storage;
+
+    @Before
+    public void useStorage() throws IOException {
+        TestStores.use(storage);
+    }
+
+    @After
+    public void closeStore() {
+        TestStores.close();
+    }
+
+    @Test
+    public void periodsAreTheSumsOfTheDays() {
+        Random random = new Random(42);
+        for (int user = 0; user < USERS; user++) {
+            FitDataStores.get().storeDays(userOf(user), daysOf(random, 0));
+        }
+        for (int user = 0; user < USERS; user++) {
+            FitDataStores.get().storeDays(userOf(user), daysOf(random, DAYS - CHANGED_DAYS));
+        }
+
+        // the days of all users as stored
+        List<List<Document>> daysOfUsers = new ArrayList<>();
+        for (int user = 0; user < USERS; user++) {
+            List<Document> days = FitDataStores.get().extractDays(userOf(user), START_TIME, END_TIME, Resolution.DAY);
+            assertEquals(DAYS, days.size());
+            daysOfUsers.add(days);
+        }
+
+        for (Resolution resolution : Arrays.asList(Resolution.WEEK, Resolution.MONTH)) {
+            List<Document> periods = FitDataStores.get().extractDays(userOf(0), START_TIME, END_TIME, resolution);
+            Set<Long> expectedPeriods = new TreeSet<>();
+            for (Document day : daysOfUsers.get(0)) {
+                expectedPeriods.add(resolution.periodStart(dateOf(day)));
+            }
+            assertEquals(resolution.toString(), new ArrayList<>(expectedPeriods), periodStartsOf(periods));
+
+            for (Document period : periods) {
+                long periodStart = dateOf(period);
+                String name = resolution + " " + periodStart;
+
+                // the steps and activities of the first user within the period
+                double stepsOfUser = 0;
+                Map<String, Long> activitiesOfUser = new HashMap<>();
+                int daysOfUser = 0;
+                for (Document day : daysOfUsers.get(0)) {
+                    if (resolution.periodStart(dateOf(day)) == periodStart) {
+                        stepsOfUser += ((Number) day.get("steps")).doubleValue();
+                        activitiesOf(day).forEach((activity, duration) ->
+                                activitiesOfUser.merge(activity, ((Number) duration).longValue(), Long::sum));
+                        daysOfUser++;
+                    }
+                }
+
+                // the steps of all users within the period
+                double[] sums = new double[3];
+                StepsSketch sketch = new StepsSketch();
+                for (List<Document> days : daysOfUsers) {
+                    for (Document day : days) {
+                        if (resolution.periodStart(dateOf(day)) == periodStart) {
+                            int steps = ((Number) day.get("steps")).intValue();
+                            sums[0] += 1;
+                            sums[1] += steps;
+                            sums[2] += (double) steps * steps;
+                            sketch.add(steps);
+                        }
+                    }
+                }
+
+                assertEquals(name, stepsOfUser / daysOfUser, ((Number) period.get("steps")).doubleValue(), 1e-6);
+                for (String activity : ACTIVITIES) {
+                    long expected = Math.round(activitiesOfUser.getOrDefault(activity, 0L) / (double) daysOfUser);
+                    Number actual = (Number) activitiesOf(period).get(activity);
+                    assertEquals(name + " " + activity, expected, actual == null ? 0 : actual.longValue());
+                }
+                assertEquals(name, PeriodSums.meanOf(sums), ((Number) period.get("averageSteps")).doubleValue(),
+                        1e-6);
+                assertEquals(name, PeriodSums.stdErrorOfMeanOf(sums),
+                        ((Number) period.get("stdErrorOfMean")).doubleValue(), 1e-6);
+                assertEquals(name, sketch.getQuantile(0.5), period.get("medianSteps"));
+            }
+        }
+    }
+
+    /**
+     * @param random: the random numbers of the steps and activities
+     * @param firstDay: the first day to return
+     * @return the days from the first day on with random steps and activities; some days have no time running, and
+     * some no time still
+     */
+    private static List<FitDay> daysOf(Random random, int firstDay) {
+        List<FitDay> days = new ArrayList<>();
+        for (int day = firstDay; day < DAYS; day++) {
+            long date = START_TIME + day * DataRequest.DAY_IN_MILLIS;
+            Map<String, Integer> activities = new HashMap<>();
+            activities.put("walking", 600000 + random.nextInt(7200000));
+            if (random.nextInt(4) > 0) {
+                activities.put("still", 10000000 + random.nextInt(20000000));
+            }
+            if (random.nextInt(3) == 0) {
+                activities.put("running", random.nextInt(3600000));
+            }
+            days.add(new FitDay(date, date + DataRequest.DAY_IN_MILLIS, 2000 + random.nextInt(10000), activities));
+        }
+        return days;
+    }
+
+    /**
+     * @param document: a day or period returned by extractDays
+     * @return the activities of the day or period; empty if there are none
+     */
+    private static Document activitiesOf(Document document) {
+        Document activities = (Document) document.get("activities");
+        return activities == null ? new Document() : activities;
+    }
+
+    /**
+     * @param document: a day or period returned by extractDays
+     * @return the date of the day or the start of the period
+     */
+    private static long dateOf(Document document) {
+        return ((Number) document.get("startDateInUTC")).longValue();
+    }
+
+    /**
+     * @param periods: the periods returned by extractDays
+     * @return the starts of the periods
+     */
+    private static List<Long> periodStartsOf(List<Document> periods) {
+        List<Long> periodStarts = new ArrayList<>();
+        for (Document period : periods) {
+            periodStarts.add(dateOf(period));
+        }
+        return periodStarts;
+    }
+
+    /**
+     * @param user: the number of the user
+     * @return the id of the user
+     */
+    private static String userOf(int user) {
+        return "rollups-user-" + user;
+    }
+}
@@ -0,0 +1,98 @@
+package com.vaadin.model;
+
+import org.bson.Document;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the pool of read connections of SqliteFitDataStore with a single read connection: a read waits at most
+ * trackfit.sqlite.readTimeoutSeconds for it, and close closes it also while it is borrowed by an open iterator.
+ */
+public class SqliteFitDataStoreTest {
+
+    private File file;
+    private SqliteFitDataStore store;
+
+    @BeforeClass
+    public static void useSingleReadConnection() {
+        // read once, when SqliteFitDataStore is loaded
+        System.setProperty("trackfit.sqlite.readConnections", "1");
+        System.setProperty("trackfit.sqlite.readTimeoutSeconds", "1");
+    }
+
+    @Before
+    public void openStore() throws IOException {
+        file = File.createTempFile("trackFitTest", ".db");
+        store = new SqliteFitDataStore(file.getPath());
+    }
+
+    @After
+    public void deleteStore() {
+        store.close();
+        for (String suffix : new String[]{"", "-wal", "-shm"}) {
+            new File(file.getPath() + suffix).delete();
+        }
+    }
+
+    @Test
+    public void readFailsIfNoConnectionGetsIdle() {
+        try (CloseableIterator<Document> days = store.iterateDays("pool-user", 0, Long.MAX_VALUE)) {
+            long start = System.nanoTime();
+            try {
+                store.iterateDays("pool-user", 0, Long.MAX_VALUE).close();
+                fail("the only read connection is borrowed");
+            } catch (IllegalStateException e) {
+                long waitedMillis = (System.nanoTime() - start) / 1000000;
+                assertTrue("waited " + waitedMillis + " ms", waitedMillis >= 900 && waitedMillis < 5000);
+            }
+        }
+        // given back by the iterator
+        assertEquals(0, store.extractDays("pool-user", 0, Long.MAX_VALUE, Resolution.DAY).size());
+    }
+
+    @Test
+    public void closeClosesBorrowedConnections() throws IOException {
+        Assume.assumeTrue("open files are listed in /proc", new File("/proc/self/fd").isDirectory());
+        CloseableIterator<Document> days = store.iterateDays("pool-user", 0, Long.MAX_VALUE);
+        assertTrue(openFilesOfDatabase() > 0);
+
+        store.close();
+        assertEquals(0, openFilesOfDatabase());
+        days.close();
+        try {
+            store.iterateDays("pool-user", 0, Long.MAX_VALUE);
+            fail("the store is closed");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("closed"));
+        }
+    }
+
+    /**
+     * @return the number of file descriptors of this process open on the database file or its WAL
+     */
+    private long openFilesOfDatabase() throws IOException {
+        try (Stream<Path> descriptors = Files.list(Paths.get("/proc/self/fd"))) {
+            return descriptors.filter(descriptor -> {
+                try {
+                    return Files.readSymbolicLink(descriptor).toString().startsWith(file.getPath());
+                } catch (IOException e) {
+                    return false;   // closed while listing
+                }
+            }).count();
+        }
+    }
+}
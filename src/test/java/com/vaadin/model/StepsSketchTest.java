@@ -0,0 +1,115 @@
+package com.vaadin.model;
+
+import org.bson.Document;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the accuracy of the sketches of the steps of all users on generated steps (see StepsSketchBenchmark for the
+ * speed): every percentile of every day and of the whole year merged from the days has to be within 1/64 of the exact
+ * percentile, i.e. the steps of the user with the same rank.
+ */
+public class StepsSketchTest {
+
+    /* the days of the year */
+    private static final int DAYS = 365;
+
+    /* the percentiles checked */
+    private static final double[] QUANTILES = {0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99};
+
+    @Test
+    public void percentilesOfDaysAndYearAreWithinTheRelativeError() {
+        for (int users : new int[]{1, 7, 100, 10000}) {
+            int[][] stepsByDay = randomSteps(users, 42);
+            StepsSketch year = new StepsSketch();
+            int[] allSteps = new int[DAYS * users];
+            for (int day = 0; day < DAYS; day++) {
+                StepsSketch sketch = new StepsSketch();
+                for (int steps : stepsByDay[day]) {
+                    sketch.add(steps);
+                }
+                assertAccurate(users + " users, day " + day, sketch, stepsByDay[day]);
+                year.merge(sketch);
+                System.arraycopy(stepsByDay[day], 0, allSteps, day * users, users);
+            }
+            assertEquals((long) DAYS * users, year.getCount());
+            assertAccurate(users + " users, year", year, allSteps);
+        }
+    }
+
+    @Test
+    public void storedSketchMergesToTheSameQuantiles() {
+        StepsSketch sketch = new StepsSketch();
+        for (int steps : randomSteps(1000, 7)[0]) {
+            sketch.add(steps);
+        }
+        StepsSketch stored = StepsSketch.of(sketch.toDocument());
+        assertEquals(sketch.getCount(), stored.getCount());
+        for (double quantile : QUANTILES) {
+            assertEquals(sketch.getQuantile(quantile), stored.getQuantile(quantile));
+        }
+    }
+
+    @Test
+    public void emptySketchHasNoQuartiles() {
+        Document day = new Document();
+        StepsSketch.appendQuartiles(day, new StepsSketch());
+        assertNull(day.get("medianSteps"));
+        StepsSketch.appendQuartiles(day, null);
+        assertNull(day.get("lowerQuartileSteps"));
+        assertNull(StepsSketch.of(null));
+    }
+
+    @Test
+    public void stepsLieWithinTheBoundsOfTheirBucket() {
+        Random random = new Random(3);
+        for (int i = 0; i < 100000; i++) {
+            int steps = i < 1000 ? i : random.nextInt(Integer.MAX_VALUE);
+            int bucket = StepsSketch.bucketOf(steps);
+            assertTrue(bucket < StepsSketch.BUCKETS);
+            assertTrue(steps + " in bucket " + bucket, StepsSketch.lowerBoundOf(bucket) <= steps
+                    && steps <= StepsSketch.upperBoundOf(bucket));
+        }
+        assertEquals(StepsSketch.BUCKETS - 1, StepsSketch.bucketOf(Integer.MAX_VALUE));
+    }
+
+    /**
+     * compares the percentiles of the sketch with the exact percentiles of the steps
+     * @param description: the sketch checked, for the failure message
+     * @param sketch: the sketch of the steps
+     * @param steps: the steps added to the sketch
+     */
+    private static void assertAccurate(String description, StepsSketch sketch, int[] steps) {
+        int[] sorted = steps.clone();
+        Arrays.sort(sorted);
+        for (double quantile : QUANTILES) {
+            double exact = sorted[(int) Math.max(0, Math.ceil(quantile * sorted.length) - 1)];
+            double estimated = sketch.getQuantile(quantile);
+            assertTrue("percentile " + quantile + " of " + description + " is " + estimated + " instead of " + exact,
+                    Math.abs(estimated - exact) <= exact / 64);
+        }
+    }
+
+    /**
+     * @param users: number of users per day
+     * @param seed: seed of the steps
+     * @return roughly log-normal steps around 6000 a day, with some days without any steps, by day and user
+     */
+    private static int[][] randomSteps(int users, long seed) {
+        Random random = new Random(seed);
+        int[][] stepsByDay = new int[DAYS][users];
+        for (int[] steps : stepsByDay) {
+            for (int user = 0; user < users; user++) {
+                boolean isWithoutSteps = random.nextInt(20) == 0;
+                steps[user] = isWithoutSteps ? 0 : (int) Math.exp(Math.log(6000) + random.nextGaussian() * 0.6);
+            }
+        }
+        return stepsByDay;
+    }
+}
@@ -0,0 +1,113 @@
+package com.vaadin.model;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+import com.mongodb.MongoException;
+import org.bson.Document;
+import org.junit.Assume;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Selects the store of a test class (see FitDataStores): a new SQLite database in a temporary file, or a new MongoDB
+ * database which is dropped afterwards. The store is configured by system properties read once, so every test class
+ * runs in a JVM of its own (see the surefire configuration in pom.xml). Tests of MongoDB are skipped if no server is
+ * reachable at trackfit.mongo.uri.
+ */
+final class TestStores {
+
+    /* the connection string of the MongoDB used by the tests */
+    static final String MONGO_URI = System.getProperty("trackfit.mongo.uri", "mongodb://localhost:27017");
+
+    private TestStores() {
+    }
+
+    /**
+     * selects a new SQLite database in a temporary file, which is deleted when the JVM exits
+     * @throws IOException: if the file cannot be created
+     */
+    static void useSqlite() throws IOException {
+        useTemporaryKey();
+        File file = File.createTempFile("trackFitTest", ".db");
+        file.deleteOnExit();
+        new File(file.getPath() + "-wal").deleteOnExit();
+        new File(file.getPath() + "-shm").deleteOnExit();
+        System.setProperty("trackfit.storage", "sqlite");
+        System.setProperty("trackfit.sqlite.path", file.getPath());
+    }
+
+    /**
+     * selects a new MongoDB database (see dropDatabase); skips the test class if no server is reachable
+     */
+    static void useMongo() {
+        useMongo("mongo");
+    }
+
+    /**
+     * selects a new MongoDB database (see dropDatabase); skips the test class if no server is reachable
+     * @param storage: mongo or mongo-buckets (see FitDataStores)
+     */
+    private static void useMongo(String storage) {
+        Assume.assumeTrue("No MongoDB reachable at " + MONGO_URI, isMongoReachable());
+        useTemporaryKey();
+        System.setProperty("trackfit.storage", storage);
+        System.setProperty("trackfit.mongo.database", "trackFitTest" + System.nanoTime());
+    }
+
+    /**
+     * selects the storage of the parameter of a test
+     * @param storage: mongo, mongo-buckets or sqlite (see FitDataStores)
+     * @throws IOException: if the SQLite file cannot be created
+     */
+    static void use(String storage) throws IOException {
+        if (storage.equals("sqlite")) {
+            useSqlite();
+        } else {
+            useMongo(storage);
+        }
+    }
+
+    /**
+     * encrypts the credentials (see TokenCipher) with a key in a temporary file, which is deleted when the JVM exits;
+     * the key is read once, so all tests of the class use the same key
+     */
+    private static void useTemporaryKey() {
+        if (System.getProperty("trackfit.credentials.keyFile") == null) {
+            File keyFile = new File(System.getProperty("java.io.tmpdir"), "trackFitTest" + System.nanoTime() + ".key");
+            keyFile.deleteOnExit();
+            System.setProperty("trackfit.credentials.keyFile", keyFile.getPath());
+        }
+    }
+
+    /**
+     * drops the MongoDB database of the test class, if any, and closes the store
+     */
+    static void close() {
+        if (System.getProperty("trackfit.storage", "").startsWith("mongo")) {
+            DbConnectionPool.getDatabase().drop();
+        }
+        FitDataStores.close();
+    }
+
+    /**
+     * @return a new client of the MongoDB used by the tests, e.g. for a second database
+     */
+    static MongoClient newMongoClient() {
+        return new MongoClient(new MongoClientURI(MONGO_URI,
+                MongoClientOptions.builder().serverSelectionTimeout(1000)));
+    }
+
+    /**
+     * @return whether a MongoDB server answers at trackfit.mongo.uri
+     */
+    private static boolean isMongoReachable() {
+        try (MongoClient client = newMongoClient()) {
+            client.getDatabase("admin").runCommand(new Document("ping", 1));
+            return true;
+        } catch (MongoException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.vaadin.model;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TokenCipherTest {
+
+    private final TokenCipher cipher = new TokenCipher(keyOf((byte) 1));
+
+    @Test
+    public void decryptsTheEncryptedToken() {
+        String encrypted = cipher.encrypt("1/refresh-token", "user-a");
+        assertTrue(TokenCipher.isEncrypted(encrypted));
+        assertEquals("1/refresh-token", cipher.decrypt(encrypted, "user-a"));
+        // a new iv for every token
+        assertNotEquals(encrypted, cipher.encrypt("1/refresh-token", "user-a"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void tokenOfAnotherUserIsRejected() {
+        cipher.decrypt(cipher.encrypt("1/refresh-token", "user-a"), "user-b");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void tokenOfAnotherKeyIsRejected() {
+        new TokenCipher(keyOf((byte) 2)).decrypt(cipher.encrypt("1/refresh-token", "user-a"), "user-a");
+    }
+
+    @Test
+    public void plainTextAndMissingTokensAreReturnedAsTheyAre() {
+        assertEquals("1/refresh-token", cipher.decrypt("1/refresh-token", "user-a"));
+        assertNull(cipher.encrypt(null, "user-a"));
+        assertNull(cipher.decrypt(null, "user-a"));
+    }
+
+    /**
+     * @param value: the value of every byte
+     * @return a key of 256 bits
+     */
+    private static byte[] keyOf(byte value) {
+        byte[] key = new byte[32];
+        Arrays.fill(key, value);
+        return key;
+    }
+}